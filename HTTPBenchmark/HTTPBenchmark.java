@@ -0,0 +1,434 @@
+/*
+ * HTTPBenchmark.java - measures the server's hot paths.
+ *
+ *
+ * Usage:
+ *   java HTTPBenchmark [-h] [-l] [-w ITERATIONS] [-i ITERATIONS]
+ *                      [-r MILLIS] [-e ENGINE] [-p PORT]
+ *                      [-o FILE] [-b FILE] [PATTERN]
+ *
+ *   -h             display this usage screen and exit
+ *   -l             list the benchmarks and exit
+ *   -w ITERATIONS  warm-up iterations, not reported (Default: 3)
+ *   -i ITERATIONS  measured iterations (Default: 5)
+ *   -r MILLIS      length of each iteration (Default: 1000)
+ *   -e ENGINE      server engine for the loopback benchmarks,
+ *                  "blocking" or "nio" (Default: blocking)
+ *   -p PORT        loopback server port (Default: 18080)
+ *   -o FILE        save the results to FILE
+ *   -b FILE        compare with results saved earlier by -o
+ *
+ *   PATTERN is a regular expression; only benchmarks whose names
+ *   contain a match are run.  The default runs them all.
+ *
+ *
+ * Notes:
+ *   Each benchmark is one small operation, run over and over for
+ *   a number of timed iterations after some warm-up iterations
+ *   that let the JIT compiler settle.  For each benchmark the
+ *   report shows:
+ *
+ *     ns/op    mean time per operation over the measured
+ *              iterations, +- the standard deviation between them
+ *     B/op     bytes allocated per operation, by all threads
+ *              (server threads included)
+ *     GCs      garbage collections during the measured iterations
+ *
+ *   The micro benchmarks (HTTPMicroBenchmarks) drive the request
+ *   parser, the header writer, the file cache and whole sessions
+ *   without any network I/O.  The loopback benchmarks
+ *   (HTTPLoopbackBenchmarks) run a complete server in this JVM and
+ *   fetch small, medium and large files from it over one
+ *   persistent connection.  Both serve a scratch document root
+ *   created in the temp directory.
+ *
+ *   To see the effect of a change, save the results before it
+ *   with "-o before.txt" and run again afterwards with
+ *   "-b before.txt"; each line then shows how much faster or
+ *   slower the operation became.  Run both on an otherwise idle
+ *   machine with the same options.
+ *
+ *   The server logs every request on the console; its output is
+ *   discarded while the benchmarks run.
+ */
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+
+/**
+ * Runs the micro and loopback benchmarks and reports the results.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPBenchmark {
+
+    /**
+     * A benchmarked operation.
+     */
+    public static abstract class Case {
+        private final String m_name;
+
+        /**
+         * @param name shown in the report, e.g. "parser.request"
+         */
+        public Case(String name) {
+            m_name = name;
+        }
+
+        /**
+         * @return the benchmark's name
+         */
+        public String getName() {
+            return m_name;
+        }
+
+        /**
+         * Prepares for the first operation; not timed.
+         */
+        public void setUp() throws Exception {
+        }
+
+        /**
+         * Performs the operation once.
+         *
+         * @return any value computed by the operation, so the JIT
+         *         compiler can't discard the work
+         */
+        public abstract long run() throws Exception;
+
+        /**
+         * Releases what setUp() acquired; not timed.
+         */
+        public void tearDown() throws Exception {
+        }
+    }
+
+    // Operations between clock readings.
+    private static final int BATCH = 64;
+
+    // Results of run(), so they are never dead code.
+    public static volatile long s_sink;
+
+    // Member variables.
+    private int m_warmupIterations;
+    private int m_iterations;
+    private long m_iterationMillis;
+    private String m_engine;
+    private int m_port;
+    private String m_outFile;
+    private String m_baselineFile;
+    private Pattern m_pattern;
+    private boolean m_listOnly;
+    private PrintStream m_console;          // System.out, before muting.
+    private com.sun.management.ThreadMXBean m_threads;
+
+
+    /**
+     * Initializes the benchmark runner with default values.
+     */
+    public HTTPBenchmark() {
+        m_warmupIterations = 3;
+        m_iterations = 5;
+        m_iterationMillis = 1000;
+        m_engine = "blocking";
+        m_port = 18080;
+        m_outFile = null;
+        m_baselineFile = null;
+        m_pattern = Pattern.compile("");
+        m_listOnly = false;
+        m_console = System.out;
+        m_threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * Explains the command line argument syntax to the user.
+     */
+    public void showUsage() {
+        System.out.println(
+            "Usage: java HTTPBenchmark [-h] [-l] [-w ITERATIONS] [-i ITERATIONS]\n"
+            + "                          [-r MILLIS] [-e ENGINE] [-p PORT]\n"
+            + "                          [-o FILE] [-b FILE] [PATTERN]\n"
+            + "  -h             display this usage screen and exit\n"
+            + "  -l             list the benchmarks and exit\n"
+            + "  -w ITERATIONS  warm-up iterations (Default: 3)\n"
+            + "  -i ITERATIONS  measured iterations (Default: 5)\n"
+            + "  -r MILLIS      length of each iteration (Default: 1000)\n"
+            + "  -e ENGINE      loopback server engine, blocking or nio\n"
+            + "                 (Default: blocking)\n"
+            + "  -p PORT        loopback server port (Default: 18080)\n"
+            + "  -o FILE        save the results to FILE\n"
+            + "  -b FILE        compare with results saved by -o\n"
+            + "\n"
+            + "PATTERN selects benchmarks by name (regular expression).");
+    }
+
+    /**
+     * Parses command line arguments, overriding the defaults.
+     *
+     * @param args the program arguments that were passed to
+     *   main()
+     */
+    public void parseArgs(String args[]) {
+        for (int arg = 0; arg < args.length; arg++) {
+            switch (args[arg]) {
+                case "-h":
+                    showUsage();
+                    System.exit(0);
+                    break;    // not reached
+
+                case "-l":
+                    m_listOnly = true;
+                    break;
+
+                case "-w":
+                    arg++;
+                    m_warmupIterations = Integer.parseInt(args[arg]);
+                    break;
+
+                case "-i":
+                    arg++;
+                    m_iterations = Math.max(1, Integer.parseInt(args[arg]));
+                    break;
+
+                case "-r":
+                    arg++;
+                    m_iterationMillis = Long.parseLong(args[arg]);
+                    break;
+
+                case "-e":
+                    arg++;
+                    m_engine = args[arg];
+                    break;
+
+                case "-p":
+                    arg++;
+                    m_port = Integer.parseInt(args[arg]);
+                    break;
+
+                case "-o":
+                    arg++;
+                    m_outFile = args[arg];
+                    break;
+
+                case "-b":
+                    arg++;
+                    m_baselineFile = args[arg];
+                    break;
+
+                default:
+                    m_pattern = Pattern.compile(args[arg]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs the selected benchmarks and prints the report.
+     *
+     * @param args The program arguments that were passed to
+     *             main()
+     */
+    public void runBenchmarks(String args[]) throws Exception {
+        parseArgs(args);
+
+        Path docRoot = createDocRoot();
+        List<Case> cases = new ArrayList<>();
+        cases.addAll(HTTPMicroBenchmarks.create(docRoot));
+        cases.addAll(HTTPLoopbackBenchmarks.create(docRoot, m_engine, m_port));
+
+        if (m_listOnly) {
+            for (Case benchmark : cases) {
+                if (m_pattern.matcher(benchmark.getName()).find())
+                    System.out.println(benchmark.getName());
+            }
+            return;
+        }
+
+        Map<String, double[]> baseline = (m_baselineFile == null)
+                ? Collections.<String, double[]>emptyMap()
+                : loadResults(m_baselineFile);
+        PrintWriter out = (m_outFile == null)
+                ? null : new PrintWriter(new FileWriter(m_outFile));
+
+        System.out.printf("%-24s %14s %10s %10s %6s%s%n", "Benchmark",
+                "ns/op", "+-", "B/op", "GCs",
+                baseline.isEmpty() ? "" : "   vs baseline");
+        for (Case benchmark : cases) {
+            if (!m_pattern.matcher(benchmark.getName()).find())
+                continue;
+
+            double[] result = measure(benchmark);
+            String change = "";
+            double[] before = baseline.get(benchmark.getName());
+            if (before != null) {
+                change = String.format("   %+6.1f%% time, %+.0f B/op",
+                        (result[0] - before[0]) * 100 / before[0],
+                        result[2] - before[2]);
+            }
+            System.out.printf("%-24s %14.1f %10.1f %10.0f %6.0f%s%n",
+                    benchmark.getName(), result[0], result[1], result[2],
+                    result[3], change);
+            if (out != null) {
+                out.println(benchmark.getName() + " " + result[0] + " "
+                        + result[1] + " " + result[2] + " " + result[3]);
+            }
+        }
+        if (out != null)
+            out.close();
+    }
+
+    /**
+     * Runs one benchmark's warm-up and measured iterations.
+     *
+     * @return { mean ns/op, standard deviation, bytes/op, GCs }
+     */
+    private double[] measure(Case benchmark) throws Exception {
+        // The server logs to System.out; keep it off the report.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            benchmark.setUp();
+            try {
+                for (int i = 0; i < m_warmupIterations; i++)
+                    iterate(benchmark);
+
+                double[] nanosPerOp = new double[m_iterations];
+                long ops = 0;
+                long allocated = -allocatedBytes();
+                long collections = -collectionCount();
+                for (int i = 0; i < m_iterations; i++) {
+                    long[] iteration = iterate(benchmark);
+                    nanosPerOp[i] = (double) iteration[1] / iteration[0];
+                    ops += iteration[0];
+                }
+                allocated += allocatedBytes();
+                collections += collectionCount();
+
+                double mean = 0;
+                for (double value : nanosPerOp)
+                    mean += value / m_iterations;
+                double variance = 0;
+                for (double value : nanosPerOp)
+                    variance += (value - mean) * (value - mean);
+                double deviation = (m_iterations > 1)
+                        ? Math.sqrt(variance / (m_iterations - 1)) : 0;
+
+                return new double[] { mean, deviation,
+                        (double) allocated / ops, collections };
+            } finally {
+                benchmark.tearDown();
+            }
+        } finally {
+            System.setOut(m_console);
+        }
+    }
+
+    /**
+     * Runs batches of operations for one iteration's time.
+     *
+     * @return { operations, nanoseconds }
+     */
+    private long[] iterate(Case benchmark) throws Exception {
+        long sink = 0;
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + m_iterationMillis * 1000000;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++)
+                sink += benchmark.run();
+            ops += BATCH;
+            now = System.nanoTime();
+        } while (now < deadline);
+        s_sink = sink;
+        return new long[] { ops, now - start };
+    }
+
+    /**
+     * @return bytes allocated so far by all live threads
+     */
+    private long allocatedBytes() {
+        long total = 0;
+        for (long bytes : m_threads.getThreadAllocatedBytes(
+                m_threads.getAllThreadIds())) {
+            if (bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+
+    private static long collectionCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc :
+                ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionCount());
+        return total;
+    }
+
+    /**
+     * Reads results saved by "-o".
+     */
+    private static Map<String, double[]> loadResults(String fileName)
+            throws IOException
+    {
+        Map<String, double[]> results = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(fileName))) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4)
+                continue;
+            results.put(fields[0], new double[] {
+                    Double.parseDouble(fields[1]),
+                    Double.parseDouble(fields[2]),
+                    Double.parseDouble(fields[3]) });
+        }
+        return results;
+    }
+
+    /**
+     * Creates a scratch document root with files of typical sizes:
+     * small.html (1 KB) and medium.html (64 KB) are served from the
+     * file cache, large.bin (4 MB) from the file itself.  It is
+     * removed when the JVM exits.
+     */
+    private static Path createDocRoot() throws IOException {
+        Path docRoot = Files.createTempDirectory("HTTPBenchmark");
+        docRoot.toFile().deleteOnExit();
+
+        byte[] text = ("<p>The quick brown fox jumps over the lazy dog, "
+                + "again and again.</p>\n").getBytes("US-ASCII");
+        String[][] files = {
+            { "small.html", "1024" },
+            { "medium.html", "65536" },
+            { "large.bin", "4194304" },
+        };
+        for (String[] file : files) {
+            byte[] body = new byte[Integer.parseInt(file[1])];
+            for (int i = 0; i < body.length; i++)
+                body[i] = text[i % text.length];
+            Path path = docRoot.resolve(file[0]);
+            Files.write(path, body);
+            path.toFile().deleteOnExit();
+        }
+        return docRoot;
+    }
+
+    /**
+     * Program entry - runs the benchmarks and catches exceptions.
+     *
+     * @param args Array of command line arguments; see
+     *             showUsage()
+     */
+    public static void main(String args[]) {
+        try {
+            new HTTPBenchmark().runBenchmarks(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // The loopback server's threads never finish on their own.
+        System.exit(0);
+    }
+};
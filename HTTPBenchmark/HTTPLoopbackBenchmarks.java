@@ -0,0 +1,224 @@
+/*
+ * HTTPLoopbackBenchmarks.java - end-to-end benchmarks against a
+ * server running in the same JVM.
+ *
+ * Notes:
+ *   The server is started once, with its usual accept loop, on a
+ *   daemon thread listening on the loopback interface.  Each
+ *   benchmark keeps one persistent connection and fetches the
+ *   same file over and over, one request at a time, so ns/op is
+ *   the full round trip: request parsing, file lookup, header and
+ *   body transfer, and the client's read of the response.
+ *
+ *     loopback.small     1 KB, from the file cache
+ *     loopback.medium   64 KB, from the file cache
+ *     loopback.large     4 MB, sent from the file (sendfile)
+ *
+ *   The client reads just enough of each response to find its
+ *   end (from "Content-Length"), discarding the body.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Loopback benchmarks for HTTPBenchmark.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPLoopbackBenchmarks {
+
+    // Started by the first benchmark that needs it.
+    private static Thread s_serverThread;
+
+
+    /**
+     * @param docRoot scratch document root with the files
+     * @param engine server engine, "blocking" or "nio"
+     * @param port loopback port for the server
+     * @return the loopback benchmarks
+     */
+    public static List<HTTPBenchmark.Case> create(Path docRoot,
+                                                  String engine, int port)
+    {
+        List<HTTPBenchmark.Case> cases = new ArrayList<>();
+        cases.add(new FetchCase("loopback.small", "/small.html",
+                docRoot, engine, port));
+        cases.add(new FetchCase("loopback.medium", "/medium.html",
+                docRoot, engine, port));
+        cases.add(new FetchCase("loopback.large", "/large.bin",
+                docRoot, engine, port));
+        return cases;
+    }
+
+    /**
+     * Fetches one file per operation on a persistent connection.
+     */
+    private static class FetchCase extends HTTPBenchmark.Case {
+        private String m_urlPath;
+        private Path m_docRoot;
+        private String m_engine;
+        private int m_port;
+        private ByteBuffer m_request;
+        private ByteBuffer m_buffer;        // Response bytes.
+        private SocketChannel m_channel;
+
+        FetchCase(String name, String urlPath, Path docRoot,
+                  String engine, int port)
+        {
+            super(name);
+            m_urlPath = urlPath;
+            m_docRoot = docRoot;
+            m_engine = engine;
+            m_port = port;
+        }
+
+        @Override public void setUp() throws Exception {
+            startServer(m_docRoot, m_engine, m_port);
+            m_request = ByteBuffer.wrap(("GET " + m_urlPath + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            m_buffer = ByteBuffer.allocateDirect(256 * 1024);
+            connect();
+        }
+
+        @Override public long run() throws Exception {
+            m_request.rewind();
+            while (m_request.hasRemaining())
+                m_channel.write(m_request);
+
+            long length = readResponse();
+            if (length < 0) {
+                // The server ended the connection (request limit);
+                // the response was complete, so just reconnect.
+                m_channel.close();
+                connect();
+            }
+            return length;
+        }
+
+        @Override public void tearDown() throws Exception {
+            m_channel.close();
+        }
+
+        private void connect() throws IOException {
+            m_channel = SocketChannel.open(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), m_port));
+            m_channel.socket().setTcpNoDelay(true);
+            m_buffer.clear();
+        }
+
+        /**
+         * Reads one response, leaving any excess in the buffer.
+         *
+         * @return the body length, negated if the server sent
+         *         "Connection: close"
+         */
+        private long readResponse() throws IOException {
+            // Read until the end of the header.
+            int headerEnd;
+            while ((headerEnd = findHeaderEnd()) < 0)
+                fill();
+
+            String header = StandardCharsets.ISO_8859_1.decode(
+                    m_buffer.duplicate().flip().limit(headerEnd))
+                    .toString();
+            long length = 0;
+            boolean close = false;
+            for (String line : header.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = line.substring(0, colon);
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    length = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Connection"))
+                    close = value.equalsIgnoreCase("close");
+            }
+            if (!header.startsWith("HTTP/1.1 200 "))
+                throw new IOException("unexpected response: " + header);
+
+            // Skip the body.
+            m_buffer.flip().position(headerEnd);
+            long remaining = length;
+            for (;;) {
+                int skip = (int) Math.min(remaining, m_buffer.remaining());
+                m_buffer.position(m_buffer.position() + skip);
+                remaining -= skip;
+                if (remaining == 0)
+                    break;
+                m_buffer.clear();
+                fill();
+                m_buffer.flip();
+            }
+            m_buffer.compact();
+            return close ? -length : length;
+        }
+
+        private void fill() throws IOException {
+            if (m_channel.read(m_buffer) < 0)
+                throw new EOFException("server closed the connection");
+        }
+
+        /**
+         * @return index just past "\r\n\r\n" in the bytes read so
+         *         far, or -1
+         */
+        private int findHeaderEnd() {
+            for (int i = 3; i < m_buffer.position(); i++) {
+                if (m_buffer.get(i) == '\n' && m_buffer.get(i - 1) == '\r'
+                        && m_buffer.get(i - 2) == '\n'
+                        && m_buffer.get(i - 3) == '\r')
+                    return i + 1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Starts the shared server, if it isn't running yet, and waits
+     * until it accepts connections.
+     */
+    private static synchronized void startServer(Path docRoot,
+                                                 final String engine,
+                                                 final int port)
+            throws Exception
+    {
+        if (s_serverThread != null)
+            return;
+
+        final String[] args = {
+            "-p", String.valueOf(port), "-e", engine,
+            "-m", String.valueOf(Integer.MAX_VALUE), docRoot.toString()
+        };
+        s_serverThread = new Thread("HTTPBenchmark-server") {
+            @Override public void run() {
+                try {
+                    new HTTPServer().startServer(args);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        s_serverThread.setDaemon(true);
+        s_serverThread.start();
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (ConnectException e) {
+                if (attempt == 50 || !s_serverThread.isAlive())
+                    throw new IOException("server did not start on port "
+                            + port, e);
+                Thread.sleep(100);
+            }
+        }
+    }
+};
@@ -0,0 +1,205 @@
+/*
+ * HTTPMicroBenchmarks.java - benchmarks of single server
+ * components, without network I/O.
+ *
+ * Notes:
+ *   parser.*    HTTPRequestParser on a typical browser request
+ *   header.*    HTTPHeaderWriter building a file response header
+ *   cache.*     HTTPFileCache resolving a URL path to a file
+ *   session.*   HTTPServerSession.processInput() answering a whole
+ *               request: parsing, path resolution, validators
+ *               and response header, with the response written
+ *               to a channel that discards it
+ *
+ *   Sessions need a connected channel (the request log shows the
+ *   client's address), so the session benchmarks connect one over
+ *   loopback; nothing is ever sent on it.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Component benchmarks for HTTPBenchmark.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPMicroBenchmarks {
+
+    // What a browser sends for a page.
+    private static final String BROWSER_HEADERS =
+            "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36"
+            + " (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,"
+            + "image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n";
+
+
+    /**
+     * @param docRoot scratch document root with small.html
+     * @return the component benchmarks
+     */
+    public static List<HTTPBenchmark.Case> create(final Path docRoot) {
+        List<HTTPBenchmark.Case> cases = new ArrayList<>();
+
+        cases.add(new HTTPBenchmark.Case("parser.request") {
+            HTTPRequest request = new HTTPRequest();
+            HTTPRequestParser parser = new HTTPRequestParser(request);
+            ByteBuffer input = encode("GET /docs/index.html?lang=en&v=2 HTTP/1.1\r\n"
+                    + BROWSER_HEADERS + "\r\n");
+
+            @Override public long run() {
+                parser.reset();
+                input.rewind();
+                parser.parse(input);
+                return request.getHeaderCount();
+            }
+        });
+
+        cases.add(new HTTPBenchmark.Case("header.file") {
+            HTTPHeaderWriter writer = new HTTPHeaderWriter();
+
+            @Override public long run() {
+                writer.start("200 OK");
+                writer.addField("Content-Type", "text/html");
+                writer.addField("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+                writer.addField("ETag", "\"18c4b2d5f80-400\"");
+                writer.addField("Accept-Ranges", "bytes");
+                writer.addContentLength(1024);
+                writer.addConnection(true);
+                return writer.finish().remaining();
+            }
+        });
+
+        cases.add(new HTTPBenchmark.Case("cache.lookup") {
+            HTTPFileCache cache;
+
+            @Override public void setUp() throws Exception {
+                cache = createServer(docRoot).getFileCache();
+            }
+
+            @Override public long run() throws Exception {
+                return cache.lookup("/small.html").getSize();
+            }
+        });
+
+        cases.add(new SessionCase("session.get", docRoot,
+                "GET /small.html HTTP/1.1\r\n" + BROWSER_HEADERS + "\r\n"));
+        cases.add(new SessionCase("session.get.gzip", docRoot,
+                "GET /medium.html HTTP/1.1\r\n" + BROWSER_HEADERS + "\r\n"));
+        cases.add(new SessionCase("session.range", docRoot,
+                "GET /small.html HTTP/1.1\r\n" + BROWSER_HEADERS
+                + "Range: bytes=0-99\r\n\r\n"));
+        cases.add(new SessionCase("session.notFound", docRoot,
+                "GET /missing.html HTTP/1.1\r\n" + BROWSER_HEADERS + "\r\n"));
+        cases.add(new SessionCase("session.notModified", docRoot, null));
+        return cases;
+    }
+
+    /**
+     * Answers the same request over and over on one session.
+     */
+    private static class SessionCase extends HTTPBenchmark.Case {
+        private Path m_docRoot;
+        private String m_requestText;       // null: conditional GET.
+        private byte[] m_request;
+        private HTTPServer m_server;
+        private ServerSocketChannel m_listener;
+        private SocketChannel m_client;
+        private SocketChannel m_channel;
+        private HTTPServerSession m_session;
+        private DiscardChannel m_discard = new DiscardChannel();
+
+        SessionCase(String name, Path docRoot, String request) {
+            super(name);
+            m_docRoot = docRoot;
+            m_requestText = request;
+        }
+
+        @Override public void setUp() throws Exception {
+            m_server = createServer(m_docRoot);
+            m_listener = ServerSocketChannel.open();
+            m_listener.bind(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), 0));
+            m_client = SocketChannel.open(m_listener.getLocalAddress());
+            m_channel = m_listener.accept();
+
+            if (m_requestText == null) {
+                // Ask for small.html with its current ETag.
+                String etag = m_server.getFileCache()
+                        .lookup("/small.html").getETag();
+                m_requestText = "GET /small.html HTTP/1.1\r\n" + BROWSER_HEADERS
+                        + "If-None-Match: " + etag + "\r\n\r\n";
+            }
+            m_request = m_requestText.getBytes(StandardCharsets.ISO_8859_1);
+            m_session = new HTTPServerSession(m_server, m_channel);
+        }
+
+        @Override public long run() throws Exception {
+            // Sessions close after the server's request limit.
+            if (m_session.isClosing())
+                m_session = new HTTPServerSession(m_server, m_channel);
+
+            m_session.getInputBuffer().put(m_request);
+            m_session.processInput();
+            m_session.getOutput().writeTo(m_discard);
+            return m_discard.m_count;
+        }
+
+        @Override public void tearDown() throws Exception {
+            m_client.close();
+            m_channel.close();
+            m_listener.close();
+        }
+    }
+
+    /**
+     * Swallows responses, as a socket with an infinitely fast
+     * client would.
+     */
+    private static class DiscardChannel implements WritableByteChannel {
+        long m_count;                       // Bytes written.
+
+        @Override public int write(ByteBuffer source) {
+            int count = source.remaining();
+            source.position(source.limit());
+            m_count += count;
+            return count;
+        }
+
+        @Override public boolean isOpen() {
+            return true;
+        }
+
+        @Override public void close() {
+        }
+    }
+
+    /**
+     * @return a server with its caches, not accepting connections
+     */
+    private static HTTPServer createServer(Path docRoot) throws IOException {
+        HTTPServer server = new HTTPServer();
+        server.parseArgs(new String[] {
+            "-m", String.valueOf(Integer.MAX_VALUE), docRoot.toString() });
+        server.createCaches();
+        return server;
+    }
+
+    private static ByteBuffer encode(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+};
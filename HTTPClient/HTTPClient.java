@@ -5,12 +5,54 @@
  * Homework 3 (CS3700 - Computer Networks)
  * 2013-Feb-12
  * 
+ * Usage:
+ *   java HTTPClient
+ *   java HTTPClient [-h] [-c CONNECTIONS] [-d SECONDS | -n REQUESTS]
+ *                   [-r RATE] [-k] [-m METHOD] [-u FILE]
+ *                   TARGET [PATH]...
+ *   java HTTPClient -g SEGMENTS [-o FILE] URL
+ *
+ *   Without arguments, the client asks for the details of one
+ *   request at a time on the console and saves the response.
+ *
+ *   With arguments, it load-tests the server at TARGET
+ *   (http://HOST[:PORT]) instead; see HTTPLoadGenerator:
+ *
+ *   -h              display this usage screen and exit
+ *   -c CONNECTIONS  concurrent connections (Default: 10)
+ *   -d SECONDS      run for SECONDS (Default: 10)
+ *   -n REQUESTS     send REQUESTS requests in total instead
+ *   -r RATE         send RATE requests per second in total,
+ *                   whether or not the server keeps up; by
+ *                   default each connection sends as fast as it
+ *                   gets responses
+ *   -k              reuse connections (keep-alive)
+ *   -m METHOD       request method (Default: GET)
+ *   -u FILE         read more URL paths from FILE, one per line
+ *
+ *   The PATHs (Default: /) are requested round robin.
+ *
+ *   With "-g", it downloads the file at URL (http://HOST[:PORT]/PATH)
+ *   over up to SEGMENTS connections at once, saving it to FILE
+ *   (Default: the URL's last path segment); see HTTPDownloader:
+ *
+ *   -g SEGMENTS     download over up to SEGMENTS connections,
+ *                   resuming an earlier, interrupted download
+ *   -o FILE         save to FILE
+ *
  * Notes:
  *  This program was tested with OpenJDK 7 on Linux Mint 14.
  *  Linux Mint is a popular Ubuntu Linux derivative.
+ *
+ *  Responses are read as bytes, not characters: only the header
+ *  is decoded (as ISO-8859-1), and the body is copied to the file
+ *  as it arrives, whatever its framing, so binary files come
+ *  through intact and large ones aren't held in memory.
  */
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 
 
 /**
@@ -31,8 +73,8 @@ public class HTTPClient {
     private String m_userAgent;
         
     private Socket m_tcpSocket = null;
-    private BufferedReader m_inReader = null;
-    private PrintWriter m_outWriter = null;
+    private InputStream m_in = null;
+    private OutputStream m_out = null;
     
     /**
      * Reads the session parameters from the user on the console.
@@ -82,9 +124,9 @@ public class HTTPClient {
             return false;
         }
         
-        m_inReader = new BufferedReader(
-                new InputStreamReader(m_tcpSocket.getInputStream()));
-        m_outWriter = new PrintWriter(m_tcpSocket.getOutputStream(), true);
+        m_in = new BufferedInputStream(m_tcpSocket.getInputStream(),
+                64 * 1024);
+        m_out = new BufferedOutputStream(m_tcpSocket.getOutputStream());
         
         return true;
     }
@@ -93,8 +135,8 @@ public class HTTPClient {
      * Closes the session socket and its related streams.
      */
     public void closeSocket() throws IOException {
-        m_outWriter.close();
-        m_inReader.close();
+        m_out.close();
+        m_in.close();
         m_tcpSocket.close();
     }
 
@@ -104,13 +146,14 @@ public class HTTPClient {
      * Uses information collected from readClientParams() and the
      * socket initialized with initSocket().
      */
-    public void writeRequestHeader() {
-        m_outWriter.println(m_httpMethod + " /" + m_resourceName
-                + " " + "HTTP/" + m_httpVersion);
-        m_outWriter.println("Host: " + m_remoteHost);
-        m_outWriter.println("User-Agent: " + m_userAgent);
-        
-        m_outWriter.println("");  // blank line terminates request header
+    public void writeRequestHeader() throws IOException {
+        String header = m_httpMethod + " /" + m_resourceName
+                + " " + "HTTP/" + m_httpVersion + "\r\n"
+                + "Host: " + m_remoteHost + "\r\n"
+                + "User-Agent: " + m_userAgent + "\r\n"
+                + "\r\n";  // blank line terminates request header
+        m_out.write(header.getBytes(StandardCharsets.ISO_8859_1));
+        m_out.flush();
     }
 
     /**
@@ -124,25 +167,15 @@ public class HTTPClient {
      */
     public void readResponse() throws IOException {
         // Read response header
-        String responseLine;
-        int contentLength = 0;
-        while ((responseLine = m_inReader.readLine()) != null) {
+        HTTPDownloader.Response response = HTTPDownloader.Response.read(m_in);
+        for (String responseLine : response.lines)
             System.out.println(responseLine);
-            if (responseLine.startsWith("Content-Length: ")) {
-                responseLine =
-                        responseLine.substring("Content-Length: ".length());
-                contentLength = Integer.parseInt(responseLine);
-            }
-            else if (responseLine.equals(""))
-                break;
-        }
-        
-        // Read response content from socket, if any.
-        // Dump contents to file.
-        if (contentLength > 0) {
-            char recvBytes[] = new char[contentLength];
-            m_inReader.read(recvBytes);
+        System.out.println();
 
+        // Copy response content from socket, if any, to the file
+        // as it arrives.
+        if (response.hasBody(m_httpMethod)
+                && response.getContentLength() != 0) {
             // Use only the resource name (with no path).
             // Note that his will break for root resource
             // requests (e.g. "GET /" with no path info)
@@ -152,9 +185,11 @@ public class HTTPClient {
                 if (fileName.length() == 0)
                     throw new IOException("Invalid resource name.");
             }
-            PrintWriter fileWriter = new PrintWriter(fileName, "UTF-8");
-            fileWriter.print(recvBytes);
-            fileWriter.close();
+            try (FileOutputStream file = new FileOutputStream(fileName)) {
+                long count = response.copyBody(m_in, file.getChannel());
+                System.out.println("Saved " + count + " bytes to "
+                        + fileName);
+            }
         }
     }
 
@@ -197,13 +232,30 @@ public class HTTPClient {
     /**
      * Program entry.
      * 
-     * Just a shell that instantiates the HTTPClient class, calls
-     * its run() method, and displays unhandled exceptions.
+     * Just a shell that instantiates the HTTPClient class (or,
+     * given arguments, an HTTPLoadGenerator or HTTPDownloader),
+     * calls its run() method, and displays unhandled exceptions.
      */
     public static void main(String[] args) throws IOException {
+        boolean download = false;
         try {
+            if (args.length > 0 && HTTPDownloader.isDownload(args)) {
+                download = true;
+                new HTTPDownloader().run(args);
+                return;
+            }
+            if (args.length > 0) {
+                new HTTPLoadGenerator().run(args);
+                return;
+            }
             HTTPClient client = new HTTPClient();
             client.run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            if (download)
+                HTTPDownloader.showUsage();
+            else
+                HTTPLoadGenerator.showUsage();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,633 @@
+/*
+ * HTTPDownloader.java - downloads a file over several connections
+ * at once, and picks up interrupted downloads where they stopped.
+ *
+ * Notes:
+ *   The download starts with a probe: a GET for the first byte
+ *   only.  A server that supports ranges answers 206 with the
+ *   file's full length in "Content-Range", and an ETag or
+ *   Last-Modified that identifies this version of the file.  The
+ *   file is then split into "-g SEGMENTS" equal ranges (none
+ *   smaller than MIN_SEGMENT), each fetched on a connection of its
+ *   own by a thread of its own.  A single connection's throughput
+ *   is bounded by its TCP window and the server's per-connection
+ *   work; several of them fill a long or lossy path much better.
+ *
+ *   The segments are written straight into "FILE.part", sized to
+ *   the full length up front, each at its own position, so they
+ *   need no reassembly and none of the file is held in memory.
+ *   Once every segment is complete the file is renamed to FILE.
+ *
+ *   How far each segment got is saved to "FILE.progress" about
+ *   once a second, after the data itself has been forced to disk.
+ *   Running the same download again (after a crash, a lost
+ *   connection, Ctrl-C) picks up each segment from there, provided
+ *   the file still has the same length and validator; otherwise
+ *   it starts over.  Each request carries the validator in
+ *   "If-Range", so if the file changes on the server midway, the
+ *   server sends all of it with 200 instead of the range, and the
+ *   download stops rather than mixing two versions.  A segment
+ *   whose connection fails is retried from where it stopped.
+ *
+ *   A server that ignores ranges answers the probe with the whole
+ *   file, which is then saved from that response in one stream.
+ *
+ *   Response also serves the interactive client: it reads the
+ *   status line and header fields, and copies a body of any
+ *   framing (length, chunked, up to close) to a channel, a buffer
+ *   at a time.  The bytes are never decoded, so binary files come
+ *   through intact.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * A segmented, resumable HTTP file download.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPDownloader {
+
+    /**
+     * A response's status line and header fields.
+     */
+    public static class Response {
+        final List<String> lines = new ArrayList<>();   // As received.
+        int status;
+        private Map<String, String> m_fields = new HashMap<>();
+
+        /**
+         * Reads a response header, up to and including the blank
+         * line that ends it.
+         *
+         * @param in the connection's input, positioned at the
+         *           status line; left at the first body byte
+         * @throws IOException if the connection closes first or
+         *                     the status line is malformed
+         */
+        public static Response read(InputStream in) throws IOException {
+            Response response = new Response();
+            String line = readLine(in);
+            if (line == null)
+                throw new EOFException("server closed the connection");
+            String[] statusLine = line.split(" ", 3);
+            try {
+                if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+                    throw new NumberFormatException();
+                response.status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed response: " + line);
+            }
+            response.lines.add(line);
+
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                response.lines.add(line);
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    response.m_fields.put(line.substring(0, colon).trim()
+                            .toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            if (line == null)
+                throw new EOFException("server closed the connection");
+            return response;
+        }
+
+        /**
+         * @param name a header field name, in any case
+         * @return the field's value, or null
+         */
+        public String get(String name) {
+            return m_fields.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * @return the "Content-Length", or -1 if there is none
+         */
+        public long getContentLength() throws IOException {
+            String value = get("Content-Length");
+            if (value == null)
+                return -1;
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed length: " + value);
+            }
+        }
+
+        /**
+         * @param method the request's method
+         * @return true if a body follows the header
+         */
+        public boolean hasBody(String method) {
+            return !(method.equalsIgnoreCase("HEAD") || status / 100 == 1
+                    || status == 204 || status == 304);
+        }
+
+        /**
+         * Copies the body that follows this header.
+         *
+         * @param in the connection's input, at the first body byte
+         * @param out receives the body
+         * @return number of bytes copied
+         */
+        public long copyBody(InputStream in, WritableByteChannel out)
+                throws IOException
+        {
+            String coding = get("Transfer-Encoding");
+            if (coding != null
+                    && coding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                long total = 0;
+                for (;;) {
+                    String line = readLine(in);
+                    if (line == null)
+                        throw new EOFException("body cut short");
+                    int semicolon = line.indexOf(';');
+                    if (semicolon >= 0)
+                        line = line.substring(0, semicolon);
+                    long size;
+                    try {
+                        size = Long.parseLong(line.trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("malformed chunk size: " + line);
+                    }
+                    if (size == 0)
+                        break;
+                    total += copy(in, out, size);
+                    readLine(in);       // CRLF after the data.
+                }
+                String trailer;
+                while ((trailer = readLine(in)) != null && !trailer.isEmpty())
+                    ;                   // Trailer fields.
+                return total;
+            }
+
+            long length = getContentLength();
+            return copy(in, out, length >= 0 ? length : Long.MAX_VALUE);
+        }
+    }
+
+
+    /**
+     * One range of the file and the thread fetching it.
+     */
+    private class Segment extends Thread {
+        final long start;
+        final long end;                     // Exclusive.
+        volatile long done;                 // Next offset to fetch.
+        IOException failure;
+
+        Segment(int index, long start, long end, long done) {
+            super("HTTPDownloader-" + index);
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        @Override public void run() {
+            int failures = 0;
+            while (done < end && !m_changed) {
+                long before = done;
+                try {
+                    fetch();
+                    failure = null;
+                } catch (IOException e) {
+                    failure = e;
+                    if (done == before && ++failures >= ATTEMPTS)
+                        return;
+                    if (done > before)
+                        failures = 0;
+                }
+            }
+        }
+
+        /**
+         * Fetches the rest of the range on a new connection.
+         */
+        private void fetch() throws IOException {
+            try (Socket socket = new Socket(m_host, m_port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET " + m_path + " HTTP/1.1\r\n"
+                        + "Host: " + m_hostField + "\r\n"
+                        + "User-Agent: HW3 HTTPClient\r\n"
+                        + "Range: bytes=" + done + "-" + (end - 1) + "\r\n"
+                        + (m_validator != null
+                           ? "If-Range: " + m_validator + "\r\n" : "")
+                        + "Connection: close\r\n"
+                        + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+
+                InputStream in = new BufferedInputStream(
+                        socket.getInputStream(), BUFFER_SIZE);
+                Response response = Response.read(in);
+                if (response.status == 200) {
+                    m_changed = true;
+                    throw new IOException("the file changed on the server");
+                }
+                String range = response.get("Content-Range");
+                if (response.status != 206 || range == null
+                        || !range.startsWith("bytes " + done + "-"))
+                    throw new IOException("unexpected response: "
+                            + response.lines.get(0));
+
+                byte[] bytes = new byte[BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (done < end) {
+                    int count = in.read(bytes, 0,
+                            (int) Math.min(bytes.length, end - done));
+                    if (count < 0)
+                        throw new EOFException("range cut short");
+                    buffer.clear().limit(count);
+                    long position = done;
+                    while (buffer.hasRemaining())
+                        position += m_file.write(buffer, position);
+                    done = position;
+                }
+            }
+        }
+    }
+
+    // Buffer per connection, and largest read.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Smallest range worth a connection of its own.
+    private static final long MIN_SEGMENT = 1024 * 1024;
+
+    // Failed attempts in a row, without progress, before a
+    // segment gives up.
+    private static final int ATTEMPTS = 3;
+
+    // How often progress is saved.
+    private static final long SAVE_MILLIS = 1000;
+
+    // Member variables.
+    private String m_host;
+    private int m_port;
+    private String m_hostField;             // For the "Host" field.
+    private String m_path;
+    private int m_segmentCount;
+    private String m_outputName;
+    private long m_length;                  // The file's, from the probe.
+    private String m_validator;             // ETag or Last-Modified.
+    private Segment[] m_segments;
+    private FileChannel m_file;             // The ".part" file.
+    private volatile boolean m_changed;     // Got 200 for a range.
+
+
+    /**
+     * Initializes a downloader with default values.
+     */
+    public HTTPDownloader() {
+        m_segmentCount = 4;
+        m_outputName = null;
+        m_changed = false;
+    }
+
+    /**
+     * @param args program arguments
+     * @return true if they ask for a download rather than a load
+     *         test
+     */
+    public static boolean isDownload(String args[]) {
+        return Arrays.asList(args).contains("-g");
+    }
+
+    /**
+     * Explains the command line argument syntax to the user.
+     */
+    public static void showUsage() {
+        System.out.println(
+            "Usage: java HTTPClient -g SEGMENTS [-o FILE] URL\n"
+            + "  -g SEGMENTS     download URL over up to SEGMENTS\n"
+            + "                  connections at once, resuming an\n"
+            + "                  earlier, interrupted download of it\n"
+            + "  -o FILE         save to FILE (Default: the URL's last\n"
+            + "                  path segment)\n"
+            + "\n"
+            + "URL is http://HOST[:PORT]/PATH.");
+    }
+
+    /**
+     * Parses command line arguments, overriding the defaults.
+     *
+     * @param args the program arguments that were passed to
+     *   main()
+     */
+    public void parseArgs(String args[]) throws IOException {
+        String url = null;
+        for (int arg = 0; arg < args.length; arg++) {
+            switch (args[arg]) {
+                case "-h":
+                    showUsage();
+                    System.exit(0);
+                    break;    // not reached
+
+                case "-g":
+                    arg++;
+                    m_segmentCount = Math.max(1, Integer.parseInt(args[arg]));
+                    break;
+
+                case "-o":
+                    arg++;
+                    m_outputName = args[arg];
+                    break;
+
+                default:
+                    if (url != null)
+                        throw new IllegalArgumentException(
+                                "more than one URL given");
+                    url = args[arg];
+                    break;
+            }
+        }
+        if (url == null)
+            throw new IllegalArgumentException("no URL given");
+
+        URI uri;
+        try {
+            uri = new URI(url.contains("://") ? url : "http://" + url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("malformed URL: " + url);
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null)
+            throw new IllegalArgumentException("not an http:// URL: " + url);
+        m_host = uri.getHost();
+        m_port = (uri.getPort() >= 0) ? uri.getPort() : 80;
+        m_hostField = (m_port == 80) ? m_host : m_host + ":" + m_port;
+        m_path = (uri.getRawPath() == null || uri.getRawPath().isEmpty())
+                ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null)
+            m_path += "?" + uri.getRawQuery();
+
+        if (m_outputName == null) {
+            String path = uri.getPath();
+            m_outputName = path.substring(path.lastIndexOf('/') + 1);
+            if (m_outputName.isEmpty())
+                throw new IllegalArgumentException(
+                        "no file name in the URL; give one with -o");
+        }
+    }
+
+    /**
+     * Runs the download and prints what it took.
+     *
+     * @param args The program arguments that were passed to
+     *             main()
+     * @throws IOException if the download failed or stopped
+     *                     short; running it again resumes it
+     */
+    public void run(String args[]) throws Exception {
+        parseArgs(args);
+        Path output = Paths.get(m_outputName);
+        Path part = Paths.get(m_outputName + ".part");
+        Path progress = Paths.get(m_outputName + ".progress");
+        long started = System.nanoTime();
+
+        // The probe; answered with the whole file if the server
+        // doesn't do ranges.
+        try (Socket socket = new Socket(m_host, m_port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + m_path + " HTTP/1.1\r\n"
+                    + "Host: " + m_hostField + "\r\n"
+                    + "User-Agent: HW3 HTTPClient\r\n"
+                    + "Range: bytes=0-0\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream(),
+                    BUFFER_SIZE);
+            Response response = Response.read(in);
+
+            if (response.status == 200) {
+                System.out.println("No range support; downloading in one"
+                        + " stream.");
+                long bytes;
+                try (FileChannel file = FileChannel.open(part,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    bytes = response.copyBody(in, file);
+                }
+                Files.move(part, output, StandardCopyOption.REPLACE_EXISTING);
+                report(bytes, 1, System.nanoTime() - started);
+                return;
+            }
+
+            String range = response.get("Content-Range");
+            int slash = (range != null) ? range.lastIndexOf('/') : -1;
+            if (response.status == 416) {
+                m_length = 0;           // Nothing to range over.
+            } else if (response.status != 206 || slash < 0) {
+                throw new IOException("server answered: "
+                        + response.lines.get(0));
+            } else {
+                try {
+                    m_length = Long.parseLong(range.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IOException("malformed range: " + range);
+                }
+            }
+
+            // A weak ETag can't validate byte ranges.
+            String etag = response.get("ETag");
+            m_validator = (etag != null && !etag.startsWith("W/"))
+                    ? etag : response.get("Last-Modified");
+        }
+
+        boolean resumed = loadProgress(progress);
+        if (!resumed)
+            createSegments();
+        long before = 0;
+        for (Segment segment : m_segments)
+            before += segment.done - segment.start;
+        System.out.println((resumed ? "Resuming: " : "Downloading: ")
+                + m_length + " bytes in " + m_segments.length + " segment(s)"
+                + (resumed ? ", " + before + " bytes already saved" : ""));
+
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            if (!resumed || file.length() != m_length)
+                file.setLength(m_length);
+            m_file = file.getChannel();
+
+            for (Segment segment : m_segments)
+                segment.start();
+            for (Segment segment : m_segments) {
+                while (segment.isAlive()) {
+                    segment.join(SAVE_MILLIS);
+                    saveProgress(progress);
+                }
+            }
+            m_file.force(false);
+        }
+
+        long after = 0;
+        IOException failure = null;
+        for (Segment segment : m_segments) {
+            after += segment.done - segment.start;
+            if (segment.done < segment.end && failure == null)
+                failure = segment.failure;
+        }
+        if (m_changed) {
+            Files.deleteIfExists(progress);
+            throw new IOException("the file changed on the server during"
+                    + " the download; run it again to start over");
+        }
+        if (after < m_length) {
+            throw new IOException("download stopped at " + after + " of "
+                    + m_length + " bytes (" + (failure != null
+                        ? failure.getMessage() : "interrupted")
+                    + "); run it again to resume");
+        }
+
+        Files.move(part, output, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(progress);
+        report(after - before, m_segments.length, System.nanoTime() - started);
+    }
+
+    /**
+     * Splits the file into ranges, none shorter than MIN_SEGMENT
+     * (but at least one).
+     */
+    private void createSegments() {
+        long count = Math.max(1, Math.min(m_segmentCount,
+                (m_length + MIN_SEGMENT - 1) / MIN_SEGMENT));
+        m_segments = new Segment[(int) count];
+        for (int i = 0; i < count; i++) {
+            long start = m_length * i / count;
+            long end = m_length * (i + 1) / count;
+            m_segments[i] = new Segment(i + 1, start, end, start);
+        }
+    }
+
+    /**
+     * Reads the segments saved by an earlier run of this download,
+     * if there is one and the file hasn't changed since.
+     *
+     * @return true if the segments were restored
+     */
+    private boolean loadProgress(Path progress) {
+        if (!Files.exists(progress)
+                || !Files.exists(Paths.get(m_outputName + ".part")))
+            return false;
+        try (BufferedReader reader = Files.newBufferedReader(progress,
+                StandardCharsets.ISO_8859_1)) {
+            long length = -1;
+            String validator = null;
+            List<Segment> segments = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#"))
+                    continue;
+                String[] words = line.split(" ", 2);
+                if (words[0].equals("length")) {
+                    length = Long.parseLong(words[1]);
+                } else if (words[0].equals("validator")) {
+                    validator = words[1];
+                } else if (words[0].equals("segment")) {
+                    String[] range = words[1].split(" ");
+                    long start = Long.parseLong(range[0]);
+                    long end = Long.parseLong(range[1]);
+                    long done = Long.parseLong(range[2]);
+                    if (start > done || done > end || end > m_length)
+                        return false;
+                    segments.add(new Segment(segments.size() + 1,
+                            start, end, done));
+                }
+            }
+            if (length != m_length || segments.isEmpty()
+                    || !Objects.equals(validator, m_validator))
+                return false;
+            m_segments = segments.toArray(new Segment[0]);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // Unreadable; start over.
+            return false;
+        }
+    }
+
+    /**
+     * Saves how far each segment got, once the bytes it claims
+     * are on disk.  The file is replaced in one step, so a crash
+     * leaves either the old or the new state.
+     */
+    private void saveProgress(Path progress) throws IOException {
+        m_file.force(false);
+        StringBuilder state = new StringBuilder("# HTTPClient download of "
+                + m_hostField + m_path + "\n");
+        state.append("length ").append(m_length).append('\n');
+        if (m_validator != null)
+            state.append("validator ").append(m_validator).append('\n');
+        for (Segment segment : m_segments) {
+            state.append("segment ").append(segment.start).append(' ')
+                    .append(segment.end).append(' ')
+                    .append(segment.done).append('\n');
+        }
+        Path temporary = Paths.get(progress + ".tmp");
+        Files.write(temporary, state.toString()
+                .getBytes(StandardCharsets.ISO_8859_1));
+        Files.move(temporary, progress, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void report(long bytes, int connections, long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("Saved %s: %d bytes in %.2f s, %.2f MB/s over %d"
+                + " connection(s)%n", m_outputName, bytes, seconds,
+                bytes / seconds / (1024 * 1024), connections);
+    }
+
+    /**
+     * Copies up to 'count' bytes, or until the connection closes
+     * if 'count' is Long.MAX_VALUE.
+     */
+    private static long copy(InputStream in, WritableByteChannel out,
+                             long count)
+            throws IOException
+    {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long copied = 0;
+        while (copied < count) {
+            int read = in.read(bytes, 0,
+                    (int) Math.min(bytes.length, count - copied));
+            if (read < 0) {
+                if (count == Long.MAX_VALUE)
+                    break;
+                throw new EOFException("body cut short");
+            }
+            buffer.clear().limit(read);
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Reads a line of the header, ending in LF or CRLF, as
+     * ISO-8859-1.
+     *
+     * @return the line without its ending, or null at the end of
+     *         the input
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
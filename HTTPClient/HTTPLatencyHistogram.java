@@ -0,0 +1,162 @@
+/*
+ * HTTPLatencyHistogram.java - records latencies for percentiles.
+ *
+ * Notes:
+ *   The histogram uses the same layout as HdrHistogram: values
+ *   are counted in buckets whose width doubles with every power of
+ *   two, and each bucket is split into 2048 sub-buckets.  Every
+ *   recorded value is therefore kept to three significant digits
+ *   (within 0.1%) whatever its magnitude, from one microsecond to
+ *   an hour, in a fixed array of counters.  Recording is a couple
+ *   of shifts and an increment, so it doesn't disturb the timings
+ *   being taken.
+ *
+ *   Histograms are not thread-safe; each load generator
+ *   connection records into its own, and they are added together
+ *   for the report.
+ */
+
+
+/**
+ * A fixed-precision histogram of latencies in microseconds.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPLatencyHistogram {
+
+    // Three significant digits: 2 * 10^3 rounded up to a power of 2.
+    private static final int SUB_BUCKET_COUNT = 2048;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 10;
+    private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    // Largest value recorded; larger ones are clamped.
+    public static final long MAX_VALUE = 3600L * 1000 * 1000;
+
+    // Member variables.
+    private long[] m_counts;
+    private long m_totalCount;
+    private long m_min;
+    private long m_max;
+    private double m_sum;
+
+
+    /**
+     * Creates an empty histogram.
+     */
+    public HTTPLatencyHistogram() {
+        int buckets = bucketIndex(MAX_VALUE) + 1;
+        m_counts = new long[(buckets + 1) * SUB_BUCKET_HALF_COUNT];
+        m_totalCount = 0;
+        m_min = Long.MAX_VALUE;
+        m_max = 0;
+        m_sum = 0;
+    }
+
+    /**
+     * Records one value.
+     *
+     * @param value the latency in microseconds
+     */
+    public void recordValue(long value) {
+        recordValues(value, 1);
+    }
+
+    /**
+     * Adds another histogram's values to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(HTTPLatencyHistogram other) {
+        for (int i = 0; i < m_counts.length; i++)
+            m_counts[i] += other.m_counts[i];
+        m_totalCount += other.m_totalCount;
+        m_min = Math.min(m_min, other.m_min);
+        m_max = Math.max(m_max, other.m_max);
+        m_sum += other.m_sum;
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getTotalCount() {
+        return m_totalCount;
+    }
+
+    /**
+     * @return smallest value recorded, or 0 if none
+     */
+    public long getMin() {
+        return m_totalCount == 0 ? 0 : m_min;
+    }
+
+    /**
+     * @return largest value recorded
+     */
+    public long getMax() {
+        return m_max;
+    }
+
+    /**
+     * @return mean of the values recorded, or 0 if none
+     */
+    public double getMean() {
+        return m_totalCount == 0 ? 0 : m_sum / m_totalCount;
+    }
+
+    /**
+     * Finds the value at a percentile.
+     *
+     * @param percentile 0.0 to 100.0, e.g. 99.9
+     * @return the largest value (to the histogram's precision)
+     *         that 'percentile' percent of the values don't exceed
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (m_totalCount == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(
+                Math.min(percentile, 100.0) / 100.0 * m_totalCount));
+        long seen = 0;
+        for (int i = 0; i < m_counts.length; i++) {
+            seen += m_counts[i];
+            if (seen >= rank)
+                return Math.min(highestEquivalentValue(i), m_max);
+        }
+        return m_max;
+    }
+
+    private void recordValues(long value, long count) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        m_counts[countsIndex(value)] += count;
+        m_totalCount += count;
+        m_min = Math.min(m_min, value);
+        m_max = Math.max(m_max, value);
+        m_sum += (double) value * count;
+    }
+
+    private static int bucketIndex(long value) {
+        return 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1
+                - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+    }
+
+    private static int countsIndex(long value) {
+        int bucket = bucketIndex(value);
+        int subBucket = (int) (value >>> bucket);
+        return ((bucket + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE)
+                + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /**
+     * @return the largest value counted at a counts index
+     */
+    private static long highestEquivalentValue(int index) {
+        int bucket = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        int subBucket = (index & (SUB_BUCKET_HALF_COUNT - 1))
+                + SUB_BUCKET_HALF_COUNT;
+        if (bucket < 0) {
+            subBucket -= SUB_BUCKET_HALF_COUNT;
+            bucket = 0;
+        }
+        return ((long) subBucket << bucket) + (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * HTTPLoadGenerator.java - drives an HTTP server with many
+ * concurrent requests and measures its latency.
+ *
+ * Notes:
+ *   Each connection is driven by its own thread, which sends one
+ *   request at a time, reads the whole response and records how
+ *   long it took.  The URL paths are requested round robin, each
+ *   connection starting at a different one.  By default a new
+ *   connection is opened for every request; with keep-alive, a
+ *   connection is reused until the server closes it.
+ *
+ *   Without a rate, the load is "closed loop": every connection
+ *   sends its next request as soon as the previous response is
+ *   complete, so the server's speed sets the request rate.
+ *
+ *   With a rate, the load is "open loop": requests are scheduled
+ *   at fixed intervals, spread evenly over the connections,
+ *   whether or not the server keeps up.  A closed loop hides
+ *   stalls (coordinated omission): while one request is stuck,
+ *   the requests that would have been sent behind it are never
+ *   sent, so the stall is recorded only once.  In an open loop,
+ *   latency is measured from when each request was scheduled,
+ *   not from when it was actually sent, so time spent waiting
+ *   behind a stalled request counts as latency, as it would for a
+ *   real user.  The report shows these corrected latencies, plus
+ *   the uncorrected service times (send to response) for
+ *   comparison.
+ *
+ *   Latencies are recorded in HTTPLatencyHistogram, to three
+ *   significant digits.  Responses are counted by status class;
+ *   connection failures and malformed responses count as errors,
+ *   and the connection is opened anew.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * A closed- or open-loop HTTP load generator.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPLoadGenerator {
+
+    /**
+     * One connection's requests and measurements.
+     */
+    private class Worker extends Thread {
+        final HTTPLatencyHistogram latency = new HTTPLatencyHistogram();
+        final HTTPLatencyHistogram service = new HTTPLatencyHistogram();
+        final long[] statusCounts = new long[6];    // By first digit.
+        long errors;
+        long bytes;
+        private int m_index;
+        private SocketChannel m_channel;
+        private ByteBuffer m_buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        Worker(int index) {
+            super("HTTPLoadGenerator-" + index);
+            m_index = index;
+        }
+
+        @Override public void run() {
+            // Open loop: this connection's share of the rate, with
+            // the connections' schedules interleaved.
+            long interval = (m_rate > 0)
+                    ? (long) (1e9 * m_connections / m_rate) : 0;
+            long scheduled = m_start + interval * m_index / m_connections;
+            int next = m_index;
+
+            while (claimRequest()) {
+                if (interval > 0) {
+                    long wait;
+                    while ((wait = scheduled - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                }
+
+                long sent = System.nanoTime();
+                if (interval == 0)
+                    scheduled = sent;
+                ByteBuffer request = m_requests[next++ % m_requests.length];
+                try {
+                    int status = exchange(request.duplicate());
+                    long done = System.nanoTime();
+                    latency.recordValue((done - scheduled) / 1000);
+                    service.recordValue((done - sent) / 1000);
+                    statusCounts[status / 100]++;
+                } catch (IOException e) {
+                    errors++;
+                    closeChannel();
+                }
+                scheduled += interval;
+            }
+            closeChannel();
+        }
+
+        /**
+         * Sends a request and reads its response.
+         *
+         * @return the response status
+         */
+        private int exchange(ByteBuffer request) throws IOException {
+            if (m_channel == null) {
+                m_channel = SocketChannel.open(m_target);
+                m_channel.socket().setTcpNoDelay(true);
+                m_buffer.clear();
+            }
+            while (request.hasRemaining())
+                m_channel.write(request);
+
+            // Status line and header fields.
+            int headerEnd;
+            while ((headerEnd = findHeaderEnd()) < 0)
+                fill();
+            String header = StandardCharsets.ISO_8859_1.decode(
+                    m_buffer.duplicate().flip().limit(headerEnd)).toString();
+            String[] lines = header.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+                throw new IOException("malformed response: " + lines[0]);
+            int status;
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed response: " + lines[0]);
+            }
+            if (status < 100 || status > 599)
+                throw new IOException("malformed response: " + lines[0]);
+
+            long length = -1;
+            boolean chunked = false;
+            boolean close = !m_keepAlive || statusLine[0].equals("HTTP/1.0");
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("malformed length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    close |= value.equalsIgnoreCase("close");
+                }
+            }
+            bytes += headerEnd;
+
+            // Body: counted and discarded.
+            m_buffer.flip().position(headerEnd);
+            boolean bodyless = status == 204 || status == 304
+                    || status / 100 == 1 || m_method.equals("HEAD");
+            if (!bodyless) {
+                if (chunked) {
+                    skipChunked();
+                } else if (length >= 0) {
+                    skip(length);
+                } else {
+                    skipToEnd();
+                    close = true;
+                }
+            }
+            m_buffer.compact();
+
+            if (close)
+                closeChannel();
+            return status;
+        }
+
+        /**
+         * Skips 'count' body bytes; the buffer is in read mode.
+         */
+        private void skip(long count) throws IOException {
+            for (;;) {
+                int skip = (int) Math.min(count, m_buffer.remaining());
+                m_buffer.position(m_buffer.position() + skip);
+                count -= skip;
+                bytes += skip;
+                if (count == 0)
+                    return;
+                m_buffer.clear();
+                fill();
+                m_buffer.flip();
+            }
+        }
+
+        private void skipToEnd() throws IOException {
+            for (;;) {
+                bytes += m_buffer.remaining();
+                m_buffer.clear();
+                if (m_channel.read(m_buffer) < 0)
+                    break;
+                m_buffer.flip();
+            }
+            m_buffer.flip();
+        }
+
+        /**
+         * Skips a chunked body, trailer included.
+         */
+        private void skipChunked() throws IOException {
+            for (;;) {
+                String line = readLine();
+                int semicolon = line.indexOf(';');
+                if (semicolon >= 0)
+                    line = line.substring(0, semicolon);
+                long size;
+                try {
+                    size = Long.parseLong(line.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("malformed chunk size: " + line);
+                }
+                if (size == 0)
+                    break;
+                skip(size);
+                readLine();     // CRLF after the data.
+            }
+            while (!readLine().isEmpty())
+                ;               // Trailer fields.
+        }
+
+        /**
+         * Reads a CRLF-terminated line; the buffer is in read mode.
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (;;) {
+                while (m_buffer.hasRemaining()) {
+                    char c = (char) (m_buffer.get() & 0xff);
+                    bytes++;
+                    if (c == '\n') {
+                        int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\r')
+                            line.setLength(length - 1);
+                        return line.toString();
+                    }
+                    line.append(c);
+                }
+                m_buffer.clear();
+                fill();
+                m_buffer.flip();
+            }
+        }
+
+        private void fill() throws IOException {
+            if (!m_buffer.hasRemaining())
+                throw new IOException("response header too large");
+            if (m_channel.read(m_buffer) < 0)
+                throw new EOFException("server closed the connection");
+        }
+
+        /**
+         * @return index just past the blank line ending the
+         *         header in the bytes read so far, or -1
+         */
+        private int findHeaderEnd() {
+            for (int i = 3; i < m_buffer.position(); i++) {
+                if (m_buffer.get(i) == '\n' && m_buffer.get(i - 1) == '\r'
+                        && m_buffer.get(i - 2) == '\n'
+                        && m_buffer.get(i - 3) == '\r')
+                    return i + 1;
+            }
+            return -1;
+        }
+
+        private void closeChannel() {
+            if (m_channel == null)
+                return;
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            m_channel = null;
+        }
+    }
+
+    // Member variables.
+    private InetSocketAddress m_target;
+    private String m_host;                  // For the "Host" field.
+    private List<String> m_paths;
+    private String m_method;
+    private int m_connections;
+    private long m_duration;                // Seconds, unless counted.
+    private long m_count;                   // Requests; 0 = use duration.
+    private double m_rate;                  // Requests/s; 0 = closed loop.
+    private boolean m_keepAlive;
+    private ByteBuffer[] m_requests;        // Encoded, one per path.
+    private long m_start;                   // System.nanoTime()
+    private long m_deadline;
+    private AtomicLong m_remaining;
+
+
+    /**
+     * Initializes a load generator with default values.
+     */
+    public HTTPLoadGenerator() {
+        m_paths = new ArrayList<>();
+        m_method = "GET";
+        m_connections = 10;
+        m_duration = 10;
+        m_count = 0;
+        m_rate = 0;
+        m_keepAlive = false;
+    }
+
+    /**
+     * Explains the command line argument syntax to the user.
+     */
+    public static void showUsage() {
+        System.out.println(
+            "Usage: java HTTPClient [-h] [-c CONNECTIONS] [-d SECONDS | -n REQUESTS]\n"
+            + "                       [-r RATE] [-k] [-m METHOD] [-u FILE]\n"
+            + "                       TARGET [PATH]...\n"
+            + "  -h              display this usage screen and exit\n"
+            + "  -c CONNECTIONS  concurrent connections (Default: 10)\n"
+            + "  -d SECONDS      run for SECONDS (Default: 10)\n"
+            + "  -n REQUESTS     send REQUESTS requests in total instead\n"
+            + "  -r RATE         send RATE requests per second in total,\n"
+            + "                  whether or not the server keeps up (open\n"
+            + "                  loop); by default each connection sends\n"
+            + "                  as fast as it gets responses\n"
+            + "  -k              reuse connections (keep-alive); by default\n"
+            + "                  each request gets a new connection\n"
+            + "  -m METHOD       request method (Default: GET)\n"
+            + "  -u FILE         read more URL paths from FILE, one per line\n"
+            + "\n"
+            + "TARGET is http://HOST[:PORT] (or HOST[:PORT]); the PATHs\n"
+            + "(Default: /) are requested round robin.\n"
+            + "Run without arguments for an interactive session, or\n"
+            + "with -g SEGMENTS [-o FILE] URL to download a file.");
+    }
+
+    /**
+     * Parses command line arguments, overriding the defaults.
+     *
+     * @param args the program arguments that were passed to
+     *   main()
+     */
+    public void parseArgs(String args[]) throws IOException {
+        String target = null;
+        for (int arg = 0; arg < args.length; arg++) {
+            switch (args[arg]) {
+                case "-h":
+                    showUsage();
+                    System.exit(0);
+                    break;    // not reached
+
+                case "-c":
+                    arg++;
+                    m_connections = Math.max(1, Integer.parseInt(args[arg]));
+                    break;
+
+                case "-d":
+                    arg++;
+                    m_duration = Long.parseLong(args[arg]);
+                    break;
+
+                case "-n":
+                    arg++;
+                    m_count = Long.parseLong(args[arg]);
+                    break;
+
+                case "-r":
+                    arg++;
+                    m_rate = Double.parseDouble(args[arg]);
+                    break;
+
+                case "-k":
+                    m_keepAlive = true;
+                    break;
+
+                case "-m":
+                    arg++;
+                    m_method = args[arg];
+                    break;
+
+                case "-u":
+                    arg++;
+                    try (BufferedReader reader =
+                            new BufferedReader(new FileReader(args[arg]))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            line = line.trim();
+                            if (!line.isEmpty() && !line.startsWith("#"))
+                                m_paths.add(line);
+                        }
+                    }
+                    break;
+
+                default:
+                    if (target == null)
+                        target = args[arg];
+                    else
+                        m_paths.add(args[arg]);
+                    break;
+            }
+        }
+        if (target == null)
+            throw new IllegalArgumentException("no TARGET given");
+
+        // http://HOST[:PORT][/PATH]
+        if (target.regionMatches(true, 0, "http://", 0, 7))
+            target = target.substring(7);
+        int slash = target.indexOf('/');
+        if (slash >= 0) {
+            if (slash < target.length() - 1)
+                m_paths.add(0, target.substring(slash));
+            target = target.substring(0, slash);
+        }
+        int colon = target.lastIndexOf(':');
+        int port = 80;
+        if (colon >= 0) {
+            port = Integer.parseInt(target.substring(colon + 1));
+            target = target.substring(0, colon);
+        }
+        m_host = (port == 80) ? target : target + ":" + port;
+        m_target = new InetSocketAddress(target, port);
+        if (m_target.isUnresolved())
+            throw new UnknownHostException(target);
+        if (m_paths.isEmpty())
+            m_paths.add("/");
+    }
+
+    /**
+     * Runs the load test and prints the report.
+     *
+     * @param args The program arguments that were passed to
+     *             main()
+     */
+    public void run(String args[]) throws Exception {
+        parseArgs(args);
+
+        m_requests = new ByteBuffer[m_paths.size()];
+        for (int i = 0; i < m_requests.length; i++) {
+            String path = m_paths.get(i);
+            if (!path.startsWith("/"))
+                path = "/" + path;
+            m_requests[i] = ByteBuffer.wrap((m_method + " " + path
+                    + " HTTP/1.1\r\n"
+                    + "Host: " + m_host + "\r\n"
+                    + "User-Agent: HW3 HTTPClient\r\n"
+                    + (m_keepAlive ? "" : "Connection: close\r\n")
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        System.out.println("Target:\t\t" + m_target + ", "
+                + m_paths.size() + " path(s)");
+        System.out.println("Load:\t\t" + m_connections + " connections, "
+                + (m_keepAlive ? "keep-alive" : "connection per request")
+                + ", " + (m_rate > 0 ? m_rate + " requests/s (open loop)"
+                                     : "closed loop")
+                + ", " + (m_count > 0 ? m_count + " requests"
+                                      : m_duration + " seconds"));
+
+        Worker[] workers = new Worker[m_connections];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new Worker(i);
+        m_remaining = new AtomicLong(m_count);
+        m_start = System.nanoTime();
+        m_deadline = m_start + m_duration * 1000000000L;
+        for (Worker worker : workers)
+            worker.start();
+        for (Worker worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - m_start;
+
+        report(workers, elapsed);
+    }
+
+    /**
+     * @return true if another request should be sent
+     */
+    private boolean claimRequest() {
+        if (m_count > 0)
+            return m_remaining.getAndDecrement() > 0;
+        return System.nanoTime() < m_deadline;
+    }
+
+    /**
+     * Adds up the workers' results and prints them.
+     */
+    private void report(Worker[] workers, long elapsed) {
+        HTTPLatencyHistogram latency = new HTTPLatencyHistogram();
+        HTTPLatencyHistogram service = new HTTPLatencyHistogram();
+        long[] statusCounts = new long[6];
+        long errors = 0;
+        long bytes = 0;
+        for (Worker worker : workers) {
+            latency.add(worker.latency);
+            service.add(worker.service);
+            for (int i = 0; i < statusCounts.length; i++)
+                statusCounts[i] += worker.statusCounts[i];
+            errors += worker.errors;
+            bytes += worker.bytes;
+        }
+
+        double seconds = elapsed / 1e9;
+        long completed = latency.getTotalCount();
+        System.out.printf("%nRequests:\t%d in %.2f s, %.1f requests/s, "
+                + "%.2f MB/s%n", completed, seconds, completed / seconds,
+                bytes / seconds / (1024 * 1024));
+        System.out.printf("Responses:\t2xx %d, 3xx %d, 4xx %d, 5xx %d, "
+                + "errors %d%n", statusCounts[2], statusCounts[3],
+                statusCounts[4], statusCounts[5], errors);
+
+        System.out.printf("%n%-28s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+                "Latency (ms)", "min", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        if (m_rate > 0) {
+            printLatency("from schedule", latency);
+            printLatency("from send", service);
+        } else {
+            printLatency("", latency);
+        }
+    }
+
+    private static void printLatency(String label, HTTPLatencyHistogram h) {
+        System.out.printf("  %-26s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f "
+                + "%9.3f %9.3f%n", label, h.getMin() / 1000.0,
+                h.getMean() / 1000.0,
+                h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0,
+                h.getValueAtPercentile(99.99) / 1000.0,
+                h.getMax() / 1000.0);
+    }
+}
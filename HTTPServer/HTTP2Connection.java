@@ -0,0 +1,1035 @@
+/*
+ * HTTP2Connection.java - the HTTP/2 protocol on one connection.
+ *
+ * Notes:
+ *   HTTP/1.1 answers the requests on a connection one after the
+ *   other, so a page's small assets queue up behind each other or
+ *   need several connections.  HTTP/2 (RFC 7540) multiplexes many
+ *   concurrent requests ("streams") over one connection, in binary
+ *   frames, with header fields compressed by HPACK (HTTP2Hpack).
+ *   This class speaks it in cleartext ("h2c"), entered either way
+ *   a client may choose:
+ *
+ *   - with prior knowledge: the connection starts with the client
+ *     preface ("PRI * HTTP/2.0 ...") right away;
+ *   - by upgrading an HTTP/1.1 request carrying "Upgrade: h2c" and
+ *     "HTTP2-Settings": the server answers "101 Switching
+ *     Protocols" and sends that request's response as stream 1.
+ *
+ *   HTTPServerSession detects both and hands the connection's
+ *   bytes to receive() from then on.  A request is answered as
+ *   soon as its header block is complete, by the session's usual
+ *   request handling; the session routes the response header here
+ *   and queues the body in a queue of the stream's own.  The
+ *   header leaves at once, in a HEADERS frame; bodies are cut into
+ *   DATA frames by produce() whenever the socket can take more,
+ *   one frame per stream in turn, so a large download doesn't hold
+ *   up the small responses next to it.  Request bodies are read
+ *   and discarded, as over HTTP/1.1.
+ *
+ *   Flow control: the client grants a window of bytes per stream
+ *   and for the connection, and more with WINDOW_UPDATE frames; a
+ *   stream whose window is used up waits without holding up the
+ *   others.  The server's own receive windows are left at the
+ *   protocol's default and given back as DATA is discarded.
+ *
+ *   The server allows MAX_STREAMS streams at a time and refuses
+ *   more with RST_STREAM.  Protocol errors are answered with
+ *   GOAWAY and close the connection; errors confined to a stream
+ *   reset just that stream.  Once the server is stopping or the
+ *   connection has answered its share of requests, goAway() lets
+ *   the streams already open finish and then the connection
+ *   closes.
+ *
+ *   Frames read in pieces are collected in a buffer borrowed from
+ *   the server's HTTPBufferPool; DATA frames are built in pooled
+ *   buffers that are queued without a copy.  Server push and
+ *   stream priorities are not implemented (both are optional).
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * The HTTP/2 framing layer of one client connection.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTP2Connection {
+
+    /**
+     * A request and its response.  A stream is only kept while
+     * its response body is being sent.
+     */
+    private static class Stream {
+        final int id;
+        HTTPOutputQueue body;               // Left to frame, or null.
+        long window;                        // Bytes the client takes.
+        boolean remoteClosed;               // Client sent END_STREAM.
+
+        Stream(int id, long window) {
+            this.id = id;
+            this.window = window;
+        }
+    }
+
+    /**
+     * Copies into a frame's payload, up to the frame's limit;
+     * HTTPOutputQueue.writeTo() drains a stream's body into it as
+     * if it were a socket.
+     */
+    private static class PayloadChannel implements WritableByteChannel {
+        ByteBuffer frame;
+
+        @Override public int write(ByteBuffer bytes) {
+            int count = Math.min(bytes.remaining(), frame.remaining());
+            ByteBuffer part = bytes.duplicate();
+            part.limit(part.position() + count);
+            frame.put(part);
+            bytes.position(bytes.position() + count);
+            return count;
+        }
+
+        @Override public boolean isOpen() {
+            return true;
+        }
+
+        @Override public void close() {
+        }
+    }
+
+    // What a client sends first.
+    public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    // Frame types.
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // Frame flags.
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    // Settings.
+    private static final int HEADER_TABLE_SIZE = 0x1;
+    private static final int ENABLE_PUSH = 0x2;
+    private static final int MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE = 0x5;
+
+    // Error codes.
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // Sizes and limits.
+    private static final int FRAME_HEADER = 9;
+    private static final int FRAME_SIZE = 16 * 1024;        // Largest either way.
+    private static final int DATA_SIZE = FRAME_SIZE - FRAME_HEADER;    // Fits 16K.
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    public static final int MAX_STREAMS = 100;
+
+    // Bytes of DATA framed per call to produce().
+    private static final int PRODUCE_BATCH = 64 * 1024;
+
+    // Request fields HTTP/2 doesn't allow (RFC 7540, 8.1.2.2).
+    private static final Set<String> CONNECTION_FIELDS = new HashSet<>(
+            Arrays.asList("connection", "keep-alive", "proxy-connection",
+                          "transfer-encoding", "upgrade"));
+
+    // Response field names in lower case, by the name given.
+    private static final ConcurrentHashMap<String, String> s_lowerNames =
+            new ConcurrentHashMap<>();
+
+    // Member variables.
+    private HTTPServerSession m_session;    // Answers the requests.
+    private HTTPOutputQueue m_output;       // The connection's frames.
+    private HTTPBufferPool m_bufferPool;    // Frame buffers.
+    private HTTP2Hpack m_hpack;             // Header compression.
+    private HTTPRequest m_request;          // Request being answered.
+    private HTTPRequestParser m_parser;     // Checks and fills it in.
+    private ArrayList<String> m_fields;     // Decoded header block.
+    private String m_status;                // Response being built...
+    private ArrayList<String> m_response;   // ...and its fields.
+    private HashMap<Integer, Stream> m_streams;     // Open streams.
+    private ArrayDeque<Stream> m_sending;   // Bodies to frame, in turn.
+    private int m_lastStreamId;             // Highest the client opened.
+    private int m_prefaceRead;              // Preface bytes received.
+    private boolean m_settingsRead;         // Client's first SETTINGS.
+    private byte[] m_frameHeader;           // Frame header so far...
+    private int m_frameHeaderLength;
+    private int m_frameLength;              // ...and its fields.
+    private int m_frameType;
+    private int m_frameFlags;
+    private int m_frameStream;
+    private ByteBuffer m_partial;           // Payload read in pieces.
+    private int m_continued;                // Stream awaiting CONTINUATION.
+    private boolean m_continuedEnd;         // ...whose HEADERS ended it.
+    private byte[] m_headerBlock;           // Block across frames...
+    private int m_headerBlockLength;
+    private long m_window;                  // Bytes the client takes.
+    private long m_initialWindow;           // Per new stream.
+    private int m_unacknowledged;           // DATA received, not given back.
+    private boolean m_goingAway;            // No new streams.
+    private boolean m_failed;               // Close once GOAWAY is sent.
+    private ByteBuffer m_control;           // Builds small frames.
+    private PayloadChannel m_payload;       // Fills DATA frames.
+
+
+    /**
+     * Starts HTTP/2 on a connection, queueing the server's
+     * SETTINGS; the client preface is expected next.
+     *
+     * @param session answers the requests
+     * @param output the connection's output queue
+     * @param bufferPool lends frame buffers
+     */
+    public HTTP2Connection(HTTPServerSession session, HTTPOutputQueue output,
+                           HTTPBufferPool bufferPool)
+    {
+        m_session = session;
+        m_output = output;
+        m_bufferPool = bufferPool;
+        m_hpack = new HTTP2Hpack();
+        m_request = new HTTPRequest();
+        m_parser = new HTTPRequestParser(m_request);
+        m_fields = new ArrayList<>();
+        m_status = null;
+        m_response = new ArrayList<>();
+        m_streams = new HashMap<>();
+        m_sending = new ArrayDeque<>();
+        m_lastStreamId = 0;
+        m_prefaceRead = 0;
+        m_settingsRead = false;
+        m_frameHeader = new byte[FRAME_HEADER];
+        m_frameHeaderLength = 0;
+        m_partial = null;
+        m_continued = 0;
+        m_headerBlock = null;
+        m_headerBlockLength = 0;
+        m_window = DEFAULT_WINDOW;
+        m_initialWindow = DEFAULT_WINDOW;
+        m_unacknowledged = 0;
+        m_goingAway = false;
+        m_failed = false;
+        m_control = ByteBuffer.allocate(64);
+        m_payload = new PayloadChannel();
+
+        startFrame(6, SETTINGS, 0, 0);
+        m_control.putShort((short) MAX_CONCURRENT_STREAMS).putInt(MAX_STREAMS);
+        endFrame();
+    }
+
+    /**
+     * Checks whether a connection's first bytes are the client
+     * preface.
+     *
+     * @param in the bytes received so far, between position and
+     *           limit
+     * @return the number of bytes that match (at most
+     *         PREFACE.length), or -1 if they don't
+     */
+    public static int matchPreface(ByteBuffer in) {
+        int count = Math.min(in.remaining(), PREFACE.length);
+        for (int i = 0; i < count; i++) {
+            if (in.get(in.position() + i) != PREFACE[i])
+                return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Takes over the HTTP/1.1 request that upgraded the
+     * connection: its "HTTP2-Settings" apply, and it is answered
+     * as stream 1.
+     *
+     * @param request the upgrade request
+     * @param settings the decoded "HTTP2-Settings" field
+     */
+    public void upgrade(HTTPRequest request, byte[] settings)
+            throws IOException
+    {
+        if (!applySettings(ByteBuffer.wrap(settings)))
+            return;
+        m_lastStreamId = 1;
+        Stream stream = new Stream(1, m_initialWindow);
+        stream.remoteClosed = true;
+        m_streams.put(1, stream);
+        answer(stream, request, null);
+    }
+
+    /**
+     * Handles received bytes: the preface, then frames.  All of
+     * them are consumed; a frame that isn't complete yet is kept
+     * until the next call.
+     *
+     * @param in the received bytes, between position and limit
+     */
+    public void receive(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && !m_failed) {
+            if (m_prefaceRead < PREFACE.length) {
+                if (in.get() != PREFACE[m_prefaceRead++])
+                    fail(PROTOCOL_ERROR);
+                continue;
+            }
+
+            if (m_frameHeaderLength < FRAME_HEADER) {
+                m_frameHeader[m_frameHeaderLength++] = in.get();
+                if (m_frameHeaderLength < FRAME_HEADER)
+                    continue;
+                startPayload();
+                if (m_failed)
+                    break;
+            }
+
+            // (An empty payload is complete right away, even at the
+            // end of the input.)
+            if (m_partial == null && in.remaining() >= m_frameLength) {
+                // Common case: the whole payload is here.
+                ByteBuffer payload = in.slice();
+                payload.limit(m_frameLength);
+                in.position(in.position() + m_frameLength);
+                m_frameHeaderLength = 0;
+                handleFrame(payload);
+                continue;
+            }
+
+            if (m_partial == null)
+                m_partial = m_bufferPool.acquireHeap(m_frameLength);
+            int count = Math.min(in.remaining(),
+                    m_frameLength - m_partial.position());
+            ByteBuffer part = in.duplicate();
+            part.limit(part.position() + count);
+            m_partial.put(part);
+            in.position(in.position() + count);
+            if (m_partial.position() == m_frameLength) {
+                m_partial.flip();
+                m_frameHeaderLength = 0;
+                try {
+                    handleFrame(m_partial);
+                } finally {
+                    m_bufferPool.release(m_partial);
+                    m_partial = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Frames more of the response bodies, one DATA frame per
+     * stream in turn, as far as the flow control windows allow.
+     *
+     * @return true if any frames were queued
+     */
+    public boolean produce() {
+        boolean queued = false;
+        int budget = PRODUCE_BATCH;
+        int waiting = 0;                    // Streams passed over in a row.
+        while (budget > 0 && m_window > 0 && waiting < m_sending.size()) {
+            Stream stream = m_sending.pollFirst();
+            if (stream.window <= 0) {
+                m_sending.addLast(stream);
+                waiting++;
+                continue;
+            }
+
+            int limit = (int) Math.min(DATA_SIZE,
+                    Math.min(m_window, stream.window));
+            ByteBuffer frame = m_bufferPool.acquire(FRAME_SIZE);
+            frame.position(FRAME_HEADER);
+            frame.limit(FRAME_HEADER + limit);
+            m_payload.frame = frame;
+            boolean done;
+            try {
+                done = stream.body.writeTo(m_payload);
+            } catch (IOException e) {
+                // E.g. the file was truncated; only this response
+                // is lost.
+                m_bufferPool.release(frame);
+                resetStream(stream.id, INTERNAL_ERROR);
+                continue;
+            }
+
+            int length = frame.position() - FRAME_HEADER;
+            if (length == 0 && !done) {
+                m_bufferPool.release(frame);
+                m_sending.addLast(stream);
+                waiting++;
+                continue;
+            }
+            waiting = 0;
+            frame.flip();
+            putFrameHeader(frame, length, DATA, done ? END_STREAM : 0,
+                    stream.id);
+            m_output.addBorrowed(frame);
+            m_window -= length;
+            stream.window -= length;
+            budget -= FRAME_HEADER + length;
+            queued = true;
+
+            if (done) {
+                stream.body = null;
+                closeStream(stream);
+            } else {
+                m_sending.addLast(stream);
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * @return true while response bodies remain to be sent
+     */
+    public boolean isSending() {
+        return !m_sending.isEmpty();
+    }
+
+    /**
+     * @return true once the connection should be closed after the
+     *         queued frames have been sent
+     */
+    public boolean isClosing() {
+        return m_failed || (m_goingAway && m_streams.isEmpty());
+    }
+
+    /**
+     * Tells the client no new streams will be accepted; the open
+     * ones are finished, then the connection closes.
+     */
+    public void goAway() {
+        if (m_goingAway)
+            return;
+        m_goingAway = true;
+        writeGoAway(NO_ERROR);
+    }
+
+    /**
+     * Starts a response header; called through the session's
+     * beginHeader().
+     *
+     * @param status HTTP response status, e.g. "200 OK"
+     */
+    public void beginHeader(String status) {
+        m_status = status.substring(0, 3);
+        m_response.clear();
+        addHeaderField("date", HTTPDate.getDate());
+        addHeaderField("server", "HTTPServer");
+    }
+
+    /**
+     * Adds a field to the response header.
+     *
+     * @param name the field name, in any case
+     * @param value the field value
+     */
+    public void addHeaderField(String name, String value) {
+        String lower = s_lowerNames.get(name);
+        if (lower == null) {
+            lower = s_lowerNames.computeIfAbsent(name,
+                    n -> n.toLowerCase(Locale.ROOT));
+        }
+        m_response.add(lower);
+        m_response.add(value);
+    }
+
+    /**
+     * Discards the streams' unsent bodies and any partly read
+     * frame, releasing their files and buffers.
+     */
+    public void close() {
+        for (Stream stream : m_streams.values()) {
+            if (stream.body != null)
+                stream.body.clear();
+        }
+        m_streams.clear();
+        m_sending.clear();
+        m_bufferPool.release(m_partial);
+        m_partial = null;
+    }
+
+    /**
+     * Decodes a frame header and checks it against the
+     * connection's state.
+     */
+    private void startPayload() {
+        byte[] header = m_frameHeader;
+        m_frameLength = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8)
+                | (header[2] & 0xff);
+        m_frameType = header[3] & 0xff;
+        m_frameFlags = header[4] & 0xff;
+        m_frameStream = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16)
+                | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+
+        if (m_frameLength > FRAME_SIZE)
+            fail(FRAME_SIZE_ERROR);
+        else if (!m_settingsRead && m_frameType != SETTINGS)
+            fail(PROTOCOL_ERROR);
+        else if (m_continued != 0 && (m_frameType != CONTINUATION
+                                      || m_frameStream != m_continued))
+            fail(PROTOCOL_ERROR);
+    }
+
+    /**
+     * Acts on a complete frame.
+     *
+     * @param payload the frame's payload
+     */
+    private void handleFrame(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        int id = m_frameStream;
+        switch (m_frameType) {
+            case DATA:
+                handleData(payload);
+                break;
+
+            case HEADERS:
+                handleHeaders(payload);
+                break;
+
+            case PRIORITY:
+                if (id == 0)
+                    fail(PROTOCOL_ERROR);
+                break;
+
+            case RST_STREAM:
+                if (id == 0 || id > m_lastStreamId)
+                    fail(PROTOCOL_ERROR);
+                else if (length != 4)
+                    fail(FRAME_SIZE_ERROR);
+                else
+                    discardStream(m_streams.get(id));
+                break;
+
+            case SETTINGS:
+                if (id != 0) {
+                    fail(PROTOCOL_ERROR);
+                } else if ((m_frameFlags & ACK) != 0) {
+                    if (length != 0)
+                        fail(FRAME_SIZE_ERROR);
+                } else if (applySettings(payload)) {
+                    m_settingsRead = true;
+                    startFrame(0, SETTINGS, ACK, 0);
+                    endFrame();
+                }
+                break;
+
+            case PING:
+                if (id != 0) {
+                    fail(PROTOCOL_ERROR);
+                } else if (length != 8) {
+                    fail(FRAME_SIZE_ERROR);
+                } else if ((m_frameFlags & ACK) == 0) {
+                    startFrame(8, PING, ACK, 0);
+                    m_control.put(payload);
+                    endFrame();
+                }
+                break;
+
+            case GOAWAY:
+                // The client opens no more streams; finish the
+                // ones it has.
+                if (id != 0)
+                    fail(PROTOCOL_ERROR);
+                m_goingAway = true;
+                break;
+
+            case WINDOW_UPDATE:
+                handleWindowUpdate(payload);
+                break;
+
+            case CONTINUATION:
+                if (m_continued == 0) {
+                    fail(PROTOCOL_ERROR);
+                    break;
+                }
+                appendHeaderBlock(payload);
+                if ((m_frameFlags & END_HEADERS) != 0 && !m_failed) {
+                    m_continued = 0;
+                    endHeaders(id, m_continuedEnd, ByteBuffer.wrap(
+                            m_headerBlock, 0, m_headerBlockLength));
+                }
+                break;
+
+            case PUSH_PROMISE:
+                fail(PROTOCOL_ERROR);   // Clients don't push.
+                break;
+
+            default:
+                break;                  // Unknown types are ignored.
+        }
+    }
+
+    /**
+     * Discards a request body's bytes, giving the client back the
+     * room they took in the connection's window.
+     */
+    private void handleData(ByteBuffer payload) {
+        int id = m_frameStream;
+        if (id == 0 || id > m_lastStreamId) {
+            fail(PROTOCOL_ERROR);
+            return;
+        }
+        m_unacknowledged += payload.remaining();
+        if (m_unacknowledged >= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(0, m_unacknowledged);
+            m_unacknowledged = 0;
+        }
+
+        // Frames for a stream already answered and closed are
+        // ignored (the client may not have seen our END_STREAM or
+        // RST_STREAM yet).
+        Stream stream = m_streams.get(id);
+        if (stream == null)
+            return;
+        if (stream.remoteClosed)
+            resetStream(id, STREAM_CLOSED);
+        else if ((m_frameFlags & END_STREAM) != 0)
+            stream.remoteClosed = true;
+    }
+
+    /**
+     * Starts a header block: a new request, or a request's
+     * trailers.
+     */
+    private void handleHeaders(ByteBuffer payload) throws IOException {
+        int id = m_frameStream;
+        if (id == 0 || (id & 1) == 0) {
+            fail(PROTOCOL_ERROR);
+            return;
+        }
+
+        int padding = 0;
+        if ((m_frameFlags & PADDED) != 0 && payload.hasRemaining())
+            padding = payload.get() & 0xff;
+        if ((m_frameFlags & PRIORITY_FLAG) != 0)
+            payload.position(Math.min(payload.position() + 5, payload.limit()));
+        if (padding > payload.remaining()) {
+            fail(PROTOCOL_ERROR);
+            return;
+        }
+        payload.limit(payload.limit() - padding);
+
+        if (id <= m_lastStreamId && !m_streams.containsKey(id)) {
+            fail(STREAM_CLOSED);
+            return;
+        }
+
+        boolean endStream = (m_frameFlags & END_STREAM) != 0;
+        if ((m_frameFlags & END_HEADERS) != 0) {
+            endHeaders(id, endStream, payload);
+            return;
+        }
+        m_continued = id;
+        m_continuedEnd = endStream;
+        m_headerBlockLength = 0;
+        appendHeaderBlock(payload);
+    }
+
+    /**
+     * Collects a header block that spans frames.
+     */
+    private void appendHeaderBlock(ByteBuffer fragment) {
+        int length = fragment.remaining();
+        if (m_headerBlockLength + length > MAX_HEADER_BLOCK) {
+            fail(ENHANCE_YOUR_CALM);
+            return;
+        }
+        if (m_headerBlock == null
+                || m_headerBlockLength + length > m_headerBlock.length) {
+            m_headerBlock = Arrays.copyOf(
+                    (m_headerBlock == null) ? new byte[0] : m_headerBlock,
+                    Math.max(m_headerBlockLength + length, 4096));
+        }
+        fragment.get(m_headerBlock, m_headerBlockLength, length);
+        m_headerBlockLength += length;
+    }
+
+    /**
+     * Decodes a complete header block and answers the request it
+     * opens.
+     *
+     * @param id the stream
+     * @param endStream true if the request has no body
+     * @param block the header block
+     */
+    private void endHeaders(int id, boolean endStream, ByteBuffer block)
+            throws IOException
+    {
+        // Even a block that is then ignored must be decoded, to
+        // keep the HPACK tables in step.
+        m_fields.clear();
+        if (!m_hpack.decode(block, m_fields)) {
+            fail(COMPRESSION_ERROR);
+            return;
+        }
+
+        Stream stream = m_streams.get(id);
+        if (stream != null) {
+            // Trailers; nothing in them is of use.
+            if (stream.remoteClosed || !endStream)
+                resetStream(id, PROTOCOL_ERROR);
+            else
+                stream.remoteClosed = true;
+            return;
+        }
+
+        m_lastStreamId = id;
+        if (m_goingAway)
+            return;
+        if (m_streams.size() >= MAX_STREAMS) {
+            writeRstStream(id, REFUSED_STREAM);
+            return;
+        }
+        if (!parseRequest()) {
+            writeRstStream(id, PROTOCOL_ERROR);
+            return;
+        }
+
+        stream = new Stream(id, m_initialWindow);
+        stream.remoteClosed = endStream;
+        m_streams.put(id, stream);
+        answer(stream, m_request, m_parser.getError());
+    }
+
+    /**
+     * Fills in m_request from the decoded fields.
+     *
+     * @return false if the request is malformed (RFC 7540,
+     *         8.1.2); a request over the parser's limits passes,
+     *         with the parser's error set
+     */
+    private boolean parseRequest() {
+        m_parser.reset();
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        boolean regular = false;            // Past the pseudo-fields.
+        boolean fits = true;
+
+        for (int i = 0; i < m_fields.size(); i += 2) {
+            String name = m_fields.get(i);
+            String value = m_fields.get(i + 1);
+            if (name.startsWith(":")) {
+                if (regular)
+                    return false;
+                switch (name) {
+                    case ":method":
+                        if (method != null)
+                            return false;
+                        method = value;
+                        break;
+                    case ":scheme":
+                        if (scheme != null)
+                            return false;
+                        scheme = value;
+                        break;
+                    case ":path":
+                        if (path != null)
+                            return false;
+                        path = value;
+                        break;
+                    case ":authority":
+                        if (authority != null)
+                            return false;
+                        authority = value;
+                        break;
+                    default:
+                        return false;
+                }
+                continue;
+            }
+
+            regular = true;
+            for (int c = 0; c < name.length(); c++) {
+                if (name.charAt(c) >= 'A' && name.charAt(c) <= 'Z')
+                    return false;
+            }
+            if (CONNECTION_FIELDS.contains(name)
+                    || (name.equals("te") && !value.equals("trailers")))
+                return false;
+            if (fits)
+                fits = m_parser.addField(name, value);
+        }
+
+        if (method == null || scheme == null || path == null || path.isEmpty())
+            return false;
+        if (fits && authority != null && m_request.getHeader("Host") == null)
+            fits = m_parser.addField("host", authority);
+        if (fits)
+            m_parser.parseRequestLine(method, path, "HTTP/2.0");
+        return true;
+    }
+
+    /**
+     * Has the session answer a stream's request, then sends the
+     * response header; the body is framed by produce().
+     *
+     * @param stream the stream
+     * @param request the request
+     * @param error status to answer with instead, e.g. "431 ...",
+     *              or null
+     */
+    private void answer(Stream stream, HTTPRequest request, String error)
+            throws IOException
+    {
+        HTTPOutputQueue body = new HTTPOutputQueue(m_bufferPool);
+        m_status = null;
+        try {
+            m_session.answerStream(request, error, body);
+        } catch (IOException e) {
+            body.clear();
+            resetStream(stream.id, INTERNAL_ERROR);
+            return;
+        }
+        if (m_status == null) {
+            body.clear();
+            resetStream(stream.id, INTERNAL_ERROR);
+            return;
+        }
+
+        boolean empty = body.isEmpty();
+        writeHeaders(stream.id, empty);
+        if (empty) {
+            closeStream(stream);
+        } else {
+            stream.body = body;
+            m_sending.addLast(stream);
+        }
+    }
+
+    /**
+     * Encodes the response header built by beginHeader() and
+     * addHeaderField() and queues it, in a HEADERS frame and as
+     * many CONTINUATION frames as it takes.
+     */
+    private void writeHeaders(int id, boolean endStream) {
+        m_hpack.startBlock(FRAME_HEADER);
+        m_hpack.encode(":status", m_status);
+        for (int i = 0; i < m_response.size(); i += 2)
+            m_hpack.encode(m_response.get(i), m_response.get(i + 1));
+        ByteBuffer block = m_hpack.finishBlock();
+
+        int flags = endStream ? END_STREAM : 0;
+        int length = block.remaining() - FRAME_HEADER;
+        if (length <= FRAME_SIZE) {
+            putFrameHeader(block, length, HEADERS, flags | END_HEADERS, id);
+            m_output.add(block);
+            return;
+        }
+
+        putFrameHeader(block, FRAME_SIZE, HEADERS, flags, id);
+        block.limit(FRAME_HEADER + FRAME_SIZE);
+        m_output.add(block);
+        int end = FRAME_HEADER + length;
+        while (block.position() < end) {
+            int count = Math.min(FRAME_SIZE, end - block.position());
+            boolean last = block.position() + count == end;
+            startFrame(count, CONTINUATION, last ? END_HEADERS : 0, id);
+            endFrame();
+            block.limit(block.position() + count);
+            m_output.add(block);
+        }
+    }
+
+    /**
+     * Applies a client's SETTINGS payload.
+     *
+     * @return false if the settings were invalid (and the
+     *         connection is failing)
+     */
+    private boolean applySettings(ByteBuffer payload) {
+        if (payload.remaining() % 6 != 0) {
+            fail(FRAME_SIZE_ERROR);
+            return false;
+        }
+        while (payload.hasRemaining()) {
+            int setting = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+            switch (setting) {
+                case HEADER_TABLE_SIZE:
+                    m_hpack.setEncoderTableSize(value);
+                    break;
+
+                case ENABLE_PUSH:
+                    if (value > 1) {
+                        fail(PROTOCOL_ERROR);
+                        return false;
+                    }
+                    break;
+
+                case INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        fail(FLOW_CONTROL_ERROR);
+                        return false;
+                    }
+                    // Applies to the open streams too.
+                    long delta = value - m_initialWindow;
+                    m_initialWindow = value;
+                    for (Stream stream : m_streams.values()) {
+                        stream.window += delta;
+                        if (stream.window > MAX_WINDOW) {
+                            fail(FLOW_CONTROL_ERROR);
+                            return false;
+                        }
+                    }
+                    break;
+
+                case MAX_FRAME_SIZE:
+                    // Never less than what the server sends.
+                    if (value < FRAME_SIZE || value > 0xffffff) {
+                        fail(PROTOCOL_ERROR);
+                        return false;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private void handleWindowUpdate(ByteBuffer payload) {
+        int id = m_frameStream;
+        if (payload.remaining() != 4) {
+            fail(FRAME_SIZE_ERROR);
+            return;
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+
+        if (id == 0) {
+            m_window += increment;
+            if (increment == 0)
+                fail(PROTOCOL_ERROR);
+            else if (m_window > MAX_WINDOW)
+                fail(FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        Stream stream = m_streams.get(id);
+        if (stream == null) {
+            if (id > m_lastStreamId)
+                fail(PROTOCOL_ERROR);
+            return;
+        }
+        stream.window += increment;
+        if (increment == 0)
+            resetStream(id, PROTOCOL_ERROR);
+        else if (stream.window > MAX_WINDOW)
+            resetStream(id, FLOW_CONTROL_ERROR);
+    }
+
+    /**
+     * Ends a stream whose response has been sent in full; a client
+     * still sending a request body is told to stop.
+     */
+    private void closeStream(Stream stream) {
+        m_streams.remove(stream.id);
+        if (!stream.remoteClosed)
+            writeRstStream(stream.id, NO_ERROR);
+    }
+
+    /**
+     * Ends a stream abnormally, dropping its unsent body.
+     */
+    private void resetStream(int id, int error) {
+        discardStream(m_streams.get(id));
+        writeRstStream(id, error);
+    }
+
+    private void discardStream(Stream stream) {
+        if (stream == null)
+            return;
+        m_streams.remove(stream.id);
+        if (stream.body != null) {
+            m_sending.remove(stream);
+            stream.body.clear();
+            stream.body = null;
+        }
+    }
+
+    /**
+     * Fails the connection: GOAWAY is sent and the connection
+     * closed once it has been.
+     */
+    private void fail(int error) {
+        if (m_failed)
+            return;
+        writeGoAway(error);
+        m_failed = true;
+        m_goingAway = true;
+    }
+
+    private void writeGoAway(int error) {
+        startFrame(8, GOAWAY, 0, 0);
+        m_control.putInt(m_lastStreamId).putInt(error);
+        endFrame();
+    }
+
+    private void writeRstStream(int id, int error) {
+        startFrame(4, RST_STREAM, 0, id);
+        m_control.putInt(error);
+        endFrame();
+    }
+
+    private void writeWindowUpdate(int id, int increment) {
+        startFrame(4, WINDOW_UPDATE, 0, id);
+        m_control.putInt(increment);
+        endFrame();
+    }
+
+    /**
+     * Starts a small frame in m_control; put the payload, then
+     * call endFrame().
+     */
+    private void startFrame(int length, int type, int flags, int id) {
+        m_control.clear();
+        putFrameHeader(m_control, length, type, flags, id);
+        m_control.position(FRAME_HEADER);
+    }
+
+    private void endFrame() {
+        m_control.flip();
+        m_output.add(m_control);
+    }
+
+    /**
+     * Writes a frame header at a buffer's position, leaving the
+     * position where it was.
+     */
+    private static void putFrameHeader(ByteBuffer buffer, int length,
+                                       int type, int flags, int id)
+    {
+        int at = buffer.position();
+        buffer.put(at, (byte) (length >>> 16));
+        buffer.put(at + 1, (byte) (length >>> 8));
+        buffer.put(at + 2, (byte) length);
+        buffer.put(at + 3, (byte) type);
+        buffer.put(at + 4, (byte) flags);
+        buffer.putInt(at + 5, id);
+    }
+};
@@ -0,0 +1,562 @@
+/*
+ * HTTP2Hpack.java - HPACK header compression for HTTP/2.
+ *
+ * Notes:
+ *   HTTP/2 sends header fields compressed (RFC 7541).  A field is
+ *   either a reference to an entry of a table of fields seen
+ *   before, or a literal that may be added to that table; literal
+ *   strings may be Huffman-coded.  The table is made of the fixed
+ *   static table of 61 common fields followed by a dynamic table
+ *   of recently added ones, which sender and receiver keep in
+ *   step.  The dynamic table's size is bounded by the receiver's
+ *   SETTINGS_HEADER_TABLE_SIZE; the oldest entries are evicted to
+ *   make room.
+ *
+ *   Each connection has one of these objects, holding the dynamic
+ *   table for the client's header blocks and the one for the
+ *   server's.  Header blocks change the table they are decoded
+ *   with, so every block must be decoded, in the order received,
+ *   even for a stream that is refused.
+ *
+ *   The encoder adds every field it sends to its table, except
+ *   those whose values rarely repeat (NOT_INDEXED), so that after
+ *   the first response on a connection most fields cost a byte:
+ *   ":status 200" is in the static table, and "server",
+ *   "content-type", "cache-control" and the like become references
+ *   to the dynamic one.  Strings are Huffman-coded whenever that
+ *   makes them shorter.
+ *
+ *   Huffman-coded strings are decoded bit by bit by walking a
+ *   tree built from the code table at class load.
+ */
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+
+/**
+ * HPACK encoding and decoding state of one HTTP/2 connection.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTP2Hpack {
+
+    /**
+     * A dynamic table: the fields added most recently, newest
+     * first.
+     */
+    private static class Table {
+        final String[] names;               // Circular, oldest first.
+        final String[] values;
+        int next;                           // Slot the next entry goes in.
+        int count;
+        int size;                           // Sum of entrySize()s.
+        int maxSize;
+
+        Table(int maxSize) {
+            names = new String[MAX_TABLE_SIZE / ENTRY_OVERHEAD];
+            values = new String[names.length];
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @param index 1 for the newest entry, up to count
+         */
+        int slot(int index) {
+            return (next - index + names.length) % names.length;
+        }
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize)
+                return;     // Doesn't fit at all; the table is now empty.
+            names[next] = name;
+            values[next] = value;
+            next = (next + 1) % names.length;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        /**
+         * Drops the oldest entries until the table's size is at
+         * most 'limit'.
+         */
+        void evict(int limit) {
+            while (count > 0 && size > limit) {
+                int oldest = slot(count);
+                size -= entrySize(names[oldest], values[oldest]);
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        /**
+         * @return the index of the newest entry with this name
+         *         (and value, unless 'value' is null), or 0
+         */
+        int find(String name, String value) {
+            for (int i = 1; i <= count; i++) {
+                int slot = slot(i);
+                if (names[slot].equals(name)
+                        && (value == null || values[slot].equals(value)))
+                    return i;
+            }
+            return 0;
+        }
+    }
+
+    // The largest dynamic table, in either direction; also the
+    // server's SETTINGS_HEADER_TABLE_SIZE (the protocol default).
+    public static final int MAX_TABLE_SIZE = 4096;
+
+    // Bytes an entry costs beyond its name and value.
+    private static final int ENTRY_OVERHEAD = 32;
+
+    // Fields the encoder doesn't add to its table.
+    private static final Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList(
+            "content-length", "content-range", "location"));
+
+    // RFC 7541, appendix A; index 1 is STATIC_TABLE[0].
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" },
+        { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" },
+        { ":scheme", "https" }, { ":status", "200" }, { ":status", "204" },
+        { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+        { "accept-ranges", "" }, { "accept", "" },
+        { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+        { "authorization", "" }, { "cache-control", "" },
+        { "content-disposition", "" }, { "content-encoding", "" },
+        { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" },
+        { "content-type", "" }, { "cookie", "" }, { "date", "" },
+        { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+        { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+        { "if-none-match", "" }, { "if-range", "" },
+        { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+        { "location", "" }, { "max-forwards", "" },
+        { "proxy-authenticate", "" }, { "proxy-authorization", "" },
+        { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+        { "strict-transport-security", "" }, { "transfer-encoding", "" },
+        { "user-agent", "" }, { "vary", "" }, { "via", "" },
+        { "www-authenticate", "" }
+    };
+
+    // Static table index of the first entry with each name.
+    private static final Map<String, Integer> s_staticNames = new HashMap<>();
+
+    // RFC 7541, appendix B: the Huffman code of each byte value,
+    // and of EOS (256), right-aligned, and their lengths in bits.
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+        0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc,
+        0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1,
+        0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5,
+        0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa,
+        0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1,
+        0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+        0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f,
+        0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc,
+        0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3,
+        0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28,
+        0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4,
+        0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+        0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed,
+        0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+        0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb,
+        0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd,
+        0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1,
+        0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+        0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1,
+        0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf,
+        0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6,
+        0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4,
+        0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4,
+        0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9,
+        0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee,
+        0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb,
+        0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+        0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec,
+        0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5,
+        6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13,
+        19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20,
+        20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22,
+        23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20,
+        22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22,
+        21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20,
+        19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26,
+        27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20,
+        21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26,
+        26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int EOS = 256;
+
+    // The Huffman code as a binary tree: node n's children are at
+    // [2n] and [2n + 1]; a positive entry is another node, a
+    // negative one a leaf for symbol (-entry - 1).
+    private static final int[] s_huffmanTree = new int[2 * EOS];
+
+    static {
+        for (int i = STATIC_TABLE.length; i >= 1; i--)
+            s_staticNames.put(STATIC_TABLE[i - 1][0], i);
+
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    s_huffmanTree[child] = -symbol - 1;
+                } else {
+                    if (s_huffmanTree[child] == 0)
+                        s_huffmanTree[child] = nodes++;
+                    node = s_huffmanTree[child];
+                }
+            }
+        }
+    }
+
+    // Member variables.
+    private Table m_decoding;               // Client's fields.
+    private Table m_encoding;               // Server's fields.
+    private int m_smallestSize;             // Since the last block.
+    private boolean m_sizeChanged;          // Tell the client.
+    private byte[] m_string;                // Decoded string so far.
+    private byte[] m_block;                 // Header block being encoded.
+    private int m_blockLength;
+
+
+    /**
+     * Creates the tables for a new connection, empty and of the
+     * protocol's default size.
+     */
+    public HTTP2Hpack() {
+        m_decoding = new Table(MAX_TABLE_SIZE);
+        m_encoding = new Table(MAX_TABLE_SIZE);
+        m_smallestSize = MAX_TABLE_SIZE;
+        m_sizeChanged = false;
+        m_string = new byte[256];
+        m_block = new byte[1024];
+        m_blockLength = 0;
+    }
+
+    /**
+     * Decodes a header block from the client.
+     *
+     * @param block the block; its position is advanced to the
+     *              limit
+     * @param fields receives the fields: a name, its value, the
+     *               next name, and so on
+     * @return false if the block is malformed; the tables are
+     *         then out of step and the connection must be closed
+     *         with a COMPRESSION_ERROR
+     */
+    public boolean decode(ByteBuffer block, List<String> fields) {
+        while (block.hasRemaining()) {
+            int first = block.get(block.position()) & 0xff;
+            if ((first & 0x80) != 0) {
+                // Indexed field.
+                int index = readInteger(block, 7);
+                String name = name(index);
+                if (name == null)
+                    return false;
+                fields.add(name);
+                fields.add(value(index));
+            } else if ((first & 0x20) != 0 && (first & 0x40) == 0) {
+                // Dynamic table size update.
+                int size = readInteger(block, 5);
+                if (size < 0 || size > MAX_TABLE_SIZE)
+                    return false;
+                m_decoding.setMaxSize(size);
+            } else {
+                // Literal, added to the table or not.
+                boolean indexed = (first & 0x40) != 0;
+                int index = readInteger(block, indexed ? 6 : 4);
+                String name = (index == 0) ? readString(block) : name(index);
+                String value = (name == null) ? null : readString(block);
+                if (value == null)
+                    return false;
+                if (indexed)
+                    m_decoding.add(name, value);
+                fields.add(name);
+                fields.add(value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adjusts the encoder to the client's SETTINGS_HEADER_TABLE_SIZE;
+     * the change is signalled at the start of the next block.
+     *
+     * @param size the client's setting
+     */
+    public void setEncoderTableSize(long size) {
+        int maxSize = (int) Math.min(size, MAX_TABLE_SIZE);
+        if (maxSize == m_encoding.maxSize)
+            return;
+        m_encoding.setMaxSize(maxSize);
+        m_smallestSize = Math.min(m_smallestSize, maxSize);
+        m_sizeChanged = true;
+    }
+
+    /**
+     * Starts encoding a header block, discarding the previous one.
+     *
+     * @param headroom bytes to leave free in front of the block,
+     *                 e.g. for a frame header
+     */
+    public void startBlock(int headroom) {
+        m_blockLength = headroom;
+        if (m_sizeChanged) {
+            // The client must see the smallest size since the last
+            // block before the current one.
+            if (m_smallestSize < m_encoding.maxSize)
+                writeInteger(0x20, 5, m_smallestSize);
+            writeInteger(0x20, 5, m_encoding.maxSize);
+            m_smallestSize = m_encoding.maxSize;
+            m_sizeChanged = false;
+        }
+    }
+
+    /**
+     * Adds a field to the block being encoded.
+     *
+     * @param name the field name, in lower case
+     * @param value the field value; chars are sent as their low
+     *              byte
+     */
+    public void encode(String name, String value) {
+        Integer first = s_staticNames.get(name);
+        int nameIndex = (first == null) ? 0 : first;
+        for (int i = nameIndex; i > 0 && i <= STATIC_TABLE.length
+                && STATIC_TABLE[i - 1][0].equals(name); i++) {
+            if (STATIC_TABLE[i - 1][1].equals(value)) {
+                writeInteger(0x80, 7, i);
+                return;
+            }
+        }
+
+        int index = m_encoding.find(name, value);
+        if (index > 0) {
+            writeInteger(0x80, 7, STATIC_TABLE.length + index);
+            return;
+        }
+        if (nameIndex == 0) {
+            index = m_encoding.find(name, null);
+            if (index > 0)
+                nameIndex = STATIC_TABLE.length + index;
+        }
+
+        if (NOT_INDEXED.contains(name)
+                || entrySize(name, value) > m_encoding.maxSize) {
+            writeInteger(0x00, 4, nameIndex);
+        } else {
+            writeInteger(0x40, 6, nameIndex);
+            m_encoding.add(name, value);
+        }
+        if (nameIndex == 0)
+            writeString(name);
+        writeString(value);
+    }
+
+    /**
+     * @return the encoded block, headroom included, from position
+     *         0; valid until the next call to startBlock()
+     */
+    public ByteBuffer finishBlock() {
+        return ByteBuffer.wrap(m_block, 0, m_blockLength);
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * @return the name of the field at a (static or dynamic) table
+     *         index, or null if there is no such index
+     */
+    private String name(int index) {
+        if (index >= 1 && index <= STATIC_TABLE.length)
+            return STATIC_TABLE[index - 1][0];
+        index -= STATIC_TABLE.length;
+        if (index >= 1 && index <= m_decoding.count)
+            return m_decoding.names[m_decoding.slot(index)];
+        return null;
+    }
+
+    /**
+     * @return the value of the field at an index name() accepted
+     */
+    private String value(int index) {
+        if (index <= STATIC_TABLE.length)
+            return STATIC_TABLE[index - 1][1];
+        return m_decoding.values[m_decoding.slot(index - STATIC_TABLE.length)];
+    }
+
+    /**
+     * Reads an integer with an N-bit prefix (RFC 7541, 5.1),
+     * starting with the low bits of the current byte.
+     *
+     * @return the integer, or -1 if it is truncated or too large
+     */
+    private static int readInteger(ByteBuffer block, int prefixBits) {
+        int max = (1 << prefixBits) - 1;
+        int value = block.get() & max;
+        if (value < max)
+            return value;
+        for (int shift = 0; shift <= 21; shift += 7) {
+            if (!block.hasRemaining())
+                return -1;
+            int b = block.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a string literal (RFC 7541, 5.2).
+     *
+     * @return the string, or null if it is malformed
+     */
+    private String readString(ByteBuffer block) {
+        if (!block.hasRemaining())
+            return null;
+        boolean huffman = (block.get(block.position()) & 0x80) != 0;
+        int length = readInteger(block, 7);
+        if (length < 0 || length > block.remaining())
+            return null;
+        if (!huffman) {
+            ensureString(length);
+            block.get(m_string, 0, length);
+            return new String(m_string, 0, length, StandardCharsets.ISO_8859_1);
+        }
+
+        // Walk the tree; at the end, at most 7 bits of the EOS
+        // code (all ones) may be left over as padding.
+        int count = 0;
+        int node = 0;
+        int pending = 0;                    // Bits into a symbol.
+        boolean ones = true;
+        for (int i = 0; i < length; i++) {
+            int b = block.get();
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int child = s_huffmanTree[2 * node + one];
+                pending++;
+                ones &= (one == 1);
+                if (child >= 0) {
+                    node = child;
+                    continue;
+                }
+                if (child == -EOS - 1)
+                    return null;
+                ensureString(count + 1);
+                m_string[count++] = (byte) (-child - 1);
+                node = 0;
+                pending = 0;
+                ones = true;
+            }
+        }
+        if (pending > 7 || !ones)
+            return null;
+        return new String(m_string, 0, count, StandardCharsets.ISO_8859_1);
+    }
+
+    private void ensureString(int length) {
+        if (length > m_string.length)
+            m_string = Arrays.copyOf(m_string, Math.max(length, 2 * m_string.length));
+    }
+
+    /**
+     * Writes an integer with an N-bit prefix, ORed into a first
+     * byte holding 'flags'.
+     */
+    private void writeInteger(int flags, int prefixBits, int value) {
+        ensureBlock(6);
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            m_block[m_blockLength++] = (byte) (flags | value);
+            return;
+        }
+        m_block[m_blockLength++] = (byte) (flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            m_block[m_blockLength++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        m_block[m_blockLength++] = (byte) value;
+    }
+
+    /**
+     * Writes a string literal, Huffman-coded if that is shorter.
+     */
+    private void writeString(String text) {
+        int length = text.length();
+        long bits = 0;
+        for (int i = 0; i < length; i++)
+            bits += HUFFMAN_LENGTHS[text.charAt(i) & 0xff];
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength >= length) {
+            writeInteger(0x00, 7, length);
+            ensureBlock(length);
+            for (int i = 0; i < length; i++)
+                m_block[m_blockLength++] = (byte) text.charAt(i);
+            return;
+        }
+
+        writeInteger(0x80, 7, huffmanLength);
+        ensureBlock(huffmanLength);
+        long pending = 0;                   // Bits not yet written...
+        int pendingBits = 0;                // ...and how many.
+        for (int i = 0; i < length; i++) {
+            int symbol = text.charAt(i) & 0xff;
+            pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pendingBits += HUFFMAN_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                m_block[m_blockLength++] = (byte) (pending >>> pendingBits);
+            }
+        }
+        if (pendingBits > 0) {
+            // Pad with the start of EOS.
+            m_block[m_blockLength++] = (byte) ((pending << (8 - pendingBits))
+                    | (0xff >>> pendingBits));
+        }
+    }
+
+    private void ensureBlock(int count) {
+        if (m_blockLength + count > m_block.length)
+            m_block = Arrays.copyOf(m_block,
+                    Math.max(m_blockLength + count, 2 * m_block.length));
+    }
+};
@@ -0,0 +1,385 @@
+/*
+ * HTTPAccessLog.java - writes the access log from a background
+ * thread.
+ *
+ * Notes:
+ *   Printing a line per request from the session threads makes
+ *   them all take turns on System.out's lock, and wait for the
+ *   terminal or pipe behind it.  Instead, sessions drop the facts
+ *   about each request into a ring buffer and go on; one writer
+ *   thread takes them out, formats them, and writes them in
+ *   batches with one write() per batch.
+ *
+ *   The ring buffer is a bounded multi-producer queue (after
+ *   Dmitry Vyukov's design).  Each slot holds a reusable entry
+ *   and a sequence number that says whose turn it is: a session
+ *   claims a slot by advancing the tail with compareAndSet, fills
+ *   in the entry, and publishes it by setting the slot's sequence;
+ *   the writer reads published slots in order and hands them back
+ *   the same way.  Nothing is locked and no entry is allocated
+ *   per request.
+ *
+ *   If sessions log faster than the writer can write, the buffer
+ *   fills up.  The policy then is either to drop the entry (and
+ *   count it; the count is reported with the server's metrics), so
+ *   a slow disk never slows down requests, or to block until there
+ *   is room, so no entry is ever lost.
+ *
+ *   Entries are written in the Common or Combined Log Format:
+ *
+ *     127.0.0.1 - - [10/Oct/2013:13:55:36 -0600] "GET / HTTP/1.1"
+ *         200 2326 "http://example.com/" "Mozilla/5.0 ..."
+ *
+ *   (on one line; Common stops after the size).  When the file
+ *   grows past its size limit it is rotated: NAME becomes NAME.1,
+ *   NAME.1 becomes NAME.2, and so on, keeping MAX_ROTATED old
+ *   files.  Logging to the console ("-") never rotates.
+ */
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * An asynchronous, batching access log.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPAccessLog implements Runnable {
+
+    /**
+     * One request's log entry; the slots' entries are reused.
+     */
+    private static class Entry {
+        String remoteHost;
+        long time;                          // Millis since the epoch.
+        String requestLine;
+        int status;
+        long bytes;
+        String referer;
+        String userAgent;
+        String headers;                     // Shown with -s, or null.
+    }
+
+    // Old files kept by rotation (NAME.1 ... NAME.MAX_ROTATED).
+    public static final int MAX_ROTATED = 5;
+
+    // Most entries written with one write().
+    private static final int BATCH_SIZE = 1024;
+
+    // Writer's nap when there is nothing to write.
+    private static final long IDLE_NANOS = 10 * 1000 * 1000;
+
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+                             .withZone(ZoneId.systemDefault());
+
+    // Member variables.
+    private Entry[] m_entries;              // The ring's slots.
+    private AtomicLongArray m_sequences;    // Slot turn numbers.
+    private int m_mask;                     // Slots - 1.
+    private AtomicLong m_tail;              // Next slot to claim.
+    private long m_head;                    // Next slot to write.
+    private boolean m_combined;             // Referer and User-Agent.
+    private boolean m_block;                // Wait for room if full.
+    private LongAdder m_dropped;
+
+    // Output, used only by the writer thread.
+    private String m_fileName;              // null for the console.
+    private long m_rotateSize;              // 0: never rotate.
+    private OutputStream m_out;
+    private long m_fileSize;
+    private StringBuilder m_batch;
+    private long m_dateSecond;              // Second m_dateText is for.
+    private String m_dateText;
+
+    private Thread m_writer;
+    private volatile boolean m_stopping;
+
+
+    /**
+     * Opens the log and starts its writer thread.
+     *
+     * @param fileName the log file, appended to; "-" logs to the
+     *                 console
+     * @param combined true for the Combined Log Format, false
+     *                 for the Common Log Format
+     * @param capacity entries the ring buffer holds; rounded up
+     *                 to a power of two
+     * @param block true to wait for room when the buffer is full,
+     *              false to drop the entry
+     * @param rotateSize rotate the file when it grows past this
+     *                   many bytes; 0 never rotates
+     */
+    public HTTPAccessLog(String fileName, boolean combined, int capacity,
+                         boolean block, long rotateSize)
+            throws IOException
+    {
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) * 2;
+        m_entries = new Entry[slots];
+        m_sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            m_entries[i] = new Entry();
+            m_sequences.set(i, i);
+        }
+        m_mask = slots - 1;
+        m_tail = new AtomicLong();
+        m_head = 0;
+        m_combined = combined;
+        m_block = block;
+        m_dropped = new LongAdder();
+
+        m_fileName = fileName.equals("-") ? null : fileName;
+        m_rotateSize = rotateSize;
+        m_batch = new StringBuilder(BATCH_SIZE * 160);
+        m_dateSecond = -1;
+        open();
+
+        m_stopping = false;
+        m_writer = new Thread(this, "HTTPAccessLog");
+        m_writer.setDaemon(true);
+        m_writer.start();
+    }
+
+    /**
+     * Queues an entry for the log.  Never blocks unless the
+     * log was opened with the blocking policy and is full.
+     *
+     * @param remoteHost the client's address
+     * @param requestLine e.g. "GET / HTTP/1.1", or "" if the
+     *                    request couldn't be parsed
+     * @param status the response status code
+     * @param bytes response body bytes, or -1 if none was sent
+     * @param referer the "Referer" field, or null
+     * @param userAgent the "User-Agent" field, or null
+     * @param headers request header fields to show after the
+     *                entry (one per line), or null
+     * @return false if the entry was dropped
+     */
+    public boolean log(String remoteHost, String requestLine, int status,
+                       long bytes, String referer, String userAgent,
+                       String headers)
+    {
+        for (;;) {
+            long position = m_tail.get();
+            int slot = (int) position & m_mask;
+            long turn = m_sequences.get(slot) - position;
+
+            if (turn == 0) {
+                if (!m_tail.compareAndSet(position, position + 1))
+                    continue;   // Another session took it.
+                Entry entry = m_entries[slot];
+                entry.remoteHost = remoteHost;
+                entry.time = System.currentTimeMillis();
+                entry.requestLine = requestLine;
+                entry.status = status;
+                entry.bytes = bytes;
+                entry.referer = referer;
+                entry.userAgent = userAgent;
+                entry.headers = headers;
+                m_sequences.set(slot, position + 1);    // Publish.
+                return true;
+            }
+
+            if (turn < 0) {
+                // Full: the writer hasn't freed this slot yet.
+                if (!m_block || m_stopping) {
+                    m_dropped.increment();
+                    return false;
+                }
+                LockSupport.unpark(m_writer);   // Cut its nap short.
+                LockSupport.parkNanos(100 * 1000);
+            }
+        }
+    }
+
+    /**
+     * @return entries dropped because the buffer was full
+     */
+    public long getDropped() {
+        return m_dropped.sum();
+    }
+
+    /**
+     * @return entries waiting to be written (approximate)
+     */
+    public long getPending() {
+        return Math.max(0, m_tail.get() - m_head);
+    }
+
+    /**
+     * Writes the remaining entries and stops the writer.  Called
+     * when the server shuts down.
+     *
+     * @param timeoutMillis how long to wait for the writer
+     */
+    public void close(long timeoutMillis) {
+        m_stopping = true;
+        LockSupport.unpark(m_writer);
+        try {
+            m_writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer thread: drains the ring buffer in batches.
+     *
+     * Implements Runnable.run().
+     */
+    @Override public void run() {
+        for (;;) {
+            boolean stopping = m_stopping;
+            int count = drain();
+            try {
+                if (m_batch.length() > 0)
+                    write();
+            } catch (IOException e) {
+                // Keep serving; the entries are lost.
+                System.err.println("Access log: " + e);
+                m_batch.setLength(0);
+            }
+
+            if (count == 0) {
+                if (stopping)
+                    break;
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+
+        try {
+            if (m_fileName != null)
+                m_out.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Formats up to BATCH_SIZE published entries into m_batch and
+     * frees their slots.
+     *
+     * @return number of entries formatted
+     */
+    private int drain() {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            int slot = (int) m_head & m_mask;
+            if (m_sequences.get(slot) != m_head + 1)
+                break;      // Not published yet.
+
+            Entry entry = m_entries[slot];
+            format(entry);
+            entry.requestLine = entry.referer = entry.userAgent = null;
+            entry.headers = null;
+            m_sequences.set(slot, m_head + m_entries.length);
+            m_head++;
+            count++;
+        }
+        return count;
+    }
+
+    private void format(Entry entry) {
+        StringBuilder out = m_batch;
+        out.append(entry.remoteHost).append(" - - [")
+           .append(formatDate(entry.time)).append("] \"");
+        escape(out, entry.requestLine.isEmpty() ? "-" : entry.requestLine);
+        out.append("\" ").append(entry.status).append(' ');
+        if (entry.bytes > 0)
+            out.append(entry.bytes);
+        else
+            out.append('-');
+
+        if (m_combined) {
+            out.append(" \"");
+            escape(out, entry.referer == null ? "-" : entry.referer);
+            out.append("\" \"");
+            escape(out, entry.userAgent == null ? "-" : entry.userAgent);
+            out.append('"');
+        }
+        out.append('\n');
+
+        if (entry.headers != null)
+            out.append(entry.headers);
+    }
+
+    /**
+     * Appends text with quotes, backslashes and control
+     * characters escaped, so fields can't break the format.
+     */
+    private static void escape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                out.append("\\x").append(Character.forDigit(c >> 4, 16))
+                   .append(Character.forDigit(c & 0xf, 16));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Formats a time, reusing the text within the same second.
+     */
+    private String formatDate(long millis) {
+        long second = millis / 1000;
+        if (second != m_dateSecond) {
+            m_dateSecond = second;
+            m_dateText = DATE_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return m_dateText;
+    }
+
+    /**
+     * Writes the batch with one write(), rotating the file first
+     * if it has grown too large.
+     */
+    private void write() throws IOException {
+        byte[] bytes = m_batch.toString().getBytes(StandardCharsets.ISO_8859_1);
+        m_batch.setLength(0);
+
+        if (m_fileName != null && m_rotateSize > 0
+                && m_fileSize > 0 && m_fileSize + bytes.length > m_rotateSize)
+            rotate();
+        m_out.write(bytes);
+        m_out.flush();
+        m_fileSize += bytes.length;
+    }
+
+    private void open() throws IOException {
+        if (m_fileName == null) {
+            m_out = System.out;
+            return;
+        }
+        File file = new File(m_fileName);
+        m_fileSize = file.length();
+        m_out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Shifts NAME.1 ... NAME.(MAX_ROTATED - 1) up by one, renames
+     * NAME to NAME.1 and starts a new NAME.
+     */
+    private void rotate() throws IOException {
+        m_out.close();
+        for (int i = MAX_ROTATED - 1; i >= 1; i--) {
+            Path older = Paths.get(m_fileName + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(m_fileName + "." + (i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(Paths.get(m_fileName), Paths.get(m_fileName + ".1"),
+                StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+};
@@ -0,0 +1,345 @@
+/*
+ * HTTPBufferPool.java - lends out I/O buffers.
+ *
+ * Notes:
+ *   Every connection needs buffers to read requests into and to
+ *   stage responses in.  Allocating them per connection makes the
+ *   allocation rate (and the young GC frequency) follow connection
+ *   churn, and a direct buffer is expensive to allocate and only
+ *   freed by a GC.  Instead, buffers are borrowed from this pool
+ *   for as long as they hold data and given back right after; an
+ *   idle keep-alive connection holds none.
+ *
+ *   Buffers come in a few size classes (SIZE_CLASSES).  Direct
+ *   buffers are what socket channels read and write without an
+ *   extra copy; heap buffers are lent for APIs that need an array
+ *   (reading through a socket's InputStream).  A request larger
+ *   than the largest class is simply allocated, and dropped again
+ *   on release.
+ *
+ *   Each thread keeps a few buffers per class for itself
+ *   (THREAD_CACHE_SIZE), so a worker or event loop that borrows
+ *   and returns buffers over and over touches no shared state.
+ *   Beyond that, buffers go to a shared lock-free queue per class,
+ *   which retains at most m_maxRetained bytes in total; anything
+ *   beyond is left to the garbage collector.  Virtual threads get
+ *   no cache of their own, since they live for one connection.
+ *
+ *   In debug mode (-D) every borrowed buffer is tracked by a weak
+ *   reference that remembers where it was borrowed.  A buffer that
+ *   becomes unreachable without having been given back is a leak:
+ *   once the garbage collector has noticed, the borrowing stack
+ *   trace is printed.  Giving back a buffer twice (or one that
+ *   didn't come from the pool) is reported as well.
+ */
+import java.lang.ref.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * A shared, size-classed pool of direct and heap ByteBuffers.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPBufferPool {
+
+    /**
+     * A borrowed buffer being watched in debug mode.
+     */
+    private static class Loan extends WeakReference<ByteBuffer> {
+        final Throwable borrowed;           // Where, for the report.
+
+        Loan(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            borrowed = new Throwable("Buffer of " + buffer.capacity()
+                    + " bytes borrowed here was never given back");
+        }
+    }
+
+    // Buffer sizes handed out.
+    public static final int[] SIZE_CLASSES = {
+        4 * 1024, 8 * 1024, 16 * 1024, 64 * 1024
+    };
+
+    // Buffers per class kept by each thread.
+    public static final int THREAD_CACHE_SIZE = 8;
+
+    // Thread.isVirtual(), where it exists (Java 21).
+    private static final Method s_isVirtual;
+
+    static {
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            isVirtual = null;
+        }
+        s_isVirtual = isVirtual;
+    }
+
+    // Member variables.
+    private long m_maxRetained;             // Bytes kept in m_shared.
+    private AtomicLong m_retained;
+    private ConcurrentLinkedQueue<ByteBuffer>[][] m_shared;     // [direct][class]
+    private ThreadLocal<ArrayDeque<ByteBuffer>[][]> m_threadCache;
+    private boolean m_debug;
+
+    // Debug mode: loans by buffer identity, and the GC's notices.
+    private Map<Integer, List<Loan>> m_loans;
+    private ReferenceQueue<ByteBuffer> m_collected;
+
+    // Statistics.
+    private LongAdder m_borrowed;
+    private LongAdder m_allocated;
+    private AtomicLong m_allocatedBytes;    // Direct, ever.
+    private LongAdder m_leaks;
+
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxRetained bytes of idle buffers the shared queues
+     *                    may hold (thread caches come on top)
+     * @param debug true to track every loan and report leaks
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public HTTPBufferPool(long maxRetained, boolean debug) {
+        m_maxRetained = maxRetained;
+        m_retained = new AtomicLong();
+        m_shared = new ConcurrentLinkedQueue[2][SIZE_CLASSES.length];
+        for (int kind = 0; kind < 2; kind++) {
+            for (int i = 0; i < SIZE_CLASSES.length; i++)
+                m_shared[kind][i] = new ConcurrentLinkedQueue<>();
+        }
+        m_threadCache = ThreadLocal.withInitial(() -> {
+            if (isVirtual(Thread.currentThread()))
+                return null;
+            ArrayDeque<ByteBuffer>[][] cache =
+                    new ArrayDeque[2][SIZE_CLASSES.length];
+            for (int kind = 0; kind < 2; kind++) {
+                for (int i = 0; i < SIZE_CLASSES.length; i++)
+                    cache[kind][i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return cache;
+        });
+        m_debug = debug;
+        m_loans = debug ? new HashMap<>() : null;
+        m_collected = debug ? new ReferenceQueue<>() : null;
+
+        m_borrowed = new LongAdder();
+        m_allocated = new LongAdder();
+        m_allocatedBytes = new AtomicLong();
+        m_leaks = new LongAdder();
+    }
+
+    /**
+     * Borrows a direct buffer, for socket and file channels.
+     *
+     * @param size bytes needed
+     * @return a cleared buffer of at least 'size' bytes; give it
+     *         back with release()
+     */
+    public ByteBuffer acquire(int size) {
+        return acquire(size, true);
+    }
+
+    /**
+     * Borrows a heap buffer, for APIs that need its array().
+     *
+     * @param size bytes needed
+     * @return a cleared buffer of at least 'size' bytes; give it
+     *         back with release()
+     */
+    public ByteBuffer acquireHeap(int size) {
+        return acquire(size, false);
+    }
+
+    /**
+     * Gives back a borrowed buffer.  The caller must not touch it
+     * (or any duplicate or slice of it) afterwards.
+     *
+     * @param buffer a buffer from acquire() or acquireHeap(); null
+     *               is ignored
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (m_debug && !endLoan(buffer))
+            return;
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity())
+            return;     // Odd size; not ours to keep.
+        int kind = buffer.isDirect() ? 1 : 0;
+        buffer.clear();
+
+        ArrayDeque<ByteBuffer> local = threadCache(kind, sizeClass);
+        if (local != null && local.size() < THREAD_CACHE_SIZE) {
+            local.push(buffer);
+            return;
+        }
+        if (m_retained.addAndGet(buffer.capacity()) <= m_maxRetained)
+            m_shared[kind][sizeClass].offer(buffer);
+        else
+            m_retained.addAndGet(-buffer.capacity());
+    }
+
+    /**
+     * @return buffers lent out, ever
+     */
+    public long getBorrowed() {
+        return m_borrowed.sum();
+    }
+
+    /**
+     * @return buffers that had to be allocated, ever
+     */
+    public long getAllocated() {
+        return m_allocated.sum();
+    }
+
+    /**
+     * @return bytes of direct buffers allocated, ever
+     */
+    public long getAllocatedDirectBytes() {
+        return m_allocatedBytes.get();
+    }
+
+    /**
+     * @return bytes of idle buffers in the shared queues
+     */
+    public long getRetainedBytes() {
+        return m_retained.get();
+    }
+
+    /**
+     * @return leaks reported (debug mode only)
+     */
+    public long getLeaks() {
+        return m_leaks.sum();
+    }
+
+    /**
+     * @return the statistics in one line, for the console
+     */
+    @Override public String toString() {
+        return "borrowed " + getBorrowed() + ", allocated "
+                + getAllocated() + ", " + getRetainedBytes()
+                + " bytes retained" + (m_debug ? ", leaks " + getLeaks() : "");
+    }
+
+    private ByteBuffer acquire(int size, boolean direct) {
+        m_borrowed.increment();
+        int sizeClass = sizeClass(size);
+        int kind = direct ? 1 : 0;
+        ByteBuffer buffer = null;
+
+        if (sizeClass >= 0) {
+            ArrayDeque<ByteBuffer> local = threadCache(kind, sizeClass);
+            if (local != null)
+                buffer = local.poll();
+            if (buffer == null) {
+                buffer = m_shared[kind][sizeClass].poll();
+                if (buffer != null)
+                    m_retained.addAndGet(-buffer.capacity());
+            }
+            size = SIZE_CLASSES[sizeClass];
+        }
+
+        if (buffer == null) {
+            m_allocated.increment();
+            if (direct) {
+                m_allocatedBytes.addAndGet(size);
+                buffer = ByteBuffer.allocateDirect(size);
+            } else {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+
+        if (m_debug)
+            startLoan(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return the smallest class holding 'size' bytes, or -1
+     */
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the calling thread's cache for a class, or null for
+     *         virtual threads
+     */
+    private ArrayDeque<ByteBuffer> threadCache(int kind, int sizeClass) {
+        ArrayDeque<ByteBuffer>[][] cache = m_threadCache.get();
+        return (cache == null) ? null : cache[kind][sizeClass];
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (s_isVirtual == null)
+            return false;
+        try {
+            return (Boolean) s_isVirtual.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private synchronized void startLoan(ByteBuffer buffer) {
+        reportLeaks();
+        m_loans.computeIfAbsent(System.identityHashCode(buffer),
+                hash -> new ArrayList<>(1)).add(new Loan(buffer, m_collected));
+    }
+
+    /**
+     * @return false if the buffer wasn't on loan
+     */
+    private synchronized boolean endLoan(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        List<Loan> loans = m_loans.get(hash);
+        if (loans != null) {
+            for (Iterator<Loan> i = loans.iterator(); i.hasNext(); ) {
+                Loan loan = i.next();
+                if (loan.get() == buffer) {
+                    i.remove();
+                    loan.clear();
+                    if (loans.isEmpty())
+                        m_loans.remove(hash);
+                    return true;
+                }
+            }
+        }
+        new Throwable("Buffer given back twice, or not borrowed")
+                .printStackTrace();
+        return false;
+    }
+
+    /**
+     * Reports buffers the garbage collector found unreachable
+     * while still on loan.
+     */
+    private void reportLeaks() {
+        Reference<? extends ByteBuffer> collected;
+        while ((collected = m_collected.poll()) != null) {
+            Loan loan = (Loan) collected;
+            for (List<Loan> loans : m_loans.values()) {
+                if (loans.remove(loan)) {
+                    m_leaks.increment();
+                    loan.borrowed.printStackTrace();
+                    break;
+                }
+            }
+            m_loans.values().removeIf(List::isEmpty);
+        }
+    }
+};
@@ -0,0 +1,109 @@
+/*
+ * HTTPByteRanges.java - parses "Range: bytes=..." request fields.
+ *
+ * Notes:
+ *   A byte range set (RFC 7233, section 2.1) is a comma-separated
+ *   list of ranges, each one of
+ *
+ *     FIRST-LAST    bytes FIRST through LAST, inclusive
+ *     FIRST-        bytes FIRST through the end of the file
+ *     -COUNT        the last COUNT bytes of the file
+ *
+ *   A LAST beyond the end of the file is cut short; a range that
+ *   starts beyond the end can't be satisfied and is dropped.  If
+ *   no range is left, the server answers "416 Range Not
+ *   Satisfiable".
+ *
+ *   A field that can't be parsed is ignored, as the RFC requires,
+ *   and the whole file is sent instead.  So is a request for more
+ *   than a handful of ranges, which is almost always an attempt to
+ *   make the server do lots of small writes.
+ */
+import java.util.*;
+
+
+/**
+ * A parsed and validated set of byte ranges.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPByteRanges {
+
+    // Most ranges served in one multipart response.
+    public static final int MAX_RANGES = 16;
+
+
+    /**
+     * Parses a "Range" field against a file of known size.
+     *
+     * @param range the field value, e.g. "bytes=0-499,-100"
+     * @param size the size of the file in bytes
+     * @return the satisfiable ranges as {first, last} pairs
+     *         (inclusive), in the order requested; an empty list
+     *         if none can be satisfied; or null if the field should
+     *         be ignored and the whole file sent
+     */
+    public static List<long[]> parse(String range, long size) {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+
+            long first, last;
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last COUNT bytes.
+                    long count = Long.parseLong(spec.substring(1));
+                    if (count <= 0)
+                        continue;   // Unsatisfiable.
+                    first = Math.max(0, size - count);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        // Open-ended; checked here since LAST would
+                        // otherwise come out before FIRST.
+                        if (first >= size)
+                            continue;   // Unsatisfiable.
+                        last = size - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first)
+                            return null;    // Invalid, not unsatisfiable.
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first < 0)
+                return null;
+            if (first < size)
+                ranges.add(new long[] { first, last });
+        }
+        return ranges;
+    }
+
+    /**
+     * Formats a "Content-Range" value for one range.
+     *
+     * @param first the first byte sent
+     * @param last the last byte sent (inclusive)
+     * @param size the size of the whole file
+     * @return e.g. "bytes 0-499/1234"
+     */
+    public static String contentRange(long first, long last, long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+};
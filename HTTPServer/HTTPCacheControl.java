@@ -0,0 +1,101 @@
+/*
+ * HTTPCacheControl.java - chooses the "Cache-Control" field for a
+ * resource.
+ *
+ * Notes:
+ *   Rules are given on the command line with "-c PATTERN=SECONDS"
+ *   and are tried in the order given; the first one that matches
+ *   decides the max-age.  A PATTERN starting with '.' matches a
+ *   file name extension (e.g. ".css=86400"), one starting with
+ *   '/' matches a URL path prefix (e.g. "/static/=3600"), and "*"
+ *   matches everything.  Resources that match no rule are sent
+ *   without a "Cache-Control" field, leaving freshness up to the
+ *   client's heuristics (and the ETag / Last-Modified
+ *   validators).
+ *
+ *   The field values are built when the rules are parsed, so
+ *   choosing one allocates nothing.
+ */
+import java.util.*;
+
+
+/**
+ * An ordered list of "Cache-Control: max-age" rules.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPCacheControl {
+
+    /**
+     * One "PATTERN=SECONDS" rule.
+     */
+    private static class Rule {
+        String pattern;                     // ".ext", "/prefix" or "*".
+        String value;                       // e.g. "max-age=3600".
+    }
+
+    // Member variables.
+    private List<Rule> m_rules;
+
+
+    /**
+     * Creates an empty rule list; nothing gets a Cache-Control
+     * field until rules are added.
+     */
+    public HTTPCacheControl() {
+        m_rules = new ArrayList<>();
+    }
+
+    /**
+     * Adds a rule in "PATTERN=SECONDS" form.
+     *
+     * @param rule e.g. ".css=86400", "/static/=3600" or "*=0"
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public void addRule(String rule) {
+        int equals = rule.lastIndexOf('=');
+        if (equals <= 0)
+            throw new IllegalArgumentException("Bad cache rule: " + rule);
+
+        String pattern = rule.substring(0, equals);
+        long seconds = Long.parseLong(rule.substring(equals + 1));
+        if (seconds < 0 || !(pattern.startsWith(".")
+                || pattern.startsWith("/") || pattern.equals("*")))
+            throw new IllegalArgumentException("Bad cache rule: " + rule);
+
+        Rule parsed = new Rule();
+        parsed.pattern = pattern;
+        parsed.value = (seconds == 0) ? "no-cache" : "max-age=" + seconds;
+        m_rules.add(parsed);
+    }
+
+    /**
+     * @return true if no rules have been added
+     */
+    public boolean isEmpty() {
+        return m_rules.isEmpty();
+    }
+
+    /**
+     * Finds the "Cache-Control" value for a resource.
+     *
+     * @param urlPath the path the client asked for
+     * @param fileName the name of the file being sent (which
+     *                 differs from urlPath for directory indexes)
+     * @return the field value, or null to send no such field
+     */
+    public String lookup(String urlPath, String fileName) {
+        for (int i = 0; i < m_rules.size(); i++) {
+            Rule rule = m_rules.get(i);
+            if (rule.pattern.equals("*"))
+                return rule.value;
+            if (rule.pattern.charAt(0) == '.') {
+                if (fileName.endsWith(rule.pattern))
+                    return rule.value;
+            } else if (urlPath.startsWith(rule.pattern)) {
+                return rule.value;
+            }
+        }
+        return null;
+    }
+};
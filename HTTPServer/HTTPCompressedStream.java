@@ -0,0 +1,167 @@
+/*
+ * HTTPCompressedStream.java - compresses a file while it is
+ * being sent.
+ *
+ * Notes:
+ *   HTTPCompressionCache only keeps files that fit comfortably in
+ *   its budget; larger ones used to be sent uncompressed.  This
+ *   source compresses such a file as the response is written, one
+ *   buffer at a time, so the first bytes go out right away and
+ *   memory use stays flat however large the file is.  The body is
+ *   sent with the chunked transfer coding, since its length isn't
+ *   known until the end.
+ *
+ *   Compressing on every request costs CPU where the cache
+ *   compresses once, so the fastest level is used: most of the
+ *   size reduction for a fraction of the time.  The output is the
+ *   same for every request, so the variant's ETag holds.
+ *
+ *   "deflate" is the zlib format, which Deflater writes itself;
+ *   for "gzip" the header and the CRC-32 / length trailer are
+ *   written around raw deflate data here.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+
+/**
+ * A response body that is a file compressed on the fly.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPCompressedStream implements HTTPOutputQueue.Source {
+
+    // Bytes read from the file, and deflated, at a time.
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    // gzip member header: magic, CM=deflate, no flags, no mtime,
+    // XFL=fastest, OS=unknown.
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 4, (byte) 0xff
+    };
+
+    // Member variables.
+    private FileChannel m_file;
+    private boolean m_gzip;
+    private Deflater m_deflater;
+    private CRC32 m_crc;                    // gzip only.
+    private long m_inputSize;               // Bytes read from m_file.
+    private boolean m_endOfFile;
+    private byte[] m_input;
+    private byte[] m_output;                // Compressed, not yet filled.
+    private int m_outputStart;
+    private int m_outputEnd;
+    private int m_state;                    // 0 header, 1 body, 2 trailer.
+
+
+    /**
+     * Prepares to compress a file.  The stream takes ownership of
+     * the channel and closes it in close().
+     *
+     * @param file the file, open for reading, positioned at 0
+     * @param encoding "gzip" or "deflate"
+     */
+    public HTTPCompressedStream(FileChannel file, String encoding) {
+        m_file = file;
+        m_gzip = encoding.equals("gzip");
+        m_deflater = new Deflater(Deflater.BEST_SPEED, m_gzip);
+        m_crc = new CRC32();
+        m_inputSize = 0;
+        m_endOfFile = false;
+        m_input = new byte[BLOCK_SIZE];
+        m_output = new byte[BLOCK_SIZE];
+        m_outputStart = 0;
+        m_outputEnd = 0;
+        m_state = m_gzip ? 0 : 1;
+    }
+
+    /**
+     * Implements HTTPOutputQueue.Source.fill().
+     */
+    @Override public boolean fill(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (m_outputStart < m_outputEnd) {
+                int count = Math.min(buffer.remaining(),
+                        m_outputEnd - m_outputStart);
+                buffer.put(m_output, m_outputStart, count);
+                m_outputStart += count;
+                continue;
+            }
+
+            switch (m_state) {
+                case 0:
+                    setOutput(GZIP_HEADER, GZIP_HEADER.length);
+                    m_state = 1;
+                    break;
+
+                case 1:
+                    if (m_deflater.needsInput() && !m_endOfFile)
+                        read();
+                    int count = m_deflater.deflate(m_output);
+                    m_outputStart = 0;
+                    m_outputEnd = count;
+                    if (m_deflater.finished())
+                        m_state = m_gzip ? 2 : 3;
+                    break;
+
+                case 2:
+                    byte[] trailer = new byte[8];
+                    putInt(trailer, 0, m_crc.getValue());
+                    putInt(trailer, 4, m_inputSize);
+                    setOutput(trailer, trailer.length);
+                    m_state = 3;
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Implements HTTPOutputQueue.Source.close().
+     */
+    @Override public void close() {
+        m_deflater.end();
+        try {
+            m_file.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Feeds the deflater the next block of the file, or tells it
+     * the file has ended.
+     */
+    private void read() throws IOException {
+        int count = m_file.read(ByteBuffer.wrap(m_input));
+        if (count < 0) {
+            m_endOfFile = true;
+            m_deflater.finish();
+            return;
+        }
+        m_inputSize += count;
+        if (m_gzip)
+            m_crc.update(m_input, 0, count);
+        m_deflater.setInput(m_input, 0, count);
+    }
+
+    private void setOutput(byte[] bytes, int length) {
+        System.arraycopy(bytes, 0, m_output, 0, length);
+        m_outputStart = 0;
+        m_outputEnd = length;
+    }
+
+    /**
+     * Stores the low 32 bits of a value, least significant byte
+     * first, as gzip wants them.
+     */
+    private static void putInt(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 4; i++)
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+    }
+};
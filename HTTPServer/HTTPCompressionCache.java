@@ -0,0 +1,231 @@
+/*
+ * HTTPCompressionCache.java - compresses files once and keeps
+ * the results.
+ *
+ * Notes:
+ *   Text assets shrink five to ten times when compressed, but
+ *   compressing on every request would cost far more CPU than
+ *   sending the file.  This cache, shared by all sessions,
+ *   compresses a file the first time a client accepts an encoding
+ *   for it and keeps the encoded variant, keyed by path,
+ *   modification time and encoding.  A changed file has a new
+ *   modification time, so it simply misses and is compressed
+ *   again; its old variant ages out of the LRU order.
+ *
+ *   Files that don't get smaller are remembered as such, so they
+ *   are not compressed over and over again either.
+ *
+ *   Files too large to keep (over a quarter of the budget) get a
+ *   "streamed" variant instead, with no body and an unknown size
+ *   (-1): the session compresses them while sending, with an
+ *   HTTPCompressedStream.  Streaming stops at its own size limit.
+ *
+ *   The cache is bounded by a byte budget; 0 disables on-the-fly
+ *   compression altogether (precompressed ".gz" files are still
+ *   served).
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+
+/**
+ * A size-bounded LRU cache of gzip / deflate encoded files.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPCompressionCache {
+
+    /**
+     * Identifies one encoding of one version of a file.
+     */
+    private static class Key {
+        final String name;                  // File path.
+        final long lastModified;            // Millis; the version.
+        final String encoding;              // "gzip" or "deflate".
+
+        Key(String name, long lastModified, String encoding) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.encoding = encoding;
+        }
+
+        @Override public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return lastModified == key.lastModified
+                    && name.equals(key.name)
+                    && encoding.equals(key.encoding);
+        }
+
+        @Override public int hashCode() {
+            return (name.hashCode() * 31 + Long.hashCode(lastModified)) * 31
+                    + encoding.hashCode();
+        }
+    }
+
+    // Marks files that didn't compress.
+    private static final HTTPFileCache.Entry INCOMPRESSIBLE =
+            new HTTPFileCache.Entry();
+
+    // Rough size of an entry, its key and its map node.
+    private static final long ENTRY_OVERHEAD = 256;
+
+    // Member variables.
+    private long m_maxBytes;                // Cache budget.
+    private long m_minSize;                 // Smallest file compressed.
+    private long m_maxStreamSize;           // Largest file streamed.
+    private long m_bytes;                   // Currently charged.
+    private LinkedHashMap<Key, HTTPFileCache.Entry> m_entries;
+
+    // Statistics.
+    private LongAdder m_hits;
+    private LongAdder m_misses;
+
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxBytes total bytes of compressed bodies the cache
+     *                 may hold; 0 disables on-the-fly compression
+     * @param minSize files smaller than this are not compressed
+     * @param maxStreamSize files too large to keep compressed, up
+     *                      to this size, are compressed as they
+     *                      are sent; 0 sends them as they are
+     */
+    public HTTPCompressionCache(long maxBytes, long minSize,
+                                long maxStreamSize)
+    {
+        m_maxBytes = maxBytes;
+        m_minSize = minSize;
+        m_maxStreamSize = maxStreamSize;
+        m_bytes = 0;
+        m_entries = new LinkedHashMap<>(64, 0.75f, true);
+
+        m_hits = new LongAdder();
+        m_misses = new LongAdder();
+    }
+
+    /**
+     * Returns an encoded variant of a file, compressing it if this
+     * version hasn't been compressed before.
+     *
+     * Files outside the size limits, and files that don't get any
+     * smaller, have no variant.  Files too large to keep have a
+     * streamed variant, whose size is -1.
+     *
+     * @param entry the resolved file, from HTTPFileCache
+     * @param encoding "gzip" or "deflate"
+     * @return the encoded variant, or null to send the file as is
+     */
+    public HTTPFileCache.Entry lookup(HTTPFileCache.Entry entry,
+                                      String encoding)
+            throws IOException
+    {
+        // Only files that fit comfortably in the budget are worth
+        // holding in memory.
+        if (m_maxBytes <= 0 || entry.getSize() < m_minSize)
+            return null;
+        if (entry.getSize() > m_maxBytes / 4) {
+            return (entry.getSize() <= m_maxStreamSize)
+                    ? entry.variant(encoding, null, -1, null) : null;
+        }
+
+        Key key = new Key(entry.getName(),
+                entry.getLastModified().toMillis(), encoding);
+        HTTPFileCache.Entry variant;
+        synchronized (this) {
+            variant = m_entries.get(key);
+        }
+        if (variant != null) {
+            m_hits.increment();
+            return (variant == INCOMPRESSIBLE) ? null : variant;
+        }
+
+        // Compress outside the lock; if two sessions race on the
+        // same file, both results are identical.
+        m_misses.increment();
+        byte[] body = entry.getBody();
+        if (body == null)
+            body = Files.readAllBytes(entry.getFile());
+        byte[] compressed = compress(body, encoding);
+
+        variant = (compressed.length < body.length)
+                ? entry.variant(encoding, null, compressed.length, compressed)
+                : INCOMPRESSIBLE;
+        put(key, variant);
+        return (variant == INCOMPRESSIBLE) ? null : variant;
+    }
+
+    /**
+     * @return lookups answered from the cache
+     */
+    public long getHits() {
+        return m_hits.sum();
+    }
+
+    /**
+     * @return lookups that had to compress a file
+     */
+    public long getMisses() {
+        return m_misses.sum();
+    }
+
+    /**
+     * @return bytes currently charged against the budget
+     */
+    public synchronized long getBytes() {
+        return m_bytes;
+    }
+
+    /**
+     * @return the statistics in one line, for the console
+     */
+    @Override public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses() + ", "
+                + getBytes() + " of " + m_maxBytes + " bytes";
+    }
+
+    /**
+     * Encodes a body with the "gzip" or "deflate" content coding
+     * ("deflate" being the zlib format, per RFC 7230).
+     */
+    private static byte[] compress(byte[] body, String encoding)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                body.length / 4 + 64);
+        OutputStream encoder = encoding.equals("gzip")
+                ? new GZIPOutputStream(out, 8192)
+                : new DeflaterOutputStream(out);
+        encoder.write(body);
+        encoder.close();
+        return out.toByteArray();
+    }
+
+    private static long getWeight(HTTPFileCache.Entry variant) {
+        return ENTRY_OVERHEAD
+                + (variant.getBody() == null ? 0 : variant.getBody().length);
+    }
+
+    /**
+     * Stores a variant and evicts the least recently used ones
+     * until the cache fits its budget again.
+     */
+    private synchronized void put(Key key, HTTPFileCache.Entry variant) {
+        HTTPFileCache.Entry previous = m_entries.put(key, variant);
+        if (previous != null)
+            m_bytes -= getWeight(previous);
+        m_bytes += getWeight(variant);
+
+        Iterator<HTTPFileCache.Entry> eldest = m_entries.values().iterator();
+        while (m_bytes > m_maxBytes && eldest.hasNext()) {
+            HTTPFileCache.Entry victim = eldest.next();
+            eldest.remove();
+            m_bytes -= getWeight(victim);
+        }
+    }
+};
@@ -0,0 +1,145 @@
+/*
+ * HTTPDate.java - formats dates the way HTTP headers want them.
+ *
+ * Notes:
+ *   HTTP/1.1 dates use the RFC 1123 form, always in GMT, e.g.
+ *
+ *     Sun, 06 Nov 1994 08:49:37 GMT
+ *
+ *   Every response carries a "Date" field with the current time,
+ *   which only changes once per second.  Rather than formatting it
+ *   for each response, the encoded field is kept here and rebuilt
+ *   by the first response of each new second; all other responses
+ *   just copy the cached bytes.
+ * 
+ *   Dates sent by clients (e.g. "If-Modified-Since") are parsed
+ *   leniently: the RFC 1123 form with or without the leading zero,
+ *   and the obsolete RFC 850 and asctime() forms that RFC 2616
+ *   still requires servers to accept.
+ */
+import java.nio.charset.*;
+import java.time.*;
+import java.time.format.*;
+import java.time.temporal.*;
+import java.util.*;
+
+
+/**
+ * RFC 1123 date formatting with a once-per-second "Date" field.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPDate {
+
+    /**
+     * The "Date" field for one particular second.
+     */
+    private static class DateField {
+        final long second;                  // currentTimeMillis / 1000
+        final String text;                  // The date itself.
+        final byte[] bytes;                 // "Date: ...\r\n"
+
+        DateField(long second, String text) {
+            this.second = second;
+            this.text = text;
+            this.bytes = (text == null) ? null : ("Date: " + text + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // RFC 1123 with a two-digit day, as RFC 7231 requires; the
+    // JDK's RFC_1123_DATE_TIME drops the leading zero.
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    // Obsolete forms clients may still send.  RFC 850's two-digit
+    // year is taken as the one within 50 years of now, so a year
+    // more than 50 years ahead is in the previous century (RFC
+    // 7231, section 7.1.1.1); "yy" alone would make "94" 2094.
+    private static final DateTimeFormatter[] OBSOLETE_FORMATS = {
+        new DateTimeFormatterBuilder()
+                .appendPattern("EEEE, dd-MMM-")
+                .appendValueReduced(ChronoField.YEAR, 2, 2,
+                        LocalDate.now(ZoneOffset.UTC).minusYears(50))
+                .appendPattern(" HH:mm:ss 'GMT'")
+                .toFormatter(Locale.US).withZone(ZoneOffset.UTC),
+        DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy",
+                Locale.US).withZone(ZoneOffset.UTC)
+    };
+
+    // The most recently built "Date" field; replaced as a whole,
+    // so readers never see a half-updated value.
+    private static volatile DateField s_dateField = new DateField(-1, null);
+
+
+    /**
+     * Formats a point in time as an RFC 1123 date.
+     *
+     * @param millis milliseconds since the epoch
+     * @return e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses a date sent by a client.
+     *
+     * @param text e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+     * @return milliseconds since the epoch, or -1 if the text
+     *         isn't a valid HTTP date
+     */
+    public static long parse(String text) {
+        text = text.trim();
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME
+                    .parse(text)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Try the older forms below.
+        }
+
+        for (DateTimeFormatter format : OBSOLETE_FORMATS) {
+            try {
+                return Instant.from(format.parse(text)).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // Try the next one.
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the encoded "Date: ...\r\n" header line for the
+     * current second.
+     *
+     * @return the field's bytes; shared, so they must not be
+     *         modified
+     */
+    public static byte[] getDateField() {
+        return currentField().bytes;
+    }
+
+    /**
+     * Returns the current second as a date, e.g. for an HTTP/2
+     * "date" field.
+     *
+     * @return e.g. "Sun, 06 Nov 1994 08:49:37 GMT"; the same
+     *         String all second long
+     */
+    public static String getDate() {
+        return currentField().text;
+    }
+
+    private static DateField currentField() {
+        long second = System.currentTimeMillis() / 1000;
+        DateField field = s_dateField;
+        if (field.second != second) {
+            // First response this second; several threads may get
+            // here at once, but they all build the same bytes.
+            field = new DateField(second, format(second * 1000));
+            s_dateField = field;
+        }
+        return field;
+    }
+};
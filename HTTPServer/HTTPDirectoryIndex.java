@@ -0,0 +1,482 @@
+/*
+ * HTTPDirectoryIndex.java - lists directories that have no
+ * "index.html".
+ *
+ * Notes:
+ *   A listing is rendered while it is being sent: the directory
+ *   is read with a DirectoryStream one entry at a time, and each
+ *   entry is formatted only when the output queue asks for more
+ *   bytes (see HTTPOutputQueue.Source).  A directory with hundreds
+ *   of thousands of files is therefore never held in memory as a
+ *   list, and a slow client simply slows down the reading.  The
+ *   entries come in the order the filesystem returns them; sorting
+ *   would mean reading the whole directory first.
+ *
+ *   Listings come as HTML (a table of links) or JSON (an array of
+ *   {"name", "type", "size", "mtime"} objects).  Hidden files are
+ *   left out.
+ *
+ *   Listings up to MAX_CACHED_LISTING bytes are kept once rendered
+ *   and sent again with a Content-Length, in an LRU map bounded by
+ *   a byte budget.  Every listed directory is registered with a
+ *   WatchService; a background thread drops a directory's listings
+ *   as soon as a file in it is created, deleted or modified (or all
+ *   listings, if the service lost track of events).  A listing is
+ *   only stored if nothing was invalidated while it was being
+ *   rendered, so a change that races with the rendering can't leave
+ *   a stale copy behind.  If the platform has no WatchService,
+ *   nothing is cached.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Renders and caches directory listings.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPDirectoryIndex implements Runnable {
+
+    // Largest listing kept once rendered.
+    public static final int MAX_CACHED_LISTING = 1024 * 1024;
+
+    // Memory for rendered listings.
+    public static final long CACHE_SIZE = 16L * 1024 * 1024;
+
+    private static final DateTimeFormatter HTML_DATE =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm", Locale.US)
+                             .withZone(ZoneOffset.UTC);
+
+    // Member variables.
+    private Path m_docRoot;                 // Real path.
+    private WatchService m_watcher;         // null: don't cache.
+    private ConcurrentHashMap<Path, WatchKey> m_watched;
+    private AtomicLong m_generation;        // Bumped on invalidation.
+    private LinkedHashMap<String, byte[]> m_listings;   // LRU order.
+    private long m_bytes;                   // Held by m_listings.
+
+    // Statistics.
+    private LongAdder m_hits;
+    private LongAdder m_misses;
+
+
+    /**
+     * Creates an index with no listings cached, and starts the
+     * thread that watches listed directories for changes.
+     *
+     * @param docRoot the document root, as a real path; listed
+     *                directories must be inside it
+     */
+    public HTTPDirectoryIndex(Path docRoot) {
+        m_docRoot = docRoot;
+        try {
+            m_watcher = docRoot.getFileSystem().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            m_watcher = null;
+        }
+        m_watched = new ConcurrentHashMap<>();
+        m_generation = new AtomicLong();
+        m_listings = new LinkedHashMap<>(64, 0.75f, true);
+        m_bytes = 0;
+
+        m_hits = new LongAdder();
+        m_misses = new LongAdder();
+
+        if (m_watcher != null) {
+            Thread thread = new Thread(this, "HTTPDirectoryIndex");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Looks for a listing rendered earlier.
+     *
+     * @param directory the directory
+     * @param json true for the JSON form, false for HTML
+     * @return the listing, or null if it has to be rendered; the
+     *         array is shared and must not be modified
+     */
+    public byte[] getCached(Path directory, boolean json) {
+        byte[] listing;
+        synchronized (this) {
+            listing = m_listings.get(key(directory, json));
+        }
+        if (listing != null)
+            m_hits.increment();
+        else
+            m_misses.increment();
+        return listing;
+    }
+
+    /**
+     * Starts rendering a listing.  The directory is opened here, so
+     * an unreadable directory fails before a response is started.
+     *
+     * @param directory the directory, inside the document root
+     * @param urlPath the URL path of the directory, ending in "/"
+     * @param json true for the JSON form, false for HTML
+     * @return the listing's body, to be queued with
+     *         HTTPOutputQueue.addStream()
+     */
+    public HTTPOutputQueue.Source render(Path directory, String urlPath,
+                                         boolean json)
+            throws IOException
+    {
+        // Watch before reading, so no change can slip in between.
+        watch(directory);
+        return new Listing(directory, urlPath, json,
+                Files.newDirectoryStream(directory));
+    }
+
+    /**
+     * @return listings answered from the cache
+     */
+    public long getHits() {
+        return m_hits.sum();
+    }
+
+    /**
+     * @return listings that had to be rendered
+     */
+    public long getMisses() {
+        return m_misses.sum();
+    }
+
+    /**
+     * @return bytes of rendered listings held
+     */
+    public synchronized long getBytes() {
+        return m_bytes;
+    }
+
+    /**
+     * Stops watching directories and drops every listing, when a
+     * reloaded configuration no longer uses this index.  Listings
+     * being rendered are still sent; nothing more is cached.
+     */
+    public void close() {
+        if (m_watcher != null) {
+            try {
+                m_watcher.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        m_watched.clear();
+        invalidateAll();
+    }
+
+    /**
+     * Drops listings as the watched directories change.
+     *
+     * Implements Runnable.run().
+     */
+    @Override public void run() {
+        for (;;) {
+            WatchKey key;
+            try {
+                key = m_watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    overflow = true;
+            }
+            if (overflow)
+                invalidateAll();
+            else
+                invalidate((Path) key.watchable());
+
+            if (!key.reset())
+                m_watched.remove((Path) key.watchable(), key);
+        }
+    }
+
+    private void watch(Path directory) {
+        if (m_watcher == null || m_watched.containsKey(directory))
+            return;
+        try {
+            m_watched.put(directory, directory.register(m_watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException | ClosedWatchServiceException e) {
+            // Not cached, then; see store().
+        }
+    }
+
+    private synchronized void invalidate(Path directory) {
+        m_generation.incrementAndGet();
+        for (boolean json : new boolean[] { false, true }) {
+            byte[] listing = m_listings.remove(key(directory, json));
+            if (listing != null)
+                m_bytes -= listing.length;
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        m_generation.incrementAndGet();
+        m_listings.clear();
+        m_bytes = 0;
+    }
+
+    /**
+     * Keeps a rendered listing, unless something changed while it
+     * was being rendered.
+     */
+    private synchronized void store(Path directory, boolean json,
+                                    long generation, byte[] listing)
+    {
+        if (generation != m_generation.get()
+                || !m_watched.containsKey(directory))
+            return;
+
+        byte[] previous = m_listings.put(key(directory, json), listing);
+        if (previous != null)
+            m_bytes -= previous.length;
+        m_bytes += listing.length;
+
+        Iterator<byte[]> eldest = m_listings.values().iterator();
+        while (m_bytes > CACHE_SIZE && eldest.hasNext()) {
+            m_bytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    private static String key(Path directory, boolean json) {
+        return (json ? "json:" : "html:") + directory;
+    }
+
+    /**
+     * One listing being rendered.
+     */
+    private class Listing implements HTTPOutputQueue.Source {
+        private Path m_directory;
+        private String m_urlPath;
+        private boolean m_json;
+        private DirectoryStream<Path> m_stream;
+        private Iterator<Path> m_entries;
+        private int m_state;                // 0 head, 1 entries, 2 tail.
+        private int m_count;                // Entries listed.
+        private byte[] m_pending;           // Formatted, not yet filled.
+        private int m_pendingOffset;
+        private long m_generation;          // When rendering started.
+        private ByteArrayOutputStream m_copy;   // For the cache, or null.
+
+        Listing(Path directory, String urlPath, boolean json,
+                DirectoryStream<Path> stream)
+        {
+            m_directory = directory;
+            m_urlPath = urlPath;
+            m_json = json;
+            m_stream = stream;
+            m_entries = stream.iterator();
+            m_state = 0;
+            m_count = 0;
+            m_pending = null;
+            m_generation = HTTPDirectoryIndex.this.m_generation.get();
+            m_copy = (m_watcher == null) ? null : new ByteArrayOutputStream();
+        }
+
+        @Override public boolean fill(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                if (m_pending == null) {
+                    String text = next();
+                    if (text == null) {
+                        done();
+                        return false;
+                    }
+                    m_pending = text.getBytes(StandardCharsets.UTF_8);
+                    m_pendingOffset = 0;
+                    copy(m_pending);
+                }
+
+                int count = Math.min(buffer.remaining(),
+                        m_pending.length - m_pendingOffset);
+                buffer.put(m_pending, m_pendingOffset, count);
+                m_pendingOffset += count;
+                if (m_pendingOffset == m_pending.length)
+                    m_pending = null;
+            }
+            return true;
+        }
+
+        @Override public void close() {
+            try {
+                m_stream.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+
+        /**
+         * @return the next piece of the listing, or null at the end
+         */
+        private String next() {
+            if (m_state == 0) {
+                m_state = 1;
+                return m_json ? "[" : htmlHead();
+            }
+            while (m_state == 1) {
+                Path entry;
+                try {
+                    if (!m_entries.hasNext()) {
+                        m_state = 2;
+                        break;
+                    }
+                    entry = m_entries.next();
+                } catch (DirectoryIteratorException e) {
+                    m_state = 2;    // Stop; send what we have.
+                    break;
+                }
+
+                String text = format(entry);
+                if (text != null)
+                    return text;
+            }
+            if (m_state == 2) {
+                m_state = 3;
+                return m_json ? "]\n" : "</table></body></html>\n";
+            }
+            return null;
+        }
+
+        /**
+         * @return an entry's line, or null to leave it out
+         */
+        private String format(Path entry) {
+            BasicFileAttributes attributes;
+            String name = entry.getFileName().toString();
+            try {
+                if (Files.isHidden(entry))
+                    return null;
+                attributes = Files.readAttributes(entry,
+                        BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;    // Vanished meanwhile.
+            }
+
+            boolean directory = attributes.isDirectory();
+            Instant modified = attributes.lastModifiedTime().toInstant();
+            StringBuilder out = new StringBuilder(160);
+            if (m_json) {
+                if (m_count > 0)
+                    out.append(',');
+                out.append("\n{\"name\":\"");
+                jsonEscape(out, name);
+                out.append("\",\"type\":\"")
+                   .append(directory ? "directory" : "file")
+                   .append("\",\"size\":").append(attributes.size())
+                   .append(",\"mtime\":\"")
+                   .append(modified.truncatedTo(
+                           java.time.temporal.ChronoUnit.SECONDS))
+                   .append("\"}");
+            } else {
+                out.append("<tr><td><a href=\"");
+                urlEncode(out, name);
+                if (directory)
+                    out.append('/');
+                out.append("\">");
+                htmlEscape(out, name);
+                if (directory)
+                    out.append('/');
+                out.append("</a></td><td>")
+                   .append(HTML_DATE.format(modified))
+                   .append("</td><td align=\"right\">");
+                if (directory)
+                    out.append('-');
+                else
+                    out.append(attributes.size());
+                out.append("</td></tr>\n");
+            }
+            m_count++;
+            return out.toString();
+        }
+
+        private String htmlHead() {
+            StringBuilder out = new StringBuilder(512);
+            out.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">"
+                    + "<title>Index of ");
+            htmlEscape(out, m_urlPath);
+            out.append("</title></head><body><h1>Index of ");
+            htmlEscape(out, m_urlPath);
+            out.append("</h1>\n<table>\n<tr><th>Name</th><th>Modified"
+                    + " (UTC)</th><th>Size</th></tr>\n");
+            if (!m_directory.equals(m_docRoot))
+                out.append("<tr><td><a href=\"../\">../</a></td></tr>\n");
+            return out.toString();
+        }
+
+        private void copy(byte[] bytes) {
+            if (m_copy == null)
+                return;
+            if (m_copy.size() + bytes.length > MAX_CACHED_LISTING)
+                m_copy = null;  // Too large to keep.
+            else
+                m_copy.write(bytes, 0, bytes.length);
+        }
+
+        private void done() {
+            if (m_copy != null)
+                store(m_directory, m_json, m_generation, m_copy.toByteArray());
+            m_copy = null;
+        }
+    }
+
+    private static void htmlEscape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':  out.append("&amp;");  break;
+                case '<':  out.append("&lt;");   break;
+                case '>':  out.append("&gt;");   break;
+                case '"':  out.append("&quot;"); break;
+                case '\'': out.append("&#39;");  break;
+                default:   out.append(c);        break;
+            }
+        }
+    }
+
+    private static void jsonEscape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Percent-encodes a file name for use as a relative URL.
+     */
+    private static void urlEncode(StringBuilder out, String name) {
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || "-._~".indexOf(c) >= 0) {
+                out.append((char) c);
+            } else {
+                out.append('%')
+                   .append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                   .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+    }
+};
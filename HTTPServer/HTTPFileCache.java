@@ -0,0 +1,600 @@
+/*
+ * HTTPFileCache.java - remembers what requested paths resolved to.
+ *
+ * Notes:
+ *   Answering a GET takes several filesystem calls (isDirectory,
+ *   exists, isHidden, isReadable, isRegularFile) before the file
+ *   is even opened.  This cache, shared by all sessions, keeps the
+ *   outcome of those checks per normalized path: the status to
+ *   answer with, the file that was found (after the "index.html"
+ *   fallback), its size and modification time, and for small
+ *   files the body itself.  Failed lookups (404/403) are cached
+ *   too.
+ *
+ *   Entries also carry what is needed to pick a content encoding:
+ *   the media type, whether it is worth compressing, and where a
+ *   precompressed ".gz" sibling would be.  The sibling is looked
+ *   up through the cache like any other path, and the "gzip"
+ *   variant built from it is remembered in the entry.
+ *
+ *   An entry is trusted without touching the filesystem for
+ *   m_revalidateMillis after it was last checked.  After that,
+ *   the next lookup stats the file once: if its modification
+ *   time and size are unchanged the entry is good for another
+ *   interval, otherwise the path is resolved and loaded again.
+ *   Hot assets are therefore served with no syscalls at all
+ *   between checks.
+ *
+ *   The cache is bounded by a byte budget covering cached bodies
+ *   plus a rough per-entry overhead; the least recently used
+ *   entries are evicted once the budget is exceeded.  A budget of
+ *   0 disables caching, in which case every lookup resolves the
+ *   path afresh.
+ *
+ *   Sessions look resources up by URL path.  In front of the LRU
+ *   map (which needs a lock even to read, since reading reorders
+ *   it) sits a concurrent index from URL path straight to entry,
+ *   so a request for a recently checked resource costs one hash
+ *   lookup: no Path is built or normalized, and no lock is taken.
+ *   Only when the entry is due for revalidation does the lookup go
+ *   through the LRU map, which also keeps the recency order
+ *   roughly right.  Evicted and replaced entries are dropped from
+ *   the index under every path that led to them (several spellings
+ *   can name one file), and the index is cleared if it ever grows
+ *   past MAX_INDEXED paths (e.g. under a scan of random URLs).
+ *
+ *   URL paths are resolved against the document root, which the
+ *   server resolves to its real path once at startup.  A path that
+ *   normalizes to somewhere outside it ("/../etc/passwd") is
+ *   "403 Forbidden".  So is a file whose real path, with symbolic
+ *   links followed, is outside it; that takes a few more syscalls,
+ *   but only when an entry is (re)loaded.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * A size-bounded LRU cache of resolved file resources.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPFileCache {
+
+    /**
+     * What a path resolved to when it was last checked.
+     */
+    public static class Entry {
+        private String m_status;            // e.g. "200 OK".
+        private Path m_file;                // File to send, if found.
+        private Path m_directory;           // Directory without index.
+        private long m_size;                // File size in bytes.
+        private FileTime m_lastModified;    // File modification time.
+        private byte[] m_body;              // Contents, if small.
+        private String m_etag;              // Entity tag, quoted.
+        private String m_lastModifiedText;  // RFC 1123 form.
+        private String m_name;              // Resource path, as text.
+        private String m_contentType;       // Media type.
+        private String m_contentEncoding;   // e.g. "gzip", or null.
+        private boolean m_compressible;     // Worth compressing.
+        private Path m_gzipSibling;         // Where "NAME.gz" would be.
+        private volatile Entry m_gzipSource;    // Sibling's entry...
+        private volatile Entry m_gzipVariant;   // ...and our variant.
+        private volatile long m_validated;  // Last check (nanoTime).
+        private volatile boolean m_evicted; // No longer in the cache.
+        private List<String> m_indexKeys;   // Indexed by; cache's lock.
+
+        /**
+         * @return the HTTP status to answer with, e.g. "200 OK"
+         *         or "404 Not Found"
+         */
+        public String getStatus() {
+            return m_status;
+        }
+
+        /**
+         * @return the file to send; null unless the status is
+         *         "200 OK"
+         */
+        public Path getFile() {
+            return m_file;
+        }
+
+        /**
+         * @return the directory the path named, if it has no
+         *         "index.html" (the status is then "404 Not
+         *         Found"), or null
+         */
+        public Path getDirectory() {
+            return m_directory;
+        }
+
+        /**
+         * @return the size of the file in bytes
+         */
+        public long getSize() {
+            return m_size;
+        }
+
+        /**
+         * @return the file's modification time, or null if it
+         *         wasn't found
+         */
+        public FileTime getLastModified() {
+            return m_lastModified;
+        }
+
+        /**
+         * @return the strong entity tag for this version of the
+         *         file (quotes included), or null if it wasn't
+         *         found
+         */
+        public String getETag() {
+            return m_etag;
+        }
+
+        /**
+         * @return the modification time in RFC 1123 form, for the
+         *         "Last-Modified" field, or null if not found
+         */
+        public String getLastModifiedText() {
+            return m_lastModifiedText;
+        }
+
+        /**
+         * @return the resource's path as text; for encoded
+         *         variants, the path of the original file
+         */
+        public String getName() {
+            return m_name;
+        }
+
+        /**
+         * @return the media type for "Content-Type"
+         */
+        public String getContentType() {
+            return m_contentType;
+        }
+
+        /**
+         * @return the content coding of the body (e.g. "gzip"), or
+         *         null if the body is the file itself
+         */
+        public String getContentEncoding() {
+            return m_contentEncoding;
+        }
+
+        /**
+         * @return true if the media type compresses well, so the
+         *         response depends on "Accept-Encoding"
+         */
+        public boolean isCompressible() {
+            return m_compressible;
+        }
+
+        /**
+         * @return where a precompressed copy of the file would be
+         */
+        public Path getGzipSibling() {
+            return m_gzipSibling;
+        }
+
+        /**
+         * Makes an encoded variant of this resource.
+         *
+         * The variant keeps this entry's name, media type and
+         * modification time but has its own body and size, and an
+         * entity tag marked with the encoding, so that caches
+         * never confuse it with the unencoded file.
+         *
+         * @param encoding the content coding, e.g. "gzip"
+         * @param file the file holding the encoded body, or null
+         *             if 'body' holds it
+         * @param size size of the encoded body in bytes
+         * @param body the encoded body, or null to send 'file'
+         * @return the variant
+         */
+        public Entry variant(String encoding, Path file, long size,
+                             byte[] body)
+        {
+            Entry variant = new Entry();
+            variant.m_status = m_status;
+            variant.m_file = (file == null) ? m_file : file;
+            variant.m_size = size;
+            variant.m_lastModified = m_lastModified;
+            variant.m_body = body;
+            variant.m_etag = m_etag.substring(0, m_etag.length() - 1)
+                    + "-" + encoding + "\"";
+            variant.m_lastModifiedText = m_lastModifiedText;
+            variant.m_name = m_name;
+            variant.m_contentType = m_contentType;
+            variant.m_contentEncoding = encoding;
+            variant.m_compressible = m_compressible;
+            return variant;
+        }
+
+        /**
+         * Returns the "gzip" variant made from a precompressed
+         * sibling file, reusing the one made last time if the
+         * sibling's cache entry hasn't changed.
+         *
+         * @param sibling the cache entry for getGzipSibling()
+         * @return the variant
+         */
+        public Entry gzipVariant(Entry sibling) {
+            Entry variant = m_gzipVariant;
+            if (variant == null || m_gzipSource != sibling) {
+                variant = variant("gzip", sibling.getFile(),
+                        sibling.getSize(), sibling.getBody());
+                m_gzipVariant = variant;
+                m_gzipSource = sibling;
+            }
+            return variant;
+        }
+
+        /**
+         * @return the file's contents, or null if the file is not
+         *         held in memory and must be read from disk; the
+         *         array is shared and must not be modified
+         */
+        public byte[] getBody() {
+            return m_body;
+        }
+
+        /**
+         * @return bytes this entry is charged against the budget
+         */
+        long getWeight() {
+            return ENTRY_OVERHEAD + (m_body == null ? 0 : m_body.length);
+        }
+    }
+
+    // Rough size of an entry, its key and its map node.
+    private static final long ENTRY_OVERHEAD = 256;
+
+    // Most URL paths indexed before the index starts over.
+    public static final int MAX_INDEXED = 65536;
+
+    // Answers for URL paths that can't name a file we serve.
+    private static final Entry NOT_FOUND = failed("404 Not Found");
+    private static final Entry FORBIDDEN = failed("403 Forbidden");
+
+    // Member variables.
+    private Path m_docRoot;                 // Real path.
+    private long m_maxBytes;                // Cache budget.
+    private long m_maxFileSize;             // Largest body cached.
+    private long m_revalidateNanos;         // Trust entries this long.
+    private long m_bytes;                   // Currently charged.
+    private LinkedHashMap<Path, Entry> m_entries;   // LRU order.
+    private ConcurrentHashMap<String, Entry> m_index;   // By URL path.
+
+    // Statistics.
+    private LongAdder m_hits;
+    private LongAdder m_misses;
+    private LongAdder m_evictions;
+
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param docRoot the document root, as a real path (see
+     *                Path.toRealPath())
+     * @param maxBytes total bytes the cache may hold; 0 disables
+     *                 caching
+     * @param maxFileSize largest file whose body is kept in
+     *                    memory; larger files only have their
+     *                    metadata cached
+     * @param revalidateMillis how long an entry is used before
+     *                         the file is checked for changes
+     */
+    public HTTPFileCache(Path docRoot, long maxBytes, long maxFileSize,
+                         long revalidateMillis)
+    {
+        m_docRoot = docRoot;
+        m_maxBytes = maxBytes;
+        m_maxFileSize = maxFileSize;
+        m_revalidateNanos = TimeUnit.MILLISECONDS.toNanos(revalidateMillis);
+        m_bytes = 0;
+        m_entries = new LinkedHashMap<>(256, 0.75f, true);
+        m_index = new ConcurrentHashMap<>(256);
+
+        m_hits = new LongAdder();
+        m_misses = new LongAdder();
+        m_evictions = new LongAdder();
+    }
+
+    /**
+     * Resolves a URL path to the resource to answer with.
+     *
+     * Like lookup(Path), but a recently checked URL path is
+     * answered from the index without building a Path.
+     *
+     * @param urlPath the decoded path from the request,
+     *                starting with "/"
+     * @return the resolved resource; "403 Forbidden" if the path
+     *         leads outside the document root
+     */
+    public Entry lookup(String urlPath) throws IOException {
+        if (m_maxBytes > 0) {
+            Entry entry = m_index.get(urlPath);
+            if (entry != null && !entry.m_evicted
+                    && System.nanoTime() - entry.m_validated
+                            < m_revalidateNanos) {
+                m_hits.increment();
+                return entry;
+            }
+        }
+
+        // A decoded path the platform can't name can't exist.
+        Path path;
+        try {
+            path = m_docRoot.resolve(urlPath.substring(1)).normalize();
+        } catch (InvalidPathException e) {
+            return NOT_FOUND;
+        }
+
+        // Don't allow client to read outside of document root.
+        // (Compares whole name elements, unlike a string prefix.)
+        if (!path.startsWith(m_docRoot))
+            return FORBIDDEN;
+
+        Entry entry = lookup(path);
+        if (m_maxBytes > 0)
+            index(urlPath, entry);
+        return entry;
+    }
+
+    /**
+     * Resolves a requested path to the resource to answer with.
+     *
+     * Directories resolve to their "index.html".  The result is
+     * taken from the cache if it was checked recently enough or
+     * the file hasn't changed since.
+     *
+     * @param path an absolute, normalized path inside the
+     *             document root
+     * @return the resolved resource
+     */
+    public Entry lookup(Path path) throws IOException {
+        Entry entry = get(path);
+        long now = System.nanoTime();
+
+        if (entry != null) {
+            // Recently checked: trust it.
+            if (now - entry.m_validated < m_revalidateNanos) {
+                m_hits.increment();
+                return entry;
+            }
+
+            // Stale: one stat tells whether it's still good.
+            if (isUnchanged(entry)) {
+                entry.m_validated = now;
+                m_hits.increment();
+                return entry;
+            }
+        }
+
+        m_misses.increment();
+        entry = resolve(path);
+        entry.m_validated = now;
+        put(path, entry);
+        return entry;
+    }
+
+    /**
+     * @return lookups answered from the cache
+     */
+    public long getHits() {
+        return m_hits.sum();
+    }
+
+    /**
+     * @return lookups that had to go to the filesystem
+     */
+    public long getMisses() {
+        return m_misses.sum();
+    }
+
+    /**
+     * @return entries dropped to stay within the byte budget
+     */
+    public long getEvictions() {
+        return m_evictions.sum();
+    }
+
+    /**
+     * @return bytes currently charged against the budget
+     */
+    public synchronized long getBytes() {
+        return m_bytes;
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public synchronized int getEntryCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * @return the statistics in one line, for the console
+     */
+    @Override public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses()
+                + ", evictions " + getEvictions() + ", "
+                + getEntryCount() + " entries, " + getBytes() + " of "
+                + m_maxBytes + " bytes";
+    }
+
+    /**
+     * Checks the filesystem for a path, as handleGETRequest used
+     * to on every request.
+     *
+     * @param path the requested path
+     * @return a new, not yet cached entry
+     */
+    private Entry resolve(Path path) throws IOException {
+        Entry entry = new Entry();
+
+        // If it's a directory, append the default "index.html"
+        // filename to it.
+        Path resource = path;
+        Path directory = null;
+        if (Files.isDirectory(resource)) {
+            directory = resource;
+            resource = resource.resolve("index.html");
+        }
+
+        // See if the resource is "Not Found".  A directory without
+        // an index may still be listed, if it's really ours.
+        if (!Files.exists(resource) || Files.isHidden(resource)) {
+            entry.m_status = "404 Not Found";
+            if (directory != null && !Files.isHidden(directory)
+                    && directory.toRealPath().startsWith(m_docRoot))
+                entry.m_directory = directory;
+            return entry;
+        }
+
+        // See if the resource is "Forbidden": unreadable, not a
+        // file, or a symbolic link to outside the document root.
+        if (!Files.isReadable(resource) || !Files.isRegularFile(resource)
+                || !resource.toRealPath().startsWith(m_docRoot)) {
+            entry.m_status = "403 Forbidden";
+            return entry;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(resource,
+                BasicFileAttributes.class);
+        entry.m_status = "200 OK";
+        entry.m_file = resource;
+        entry.m_size = attributes.size();
+        entry.m_lastModified = attributes.lastModifiedTime();
+
+        // The validators change whenever size or mtime do, which
+        // is exactly when the entry is reloaded.
+        long millis = entry.m_lastModified.toMillis();
+        entry.m_etag = "\"" + Long.toHexString(millis) + "-"
+                + Long.toHexString(entry.m_size) + "\"";
+        entry.m_lastModifiedText = HTTPDate.format(millis);
+
+        entry.m_name = resource.toString();
+        entry.m_contentType = HTTPMimeTypes.getType(entry.m_name);
+        entry.m_compressible = HTTPMimeTypes.isCompressible(
+                entry.m_contentType);
+        if (entry.m_compressible)
+            entry.m_gzipSibling = resource.resolveSibling(
+                    resource.getFileName() + ".gz");
+
+        // Small files are kept in memory, as long as they didn't
+        // change while we were reading them.
+        if (m_maxBytes > 0 && entry.m_size <= m_maxFileSize) {
+            byte[] body = Files.readAllBytes(resource);
+            if (body.length == entry.m_size)
+                entry.m_body = body;
+        }
+        return entry;
+    }
+
+    /**
+     * Stats a cached file to see whether it has changed.
+     *
+     * Failed lookups are always resolved again.
+     *
+     * @param entry a cached entry
+     * @return true if the entry still describes the file
+     */
+    private static boolean isUnchanged(Entry entry) {
+        if (entry.m_file == null)
+            return false;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(
+                    entry.m_file, BasicFileAttributes.class);
+            return attributes.size() == entry.m_size
+                    && attributes.lastModifiedTime()
+                            .equals(entry.m_lastModified);
+        } catch (IOException e) {
+            return false;   // Gone.
+        }
+    }
+
+    private static Entry failed(String status) {
+        Entry entry = new Entry();
+        entry.m_status = status;
+        return entry;
+    }
+
+    private synchronized Entry get(Path path) {
+        return m_entries.get(path);
+    }
+
+    /**
+     * Stores an entry and evicts the least recently used ones
+     * until the cache fits its budget again.
+     */
+    private synchronized void put(Path path, Entry entry) {
+        if (m_maxBytes <= 0)
+            return;
+
+        Entry previous = m_entries.put(path, entry);
+        if (previous != null) {
+            m_bytes -= previous.getWeight();
+            unindex(previous);
+        }
+        m_bytes += entry.getWeight();
+
+        Iterator<Entry> eldest = m_entries.values().iterator();
+        while (m_bytes > m_maxBytes && eldest.hasNext()) {
+            Entry victim = eldest.next();
+            eldest.remove();
+            m_bytes -= victim.getWeight();
+            unindex(victim);
+            m_evictions.increment();
+        }
+    }
+
+    /**
+     * Adds a URL path for a cached entry to the index.  Several
+     * paths may name the same file ("/a", "/./a", "/b/../a"); the
+     * entry remembers them all, so unindex() can drop them all.
+     */
+    private synchronized void index(String urlPath, Entry entry) {
+        if (entry.m_evicted)
+            return;
+        if (m_index.size() >= MAX_INDEXED) {
+            m_index.clear();
+            for (Entry cached : m_entries.values())
+                cached.m_indexKeys = null;
+        }
+        if (m_index.put(urlPath, entry) == entry)
+            return;
+        if (entry.m_indexKeys == null)
+            entry.m_indexKeys = new ArrayList<>(1);
+        entry.m_indexKeys.add(urlPath);
+    }
+
+    /**
+     * Marks an entry as gone from the cache and drops it from the
+     * index under every path, so it can't keep its body alive from
+     * there.
+     */
+    private void unindex(Entry entry) {
+        entry.m_evicted = true;
+        if (entry.m_indexKeys == null)
+            return;
+        for (String urlPath : entry.m_indexKeys)
+            m_index.remove(urlPath, entry);
+        entry.m_indexKeys = null;
+    }
+
+    /**
+     * @param urlPath a URL path as looked up
+     * @return true if the index answers that path (for HTTPTest)
+     */
+    synchronized boolean isIndexed(String urlPath) {
+        return m_index.containsKey(urlPath);
+    }
+};
@@ -0,0 +1,189 @@
+/*
+ * HTTPHeaderWriter.java - encodes response headers into a
+ * reusable buffer.
+ *
+ * Notes:
+ *   Building a response header out of Strings costs several
+ *   allocations per field, plus a charset encoding pass at the
+ *   end.  This writer puts the bytes straight into one ByteBuffer
+ *   that each session reuses for every response:
+ *
+ *   - Status lines ("HTTP/1.1 200 OK\r\n") are encoded once and
+ *     shared by all sessions.
+ *   - The "Server" and "Connection" lines never change and are
+ *     constants.
+ *   - The "Date" line comes from HTTPDate, which rebuilds it only
+ *     once per second.
+ *   - Numbers (e.g. Content-Length) are written digit by digit,
+ *     and other field values are copied char by char, without
+ *     creating intermediate Strings.
+ *
+ *   Header field values are expected to be plain ASCII; each char
+ *   is written as its low byte.
+ */
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+
+/**
+ * An allocation-free writer for HTTP response headers.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPHeaderWriter {
+
+    // Encoded status lines, by status (e.g. "404 Not Found").
+    private static final ConcurrentHashMap<String, byte[]> s_statusLines =
+            new ConcurrentHashMap<>();
+
+    // Constant header lines.
+    private static final byte[] SERVER_FIELD = encode("Server: HTTPServer\r\n");
+    private static final byte[] KEEP_ALIVE_FIELD =
+            encode("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE_FIELD = encode("Connection: close\r\n");
+    private static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+    private static final byte[] SEPARATOR = encode(": ");
+    private static final byte[] CRLF = encode("\r\n");
+
+    static {
+        // Pre-encode the statuses the server commonly sends; any
+        // others are encoded on first use.
+        String[] common = {
+            "200 OK", "206 Partial Content", "304 Not Modified",
+            "400 Bad Request", "416 Range Not Satisfiable",
+            "403 Forbidden", "404 Not Found", "501 Not Implemented",
+            "503 Service Unavailable"
+        };
+        for (String status : common)
+            getStatusLine(status);
+    }
+
+    // Member variables.
+    private ByteBuffer m_buffer;            // Reused for every header.
+
+
+    /**
+     * Creates a writer with room for a typical header; the
+     * buffer grows if a header doesn't fit.
+     */
+    public HTTPHeaderWriter() {
+        m_buffer = ByteBuffer.allocate(1024);
+    }
+
+    /**
+     * Starts a new header with the status, Date and Server lines,
+     * discarding whatever the buffer held before.
+     *
+     * @param status HTTP response status, e.g. "200 OK"
+     */
+    public void start(String status) {
+        m_buffer.clear();
+        put(getStatusLine(status));
+        put(HTTPDate.getDateField());
+        put(SERVER_FIELD);
+    }
+
+    /**
+     * Adds a "Name: value" line.
+     *
+     * @param name the field name, e.g. "Content-Type"
+     * @param value the field value
+     */
+    public void addField(String name, String value) {
+        putASCII(name);
+        put(SEPARATOR);
+        putASCII(value);
+        put(CRLF);
+    }
+
+    /**
+     * Adds a "Content-Length" line.
+     *
+     * @param contentLength the body size in bytes
+     */
+    public void addContentLength(long contentLength) {
+        put(CONTENT_LENGTH);
+        putDecimal(contentLength);
+        put(CRLF);
+    }
+
+    /**
+     * Adds a "Connection" line.
+     *
+     * @param keepAlive true for "keep-alive", false for "close"
+     */
+    public void addConnection(boolean keepAlive) {
+        put(keepAlive ? KEEP_ALIVE_FIELD : CLOSE_FIELD);
+    }
+
+    /**
+     * Ends the header with a blank line.
+     *
+     * @return the encoded header, ready to be read from; valid
+     *         until the next call to start()
+     */
+    public ByteBuffer finish() {
+        put(CRLF);
+        m_buffer.flip();
+        return m_buffer;
+    }
+
+    /**
+     * Looks up (or encodes and remembers) a status line.
+     *
+     * @param status HTTP response status, e.g. "200 OK"
+     * @return "HTTP/1.1 " + status + "\r\n" as bytes
+     */
+    private static byte[] getStatusLine(String status) {
+        byte[] line = s_statusLines.get(status);
+        if (line == null) {
+            line = encode("HTTP/1.1 " + status + "\r\n");
+            s_statusLines.put(status, line);
+        }
+        return line;
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void put(byte[] bytes) {
+        ensureRoom(bytes.length);
+        m_buffer.put(bytes);
+    }
+
+    private void putASCII(String text) {
+        ensureRoom(text.length());
+        for (int i = 0; i < text.length(); i++)
+            m_buffer.put((byte) text.charAt(i));
+    }
+
+    private void putDecimal(long value) {
+        // 19 digits hold any non-negative long.
+        ensureRoom(20);
+        if (value < 0) {
+            m_buffer.put((byte) '-');
+            value = -value;
+        }
+
+        long divisor = 1;
+        while (divisor <= value / 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            m_buffer.put((byte) ('0' + (value / divisor) % 10));
+    }
+
+    /**
+     * Grows the buffer (rarely needed) so 'count' more bytes fit.
+     */
+    private void ensureRoom(int count) {
+        if (m_buffer.remaining() >= count)
+            return;
+        ByteBuffer larger = ByteBuffer.allocate(
+                Math.max(m_buffer.capacity() * 2, m_buffer.position() + count));
+        m_buffer.flip();
+        larger.put(m_buffer);
+        m_buffer = larger;
+    }
+};
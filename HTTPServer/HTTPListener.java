@@ -0,0 +1,365 @@
+/*
+ * HTTPListener.java - accepts connections on one or more
+ * listening sockets, each with its own acceptor thread.
+ *
+ * Notes:
+ *   A single thread calling accept() takes connections only as
+ *   fast as one core allows, and under heavy connection churn it
+ *   is the first thing to saturate.  With "-N ACCEPTORS" the
+ *   server runs several acceptor threads instead.  Where the
+ *   platform supports SO_REUSEPORT (Linux 3.9+, the BSDs), each
+ *   acceptor binds a socket of its own to the port and the kernel
+ *   spreads incoming connections over them by hashing the
+ *   client's address, so the acceptors share nothing, not even a
+ *   listen queue.  Elsewhere they all wait on the one socket, and
+ *   whichever gets there first takes the connection.  SO_REUSEPORT
+ *   is only set with more than one acceptor, since it would also
+ *   let another process of the same user bind the port unnoticed.
+ *
+ *   Each acceptor waits in a Selector and, once woken, takes up
+ *   to "-j BATCH" connections that are already waiting before it
+ *   hands them to the engine together; the NIO engine then wakes
+ *   each event loop once per batch rather than once per
+ *   connection.  The accepted sockets get the configured socket
+ *   options (see HTTPServer.configureSocket()) on the way.
+ *
+ *   Accept latency is recorded per acceptor, from its selector
+ *   reporting connections waiting to the batch being handed to
+ *   the engine, so it grows when an acceptor falls behind (a long
+ *   batch, a full worker queue).  Each series' count is the number
+ *   of connections that acceptor took, which shows how evenly the
+ *   kernel spreads them.
+ *
+ *   The server has one listener for HTTP and, if it's turned on,
+ *   another for HTTPS.
+ *
+ *   A reload that changes the port binds every acceptor's new
+ *   socket before any old one is closed; each acceptor switches
+ *   over in its own thread, since a channel can't be registered
+ *   with a selector another thread is waiting in.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+/**
+ * The server's listening sockets and the threads accepting
+ * connections on them.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPListener {
+
+    /**
+     * Takes the connections an acceptor has accepted.
+     */
+    public interface Handler {
+        /**
+         * Serves newly accepted connections.  Called from the
+         * acceptor threads, several at a time.
+         *
+         * @param batch the connections, still in blocking mode;
+         *              the handler is responsible for closing them
+         */
+        void handle(List<SocketChannel> batch);
+    }
+
+    // Member variables.
+    private HTTPServer m_server;            // Configures accepted sockets.
+    private boolean m_secure;               // The HTTPS port.
+    private int m_backlog;                  // Listen queue length.
+    private int m_batchSize;                // Connections per wakeup.
+    private boolean m_reusePort;            // A socket per acceptor.
+    private Acceptor[] m_acceptors;
+    private Thread[] m_threads;             // m_acceptors' threads.
+    private volatile boolean m_closed;
+
+
+    /**
+     * Binds the listening sockets; accepting starts with run().
+     *
+     * @param server the server whose current configuration sets
+     *               the accepted sockets' options
+     * @param secure true to listen on the HTTPS port rather than
+     *               the HTTP one
+     * @param acceptorCount number of acceptor threads
+     * @param backlog listen queue length, per socket
+     * @param batchSize most connections accepted per wakeup
+     * @throws IOException if the port can't be bound
+     */
+    public HTTPListener(HTTPServer server, boolean secure, int acceptorCount,
+                        int backlog, int batchSize)
+            throws IOException
+    {
+        m_server = server;
+        m_secure = secure;
+        m_backlog = backlog;
+        m_batchSize = batchSize;
+        m_acceptors = new Acceptor[acceptorCount];
+        m_threads = new Thread[acceptorCount];
+        m_closed = false;
+
+        m_reusePort = acceptorCount > 1 && isReusePortSupported();
+        ServerSocketChannel[] channels = bind(server);
+        try {
+            for (int i = 0; i < acceptorCount; i++)
+                m_acceptors[i] = new Acceptor(i + 1, channels[i]);
+        } catch (IOException e) {
+            for (int i = 0; i < acceptorCount; i++) {
+                if (m_acceptors[i] != null)
+                    m_acceptors[i].m_selector.close();
+            }
+            closeAll(channels);
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if each acceptor has a socket of its own
+     */
+    public boolean isReusePort() {
+        return m_reusePort;
+    }
+
+    /**
+     * Starts the acceptor threads, which hand the connections they
+     * accept to 'handler' until close() is called.
+     *
+     * @param handler serves the accepted connections
+     */
+    public void start(Handler handler) {
+        for (int i = 0; i < m_acceptors.length; i++) {
+            m_acceptors[i].m_handler = handler;
+            m_threads[i] = new Thread(m_acceptors[i], "HTTPListener-"
+                    + (m_secure ? "https-" : "http-") + (i + 1));
+            m_threads[i].start();
+        }
+    }
+
+    /**
+     * Accepts connections, handing them to 'handler', until
+     * close() is called.
+     *
+     * @param handler serves the accepted connections
+     */
+    public void run(Handler handler) {
+        start(handler);
+        join();
+    }
+
+    /**
+     * Moves every acceptor to a new port.  The new sockets are
+     * all bound before the old ones are closed, so a failure
+     * leaves the listener as it was.
+     *
+     * @param config the configuration with the new port (and
+     *               receive buffer size)
+     * @throws IOException if the port can't be bound
+     */
+    public void rebind(HTTPServer config) throws IOException {
+        ServerSocketChannel[] channels = bind(config);
+        for (int i = 0; i < m_acceptors.length; i++) {
+            m_acceptors[i].m_nextChannel = channels[i];
+            m_acceptors[i].m_selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops accepting: the listening sockets are closed and the
+     * acceptors finish handing over the batch they hold before
+     * this returns.
+     */
+    public void close() {
+        m_closed = true;
+        for (Acceptor acceptor : m_acceptors) {
+            closeQuietly(acceptor.m_channel);
+            closeQuietly(acceptor.m_nextChannel);
+            acceptor.m_selector.wakeup();
+        }
+        join();
+    }
+
+    private void join() {
+        for (Thread thread : m_threads) {
+            if (thread == null || thread == Thread.currentThread())
+                continue;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static boolean isReusePortSupported() throws IOException {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions()
+                    .contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * Opens a listening socket for every acceptor, or one they
+     * all share, bound to the configuration's HTTP or HTTPS port.
+     */
+    private ServerSocketChannel[] bind(HTTPServer config) throws IOException {
+        ServerSocketChannel[] channels =
+                new ServerSocketChannel[m_acceptors.length];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                if (i > 0 && !m_reusePort) {
+                    channels[i] = channels[0];
+                    continue;
+                }
+                channels[i] = ServerSocketChannel.open();
+                if (m_reusePort)
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT,
+                            true);
+
+                // Only takes full effect (window scaling) if set on
+                // the listening socket; accepted sockets inherit it.
+                if (config.getReceiveBufferSize() > 0)
+                    channels[i].setOption(StandardSocketOptions.SO_RCVBUF,
+                            config.getReceiveBufferSize());
+                int port = m_secure ? config.getSecurePort()
+                                    : config.getPort();
+                channels[i].bind(new InetSocketAddress(port), m_backlog);
+                channels[i].configureBlocking(false);
+            }
+        } catch (IOException e) {
+            closeAll(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    private static void closeAll(ServerSocketChannel[] channels) {
+        for (ServerSocketChannel channel : channels)
+            closeQuietly(channel);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+
+    /**
+     * One acceptor thread and the listening socket it waits on.
+     */
+    private class Acceptor implements Runnable {
+
+        // Member variables.
+        private Selector m_selector;
+        private volatile ServerSocketChannel m_channel;
+        private volatile ServerSocketChannel m_nextChannel;  // rebind().
+        private Handler m_handler;
+        private HTTPMetrics.Histogram m_latency;
+
+        // Pause after a failed accept (e.g. out of file
+        // descriptors), rather than spinning on it.
+        private static final long ACCEPT_RETRY_MILLIS = 100;
+
+
+        Acceptor(int id, ServerSocketChannel channel) throws IOException {
+            m_selector = Selector.open();
+            m_channel = channel;
+            m_nextChannel = null;
+            m_latency = m_server.getMetrics().addHistogram(
+                    "http_accept_duration_seconds",
+                    "Time from connections waiting to their being handed"
+                        + " to the engine, by acceptor.",
+                    "scheme=\"" + (m_secure ? "https" : "http")
+                        + "\",acceptor=\"" + id + "\"");
+        }
+
+        @Override public void run() {
+            List<SocketChannel> batch = new ArrayList<>(m_batchSize);
+            try {
+                m_channel.register(m_selector, SelectionKey.OP_ACCEPT);
+                while (!m_closed) {
+                    m_selector.select();
+                    m_selector.selectedKeys().clear();
+                    if (m_nextChannel != null)
+                        switchChannel();
+
+                    long ready = System.nanoTime();
+                    acceptBatch(batch);
+                    if (batch.isEmpty())
+                        continue;
+                    try {
+                        m_handler.handle(batch);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    m_latency.record(System.nanoTime() - ready, batch.size());
+                    batch.clear();
+                }
+            } catch (ClosedChannelException e) {
+                // Closed before we got going.
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(m_channel);
+                closeQuietly(m_nextChannel);
+                try {
+                    m_selector.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+
+        /**
+         * Accepts the connections waiting, up to a batch.
+         */
+        private void acceptBatch(List<SocketChannel> batch) {
+            while (batch.size() < m_batchSize) {
+                SocketChannel channel;
+                try {
+                    channel = m_channel.accept();
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                    try {
+                        Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return;
+                }
+                if (channel == null)
+                    return;
+
+                try {
+                    m_server.getCurrent().configureSocket(channel);
+                    batch.add(channel);
+                } catch (IOException e) {
+                    // Reset by the client already.
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        /**
+         * Moves to the socket rebind() opened.  A shared socket is
+         * closed by whichever acceptor gets to it first, which
+         * cancels its registration with the others' selectors.
+         */
+        private void switchChannel() throws IOException {
+            ServerSocketChannel previous = m_channel;
+            m_channel = m_nextChannel;
+            m_nextChannel = null;
+            previous.close();
+            m_channel.register(m_selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+};
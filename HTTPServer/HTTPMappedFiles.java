@@ -0,0 +1,377 @@
+/*
+ * HTTPMappedFiles.java - keeps mid-sized files memory-mapped.
+ *
+ * Notes:
+ *   Small files are served from HTTPFileCache's heap copies, and
+ *   large ones are sent with FileChannel.transferTo(), which means
+ *   opening and closing the file for every response.  In between
+ *   lies a band of files (by default 64 KB to 16 MB) that are too
+ *   many to keep on the heap but hot in the OS page cache.  These
+ *   are mapped once with FileChannel.map() and every response is
+ *   written straight from a read-only slice of the shared
+ *   MappedByteBuffer: no heap copy, no open() or fstat() per
+ *   request, and range requests are just different slices.
+ *
+ *   A mapping is only reused for the same version of a file (same
+ *   size and modification time as the cache entry being served);
+ *   a changed file gets a new mapping, and the old one is retired.
+ *
+ *   Mappings are reference-counted: each queued response holds a
+ *   reference until its bytes have been written (or the
+ *   connection is dropped).  A background thread closes mappings
+ *   that have gone unused for IDLE_MILLIS, and the least recently
+ *   used idle ones when there are more than MAX_MAPPINGS (each
+ *   mapping costs a kernel VMA, and vm.max_map_count is typically
+ *   65530).  Closing unmaps the file right away rather than
+ *   whenever the garbage collector gets around to the buffer;
+ *   that is only safe because the count says nobody is using it.
+ *   The count is -1 once a mapping is closed, so it can't be
+ *   revived by a late acquire().
+ *
+ *   If a mapped file is truncated, writing the missing pages
+ *   fails with an IOException (EFAULT) and the connection is
+ *   dropped, much as transferTo() does with a truncated file.
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Shared, reference-counted memory mappings of files.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPMappedFiles implements Runnable {
+
+    /**
+     * One mapped version of a file.
+     */
+    public static class Mapping {
+        private final Path m_file;
+        private final long m_size;
+        private final FileTime m_lastModified;
+        private final MappedByteBuffer m_buffer;
+        private final AtomicInteger m_refs;     // Users; -1 once closed.
+        private volatile long m_lastUsed;       // nanoTime of release().
+        private volatile boolean m_retired;     // Superseded; close at 0.
+
+        Mapping(Path file, long size, FileTime lastModified,
+                MappedByteBuffer buffer)
+        {
+            m_file = file;
+            m_size = size;
+            m_lastModified = lastModified;
+            m_buffer = buffer;
+            m_refs = new AtomicInteger(1);
+            m_lastUsed = System.nanoTime();
+            m_retired = false;
+        }
+
+        /**
+         * @return a buffer over bytes position..position+count-1
+         *         of the file; only valid while a reference is held
+         */
+        public ByteBuffer slice(long position, long count) {
+            ByteBuffer slice = m_buffer.duplicate();
+            slice.limit((int) (position + count));
+            slice.position((int) position);
+            return slice;
+        }
+
+        /**
+         * Takes another reference to a mapping the caller already
+         * holds one to (e.g. for each part of a multipart
+         * response).
+         */
+        public void retain() {
+            m_refs.incrementAndGet();
+        }
+
+        /**
+         * Gives back a reference.
+         */
+        public void release() {
+            m_lastUsed = System.nanoTime();
+            if (m_refs.decrementAndGet() == 0 && m_retired)
+                closeIfIdle();
+        }
+
+        /**
+         * Takes a reference unless the mapping has been closed.
+         */
+        boolean acquire() {
+            for (;;) {
+                int refs = m_refs.get();
+                if (refs < 0)
+                    return false;
+                if (m_refs.compareAndSet(refs, refs + 1))
+                    return true;
+            }
+        }
+
+        boolean isVersionOf(HTTPFileCache.Entry entry) {
+            return m_size == entry.getSize()
+                    && m_lastModified.equals(entry.getLastModified());
+        }
+
+        /**
+         * Unmaps the file if nobody holds a reference.
+         *
+         * @return true if the mapping is (now) closed
+         */
+        boolean closeIfIdle() {
+            if (!m_refs.compareAndSet(0, -1))
+                return m_refs.get() < 0;
+            unmap(m_buffer);
+            return true;
+        }
+    }
+
+    // Mappings unused this long are closed.
+    public static final long IDLE_MILLIS = 60 * 1000;
+
+    // Most mappings kept open at once (kernel VMAs are limited).
+    public static final int MAX_MAPPINGS = 16384;
+
+    // Unmaps a buffer now; null if the JDK doesn't let us, in
+    // which case mappings go away when their buffers are
+    // garbage collected.
+    private static final Method s_invokeCleaner;
+    private static final Object s_unsafe;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+                    ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        s_invokeCleaner = invokeCleaner;
+        s_unsafe = unsafe;
+    }
+
+    // Member variables.
+    private long m_minSize;                 // Smallest file mapped.
+    private long m_maxSize;                 // Largest file mapped.
+    private ConcurrentHashMap<Path, Mapping> m_mappings;
+    private AtomicLong m_mappedBytes;       // Sum of open mappings.
+    private Thread m_sweeper;               // Closes idle mappings.
+
+    // Statistics.
+    private LongAdder m_hits;
+    private LongAdder m_misses;
+    private LongAdder m_closed;
+
+
+    /**
+     * Creates an empty set of mappings and starts the thread
+     * that closes idle ones.
+     *
+     * @param minSize smallest file to map
+     * @param maxSize largest file to map (at most 2 GB, the
+     *                largest MappedByteBuffer)
+     */
+    public HTTPMappedFiles(long minSize, long maxSize) {
+        m_minSize = Math.max(1, minSize);
+        m_maxSize = Math.min(maxSize, Integer.MAX_VALUE);
+        m_mappings = new ConcurrentHashMap<>();
+        m_mappedBytes = new AtomicLong();
+
+        m_hits = new LongAdder();
+        m_misses = new LongAdder();
+        m_closed = new LongAdder();
+
+        m_sweeper = new Thread(this, "HTTPMappedFiles");
+        m_sweeper.setDaemon(true);
+        m_sweeper.start();
+    }
+
+    /**
+     * Gets a reference to a mapping of a resolved file, mapping
+     * it if need be.  The caller must release() the reference
+     * (normally by handing it to HTTPOutputQueue.addMapped()).
+     *
+     * @param entry a resolved file
+     * @return the mapping, or null if the file is outside the
+     *         size band or couldn't be mapped (send it some other
+     *         way)
+     */
+    public Mapping acquire(HTTPFileCache.Entry entry) {
+        long size = entry.getSize();
+        if (size < m_minSize || size > m_maxSize)
+            return null;
+
+        Path file = entry.getFile();
+        Mapping mapping = m_mappings.get(file);
+        if (mapping != null && mapping.isVersionOf(entry)
+                && mapping.acquire()) {
+            m_hits.increment();
+            return mapping;
+        }
+
+        m_misses.increment();
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            // Mapping past the end of a file that shrank since it
+            // was resolved would fault later; let the caller
+            // report it instead.
+            if (channel.size() != size)
+                return null;
+            mapping = new Mapping(file, size, entry.getLastModified(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IOException e) {
+            return null;
+        }
+
+        m_mappedBytes.addAndGet(size);
+        Mapping previous = m_mappings.put(file, mapping);
+        if (previous != null)
+            retire(previous);
+        return mapping;
+    }
+
+    /**
+     * Stops the sweeper and retires every mapping, when a
+     * reloaded configuration no longer uses this set.  Mappings
+     * still being sent are closed by their last release().
+     */
+    public void close() {
+        m_sweeper.interrupt();
+        for (Mapping mapping : m_mappings.values()) {
+            if (m_mappings.remove(mapping.m_file, mapping))
+                retire(mapping);
+        }
+    }
+
+    /**
+     * @return lookups answered with an existing mapping
+     */
+    public long getHits() {
+        return m_hits.sum();
+    }
+
+    /**
+     * @return lookups that mapped the file
+     */
+    public long getMisses() {
+        return m_misses.sum();
+    }
+
+    /**
+     * @return mappings closed (idle, evicted or superseded)
+     */
+    public long getClosed() {
+        return m_closed.sum();
+    }
+
+    /**
+     * @return number of files currently mapped
+     */
+    public int getMappingCount() {
+        return m_mappings.size();
+    }
+
+    /**
+     * @return bytes of files currently mapped
+     */
+    public long getMappedBytes() {
+        return m_mappedBytes.get();
+    }
+
+    /**
+     * @return the statistics in one line, for the console
+     */
+    @Override public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses()
+                + ", closed " + getClosed() + ", " + getMappingCount()
+                + " files, " + getMappedBytes() + " bytes mapped";
+    }
+
+    /**
+     * Closes idle mappings, about once a second.
+     *
+     * Implements Runnable.run().
+     */
+    @Override public void run() {
+        for (;;) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sweep();
+        }
+    }
+
+    /**
+     * Closes mappings idle for longer than IDLE_MILLIS, then the
+     * least recently used idle ones while there are too many.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+        for (Mapping mapping : m_mappings.values()) {
+            if (now - mapping.m_lastUsed > idleNanos)
+                remove(mapping);
+        }
+
+        int excess = m_mappings.size() - MAX_MAPPINGS;
+        if (excess <= 0)
+            return;
+        List<Mapping> oldest = new ArrayList<>(m_mappings.values());
+        oldest.sort((a, b) -> Long.compare(a.m_lastUsed, b.m_lastUsed));
+        for (int i = 0; i < oldest.size() && excess > 0; i++) {
+            if (remove(oldest.get(i)))
+                excess--;
+        }
+    }
+
+    /**
+     * Closes a mapping and forgets it, unless it is in use.
+     *
+     * @return true if it was closed
+     */
+    private boolean remove(Mapping mapping) {
+        if (!mapping.closeIfIdle())
+            return false;
+        if (m_mappings.remove(mapping.m_file, mapping)) {
+            m_mappedBytes.addAndGet(-mapping.m_size);
+            m_closed.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a superseded mapping; it is closed now if unused,
+     * otherwise by the release() that drops its last reference.
+     */
+    private void retire(Mapping mapping) {
+        mapping.m_retired = true;
+        m_mappedBytes.addAndGet(-mapping.m_size);
+        m_closed.increment();
+        mapping.closeIfIdle();
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (s_invokeCleaner == null)
+            return;
+        try {
+            s_invokeCleaner.invoke(s_unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the garbage collector.
+        }
+    }
+};
@@ -0,0 +1,384 @@
+/*
+ * HTTPMetrics.java - counters, gauges and a latency histogram,
+ * rendered in the Prometheus text format.
+ *
+ * Notes:
+ *   One instance is shared by all sessions, so recording must be
+ *   cheap under contention: every counter is a LongAdder, which
+ *   spreads concurrent increments over separate cells instead of
+ *   making threads fight over one word, and the latency histogram
+ *   is an array of them (one per bucket).  Nothing takes a lock
+ *   on the request path.
+ *
+ *   The report is rendered on demand, when a client asks for the
+ *   metrics path, by summing the adders; it doesn't stop other
+ *   sessions from recording meanwhile, so the figures are as of
+ *   roughly the same moment rather than one atomic snapshot.
+ *
+ *   Request latency runs from the read that completed a request
+ *   header to the moment the last byte of its response was handed
+ *   to the socket, so it includes time spent queued behind earlier
+ *   pipelined responses and sending large bodies.
+ *
+ *   Other parts of the server add their own figures (queue depth,
+ *   cache statistics, ...) with addMetric(); the value is read
+ *   each time the report is rendered.  Histograms of their own
+ *   (accept latency, one per acceptor) come from addHistogram().
+ *   When the configuration is reloaded, the new caches' figures
+ *   replace the old ones under the same names.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+
+/**
+ * Server-wide request, traffic and connection statistics.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPMetrics {
+
+    /**
+     * A figure supplied by another part of the server.
+     */
+    private static class Metric {
+        final String name;
+        final String type;                  // "counter" or "gauge".
+        final String help;
+        final LongSupplier value;
+
+        Metric(String name, String type, String help, LongSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A latency histogram: how many events fell in each bucket,
+     * and their total time.
+     */
+    public static class Histogram {
+        private LongAdder[] m_buckets;      // Last one is +Inf.
+        private LongAdder m_nanos;
+
+        Histogram() {
+            m_buckets = new LongAdder[LATENCY_BOUNDS.length + 1];
+            for (int i = 0; i < m_buckets.length; i++)
+                m_buckets[i] = new LongAdder();
+            m_nanos = new LongAdder();
+        }
+
+        /**
+         * Records events that each took the same time.
+         *
+         * @param nanos how long each event took
+         * @param count number of events
+         */
+        public void record(long nanos, int count) {
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS_NANOS.length
+                    && nanos > LATENCY_BOUNDS_NANOS[bucket])
+                bucket++;
+            m_buckets[bucket].add(count);
+            m_nanos.add(nanos * count);
+        }
+
+        /**
+         * Renders the buckets, sum and count of one series.
+         *
+         * @param labels the series' labels followed by a comma,
+         *               or ""
+         */
+        void render(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < m_buckets.length; i++) {
+                cumulative += m_buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels)
+                   .append("le=\"").append(LATENCY_LABELS[i])
+                   .append("\"} ").append(cumulative).append('\n');
+            }
+            String series = labels.isEmpty() ? ""
+                    : "{" + labels.substring(0, labels.length() - 1) + "}";
+            out.append(name).append("_sum").append(series).append(' ')
+               .append(m_nanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(series).append(' ')
+               .append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * One series of a histogram family from addHistogram().
+     */
+    private static class HistogramSeries {
+        final String name;
+        final String help;
+        final String labels;                // As for Histogram.render().
+        final Histogram histogram;
+
+        HistogramSeries(String name, String help, String labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+            this.histogram = new Histogram();
+        }
+    }
+
+    // Latency bucket upper bounds, in seconds.
+    private static final double[] LATENCY_BOUNDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+        0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    // ...in nanoseconds, for recording, and as "le" labels.
+    private static final long[] LATENCY_BOUNDS_NANOS =
+            new long[LATENCY_BOUNDS.length];
+    private static final String[] LATENCY_LABELS =
+            new String[LATENCY_BOUNDS.length + 1];
+
+    static {
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            LATENCY_BOUNDS_NANOS[i] = (long) (LATENCY_BOUNDS[i] * 1e9);
+            LATENCY_LABELS[i] = java.math.BigDecimal.valueOf(LATENCY_BOUNDS[i])
+                    .stripTrailingZeros().toPlainString();
+        }
+        LATENCY_LABELS[LATENCY_BOUNDS.length] = "+Inf";
+    }
+
+    // Member variables.
+    private ConcurrentHashMap<Integer, LongAdder> m_statusCounts;
+    private Histogram m_latency;            // Request latency.
+    private LongAdder m_bytesIn;
+    private LongAdder m_bytesOut;
+    private LongAdder m_connections;        // Accepted, ever.
+    private LongAdder m_activeConnections;
+    private ConcurrentHashMap<String, LongAdder> m_timeouts;    // By deadline.
+    private List<Metric> m_metrics;         // From addMetric().
+    private List<HistogramSeries> m_histograms;     // addHistogram().
+
+
+    /**
+     * Creates a set of metrics, all zero.
+     */
+    public HTTPMetrics() {
+        m_statusCounts = new ConcurrentHashMap<>();
+        m_latency = new Histogram();
+        m_bytesIn = new LongAdder();
+        m_bytesOut = new LongAdder();
+        m_connections = new LongAdder();
+        m_activeConnections = new LongAdder();
+        m_timeouts = new ConcurrentHashMap<>();
+        m_metrics = new CopyOnWriteArrayList<>();
+        m_histograms = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Counts a response.
+     *
+     * @param status HTTP response status, e.g. "200 OK"
+     */
+    public void countStatus(String status) {
+        int code;
+        try {
+            code = Integer.parseInt(status.substring(0, 3));
+        } catch (RuntimeException e) {
+            return;
+        }
+        LongAdder count = m_statusCounts.get(code);
+        if (count == null)
+            count = m_statusCounts.computeIfAbsent(code, c -> new LongAdder());
+        count.increment();
+    }
+
+    /**
+     * Records the latency of answered requests.
+     *
+     * @param nanos time from request to response sent
+     * @param requests number of requests that took this long
+     */
+    public void recordLatency(long nanos, int requests) {
+        m_latency.record(nanos, requests);
+    }
+
+    /**
+     * @param count request bytes received
+     */
+    public void addBytesIn(long count) {
+        m_bytesIn.add(count);
+    }
+
+    /**
+     * @param count response bytes sent
+     */
+    public void addBytesOut(long count) {
+        m_bytesOut.add(count);
+    }
+
+    /**
+     * Counts a new connection.
+     */
+    public void connectionOpened() {
+        m_connections.increment();
+        m_activeConnections.increment();
+    }
+
+    /**
+     * Counts a connection going away.
+     */
+    public void connectionClosed() {
+        m_activeConnections.decrement();
+    }
+
+    /**
+     * Counts a connection that missed a deadline.
+     *
+     * @param deadline which one, e.g. "idle"
+     */
+    public void countTimeout(String deadline) {
+        LongAdder count = m_timeouts.get(deadline);
+        if (count == null)
+            count = m_timeouts.computeIfAbsent(deadline, d -> new LongAdder());
+        count.increment();
+    }
+
+    /**
+     * Adds a figure to the report, replacing any figure of the
+     * same name.
+     *
+     * @param name metric name, e.g. "http_executor_queue_depth"
+     * @param type "counter" or "gauge"
+     * @param help one-line description
+     * @param value reads the current value
+     */
+    public synchronized void addMetric(String name, String type,
+                                       String help, LongSupplier value)
+    {
+        Metric metric = new Metric(name, type, help, value);
+        for (int i = 0; i < m_metrics.size(); i++) {
+            if (m_metrics.get(i).name.equals(name)) {
+                m_metrics.set(i, metric);
+                return;
+            }
+        }
+        m_metrics.add(metric);
+    }
+
+    /**
+     * Adds a histogram to the report as one series of the family
+     * 'name'; series of the same family are told apart by their
+     * labels.  Adding a series that is already there returns it
+     * as it is.
+     *
+     * @param name metric family name, e.g.
+     *             "http_accept_duration_seconds"
+     * @param help one-line description of the family
+     * @param label the series' label, e.g. "acceptor=\"1\""
+     * @return the histogram to record into
+     */
+    public synchronized Histogram addHistogram(String name, String help,
+                                               String label)
+    {
+        String labels = label + ",";
+        int last = -1;
+        for (int i = 0; i < m_histograms.size(); i++) {
+            HistogramSeries series = m_histograms.get(i);
+            if (series.name.equals(name)) {
+                if (series.labels.equals(labels))
+                    return series.histogram;
+                last = i;
+            }
+        }
+
+        // Keep each family together for rendering.
+        HistogramSeries series = new HistogramSeries(name, help, labels);
+        if (last >= 0)
+            m_histograms.add(last + 1, series);
+        else
+            m_histograms.add(series);
+        return series.histogram;
+    }
+
+    /**
+     * Takes a figure out of the report, e.g. when the part of
+     * the server it describes has been turned off.
+     *
+     * @param name metric name
+     */
+    public synchronized void removeMetric(String name) {
+        m_metrics.removeIf(metric -> metric.name.equals(name));
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition
+     * format (version 0.0.4).
+     *
+     * @return the report
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "http_requests_total", "counter",
+                "Responses sent, by status code.");
+        for (Map.Entry<Integer, LongAdder> entry :
+                new TreeMap<>(m_statusCounts).entrySet()) {
+            out.append("http_requests_total{code=\"").append(entry.getKey())
+               .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        header(out, "http_request_duration_seconds", "histogram",
+                "Time from request received to response sent.");
+        m_latency.render(out, "http_request_duration_seconds", "");
+
+        value(out, "http_received_bytes_total", "counter",
+                "Request bytes received.", m_bytesIn.sum());
+        value(out, "http_sent_bytes_total", "counter",
+                "Response bytes sent.", m_bytesOut.sum());
+        value(out, "http_connections_total", "counter",
+                "Connections accepted.", m_connections.sum());
+        value(out, "http_connections_active", "gauge",
+                "Connections currently open.", m_activeConnections.sum());
+
+        header(out, "http_connection_timeouts_total", "counter",
+                "Connections that missed a deadline, by deadline.");
+        for (Map.Entry<String, LongAdder> entry :
+                new TreeMap<>(m_timeouts).entrySet()) {
+            out.append("http_connection_timeouts_total{deadline=\"")
+               .append(entry.getKey()).append("\"} ")
+               .append(entry.getValue().sum()).append('\n');
+        }
+
+        String family = null;
+        for (HistogramSeries series : m_histograms) {
+            if (!series.name.equals(family)) {
+                header(out, series.name, "histogram", series.help);
+                family = series.name;
+            }
+            series.histogram.render(out, series.name, series.labels);
+        }
+
+        for (Metric metric : m_metrics) {
+            value(out, metric.name, metric.type, metric.help,
+                    metric.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type,
+                               String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help)
+           .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+           .append('\n');
+    }
+
+    private static void value(StringBuilder out, String name, String type,
+                              String help, long value)
+    {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+};
@@ -0,0 +1,89 @@
+/*
+ * HTTPMimeTypes.java - maps file names to media types.
+ *
+ * Notes:
+ *   The server only knows a file by its name, so the media type
+ *   sent in "Content-Type" is chosen by extension from the table
+ *   below; anything unknown is sent as application/octet-stream.
+ *
+ *   The table also records which types are worth compressing:
+ *   text formats shrink several times over, while images, video
+ *   and archives are already compressed and would only cost CPU.
+ */
+import java.util.*;
+
+
+/**
+ * File extension to media type lookup.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPMimeTypes {
+
+    // Type for unknown extensions.
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+
+    // Extension (lower case, no dot) -> media type.
+    private static final Map<String, String> s_types = new HashMap<>();
+
+    // Media types that compress well.
+    private static final Set<String> s_compressible = new HashSet<>();
+
+    static {
+        String[][] types = {
+            // Text; all compressible.
+            { "html", "text/html" },        { "htm", "text/html" },
+            { "css", "text/css" },          { "txt", "text/plain" },
+            { "csv", "text/csv" },          { "xml", "text/xml" },
+            { "js", "application/javascript" },
+            { "mjs", "application/javascript" },
+            { "json", "application/json" },
+            { "svg", "image/svg+xml" },
+            { "md", "text/markdown" },
+            { "wasm", "application/wasm" },
+
+            // Already compressed (or binary) formats.
+            { "png", "image/png" },         { "gif", "image/gif" },
+            { "jpg", "image/jpeg" },        { "jpeg", "image/jpeg" },
+            { "webp", "image/webp" },       { "ico", "image/x-icon" },
+            { "mp3", "audio/mpeg" },        { "ogg", "audio/ogg" },
+            { "mp4", "video/mp4" },         { "webm", "video/webm" },
+            { "pdf", "application/pdf" },   { "zip", "application/zip" },
+            { "gz", "application/gzip" },   { "tar", "application/x-tar" },
+            { "woff", "font/woff" },        { "woff2", "font/woff2" },
+        };
+        for (String[] type : types)
+            s_types.put(type[0], type[1]);
+
+        s_compressible.addAll(Arrays.asList(
+                "text/html", "text/css", "text/plain", "text/csv",
+                "text/xml", "text/markdown", "application/javascript",
+                "application/json", "image/svg+xml", "application/wasm"));
+    }
+
+
+    /**
+     * Chooses a media type by file name extension.
+     *
+     * @param fileName the file's name (or full path)
+     * @return e.g. "text/html", or DEFAULT_TYPE if unknown
+     */
+    public static String getType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        int slash = fileName.lastIndexOf('/');
+        if (dot < 0 || dot < slash)
+            return DEFAULT_TYPE;
+
+        String type = s_types.get(fileName.substring(dot + 1)
+                .toLowerCase(Locale.ROOT));
+        return type == null ? DEFAULT_TYPE : type;
+    }
+
+    /**
+     * @param type a media type returned by getType()
+     * @return true if content of this type compresses well
+     */
+    public static boolean isCompressible(String type) {
+        return s_compressible.contains(type);
+    }
+};
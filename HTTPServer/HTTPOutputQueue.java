@@ -0,0 +1,503 @@
+/*
+ * HTTPOutputQueue.java - response bytes waiting to be written.
+ *
+ * Notes:
+ *   HTTPServerSession never writes to its socket directly; every
+ *   response is appended to one of these queues and the server
+ *   engine decides when to drain it.  The blocking engine drains
+ *   the queue completely once all buffered (pipelined) requests
+ *   have been answered; the NIO engine writes as much as the
+ *   socket will take and waits for OP_WRITE for the rest.
+ * 
+ *   File bodies are queued as regions of an open FileChannel and
+ *   sent with FileChannel.transferTo(), which the JDK turns into
+ *   sendfile(2) on Linux: the file's bytes go from the page cache
+ *   to the socket without ever being copied into the Java heap.
+ *   The queue owns such FileChannels and closes them once they
+ *   have been sent or the queue is cleared.  On an HTTPS
+ *   connection the bytes have to be encrypted, so they go through
+ *   HTTPTLSChannel.transferFrom() instead.
+ * 
+ *   Files kept mapped by HTTPMappedFiles are queued as slices of
+ *   their mapping, written like any other buffer; the queue holds
+ *   a reference to the mapping until the slice has been sent or
+ *   the queue is cleared, so it can't be unmapped under us.
+ * 
+ *   Bodies whose length isn't known up front (directory listings)
+ *   are queued as a Source that is asked for more bytes only when
+ *   everything before it has been written, one buffer at a time.
+ *   A slow client therefore holds up the source rather than making
+ *   the body pile up in memory.  For HTTP/1.1 clients each
+ *   buffer-full is framed as a chunk ("Transfer-Encoding:
+ *   chunked"); the size line is written into room left in front of
+ *   the data, so framing costs no copy.
+ * 
+ *   Small writes (response headers and small bodies) are not
+ *   queued one by one but copied into a staging buffer, so that a
+ *   header and its body leave in a single write.
+ * 
+ *   Staging and stream buffers are direct buffers borrowed from
+ *   the server's HTTPBufferPool (a socket write from a heap buffer
+ *   is copied into a temporary direct one first) and given back as
+ *   soon as they have been sent, so a connection with nothing to
+ *   send holds none.
+ *
+ *   On a blocking connection, large buffers and file regions are
+ *   written a BLOCKING_SLICE at a time, so getBytesWritten() shows
+ *   progress while a large body goes out; the session's send
+ *   deadline (checked on another thread) goes by it.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+/**
+ * A FIFO of buffers and file regions to be written to a client
+ * connection.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPOutputQueue {
+
+    /**
+     * Produces a body piece by piece, as the queue is drained.
+     */
+    public interface Source {
+        /**
+         * Puts the next bytes of the body into a buffer.
+         *
+         * @param buffer room for the bytes, between position and
+         *               limit
+         * @return false once the body is complete (including any
+         *         bytes put in this call)
+         */
+        boolean fill(ByteBuffer buffer) throws IOException;
+
+        /**
+         * Releases the source's resources.  Called once, when the
+         * body is complete or the queue is cleared.
+         */
+        void close();
+    }
+
+    /**
+     * One queued item: either a buffer or a region of a file.
+     */
+    private static class Segment {
+        ByteBuffer buffer;                  // Bytes to send, or null.
+        boolean pooled;                     // buffer is borrowed.
+        HTTPMappedFiles.Mapping mapping;    // buffer's, to release.
+        FileChannel file;                   // File to send, or null.
+        long position;                      // Next file byte to send.
+        long end;                           // File offset to stop at.
+        boolean closeWhenSent;              // Last region of file.
+        Source source;                      // Body to produce, or null.
+        boolean chunked;                    // Frame source's bytes.
+        boolean sourceDone;                 // No more to fill.
+    }
+
+    // Size of a staging buffer, and the largest write copied into
+    // one; larger arrays are queued as they are.
+    private static final int STAGING_SIZE = 16 * 1024;
+    private static final int MAX_COPY = 8 * 1024;
+
+    // Buffer a Source fills, room kept around the data for a
+    // chunk's size line ("3ff8\r\n"), its CRLF and the last chunk.
+    private static final int STREAM_SIZE = 16 * 1024;
+    private static final int CHUNK_HEADER = 6;
+    private static final byte[] CHUNK_END = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    // Most bytes handed to one write on a blocking channel.
+    private static final int BLOCKING_SLICE = 256 * 1024;
+
+    // Member variables.
+    private ArrayDeque<Segment> m_segments;     // Oldest first.
+    private ByteBuffer m_staging;           // Being filled, or null.
+    private HTTPBufferPool m_bufferPool;    // Lends staging buffers.
+    private volatile long m_bytesWritten;   // By writeTo(), ever.
+
+
+    /**
+     * Creates an empty output queue.
+     *
+     * @param bufferPool lends the queue's staging and stream
+     *                   buffers
+     */
+    public HTTPOutputQueue(HTTPBufferPool bufferPool) {
+        m_segments = new ArrayDeque<>();
+        m_staging = null;
+        m_bufferPool = bufferPool;
+        m_bytesWritten = 0;
+    }
+
+    /**
+     * Queues a byte array; the array must not be modified
+     * afterwards.
+     *
+     * Small arrays are copied into the staging buffer, after
+     * whatever was queued before them.
+     *
+     * @param bytes the bytes to send
+     */
+    public void add(byte[] bytes) {
+        add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Queues part of a byte array; the array must not be modified
+     * afterwards.
+     *
+     * @param bytes the array holding the bytes to send
+     * @param offset index of the first byte to send
+     * @param length number of bytes to send
+     */
+    public void add(byte[] bytes, int offset, int length) {
+        if (length == 0)
+            return;
+
+        if (length <= MAX_COPY) {
+            stage(length).put(bytes, offset, length);
+            return;
+        }
+
+        sealStaging();
+        Segment segment = new Segment();
+        segment.buffer = ByteBuffer.wrap(bytes, offset, length);
+        m_segments.addLast(segment);
+    }
+
+    /**
+     * Queues a copy of a buffer's remaining bytes, e.g. a header
+     * from HTTPHeaderWriter.  The buffer can be reused as soon as
+     * this returns.
+     *
+     * @param bytes the bytes to send, between position and limit
+     */
+    public void add(ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            ByteBuffer staging = stage(Math.min(bytes.remaining(),
+                    STAGING_SIZE));
+            int count = Math.min(bytes.remaining(), staging.remaining());
+            ByteBuffer slice = bytes.duplicate();
+            slice.limit(slice.position() + count);
+            staging.put(slice);
+            bytes.position(bytes.position() + count);
+        }
+    }
+
+    /**
+     * Queues a buffer borrowed from the queue's pool, without
+     * copying it; the queue gives it back once it has been sent
+     * (or the queue is cleared).
+     *
+     * @param buffer the bytes to send, between position and limit
+     */
+    public void addBorrowed(ByteBuffer buffer) {
+        sealStaging();
+        Segment segment = new Segment();
+        segment.buffer = buffer;
+        segment.pooled = true;
+        m_segments.addLast(segment);
+    }
+
+    /**
+     * Queues part of a file.
+     *
+     * The queue takes ownership of the channel and closes it
+     * after the region has been sent (or the queue is cleared),
+     * so a channel may only be passed to addFile() once.
+     *
+     * @param file an open channel to read the file from
+     * @param position offset of the first byte to send
+     * @param count number of bytes to send
+     */
+    public void addFile(FileChannel file, long position, long count)
+            throws IOException
+    {
+        addFile(file, position, count, true);
+    }
+
+    /**
+     * Queues part of a file, optionally leaving the channel open
+     * for further regions (e.g. the parts of a multipart range
+     * response).
+     *
+     * The channel is closed when the queue is cleared either way;
+     * pass closeWhenSent for the channel's last region.
+     *
+     * @param file an open channel to read the file from
+     * @param position offset of the first byte to send
+     * @param count number of bytes to send
+     * @param closeWhenSent true to close the channel once this
+     *                      region has been sent
+     */
+    public void addFile(FileChannel file, long position, long count,
+                        boolean closeWhenSent)
+            throws IOException
+    {
+        if (count <= 0) {
+            if (closeWhenSent)
+                file.close();
+            return;
+        }
+
+        sealStaging();
+        Segment segment = new Segment();
+        segment.file = file;
+        segment.position = position;
+        segment.end = position + count;
+        segment.closeWhenSent = closeWhenSent;
+        m_segments.addLast(segment);
+    }
+
+    /**
+     * Queues part of a memory-mapped file.
+     *
+     * The queue takes over one reference to the mapping and
+     * releases it after the region has been sent (or the queue is
+     * cleared).
+     *
+     * @param mapping a mapping the caller holds a reference to
+     * @param position offset of the first byte to send
+     * @param count number of bytes to send
+     */
+    public void addMapped(HTTPMappedFiles.Mapping mapping, long position,
+                          long count)
+    {
+        sealStaging();
+        Segment segment = new Segment();
+        segment.buffer = mapping.slice(position, count);
+        segment.mapping = mapping;
+        m_segments.addLast(segment);
+    }
+
+    /**
+     * Queues a body produced by a Source.  The queue owns the
+     * source and closes it after the body has been sent (or the
+     * queue is cleared).
+     *
+     * @param source produces the body
+     * @param chunked true to send it with the chunked transfer
+     *                coding, false to send it as it is (the
+     *                connection must then be closed after it)
+     */
+    public void addStream(Source source, boolean chunked) {
+        sealStaging();
+        Segment segment = new Segment();
+        segment.source = source;
+        segment.chunked = chunked;
+        m_segments.addLast(segment);
+    }
+
+    /**
+     * @return true if nothing is waiting to be written
+     */
+    public boolean isEmpty() {
+        return m_segments.isEmpty() && m_staging == null;
+    }
+
+    /**
+     * @return bytes written to channels by writeTo() so far
+     */
+    public long getBytesWritten() {
+        return m_bytesWritten;
+    }
+
+    /**
+     * Writes queued buffers to a channel until the queue is
+     * empty or the channel stops accepting bytes.
+     *
+     * On a blocking channel this always empties the queue; on a
+     * non-blocking channel it stops at the first short write.
+     *
+     * @param channel the client connection
+     * @return true if the queue was emptied
+     * @throws EOFException if a queued file has become shorter
+     *                      than the region that was promised
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        sealStaging();
+        long slice = isBlocking(channel) ? BLOCKING_SLICE : Long.MAX_VALUE;
+        while (!m_segments.isEmpty()) {
+            Segment segment = m_segments.peekFirst();
+
+            if (segment.source != null) {
+                if (!writeStream(segment, channel))
+                    return false;
+            } else if (segment.buffer != null) {
+                ByteBuffer buffer = segment.buffer;
+                int limit = buffer.limit();
+                do {
+                    if (buffer.remaining() > slice)
+                        buffer.limit(buffer.position() + (int) slice);
+                    m_bytesWritten += channel.write(buffer);
+                    buffer.limit(limit);
+                } while (slice != Long.MAX_VALUE && buffer.hasRemaining());
+                if (buffer.hasRemaining())
+                    return false;
+                if (segment.pooled)
+                    m_bufferPool.release(segment.buffer);
+                if (segment.mapping != null)
+                    segment.mapping.release();
+            } else {
+                // transferTo() may send less than asked for (Linux
+                // sends at most ~2 GB per call), so keep going
+                // until the region is done or the socket is full.
+                while (segment.position < segment.end) {
+                    long length = Math.min(segment.end - segment.position,
+                            slice);
+                    long count = (channel instanceof HTTPTLSChannel)
+                            ? ((HTTPTLSChannel) channel).transferFrom(
+                                    segment.file, segment.position, length)
+                            : segment.file.transferTo(segment.position,
+                                    length, channel);
+                    if (count == 0) {
+                        if (segment.position >= segment.file.size())
+                            throw new EOFException("File truncated");
+                        return false;
+                    }
+                    segment.position += count;
+                    m_bytesWritten += count;
+                }
+                if (segment.closeWhenSent)
+                    segment.file.close();
+            }
+            m_segments.removeFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Discards everything still queued, closing any files and
+     * giving back any borrowed buffers.
+     */
+    public void clear() {
+        for (Segment segment : m_segments) {
+            if (segment.source != null)
+                segment.source.close();
+            if (segment.pooled)
+                m_bufferPool.release(segment.buffer);
+            if (segment.mapping != null)
+                segment.mapping.release();
+            if (segment.file != null) {
+                try {
+                    segment.file.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+        m_segments.clear();
+        m_bufferPool.release(m_staging);
+        m_staging = null;
+    }
+
+    private static boolean isBlocking(WritableByteChannel channel) {
+        if (channel instanceof HTTPTLSChannel)
+            return ((HTTPTLSChannel) channel).isBlocking();
+        return channel instanceof SelectableChannel
+                && ((SelectableChannel) channel).isBlocking();
+    }
+
+    /**
+     * Writes a source's body, filling its buffer again each time
+     * it has been written.
+     *
+     * @return true if the whole body has been written
+     */
+    private boolean writeStream(Segment segment, WritableByteChannel channel)
+            throws IOException
+    {
+        for (;;) {
+            ByteBuffer buffer = segment.buffer;
+            if (buffer != null && buffer.hasRemaining()) {
+                m_bytesWritten += channel.write(buffer);
+                if (buffer.hasRemaining())
+                    return false;
+            }
+            if (segment.sourceDone) {
+                segment.source.close();
+                m_bufferPool.release(buffer);
+                segment.pooled = false;
+                return true;
+            }
+            fillStream(segment);
+        }
+    }
+
+    /**
+     * Asks a source for its next buffer-full, framed as a chunk
+     * if need be, and leaves it ready to be written.
+     */
+    private void fillStream(Segment segment) throws IOException {
+        if (segment.buffer == null) {
+            segment.buffer = m_bufferPool.acquire(STREAM_SIZE);
+            segment.pooled = true;
+        }
+        ByteBuffer buffer = segment.buffer;
+        buffer.clear();
+
+        if (!segment.chunked) {
+            segment.sourceDone = !segment.source.fill(buffer);
+            buffer.flip();
+            return;
+        }
+
+        // Leave room for the framing around the data.
+        buffer.position(CHUNK_HEADER);
+        buffer.limit(STREAM_SIZE - CHUNK_END.length - LAST_CHUNK.length);
+        segment.sourceDone = !segment.source.fill(buffer);
+        int length = buffer.position() - CHUNK_HEADER;
+        buffer.limit(STREAM_SIZE);
+
+        int start = CHUNK_HEADER;
+        if (length > 0) {
+            String size = Integer.toHexString(length);
+            start -= size.length() + 2;
+            for (int i = 0; i < size.length(); i++)
+                buffer.put(start + i, (byte) size.charAt(i));
+            buffer.put(CHUNK_HEADER - 2, (byte) '\r');
+            buffer.put(CHUNK_HEADER - 1, (byte) '\n');
+            buffer.put(CHUNK_END);
+        }
+        if (segment.sourceDone)
+            buffer.put(LAST_CHUNK);
+        buffer.flip();
+        buffer.position(start);
+    }
+
+    /**
+     * Returns the staging buffer with room for 'count' more
+     * bytes, starting a new one if the current one is full.
+     *
+     * @param count bytes about to be copied; at most STAGING_SIZE
+     * @return the buffer to put() them into
+     */
+    private ByteBuffer stage(int count) {
+        if (m_staging != null && m_staging.remaining() >= count)
+            return m_staging;
+
+        sealStaging();
+        m_staging = m_bufferPool.acquire(STAGING_SIZE);
+        return m_staging;
+    }
+
+    /**
+     * Queues the staging buffer's contents behind everything
+     * queued so far; the next small write starts a new one.
+     */
+    private void sealStaging() {
+        if (m_staging == null)
+            return;
+
+        m_staging.flip();
+        Segment segment = new Segment();
+        segment.buffer = m_staging;
+        segment.pooled = true;
+        m_segments.addLast(segment);
+        m_staging = null;
+    }
+};
@@ -0,0 +1,305 @@
+/*
+ * HTTPRequest.java - a request line and its header fields.
+ *
+ * Notes:
+ *   HTTPServerSession keeps one of these per connection and has
+ *   HTTPRequestParser fill it in for every request it reads, so
+ *   that the header fields are still available when the request
+ *   is answered (e.g. to decide whether the connection should be
+ *   kept open afterwards).  reset() empties it for the next
+ *   request without freeing its storage.
+ *
+ *   Header fields are kept in two parallel arrays in the order
+ *   received; requests carry a dozen or so fields, for which a
+ *   linear scan beats hashing.  Field names are case-insensitive,
+ *   as required by RFC 2616; if a field is repeated, the values
+ *   are joined with ", " as described in section 4.2.
+ */
+
+
+/**
+ * A single HTTP request header as received from a client.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPRequest {
+
+    // Member variables.
+    private String m_method;                // e.g. "GET"
+    private String m_target;                // As sent, e.g. "/a%20b?x=1"
+    private String m_path;                  // Decoded, e.g. "/a b"
+    private String m_query;                 // e.g. "x=1", or null.
+    private String m_version;               // e.g. "HTTP/1.1"
+    private String[] m_names;               // Header field names...
+    private String[] m_values;              // ...and their values.
+    private int m_headerCount;
+
+
+    /**
+     * Creates an empty request.
+     */
+    public HTTPRequest() {
+        m_names = new String[16];
+        m_values = new String[16];
+        reset();
+    }
+
+    /**
+     * Empties the request so it can be filled in again.
+     */
+    public void reset() {
+        m_method = "";
+        m_target = "";
+        m_path = null;
+        m_query = null;
+        m_version = "HTTP/0.9";
+        for (int i = 0; i < m_headerCount; i++) {
+            m_names[i] = null;
+            m_values[i] = null;
+        }
+        m_headerCount = 0;
+    }
+
+    /**
+     * Sets the parts of the request line.
+     *
+     * @param method the request method, e.g. "GET"
+     * @param target the request target as sent
+     * @param path the target's path, percent-decoded, or null if
+     *             the target has no path
+     * @param query the target's query string, or null
+     * @param version the protocol version, e.g. "HTTP/1.1"
+     */
+    void setRequestLine(String method, String target, String path,
+                        String query, String version)
+    {
+        m_method = method;
+        m_target = target;
+        m_path = path;
+        m_query = query;
+        m_version = version;
+    }
+
+    /**
+     * Adds a header field, joining repeated fields.
+     *
+     * @param name the field name
+     * @param value the field value, trimmed
+     */
+    void addHeader(String name, String value) {
+        for (int i = 0; i < m_headerCount; i++) {
+            if (m_names[i].equalsIgnoreCase(name)) {
+                m_values[i] = m_values[i] + ", " + value;
+                return;
+            }
+        }
+
+        if (m_headerCount == m_names.length) {
+            m_names = java.util.Arrays.copyOf(m_names, m_headerCount * 2);
+            m_values = java.util.Arrays.copyOf(m_values, m_headerCount * 2);
+        }
+        m_names[m_headerCount] = name;
+        m_values[m_headerCount] = value;
+        m_headerCount++;
+    }
+
+    /**
+     * Appends a continuation line (obsolete line folding) to the
+     * most recently added field.
+     *
+     * @param text the continuation, trimmed
+     */
+    void continueHeader(String text) {
+        if (m_headerCount > 0)
+            m_values[m_headerCount - 1] += " " + text;
+    }
+
+    /**
+     * @return the request line, e.g. "GET / HTTP/1.1"
+     */
+    public String getRequestLine() {
+        if (m_version.equals("HTTP/0.9"))
+            return m_target.isEmpty() ? m_method : m_method + " " + m_target;
+        return m_method + " " + m_target + " " + m_version;
+    }
+
+    /**
+     * @return the request method, e.g. "GET"
+     */
+    public String getMethod() {
+        return m_method;
+    }
+
+    /**
+     * @return the request target exactly as sent
+     */
+    public String getTarget() {
+        return m_target;
+    }
+
+    /**
+     * @return the percent-decoded path of the target, e.g.
+     *         "/my file.html", or null if the target had none
+     */
+    public String getPath() {
+        return m_path;
+    }
+
+    /**
+     * @return the query string (without '?'), or null
+     */
+    public String getQuery() {
+        return m_query;
+    }
+
+    /**
+     * @return the protocol version, e.g. "HTTP/1.1"
+     */
+    public String getVersion() {
+        return m_version;
+    }
+
+    /**
+     * Looks up a header field by (case-insensitive) name.
+     *
+     * @param name the field name, e.g. "Connection"
+     * @return the field value, or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < m_headerCount; i++) {
+            if (m_names[i] == name || m_names[i].equalsIgnoreCase(name))
+                return m_values[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return number of distinct header fields
+     */
+    public int getHeaderCount() {
+        return m_headerCount;
+    }
+
+    /**
+     * @param index 0 to getHeaderCount() - 1
+     * @return the name of a header field, in received order
+     */
+    public String getHeaderName(int index) {
+        return m_names[index];
+    }
+
+    /**
+     * @param index 0 to getHeaderCount() - 1
+     * @return the value of a header field, in received order
+     */
+    public String getHeaderValue(int index) {
+        return m_values[index];
+    }
+
+    /**
+     * Checks whether the "Connection" field lists a token.
+     *
+     * @param token the connection option, e.g. "close"
+     * @return true if the client sent that option
+     */
+    public boolean hasConnectionToken(String token) {
+        String connection = getHeader("Connection");
+        if (connection == null)
+            return false;
+        for (String option : connection.split(",")) {
+            if (option.trim().equalsIgnoreCase(token))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the client asks to switch this connection to
+     * another protocol: "Upgrade" lists it, and "Connection" lists
+     * "Upgrade" as it must.
+     *
+     * @param protocol e.g. "h2c"
+     * @return true if the client offered that protocol
+     */
+    public boolean requestsUpgrade(String protocol) {
+        String upgrade = getHeader("Upgrade");
+        if (upgrade == null || !hasConnectionToken("Upgrade"))
+            return false;
+        for (String option : upgrade.split(",")) {
+            if (option.trim().equalsIgnoreCase(protocol))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the client accepts a content coding.
+     *
+     * A coding is accepted if "Accept-Encoding" lists it (or
+     * "*") without "q=0".
+     *
+     * @param coding e.g. "gzip"
+     * @return true if a response in that coding is acceptable
+     */
+    public boolean acceptsEncoding(String coding) {
+        String accept = getHeader("Accept-Encoding");
+        if (accept == null)
+            return false;
+
+        boolean wildcard = false;
+        for (String option : accept.split(",")) {
+            String[] params = option.split(";");
+            String name = params[0].trim();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(coding))
+                return accepted;
+            if (name.equals("*"))
+                wildcard = accepted;
+        }
+        return wildcard;
+    }
+
+    /**
+     * @return true if the request declares a body: a
+     *         "Transfer-Encoding", or a "Content-Length" that
+     *         isn't 0
+     */
+    public boolean hasBody() {
+        if (getHeader("Transfer-Encoding") != null)
+            return true;
+        String length = getHeader("Content-Length");
+        return length != null && !length.trim().equals("0");
+    }
+
+    /**
+     * Decides whether the client wants the connection kept open
+     * after this request has been answered.
+     *
+     * HTTP/1.1 connections are persistent unless the client sends
+     * "Connection: close"; HTTP/1.0 clients must ask for it with
+     * "Connection: keep-alive".  Request bodies are never read, so
+     * a request that has one can't be followed on the same
+     * connection: its body would be parsed as the next request.
+     *
+     * @return true if the connection may be reused
+     */
+    public boolean isPersistent() {
+        if (hasBody())
+            return false;
+        if (m_version.equals("HTTP/1.1"))
+            return !hasConnectionToken("close");
+        if (m_version.equals("HTTP/1.0"))
+            return hasConnectionToken("keep-alive");
+        return false;
+    }
+};
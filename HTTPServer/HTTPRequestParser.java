@@ -0,0 +1,448 @@
+/*
+ * HTTPRequestParser.java - reads request headers byte by byte.
+ *
+ * Notes:
+ *   The parser is a small state machine fed with whatever bytes
+ *   have arrived on a connection.  A request header may be split
+ *   across any number of reads; the parser copies the current
+ *   line into its own buffer, so nothing has to be kept in (or
+ *   searched again in) the session's input buffer, and picks up
+ *   where it stopped when more bytes arrive.  Parsing stops at
+ *   the blank line that ends the header, leaving any pipelined
+ *   request after it in the input buffer.
+ *
+ *   Bytes are decoded as ISO-8859-1, which maps every byte to one
+ *   char; the common header names are matched against a table so
+ *   they don't cost a String per request.  The request path is
+ *   percent-decoded as UTF-8 ("/my%20file" is "/my file"), the
+ *   query string after '?' is kept apart, and absolute-form
+ *   targets ("http://host/path") are reduced to their path.
+ *
+ *   Limits protect the server from clients that never finish a
+ *   request:
+ *
+ *     request line longer than MAX_LINE_SIZE   414 URI Too Long
+ *     header fields longer than MAX_HEADER_SIZE
+ *       in total, or more than MAX_FIELDS        431 Request Header
+ *                                                Fields Too Large
+ *     anything malformed                        400 Bad Request
+ *
+ *   Leading blank lines are skipped (some clients send an extra
+ *   CRLF after a request body), bare LF line ends are accepted,
+ *   and folded (continuation) lines are joined to the field
+ *   before them.
+ */
+import java.nio.*;
+import java.nio.charset.*;
+
+
+/**
+ * A resumable parser for HTTP request headers.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPRequestParser {
+
+    // Results of parse().
+    public static final int INCOMPLETE = 0;     // Need more bytes.
+    public static final int COMPLETE = 1;       // Request filled in.
+    public static final int ERROR = 2;          // See getError().
+
+    // Limits.
+    public static final int MAX_LINE_SIZE = 8192;
+    public static final int MAX_HEADER_SIZE = 8192;
+    public static final int MAX_FIELDS = 100;
+
+    // Parser states.
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADER_FIELDS = 1;
+
+    // Header names recognized without allocating.
+    private static final String[] KNOWN_NAMES = {
+        "Host", "Connection", "User-Agent", "Accept", "Accept-Encoding",
+        "Accept-Language", "Range", "If-Range", "If-None-Match",
+        "If-Modified-Since", "Cache-Control", "Pragma", "Referer",
+        "Cookie", "Upgrade", "Content-Length", "Content-Type",
+        "Transfer-Encoding", "Upgrade-Insecure-Requests", "DNT",
+        "Sec-Fetch-Mode", "Sec-Fetch-Site", "Sec-Fetch-Dest",
+        "Sec-Fetch-User", "Authorization", "Origin", "TE", "Via",
+        "X-Forwarded-For",
+    };
+    private static final byte[][] s_knownNames =
+            new byte[KNOWN_NAMES.length][];
+
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++)
+            s_knownNames[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Member variables.
+    private HTTPRequest m_request;          // Filled in as we go.
+    private int m_state;
+    private byte[] m_line;                  // Current line so far.
+    private int m_lineLength;
+    private int m_headerSize;               // Field bytes so far.
+    private int m_fieldCount;
+    private String m_error;                 // Status, once ERROR.
+    private CharsetDecoder m_utf8;          // For request paths.
+
+
+    /**
+     * Creates a parser that fills in a request object.
+     *
+     * @param request reset and reused for every request parsed
+     */
+    public HTTPRequestParser(HTTPRequest request) {
+        m_request = request;
+        m_line = new byte[256];
+        m_utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        reset();
+    }
+
+    /**
+     * Prepares for the next request on the connection.
+     */
+    public void reset() {
+        m_request.reset();
+        m_state = REQUEST_LINE;
+        m_lineLength = 0;
+        m_headerSize = 0;
+        m_fieldCount = 0;
+        m_error = null;
+    }
+
+    /**
+     * Consumes received bytes until a request header is complete.
+     *
+     * @param in received bytes, between position and limit; the
+     *           position is advanced past the bytes consumed
+     * @return COMPLETE when the request has been filled in (the
+     *         bytes of any following request are left unread),
+     *         INCOMPLETE when every byte was consumed without
+     *         reaching the end of the header, or ERROR
+     */
+    public int parse(ByteBuffer in) {
+        if (m_error != null)
+            return ERROR;
+
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b != '\n') {
+                if (!append(b))
+                    return ERROR;
+                continue;
+            }
+
+            // Complete line; drop the CR of a CRLF.
+            int length = m_lineLength;
+            if (length > 0 && m_line[length - 1] == '\r')
+                length--;
+            m_lineLength = 0;
+
+            if (m_state == REQUEST_LINE) {
+                if (length == 0)
+                    continue;   // Blank line before the request.
+                if (!parseRequestLine(length))
+                    return ERROR;
+                // HTTP/0.9 requests have no header fields.
+                if (m_request.getVersion().equals("HTTP/0.9"))
+                    return COMPLETE;
+                m_state = HEADER_FIELDS;
+            } else {
+                if (length == 0)
+                    return COMPLETE;
+                if (!parseHeaderField(length))
+                    return ERROR;
+            }
+        }
+        return INCOMPLETE;
+    }
+
+    /**
+     * @return true once some of a request has been consumed and
+     *         the rest is still to come
+     */
+    public boolean isStarted() {
+        return m_state != REQUEST_LINE || m_lineLength > 0;
+    }
+
+    /**
+     * Fills in the request line of an HTTP/2 request from its
+     * ":method" and ":path" fields, with the same limits, checks
+     * and decoding as a request line read from the connection.
+     *
+     * @param method the request method
+     * @param target the request target, e.g. "/a%20b?x=1"
+     * @param version the protocol, e.g. "HTTP/2.0"
+     * @return false if the line is too long or malformed; see
+     *         getError()
+     */
+    public boolean parseRequestLine(String method, String target,
+                                    String version)
+    {
+        int length = method.length() + target.length() + version.length() + 2;
+        if (length > MAX_LINE_SIZE)
+            return fail("414 URI Too Long");
+        if (length > m_line.length)
+            m_line = java.util.Arrays.copyOf(m_line, length);
+
+        // Neither part may hold a space or control char of its own.
+        String line = method + ' ' + target + ' ' + version;
+        int targetEnd = method.length() + 1 + target.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c > 0xff || (c <= ' ' && i != method.length() && i != targetEnd))
+                return fail("400 Bad Request");
+            m_line[i] = (byte) c;
+        }
+        return parseRequestLine(length);
+    }
+
+    /**
+     * Adds a header field of an HTTP/2 request, within the same
+     * limits as fields read from the connection.
+     *
+     * @param name the field name
+     * @param value the field value
+     * @return false if there are too many fields; see getError()
+     */
+    public boolean addField(String name, String value) {
+        m_headerSize += name.length() + value.length() + 2;
+        if (m_headerSize > MAX_HEADER_SIZE || ++m_fieldCount > MAX_FIELDS)
+            return fail("431 Request Header Fields Too Large");
+        m_request.addHeader(name, value);
+        return true;
+    }
+
+    /**
+     * @return the response status for a request that couldn't be
+     *         parsed, e.g. "400 Bad Request"; null unless parse()
+     *         returned ERROR
+     */
+    public String getError() {
+        return m_error;
+    }
+
+    /**
+     * Adds a byte to the current line, enforcing the limits.
+     */
+    private boolean append(byte b) {
+        if (m_state == REQUEST_LINE) {
+            if (m_lineLength >= MAX_LINE_SIZE)
+                return fail("414 URI Too Long");
+        } else if (++m_headerSize > MAX_HEADER_SIZE) {
+            return fail("431 Request Header Fields Too Large");
+        }
+
+        if (m_lineLength == m_line.length)
+            m_line = java.util.Arrays.copyOf(m_line, m_line.length * 2);
+        m_line[m_lineLength++] = b;
+        return true;
+    }
+
+    private boolean fail(String status) {
+        m_error = status;
+        return false;
+    }
+
+    /**
+     * Parses "METHOD TARGET VERSION"; "METHOD TARGET" is an
+     * HTTP/0.9 request.
+     */
+    private boolean parseRequestLine(int length) {
+        int methodEnd = indexOf(' ', 0, length);
+        if (methodEnd < 0)
+            methodEnd = length;
+        int targetStart = skipSpaces(methodEnd, length);
+        int targetEnd = indexOf(' ', targetStart, length);
+        if (targetEnd < 0)
+            targetEnd = length;
+        int versionStart = skipSpaces(targetEnd, length);
+        if (methodEnd == 0 || indexOf(' ', versionStart, length) >= 0)
+            return fail("400 Bad Request");
+
+        String method = matches(0, methodEnd, "GET") ? "GET"
+                : latin1(0, methodEnd);
+        String target = latin1(targetStart, targetEnd - targetStart);
+
+        String version = "HTTP/0.9";
+        if (versionStart < length) {
+            if (matches(versionStart, length - versionStart, "HTTP/1.1"))
+                version = "HTTP/1.1";
+            else if (matches(versionStart, length - versionStart, "HTTP/1.0"))
+                version = "HTTP/1.0";
+            else if (length - versionStart == 8
+                     && matches(versionStart, 5, "HTTP/")
+                     && isDigit(m_line[versionStart + 5])
+                     && m_line[versionStart + 6] == '.'
+                     && isDigit(m_line[versionStart + 7]))
+                version = latin1(versionStart, 8);
+            else
+                return fail("400 Bad Request");
+        }
+
+        // Split off the query; reduce "http://host/path" to
+        // "/path".
+        int pathStart = targetStart;
+        int pathEnd = indexOf('?', targetStart, targetEnd);
+        String query = null;
+        if (pathEnd >= 0)
+            query = latin1(pathEnd + 1, targetEnd - pathEnd - 1);
+        else
+            pathEnd = targetEnd;
+
+        String path = null;
+        int scheme = indexOf(':', pathStart, pathEnd);
+        if (pathStart < pathEnd && m_line[pathStart] != '/' && scheme > 0
+                && scheme + 2 < pathEnd && m_line[scheme + 1] == '/'
+                && m_line[scheme + 2] == '/') {
+            pathStart = indexOf('/', scheme + 3, pathEnd);
+            path = (pathStart < 0) ? "/" : null;
+        }
+        if (path == null && pathStart >= 0 && pathStart < pathEnd) {
+            path = percentDecode(pathStart, pathEnd);
+            if (path == null)
+                return fail("400 Bad Request");
+        }
+
+        m_request.setRequestLine(method, target, path, query, version);
+        return true;
+    }
+
+    /**
+     * Parses "Name: value", or a continuation of the previous
+     * field.
+     */
+    private boolean parseHeaderField(int length) {
+        if (m_line[0] == ' ' || m_line[0] == '\t') {
+            if (m_fieldCount == 0)
+                return fail("400 Bad Request");
+            m_request.continueHeader(trimmed(0, length));
+            return true;
+        }
+
+        // No whitespace is allowed between name and colon.
+        int colon = indexOf(':', 0, length);
+        if (colon <= 0 || m_line[colon - 1] == ' ' || m_line[colon - 1] == '\t')
+            return fail("400 Bad Request");
+        if (++m_fieldCount > MAX_FIELDS)
+            return fail("431 Request Header Fields Too Large");
+
+        m_request.addHeader(fieldName(colon), trimmed(colon + 1, length));
+        return true;
+    }
+
+    /**
+     * @return the shared String for a known name, or a new one
+     */
+    private String fieldName(int length) {
+        for (int i = 0; i < s_knownNames.length; i++) {
+            byte[] known = s_knownNames[i];
+            if (known.length == length && matches(0, length, known))
+                return KNOWN_NAMES[i];
+        }
+        return latin1(0, length);
+    }
+
+    /**
+     * Decodes %XX escapes and the resulting UTF-8 bytes.
+     *
+     * @return the decoded path, or null if it is malformed or
+     *         contains a NUL
+     */
+    private String percentDecode(int start, int end) {
+        if (indexOf('%', start, end) < 0) {
+            // Common case: nothing to decode, but the bytes must
+            // still be valid UTF-8.
+            for (int i = start; i < end; i++) {
+                if (m_line[i] < 0)
+                    return utf8(ByteBuffer.wrap(m_line, start, end - start));
+            }
+            return latin1(start, end - start);
+        }
+
+        byte[] decoded = new byte[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            byte b = m_line[i];
+            if (b == '%') {
+                if (i + 2 >= end)
+                    return null;
+                int high = Character.digit(m_line[i + 1], 16);
+                int low = Character.digit(m_line[i + 2], 16);
+                if (high < 0 || low < 0)
+                    return null;
+                b = (byte) (high * 16 + low);
+                if (b == 0)
+                    return null;
+                i += 2;
+            }
+            decoded[count++] = b;
+        }
+        return utf8(ByteBuffer.wrap(decoded, 0, count));
+    }
+
+    private String utf8(ByteBuffer bytes) {
+        try {
+            return m_utf8.reset().decode(bytes).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private String latin1(int start, int length) {
+        return new String(m_line, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private String trimmed(int start, int end) {
+        while (start < end && (m_line[start] == ' ' || m_line[start] == '\t'))
+            start++;
+        while (end > start && (m_line[end - 1] == ' ' || m_line[end - 1] == '\t'))
+            end--;
+        return latin1(start, end - start);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (m_line[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && m_line[start] == ' ')
+            start++;
+        return start;
+    }
+
+    private boolean matches(int start, int length, String text) {
+        if (length != text.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (m_line[start + i] != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares with a known name, ignoring ASCII case.
+     */
+    private boolean matches(int start, int length, byte[] name) {
+        for (int i = 0; i < length; i++) {
+            int a = m_line[start + i], b = name[i];
+            if (a != b && (a | 0x20) != (b | 0x20))
+                return false;
+            if (a != b && !Character.isLetter(a))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+};
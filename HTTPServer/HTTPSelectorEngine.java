@@ -0,0 +1,345 @@
+/*
+ * HTTPSelectorEngine.java - serves connections from a few
+ * non-blocking event loops.
+ *
+ * Notes:
+ *   This is the alternative to the blocking engine in
+ *   HTTPServer.startServer(), selected with "-e nio".  Instead of
+ *   tying up a thread per connection, every connection is put in
+ *   non-blocking mode and registered with one of a small, fixed
+ *   number of event loops (one per core by default).  Each loop
+ *   owns a Selector and does all of the reading and writing for
+ *   its connections, so thousands of mostly idle keep-alive
+ *   clients cost no threads at all.
+ *
+ *   The request handling itself is HTTPServerSession's: whenever
+ *   bytes arrive they are read into the session's input buffer and
+ *   processInput() answers any complete requests into the
+ *   session's output queue, which the loop then drains as the
+ *   socket allows.  While a connection has output pending, the
+ *   loop stops reading from it, so a client can't pile up
+ *   pipelined requests faster than it takes the answers.
+ *
+ *   Each loop keeps its connections' deadlines (see
+ *   HTTPServerSession) on an HTTPTimerWheel of its own, advanced
+ *   between selects, so timing out a connection is done on the
+ *   thread that owns it, and costs nothing per connection while
+ *   none is due.  A late request header is answered with 408
+ *   before the connection closes; other deadlines just close it.
+ *
+ *   HTTPListener's acceptor threads hand over the connections
+ *   they accept, a batch at a time; they are spread over the
+ *   loops in round-robin order, and each loop that got some is
+ *   woken once per batch.
+ *
+ *   To stop, the loops close connections as soon as they have
+ *   nothing in flight (no partial request, no unsent response);
+ *   sessions answer any request still arriving with "Connection:
+ *   close".  A loop exits once it has no connections left, or
+ *   closes what remains when the deadline passes.
+ */
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * A Selector-based server engine with one event loop per core.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPSelectorEngine {
+
+    // Member variables.
+    private HTTPServer m_server;            // Supplies session settings.
+    private EventLoop[] m_loops;            // Connection handlers.
+    private Thread[] m_threads;             // m_loops' threads.
+    private AtomicInteger m_next;           // Next loop to get a connection.
+
+
+    /**
+     * Creates the engine and opens a Selector for every event
+     * loop; the loops are started by run().
+     *
+     * @param server the server whose settings the sessions use
+     * @param loopCount the number of event loop threads
+     */
+    public HTTPSelectorEngine(HTTPServer server, int loopCount)
+            throws IOException
+    {
+        m_server = server;
+        m_loops = new EventLoop[loopCount];
+        m_threads = new Thread[loopCount];
+        m_next = new AtomicInteger();
+        for (int i = 0; i < loopCount; i++)
+            m_loops[i] = new EventLoop(Selector.open());
+
+        server.getMetrics().addMetric("http_accept_queue_depth", "gauge",
+                "Accepted connections not yet picked up by an event loop.",
+                () -> {
+                    long depth = 0;
+                    for (EventLoop loop : m_loops)
+                        depth += loop.m_newSessions.size();
+                    return depth;
+                });
+    }
+
+    /**
+     * Starts the event loops; connections are handed to them with
+     * register().
+     */
+    public void start() {
+        for (int i = 0; i < m_loops.length; i++) {
+            m_threads[i] = new Thread(m_loops[i],
+                    "HTTPSelectorEngine-" + (i + 1));
+            m_threads[i].start();
+        }
+    }
+
+    /**
+     * Hands a batch of newly accepted connections to the event
+     * loops (for an HTTPListener.Handler).
+     *
+     * @param batch the connections, in blocking mode
+     * @param secure true if they came in on the HTTPS port
+     */
+    public void register(List<SocketChannel> batch, boolean secure) {
+        boolean[] woken = new boolean[m_loops.length];
+        for (SocketChannel channel : batch) {
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    // Ignore.
+                }
+                continue;
+            }
+            int next = Math.floorMod(m_next.getAndIncrement(), m_loops.length);
+            m_loops[next].m_newSessions.add(
+                    new HTTPServerSession(m_server, channel, secure));
+            woken[next] = true;
+        }
+        for (int i = 0; i < m_loops.length; i++) {
+            if (woken[i])
+                m_loops[i].m_selector.wakeup();
+        }
+    }
+
+    /**
+     * Drains the event loops: each closes its connections as they
+     * fall idle and exits when none are left.  Called by
+     * HTTPServer.stop() once the listener is closed.
+     *
+     * @param deadline System.nanoTime() by which the remaining
+     *                 connections are closed regardless
+     * @return number of connections cut off at the deadline
+     */
+    public int stop(long deadline) {
+        for (EventLoop loop : m_loops)
+            loop.stop(deadline);
+
+        int cut = 0;
+        for (int i = 0; i < m_loops.length; i++) {
+            try {
+                if (m_threads[i] != null)
+                    m_threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            cut += m_loops[i].m_cut;
+        }
+        return cut;
+    }
+
+
+    /**
+     * One selector thread and the connections registered with it.
+     */
+    private static class EventLoop implements Runnable {
+
+        // Member variables.
+        private Selector m_selector;
+        private Queue<HTTPServerSession> m_newSessions;
+        private HTTPTimerWheel m_wheel;     // Connection deadlines.
+        private volatile boolean m_stopping;
+        private volatile long m_deadline;   // For m_stopping.
+        private int m_cut;                  // Closed at the deadline.
+
+
+        EventLoop(Selector selector) {
+            m_selector = selector;
+            m_newSessions = new ConcurrentLinkedQueue<>();
+            m_wheel = new HTTPTimerWheel();
+            m_stopping = false;
+            m_cut = 0;
+        }
+
+        /**
+         * Asks the loop to drain its connections and exit.
+         */
+        void stop(long deadline) {
+            m_deadline = deadline;
+            m_stopping = true;
+            m_selector.wakeup();
+        }
+
+        @Override public void run() {
+            for (;;) {
+                try {
+                    // Wake for the wheel's next tick only while it
+                    // has deadlines.
+                    m_selector.select(m_stopping ? 50
+                            : m_wheel.size() > 0
+                            ? HTTPTimerWheel.TICK_MILLIS : 0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+
+                // Pick up newly accepted connections.  They're
+                // queued by the acceptor threads and registered
+                // here, since registering blocks while another
+                // thread is inside select().
+                HTTPServerSession session;
+                while ((session = m_newSessions.poll()) != null) {
+                    try {
+                        SelectionKey key = session.getChannel().register(
+                                m_selector, SelectionKey.OP_READ, session);
+                        session.startTimer(m_wheel, () -> expire(key));
+                    } catch (IOException e) {
+                        close(session);
+                    }
+                }
+
+                // Serve the connections that are ready.
+                Iterator<SelectionKey> keys =
+                        m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        // Client went away; nothing to report.
+                        closeKey(key);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        closeKey(key);
+                    }
+                }
+
+                m_wheel.advance(System.nanoTime());
+                if (m_stopping && drain())
+                    break;
+            }
+
+            try {
+                m_selector.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+
+        /**
+         * Closes connections with nothing in flight, or all of
+         * them once the deadline has passed.
+         *
+         * @return true when no connections are left
+         */
+        private boolean drain() {
+            boolean late = System.nanoTime() - m_deadline > 0;
+            for (SelectionKey key : m_selector.keys()) {
+                if (!key.isValid())
+                    continue;
+                HTTPServerSession session =
+                        (HTTPServerSession) key.attachment();
+                if (late || session.isIdle()) {
+                    if (!session.isIdle())
+                        m_cut++;
+                    closeKey(key);
+                }
+            }
+            return m_newSessions.isEmpty() && m_selector.keys().isEmpty();
+        }
+
+        /**
+         * Reads and/or writes one ready connection.
+         *
+         * @param key the connection's selection key
+         */
+        private void handle(SelectionKey key) throws IOException {
+            HTTPServerSession session = (HTTPServerSession) key.attachment();
+
+            if (key.isValid() && key.isReadable()) {
+                int count = session.getChannel()
+                        .read(session.getInputBuffer());
+                if (count < 0) {
+                    closeKey(key);
+                    return;
+                }
+                session.processInput();
+            }
+
+            if (key.isValid())
+                write(key, session);
+        }
+
+        /**
+         * Writes what the socket takes; keeps waiting for OP_WRITE
+         * (and stops reading) until the output is drained.
+         */
+        private void write(SelectionKey key, HTTPServerSession session)
+                throws IOException
+        {
+            if (session.writeOutput()) {
+                if (session.isClosing()) {
+                    closeKey(key);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Handles a connection's deadline passing (from the
+         * wheel): a late request is answered with 408, anything
+         * else late is closed.
+         */
+        private void expire(SelectionKey key) {
+            if (!key.isValid())
+                return;
+            HTTPServerSession session = (HTTPServerSession) key.attachment();
+            try {
+                switch (session.expire()) {
+                    case HTTPServerSession.TIMEOUT_REQUEST:
+                        session.answerTimeout();
+                        write(key, session);
+                        break;
+                    case HTTPServerSession.TIMEOUT_CLOSE:
+                        closeKey(key);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                closeKey(key);
+            }
+        }
+
+        private void closeKey(SelectionKey key) {
+            key.cancel();
+            close((HTTPServerSession) key.attachment());
+        }
+
+        private void close(HTTPServerSession session) {
+            session.close();
+        }
+    }
+};
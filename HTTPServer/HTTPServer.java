@@ -7,15 +7,140 @@
  * 
  * 
  * Usage:
- *   java HTTPServer [-h] [-p PORT] [DOCPATH]
+ *   java HTTPServer [-h] [-p PORT] [-s] [-t THREADS] [-q QUEUE] [-v]
+ *                   [-k SECONDS] [-m REQUESTS] [-e ENGINE] [-n LOOPS]
+ *                   [-C BYTES] [-F BYTES] [-R MILLIS] [-c RULE]...
+ *                   [-z BYTES] [-Z BYTES] [-M PATH] [-l FILE]
+ *                   [-L FORMAT] [-b ENTRIES] [-B POLICY] [-W BYTES]
+ *                   [-x BYTES] [-X BYTES] [-a] [-Y BYTES] [-P BYTES]
+ *                   [-D] [-f FILE] [-A PATH] [-G SECONDS]
+ *                   [-N ACCEPTORS] [-Q BACKLOG] [-j BATCH] [-T]
+ *                   [-o BYTES] [-i BYTES] [-S PORT] [-K FILE]
+ *                   [-w PASSWORD] [-u ENTRIES] [-r SECONDS]
+ *                   [-y RATE] [DOCPATH]
  * 
- *   -h        display this usage screen and exit
- *   -p PORT   listen on TCP port PORT (Default: 8080)
- *   -s        display full client request header (Default: no)
+ *   -h          display this usage screen and exit
+ *   -p PORT     listen on TCP port PORT (Default: 8080)
+ *   -s          log the full client request header (Default: no)
+ *   -t THREADS  maximum number of worker threads (Default: 200)
+ *   -q QUEUE    connections allowed to wait for a worker before
+ *               the server answers "503 Service Unavailable"
+ *               (Default: 1000)
+ *   -v          run each connection in its own virtual thread
+ *               instead of the worker pool (requires Java 21)
+ *   -k SECONDS  close idle persistent connections after SECONDS
+ *               (Default: 15)
+ *   -r SECONDS  answer "408 Request Timeout" and close the
+ *               connection if a request header hasn't fully
+ *               arrived SECONDS after its first bytes
+ *               (Default: 10)
+ *   -y RATE     close connections that take a response at less
+ *               than RATE bytes per second on average, once it has
+ *               been sending for 10 seconds; 0 never does
+ *               (Default: 1024)
+ *   -m REQUESTS maximum requests served on one persistent
+ *               connection (HTTP/2: streams, after which the
+ *               client is sent GOAWAY); 1 disables keep-alive
+ *               (Default: 100)
+ *   -e ENGINE   "blocking" serves each connection on its own
+ *               (pooled or virtual) thread; "nio" serves all
+ *               connections from a few non-blocking event loops
+ *               (Default: blocking)
+ *   -n LOOPS    number of event loop threads for "-e nio"
+ *               (Default: one per available processor)
+ *   -C BYTES    memory for the static file cache; 0 disables it
+ *               (Default: 67108864)
+ *   -F BYTES    largest file whose contents are cached
+ *               (Default: 262144)
+ *   -R MILLIS   how long a cached file is served before it is
+ *               checked for changes (Default: 1000)
+ *   -c RULE     send "Cache-Control: max-age" for matching files;
+ *               RULE is PATTERN=SECONDS, where PATTERN is a file
+ *               extension (".css"), a URL path prefix ("/img/")
+ *               or "*".  May be repeated; the first match wins.
+ *               (Default: no Cache-Control field)
+ *   -z BYTES    smallest file compressed on the fly
+ *               (Default: 1024)
+ *   -Z BYTES    memory for compressed copies of files; 0 turns
+ *               off on-the-fly compression, though precompressed
+ *               ".gz" files are still used (Default: 16777216)
+ *   -Y BYTES    largest file compressed while it is sent, for
+ *               files too large to keep compressed (over a
+ *               quarter of -Z); 0 sends them uncompressed
+ *               (Default: 67108864)
+ *   -M PATH     serve the server's metrics, in Prometheus text
+ *               format, at URL path PATH; "off" disables them
+ *               (Default: /__metrics)
+ *   -l FILE     append the access log to FILE; "-" writes it to
+ *               the console, "off" disables it (Default: -)
+ *   -L FORMAT   access log format, "common" or "combined"
+ *               (Default: combined)
+ *   -b ENTRIES  access log entries buffered for the writer
+ *               thread (Default: 8192)
+ *   -B POLICY   when the access log buffer is full, "drop" the
+ *               entry or "block" the session until there's room
+ *               (Default: drop)
+ *   -W BYTES    rotate the access log file once it reaches BYTES;
+ *               0 never rotates (Default: 104857600)
+ *   -x BYTES    smallest file sent from a shared memory mapping
+ *               rather than opened per response (Default: 65536)
+ *   -X BYTES    largest file sent from a memory mapping; 0 turns
+ *               mapping off (Default: 16777216)
+ *   -a          list directories that have no "index.html"
+ *               (as HTML, or JSON with "?format=json")
+ *               instead of answering "404 Not Found" (Default: no)
+ *   -P BYTES    idle I/O buffers kept for reuse by the shared
+ *               buffer pool (Default: 67108864)
+ *   -D          report I/O buffers that are never given back to
+ *               the pool, with where they were borrowed; slow,
+ *               for debugging (Default: no)
+ *   -f FILE     read more options from FILE (whitespace-separated,
+ *               "#" starts a comment); they are applied after the
+ *               command line's, and FILE is read again on reload
+ *   -A PATH     answer "POST PATH/reload" and "POST PATH/shutdown"
+ *               from clients on this machine, e.g. "/__admin";
+ *               "off" disables it (Default: off)
+ *   -G SECONDS  on shutdown, how long in-flight requests get to
+ *               finish before their connections are cut
+ *               (Default: 10)
+ *   -N ACCEPTORS number of threads accepting connections; with
+ *               more than one, each gets its own listening socket
+ *               (SO_REUSEPORT) where the platform allows it
+ *               (Default: 1)
+ *   -Q BACKLOG  length of each listening socket's queue of
+ *               connections not yet accepted (Default: 1024)
+ *   -j BATCH    most connections an acceptor takes at a time
+ *               before handing them to the engine (Default: 16)
+ *   -T          set TCP_NODELAY on connections, sending small
+ *               responses without delay (Default: no)
+ *   -o BYTES    socket send buffer size; 0 leaves the system's
+ *               (Default: 0)
+ *   -i BYTES    socket receive buffer size; 0 leaves the system's
+ *               (Default: 0)
+ *   -S PORT     also serve HTTPS on TCP port PORT; "off" disables
+ *               it (Default: off)
+ *   -K FILE     keystore (PKCS12 or JKS) holding the HTTPS server's
+ *               private key and certificate chain
+ *   -w PASSWORD password of the keystore and its key; better given
+ *               in the -f FILE than on the command line
+ *               (Default: empty)
+ *   -u ENTRIES  TLS sessions kept for clients to resume
+ *               (Default: 10000)
  * 
  *   DOCPATH is the document root path from which to serve file
  *   resources.  The default is the current working directory.
  *
+ *   The server reloads its options (the command line and -f FILE)
+ *   on SIGHUP or "POST PATH/reload" (-A) without dropping
+ *   connections, keeping caches whose settings haven't changed.
+ *   The engine (-e, -n, -t, -q, -v), listener (-N, -Q, -j) and
+ *   buffer pool (-P, -D) settings only change on a restart, as
+ *   does turning HTTPS on or off; a reload does pick up a renewed
+ *   certificate in the keystore.  SIGTERM, SIGINT or "POST
+ *   PATH/shutdown" stop it gracefully: no new connections are
+ *   accepted, idle ones are closed, and in-flight requests are
+ *   answered (with "Connection: close") within -G SECONDS.
+ *
  * 
  * Notes:
  *   This program was tested with OpenJDK 7 on Linux Mint 14.
@@ -27,7 +152,14 @@
  */
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
 
 
 /**
@@ -36,17 +168,92 @@ import java.nio.file.*;
  * The server is initialized with parameters such as the document
  * root path and the port number to listen on.  The server is then
  * "started" with startServer(), which listens for incoming
- * connections forever.  Each connection is handled discretely in
- * its own thread using the HTTPServerSession class.
+ * connections forever.  Each connection is handled discretely by
+ * an HTTPServerSession.  With the default blocking engine the
+ * session is a task that runs either on a bounded pool of worker
+ * threads or, if requested, in its own virtual thread; with the
+ * NIO engine, HTTPSelectorEngine drives all sessions from a few
+ * event loop threads.
+ * 
+ * An HTTPServer object is also one version of the configuration:
+ * reload() builds a new one from the options and swaps it in
+ * atomically, and sessions pick it up with their next request.
+ * The server that main() started keeps the lifecycle state (the
+ * listening socket, the engine, shutdown).
  * 
  * @author Randy Sorensen
  */
 public class HTTPServer {
 
+    // Turns on stateless TLS session tickets in the JDK's provider.
+    private static final String SESSION_TICKETS_PROPERTY =
+            "jdk.tls.server.enableSessionTicketExtension";
+
     // Member variables.
     private boolean m_showClientHeader;
     private String m_docPath;
+    private Path m_docRoot;             // m_docPath's real path.
     private int m_port;
+    private int m_maxThreads;           // Worker pool size.
+    private int m_queueSize;            // Connections waiting for a worker.
+    private boolean m_virtualThreads;   // One virtual thread per connection.
+    private int m_keepAliveTimeout;     // Idle seconds before closing.
+    private int m_requestTimeout;       // Seconds to read a header.
+    private long m_minSendRate;         // Bytes/s; 0: no minimum.
+    private int m_maxRequests;          // Requests per connection.
+    private String m_engine;            // "blocking" or "nio".
+    private int m_eventLoops;           // NIO engine threads.
+    private long m_cacheSize;           // File cache budget in bytes.
+    private long m_cacheFileSize;       // Largest file body cached.
+    private long m_revalidateMillis;    // Cache entry check interval.
+    private HTTPFileCache m_fileCache;  // Shared by all sessions.
+    private HTTPCacheControl m_cacheControl;    // -c rules.
+    private long m_compressMinSize;     // Smallest file compressed.
+    private long m_compressCacheSize;   // Compressed copies budget.
+    private long m_compressStreamSize;  // Largest file streamed.
+    private HTTPCompressionCache m_compressionCache;
+    private long m_mapMinSize;          // Smallest file mapped.
+    private long m_mapMaxSize;          // Largest; 0 disables mapping.
+    private HTTPMappedFiles m_mappedFiles;  // null if disabled.
+    private boolean m_autoIndex;        // List index-less directories.
+    private HTTPDirectoryIndex m_directoryIndex;    // null if disabled.
+    private long m_bufferPoolSize;      // Idle buffer bytes retained.
+    private boolean m_bufferPoolDebug;  // Track loans, report leaks.
+    private HTTPBufferPool m_bufferPool;    // Shared by all sessions.
+    private HTTPMetrics m_metrics;      // Shared by all sessions.
+    private String m_metricsPath;       // null if disabled.
+    private String m_accessLogFile;     // "-" for console, null if off.
+    private boolean m_accessLogCombined;    // Else Common Log Format.
+    private int m_accessLogEntries;     // Ring buffer capacity.
+    private boolean m_accessLogBlock;   // Block (else drop) when full.
+    private long m_accessLogRotateSize; // 0: never rotate.
+    private HTTPAccessLog m_accessLog;  // Shared by all sessions.
+    private String m_configFile;        // -f options file, or null.
+    private String m_adminPath;         // null if disabled.
+    private long m_drainMillis;         // Shutdown grace period.
+
+    // Lifecycle, kept by the server that main() started.
+    private String[] m_args;            // Command line, for reload().
+    private volatile HTTPServer m_current;  // Newest configuration.
+    private int m_acceptors;            // Acceptor threads.
+    private int m_backlog;              // Listen queue length.
+    private int m_acceptBatch;          // Connections per accept wakeup.
+    private boolean m_tcpNoDelay;       // Disable Nagle's algorithm.
+    private int m_sendBufferSize;       // SO_SNDBUF; 0: system default.
+    private int m_receiveBufferSize;    // SO_RCVBUF; 0: system default.
+    private int m_securePort;           // HTTPS; 0 if off.
+    private String m_keyStoreFile;      // HTTPS key and certificate.
+    private String m_keyStorePassword;
+    private long m_keyStoreModified;    // m_keyStoreFile's, when read.
+    private int m_sessionCacheSize;     // TLS sessions kept.
+    private SSLContext m_sslContext;    // null if HTTPS is off.
+    private volatile HTTPListener m_listener;   // Listening sockets.
+    private volatile HTTPListener m_secureListener;    // HTTPS, or null.
+    private volatile boolean m_stopping;    // No new connections.
+    private volatile ExecutorService m_executor;    // Blocking engine.
+    private volatile HTTPSelectorEngine m_selectorEngine;  // NIO engine.
+    private Set<HTTPServerSession> m_sessions;  // Blocking engine's.
+    private HTTPTimerWheel m_timerWheel;    // Blocking engine's deadlines.
 
 
     /**
@@ -58,7 +265,66 @@ public class HTTPServer {
         // Default values.
         this.m_showClientHeader = false;
         this.m_docPath = ".";
+        this.m_docRoot = null;
         this.m_port = 8080;
+        this.m_maxThreads = 200;
+        this.m_queueSize = 1000;
+        this.m_virtualThreads = false;
+        this.m_keepAliveTimeout = 15;
+        this.m_requestTimeout = 10;
+        this.m_minSendRate = 1024;
+        this.m_maxRequests = 100;
+        this.m_engine = "blocking";
+        this.m_eventLoops = Runtime.getRuntime().availableProcessors();
+        this.m_cacheSize = 64L * 1024 * 1024;
+        this.m_cacheFileSize = 256L * 1024;
+        this.m_revalidateMillis = 1000;
+        this.m_fileCache = null;
+        this.m_cacheControl = new HTTPCacheControl();
+        this.m_compressMinSize = 1024;
+        this.m_compressCacheSize = 16L * 1024 * 1024;
+        this.m_compressStreamSize = 64L * 1024 * 1024;
+        this.m_compressionCache = null;
+        this.m_mapMinSize = 64L * 1024;
+        this.m_mapMaxSize = 16L * 1024 * 1024;
+        this.m_mappedFiles = null;
+        this.m_autoIndex = false;
+        this.m_directoryIndex = null;
+        this.m_bufferPoolSize = 64L * 1024 * 1024;
+        this.m_bufferPoolDebug = false;
+        this.m_bufferPool = null;
+        this.m_metrics = new HTTPMetrics();
+        this.m_metricsPath = "/__metrics";
+        this.m_accessLogFile = "-";
+        this.m_accessLogCombined = true;
+        this.m_accessLogEntries = 8192;
+        this.m_accessLogBlock = false;
+        this.m_accessLogRotateSize = 100L * 1024 * 1024;
+        this.m_accessLog = null;
+        this.m_configFile = null;
+        this.m_adminPath = null;
+        this.m_drainMillis = 10 * 1000;
+        this.m_args = new String[0];
+        this.m_current = this;
+        this.m_acceptors = 1;
+        this.m_backlog = 1024;
+        this.m_acceptBatch = 16;
+        this.m_tcpNoDelay = false;
+        this.m_sendBufferSize = 0;
+        this.m_receiveBufferSize = 0;
+        this.m_securePort = 0;
+        this.m_keyStoreFile = null;
+        this.m_keyStorePassword = "";
+        this.m_keyStoreModified = 0;
+        this.m_sessionCacheSize = 10000;
+        this.m_sslContext = null;
+        this.m_listener = null;
+        this.m_secureListener = null;
+        this.m_stopping = false;
+        this.m_executor = null;
+        this.m_selectorEngine = null;
+        this.m_sessions = ConcurrentHashMap.newKeySet();
+        this.m_timerWheel = null;
     }
 
     /**
@@ -67,26 +333,156 @@ public class HTTPServer {
     public void showUsage() {
         System.out.println(
               "Usage:                                                   \n"
-            + "\tjava HTTPServer [-h] [-p PORT] [DOCPATH]               \n"
+            + "\tjava HTTPServer [-h] [-p PORT] [-s] [-t THREADS]       \n"
+            + "\t                [-q QUEUE] [-v] [-k SECONDS]           \n"
+            + "\t                [-m REQUESTS] [-e ENGINE] [-n LOOPS]   \n"
+            + "\t                [-C BYTES] [-F BYTES] [-R MILLIS]      \n"
+            + "\t                [-c RULE]... [-z BYTES] [-Z BYTES]     \n"
+            + "\t                [-M PATH] [-l FILE] [-L FORMAT]        \n"
+            + "\t                [-b ENTRIES] [-B POLICY] [-W BYTES]    \n"
+            + "\t                [-x BYTES] [-X BYTES] [-a] [-Y BYTES]  \n"
+            + "\t                [-P BYTES] [-D] [-f FILE] [-A PATH]    \n"
+            + "\t                [-G SECONDS] [-N ACCEPTORS] [-Q BACKLOG]\n"
+            + "\t                [-j BATCH] [-T] [-o BYTES] [-i BYTES]  \n"
+            + "\t                [-S PORT] [-K FILE] [-w PASSWORD]      \n"
+            + "\t                [-u ENTRIES] [-r SECONDS] [-y RATE]    \n"
+            + "\t                [DOCPATH]                              \n"
             + "                                                         \n"
-            + "  -h        display this usage screen and exit           \n"
-            + "  -p PORT   use TCP port number PORT (Default: 8080)     \n"
-            + "  -s        display full client request header           \n"
-            + "            (Default: no)                                \n"
+            + "  -h          display this usage screen and exit         \n"
+            + "  -p PORT     use TCP port number PORT (Default: 8080)   \n"
+            + "  -s          log full client request header             \n"
+            + "              (Default: no)                              \n"
+            + "  -t THREADS  maximum number of worker threads           \n"
+            + "              (Default: 200)                             \n"
+            + "  -q QUEUE    connections that may wait for a worker     \n"
+            + "              before \"503 Service Unavailable\" is      \n"
+            + "              sent (Default: 1000)                       \n"
+            + "  -v          use one virtual thread per connection      \n"
+            + "              instead of the worker pool (Java 21+)      \n"
+            + "  -k SECONDS  close idle persistent connections after    \n"
+            + "              SECONDS (Default: 15)                      \n"
+            + "  -r SECONDS  answer 408 if a request header takes       \n"
+            + "              longer than SECONDS to arrive (Default: 10)\n"
+            + "  -y RATE     close connections taking responses slower  \n"
+            + "              than RATE bytes/s, after 10 seconds; 0     \n"
+            + "              never does (Default: 1024)                 \n"
+            + "  -m REQUESTS maximum requests per persistent connection;\n"
+            + "              HTTP/2 streams count too; 1 disables       \n"
+            + "              keep-alive (Default: 100)                  \n"
+            + "  -e ENGINE   \"blocking\" (a thread per connection) or   \n"
+            + "              \"nio\" (non-blocking event loops)          \n"
+            + "              (Default: blocking)                        \n"
+            + "  -n LOOPS    event loop threads for \"-e nio\"           \n"
+            + "              (Default: one per processor)               \n"
+            + "  -C BYTES    memory for the static file cache;          \n"
+            + "              0 disables it (Default: 67108864)          \n"
+            + "  -F BYTES    largest file whose contents are cached     \n"
+            + "              (Default: 262144)                          \n"
+            + "  -R MILLIS   serve cached files this long before        \n"
+            + "              checking them for changes (Default: 1000)  \n"
+            + "  -c RULE     send \"Cache-Control: max-age\" for files   \n"
+            + "              matching RULE, given as PATTERN=SECONDS;   \n"
+            + "              PATTERN is an extension (\".css\"), a URL   \n"
+            + "              path prefix (\"/img/\") or \"*\".  May be    \n"
+            + "              repeated; the first match wins.            \n"
+            + "  -z BYTES    smallest file compressed on the fly        \n"
+            + "              (Default: 1024)                            \n"
+            + "  -Z BYTES    memory for compressed copies of files;     \n"
+            + "              0 disables on-the-fly compression          \n"
+            + "              (Default: 16777216)                        \n"
+            + "  -Y BYTES    largest file compressed while it is sent,  \n"
+            + "              for files too large to keep compressed;    \n"
+            + "              0 disables (Default: 67108864)             \n"
+            + "  -M PATH     serve metrics (Prometheus text format) at  \n"
+            + "              URL path PATH; \"off\" disables them       \n"
+            + "              (Default: /__metrics)                      \n"
+            + "  -l FILE     append the access log to FILE; \"-\" for    \n"
+            + "              the console, \"off\" disables it (Default: -)\n"
+            + "  -L FORMAT   access log format, \"common\" or            \n"
+            + "              \"combined\" (Default: combined)            \n"
+            + "  -b ENTRIES  access log entries buffered for writing    \n"
+            + "              (Default: 8192)                            \n"
+            + "  -B POLICY   \"drop\" entries or \"block\" sessions when  \n"
+            + "              the log buffer is full (Default: drop)     \n"
+            + "  -W BYTES    rotate the access log file at BYTES;       \n"
+            + "              0 never rotates (Default: 104857600)       \n"
+            + "  -x BYTES    smallest file sent from a shared memory    \n"
+            + "              mapping (Default: 65536)                   \n"
+            + "  -X BYTES    largest file sent from a memory mapping;   \n"
+            + "              0 disables mapping (Default: 16777216)     \n"
+            + "  -a          list directories that have no index.html   \n"
+            + "              (HTML, or JSON with ?format=json)          \n"
+            + "              (Default: no)                              \n"
+            + "  -P BYTES    idle I/O buffers kept for reuse            \n"
+            + "              (Default: 67108864)                        \n"
+            + "  -D          report I/O buffers never given back to     \n"
+            + "              the pool; slow (Default: no)               \n"
+            + "  -f FILE     read more options from FILE, applied after \n"
+            + "              the command line; read again on reload     \n"
+            + "  -A PATH     accept POST PATH/reload and PATH/shutdown  \n"
+            + "              from local clients, e.g. \"/__admin\";     \n"
+            + "              \"off\" disables it (Default: off)          \n"
+            + "  -G SECONDS  time in-flight requests get to finish on   \n"
+            + "              shutdown (Default: 10)                     \n"
+            + "  -N ACCEPTORS threads accepting connections, each with   \n"
+            + "              its own socket (SO_REUSEPORT) if possible  \n"
+            + "              (Default: 1)                               \n"
+            + "  -Q BACKLOG  listen queue length per socket             \n"
+            + "              (Default: 1024)                            \n"
+            + "  -j BATCH    most connections accepted at a time        \n"
+            + "              (Default: 16)                              \n"
+            + "  -T          set TCP_NODELAY on connections             \n"
+            + "              (Default: no)                              \n"
+            + "  -o BYTES    socket send buffer size; 0 for the         \n"
+            + "              system's (Default: 0)                      \n"
+            + "  -i BYTES    socket receive buffer size; 0 for the      \n"
+            + "              system's (Default: 0)                      \n"
+            + "  -S PORT     also serve HTTPS on PORT; \"off\" disables  \n"
+            + "              it (Default: off)                          \n"
+            + "  -K FILE     keystore (PKCS12 or JKS) with the HTTPS    \n"
+            + "              key and certificate                        \n"
+            + "  -w PASSWORD keystore and key password (Default: empty) \n"
+            + "  -u ENTRIES  TLS sessions kept for resumption           \n"
+            + "              (Default: 10000)                           \n"
             + "                                                         \n"
             + " DOCPATH is the document root path from which resources  \n"
             + " will be served.  The default is the current working     \n"
             + " directory.");
     }
 
+    /**
+     * Sets the server's member/state variables based on the
+     * command line and, if it names one, the options file.
+     *
+     * @param args the program arguments that were passed to
+     *   main().
+     * @throws IllegalArgumentException if an option is invalid
+     * @throws IOException if the options file can't be read
+     */
+    public void loadArgs(String args[]) throws IOException {
+        parseArgs(args);
+        if (m_configFile != null)
+            parseArgs(readOptionsFile(m_configFile));
+    }
+
     /**
      * Sets the server's member/state variables based on
      * the arguments passed on the command line.
      *
      * @param args the program arguments that were passed to
      *   main().
+     * @throws IllegalArgumentException if an option is invalid
      */
     public void parseArgs(String args[]) {
+        try {
+            parseOptions(args);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Missing value for "
+                    + args[args.length - 1]);
+        }
+    }
+
+    private void parseOptions(String args[]) {
         // Process command line arguments.
         for (int arg = 0; arg < args.length; arg++) {
             switch (args[arg]) {
@@ -107,13 +503,316 @@ public class HTTPServer {
                     m_showClientHeader = true;
                     break;
 
+                case "-t":
+                    // Set maximum number of worker threads.
+                    arg++;
+                    this.m_maxThreads = Integer.parseInt(args[arg]);
+                    if (m_maxThreads < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-q":
+                    // Set number of connections waiting for a worker.
+                    arg++;
+                    this.m_queueSize = Integer.parseInt(args[arg]);
+                    if (m_queueSize < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-v":
+                    // Use a virtual thread per connection.
+                    m_virtualThreads = true;
+                    break;
+
+                case "-k":
+                    // Set keep-alive idle timeout.
+                    arg++;
+                    this.m_keepAliveTimeout = Integer.parseInt(args[arg]);
+                    if (m_keepAliveTimeout < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-r":
+                    // Set request header deadline.
+                    arg++;
+                    this.m_requestTimeout = Integer.parseInt(args[arg]);
+                    if (m_requestTimeout < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-y":
+                    // Set minimum response send rate.
+                    arg++;
+                    this.m_minSendRate = Long.parseLong(args[arg]);
+                    if (m_minSendRate < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-m":
+                    // Set maximum requests per connection.
+                    arg++;
+                    this.m_maxRequests = Integer.parseInt(args[arg]);
+                    if (m_maxRequests < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-e":
+                    // Select the server engine.
+                    arg++;
+                    this.m_engine = args[arg];
+                    if (!m_engine.equals("blocking")
+                            && !m_engine.equals("nio"))
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-n":
+                    // Set number of NIO event loops.
+                    arg++;
+                    this.m_eventLoops = Integer.parseInt(args[arg]);
+                    if (m_eventLoops < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-C":
+                    // Set file cache budget.
+                    arg++;
+                    this.m_cacheSize = Long.parseLong(args[arg]);
+                    if (m_cacheSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-F":
+                    // Set largest file body to cache.
+                    arg++;
+                    this.m_cacheFileSize = Long.parseLong(args[arg]);
+                    if (m_cacheFileSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-c":
+                    // Add a Cache-Control rule.
+                    arg++;
+                    m_cacheControl.addRule(args[arg]);
+                    break;
+
+                case "-z":
+                    // Set smallest file to compress.
+                    arg++;
+                    this.m_compressMinSize = Long.parseLong(args[arg]);
+                    if (m_compressMinSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-Z":
+                    // Set compressed copies budget.
+                    arg++;
+                    this.m_compressCacheSize = Long.parseLong(args[arg]);
+                    if (m_compressCacheSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-Y":
+                    // Set largest file compressed while sent.
+                    arg++;
+                    this.m_compressStreamSize = Long.parseLong(args[arg]);
+                    if (m_compressStreamSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-M":
+                    // Set (or disable) the metrics path.
+                    arg++;
+                    this.m_metricsPath = args[arg].equals("off")
+                            ? null : args[arg];
+                    if (m_metricsPath != null && !m_metricsPath.startsWith("/"))
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-l":
+                    // Set (or disable) the access log file.
+                    arg++;
+                    this.m_accessLogFile = args[arg].equals("off")
+                            ? null : args[arg];
+                    break;
+
+                case "-L":
+                    // Select the access log format.
+                    arg++;
+                    if (!args[arg].equals("common")
+                            && !args[arg].equals("combined"))
+                        throw badArgument(args[arg]);
+                    this.m_accessLogCombined = args[arg].equals("combined");
+                    break;
+
+                case "-b":
+                    // Set access log buffer size.
+                    arg++;
+                    this.m_accessLogEntries = Integer.parseInt(args[arg]);
+                    if (m_accessLogEntries < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-B":
+                    // Select what happens when the log buffer is full.
+                    arg++;
+                    if (!args[arg].equals("drop")
+                            && !args[arg].equals("block"))
+                        throw badArgument(args[arg]);
+                    this.m_accessLogBlock = args[arg].equals("block");
+                    break;
+
+                case "-W":
+                    // Set access log rotation size.
+                    arg++;
+                    this.m_accessLogRotateSize = Long.parseLong(args[arg]);
+                    if (m_accessLogRotateSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-a":
+                    // List directories without an index.
+                    m_autoIndex = true;
+                    break;
+
+                case "-P":
+                    // Set buffer pool retention.
+                    arg++;
+                    this.m_bufferPoolSize = Long.parseLong(args[arg]);
+                    if (m_bufferPoolSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-D":
+                    // Track buffer loans.
+                    m_bufferPoolDebug = true;
+                    break;
+
+                case "-f":
+                    // Set the options file.
+                    arg++;
+                    this.m_configFile = args[arg];
+                    break;
+
+                case "-A":
+                    // Set (or disable) the admin path.
+                    arg++;
+                    this.m_adminPath = args[arg].equals("off")
+                            ? null : args[arg];
+                    if (m_adminPath != null && !m_adminPath.startsWith("/"))
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-G":
+                    // Set shutdown grace period.
+                    arg++;
+                    this.m_drainMillis = 1000 * Long.parseLong(args[arg]);
+                    if (m_drainMillis < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-x":
+                    // Set smallest file to map.
+                    arg++;
+                    this.m_mapMinSize = Long.parseLong(args[arg]);
+                    if (m_mapMinSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-X":
+                    // Set largest file to map.
+                    arg++;
+                    this.m_mapMaxSize = Long.parseLong(args[arg]);
+                    if (m_mapMaxSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-R":
+                    // Set cache revalidation interval.
+                    arg++;
+                    this.m_revalidateMillis = Long.parseLong(args[arg]);
+                    if (m_revalidateMillis < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-N":
+                    // Set number of acceptor threads.
+                    arg++;
+                    this.m_acceptors = Integer.parseInt(args[arg]);
+                    if (m_acceptors < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-Q":
+                    // Set listen queue length.
+                    arg++;
+                    this.m_backlog = Integer.parseInt(args[arg]);
+                    if (m_backlog < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-j":
+                    // Set connections accepted per wakeup.
+                    arg++;
+                    this.m_acceptBatch = Integer.parseInt(args[arg]);
+                    if (m_acceptBatch < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-T":
+                    // Send small segments without delay.
+                    m_tcpNoDelay = true;
+                    break;
+
+                case "-o":
+                    // Set socket send buffer size.
+                    arg++;
+                    this.m_sendBufferSize = Integer.parseInt(args[arg]);
+                    if (m_sendBufferSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-i":
+                    // Set socket receive buffer size.
+                    arg++;
+                    this.m_receiveBufferSize = Integer.parseInt(args[arg]);
+                    if (m_receiveBufferSize < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-S":
+                    // Set (or disable) the HTTPS port.
+                    arg++;
+                    this.m_securePort = args[arg].equals("off")
+                            ? 0 : Integer.parseInt(args[arg]);
+                    if (m_securePort < 0)
+                        throw badArgument(args[arg]);
+                    break;
+
+                case "-K":
+                    // Set the HTTPS keystore.
+                    arg++;
+                    this.m_keyStoreFile = args[arg];
+                    break;
+
+                case "-w":
+                    // Set the keystore password.
+                    arg++;
+                    this.m_keyStorePassword = args[arg];
+                    break;
+
+                case "-u":
+                    // Set TLS session cache size.
+                    arg++;
+                    this.m_sessionCacheSize = Integer.parseInt(args[arg]);
+                    if (m_sessionCacheSize < 1)
+                        throw badArgument(args[arg]);
+                    break;
+
                 default:
                     // Set document root path.
                     this.m_docPath = args[arg];
-                    if (!Files.isDirectory(Paths.get(m_docPath))) {
-                        showUsage();
-                        System.exit(-1);
-                    }
+                    if (!Files.isDirectory(Paths.get(m_docPath)))
+                        throw badArgument(args[arg]);
 
                     // Kill loop / ignore subsequent arguments.
                     arg = args.length;
@@ -122,40 +821,842 @@ public class HTTPServer {
         }
     }
 
+    private static IllegalArgumentException badArgument(String arg) {
+        return new IllegalArgumentException("Invalid argument: " + arg);
+    }
+
+    /**
+     * Splits an options file into arguments: words separated by
+     * whitespace, with "#" starting a comment.
+     */
+    private static String[] readOptionsFile(String fileName)
+            throws IOException
+    {
+        List<String> options = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fileName),
+                StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            for (String word : line.trim().split("\\s+")) {
+                if (!word.isEmpty())
+                    options.add(word);
+            }
+        }
+        return options.toArray(new String[0]);
+    }
+
+    /**
+     * @return true if full client request headers should be
+     *         shown on the console
+     */
+    public boolean getShowClientHeader() {
+        return m_showClientHeader;
+    }
+
     /**
-     * Listens for HTTP requests "forever".
+     * @return the TCP port to listen on
+     */
+    public int getPort() {
+        return m_port;
+    }
+
+    /**
+     * @return the TCP port to serve HTTPS on, or 0 if it's off
+     */
+    public int getSecurePort() {
+        return m_securePort;
+    }
+
+    /**
+     * @return the HTTPS certificate and session cache, or null if
+     *         HTTPS is off
+     */
+    public SSLContext getSSLContext() {
+        return m_sslContext;
+    }
+
+    /**
+     * @return socket receive buffer size, or 0 for the system's
+     */
+    public int getReceiveBufferSize() {
+        return m_receiveBufferSize;
+    }
+
+    /**
+     * Sets the configured options on a newly accepted connection.
      *
-     * The server can be terminated by sending a blank request
-     * line or by sending "null" or "exit" as the request line.
+     * @param channel the connection
+     */
+    public void configureSocket(SocketChannel channel) throws IOException {
+        if (m_tcpNoDelay)
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (m_sendBufferSize > 0)
+            channel.setOption(StandardSocketOptions.SO_SNDBUF,
+                    m_sendBufferSize);
+        if (m_receiveBufferSize > 0)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF,
+                    m_receiveBufferSize);
+    }
+
+    /**
+     * @return the document root path
+     */
+    public String getDocPath() {
+        return m_docPath;
+    }
+
+    /**
+     * @return the document root's real path, resolved once by
+     *         createCaches()
+     */
+    public Path getDocRoot() {
+        return m_docRoot;
+    }
+
+    /**
+     * @return seconds a persistent connection may sit idle
+     *         before it is closed
+     */
+    public int getKeepAliveTimeout() {
+        return m_keepAliveTimeout;
+    }
+
+    /**
+     * @return seconds a request header may take to arrive, from
+     *         its first bytes
+     */
+    public int getRequestTimeout() {
+        return m_requestTimeout;
+    }
+
+    /**
+     * @return bytes per second a client must at least take a
+     *         response at, or 0 for no minimum
+     */
+    public long getMinSendRate() {
+        return m_minSendRate;
+    }
+
+    /**
+     * @return the blocking engine's deadlines, shared by its
+     *         sessions (null with the NIO engine, whose event
+     *         loops keep their own)
+     */
+    public HTTPTimerWheel getTimerWheel() {
+        return m_timerWheel;
+    }
+
+    /**
+     * @return maximum number of requests answered on a single
+     *         connection
+     */
+    public int getMaxRequests() {
+        return m_maxRequests;
+    }
+
+    /**
+     * @return the static file cache shared by all sessions
+     */
+    public HTTPFileCache getFileCache() {
+        return m_fileCache;
+    }
+
+    /**
+     * @return the Cache-Control rules given with -c
+     */
+    public HTTPCacheControl getCacheControl() {
+        return m_cacheControl;
+    }
+
+    /**
+     * @return the cache of compressed files shared by all sessions
+     */
+    public HTTPCompressionCache getCompressionCache() {
+        return m_compressionCache;
+    }
+
+    /**
+     * @return the memory mappings shared by all sessions, or null
+     *         if files aren't mapped
+     */
+    public HTTPMappedFiles getMappedFiles() {
+        return m_mappedFiles;
+    }
+
+    /**
+     * @return the directory listings shared by all sessions, or
+     *         null if directories aren't listed
+     */
+    public HTTPDirectoryIndex getDirectoryIndex() {
+        return m_directoryIndex;
+    }
+
+    /**
+     * @return the I/O buffers shared by all sessions
+     */
+    public HTTPBufferPool getBufferPool() {
+        return m_bufferPool;
+    }
+
+    /**
+     * @return the statistics shared by all sessions
+     */
+    public HTTPMetrics getMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     * @return the URL path the metrics are served at, or null
+     */
+    public String getMetricsPath() {
+        return m_metricsPath;
+    }
+
+    /**
+     * @return the access log shared by all sessions, or null if
+     *         requests aren't logged
+     */
+    public HTTPAccessLog getAccessLog() {
+        return m_accessLog;
+    }
+
+    /**
+     * @return the URL path admin requests are served under, or
+     *         null
+     */
+    public String getAdminPath() {
+        return m_adminPath;
+    }
+
+    /**
+     * @return the newest configuration, which new requests are
+     *         answered with (this server until reload() is called)
+     */
+    public HTTPServer getCurrent() {
+        return m_current;
+    }
+
+    /**
+     * @return true once the server has begun to shut down; no
+     *         connection is kept alive after that
+     */
+    public boolean isStopping() {
+        return m_stopping;
+    }
+
+    /**
+     * Creates the executor that runs HTTPServerSession tasks.
+     *
+     * By default this is a bounded pool of m_maxThreads worker
+     * threads with room for m_queueSize waiting connections;
+     * beyond that, execute() throws RejectedExecutionException.
+     * With -v, every connection gets its own virtual thread
+     * instead.
+     *
+     * @return the session executor
+     */
+    public ExecutorService createExecutor() {
+        if (m_virtualThreads) {
+            // Looked up reflectively so the server still builds and
+            // runs on JDKs without virtual threads.
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println(
+                        "Virtual threads are not available on this JVM"
+                        + " (Java 21 or later is required).");
+                System.exit(-1);
+            }
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                m_maxThreads, m_maxThreads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(m_queueSize),
+                new ThreadFactory() {
+                    @Override public Thread newThread(Runnable task) {
+                        return new Thread(task, "HTTPServerSession-"
+                                + threadCount.incrementAndGet());
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        // Let idle workers exit so a quiet server holds no threads.
+        pool.allowCoreThreadTimeOut(true);
+
+        // How close the pool is to turning clients away.
+        m_metrics.addMetric("http_accept_queue_depth", "gauge",
+                "Accepted connections waiting for a worker thread.",
+                () -> pool.getQueue().size());
+        m_metrics.addMetric("http_worker_threads_busy", "gauge",
+                "Worker threads serving a connection.",
+                pool::getActiveCount);
+        return pool;
+    }
+
+    /**
+     * Creates the caches shared by all sessions, as configured by
+     * parseArgs().  Called by startServer(); sessions may only be
+     * created after this.
+     *
+     * The document root is resolved here, once: requested paths
+     * are checked against its real path.
+     */
+    public void createCaches() throws IOException {
+        createCaches(null);
+        registerMetrics();
+    }
+
+    /**
+     * Creates the caches for a reloaded configuration, taking over
+     * the previous configuration's where their settings are the
+     * same, so a reload doesn't start them cold.  The metrics and
+     * buffer pool are always taken over.  Their figures are only
+     * reported once the configuration is in use.
+     *
+     * @param previous the configuration being replaced, or null
+     */
+    public void createCaches(HTTPServer previous) throws IOException {
+        m_docRoot = Paths.get(m_docPath).toRealPath();
+        boolean sameRoot = previous != null
+                && previous.m_docRoot.equals(m_docRoot);
+        if (previous != null) {
+            m_metrics = previous.m_metrics;
+            m_bufferPool = previous.m_bufferPool;
+        } else {
+            m_bufferPool = new HTTPBufferPool(m_bufferPoolSize,
+                    m_bufferPoolDebug);
+        }
+
+        if (sameRoot && previous.m_cacheSize == m_cacheSize
+                && previous.m_cacheFileSize == m_cacheFileSize
+                && previous.m_revalidateMillis == m_revalidateMillis) {
+            m_fileCache = previous.m_fileCache;
+        } else {
+            m_fileCache = new HTTPFileCache(m_docRoot, m_cacheSize,
+                    m_cacheFileSize, m_revalidateMillis);
+        }
+        if (previous != null
+                && previous.m_compressCacheSize == m_compressCacheSize
+                && previous.m_compressMinSize == m_compressMinSize
+                && previous.m_compressStreamSize == m_compressStreamSize) {
+            m_compressionCache = previous.m_compressionCache;
+        } else {
+            m_compressionCache = new HTTPCompressionCache(m_compressCacheSize,
+                    m_compressMinSize, m_compressStreamSize);
+        }
+
+        if (m_autoIndex) {
+            m_directoryIndex = (sameRoot && previous.m_directoryIndex != null)
+                    ? previous.m_directoryIndex
+                    : new HTTPDirectoryIndex(m_docRoot);
+        }
+
+        if (m_mapMaxSize > 0 && m_mapMaxSize >= m_mapMinSize) {
+            if (previous != null && previous.m_mappedFiles != null
+                    && previous.m_mapMinSize == m_mapMinSize
+                    && previous.m_mapMaxSize == m_mapMaxSize) {
+                m_mappedFiles = previous.m_mappedFiles;
+            } else {
+                m_mappedFiles = new HTTPMappedFiles(m_mapMinSize,
+                        m_mapMaxSize);
+            }
+        }
+    }
+
+    /**
+     * Loads the HTTPS key and certificate from the keystore, if
+     * HTTPS is on, taking over the previous configuration's TLS
+     * context (and with it the sessions clients may resume) if
+     * neither the settings nor the keystore file have changed.
+     *
+     * Session tickets are turned on (unless the JVM was told
+     * otherwise), so clients can resume sessions that have been
+     * dropped from the cache.
+     *
+     * @param previous the configuration being replaced, or null
+     * @throws IllegalArgumentException if no keystore was given
+     * @throws IOException if the keystore can't be read or has no
+     *                     usable key
+     */
+    public void createSSLContext(HTTPServer previous) throws IOException {
+        if (m_securePort == 0)
+            return;
+        if (m_keyStoreFile == null)
+            throw new IllegalArgumentException(
+                    "HTTPS (-S) needs a keystore (-K FILE)");
+        File file = new File(m_keyStoreFile);
+        m_keyStoreModified = Files.getLastModifiedTime(file.toPath())
+                .toMillis();
+        if (previous != null && previous.m_sslContext != null
+                && m_keyStoreFile.equals(previous.m_keyStoreFile)
+                && m_keyStorePassword.equals(previous.m_keyStorePassword)
+                && m_keyStoreModified == previous.m_keyStoreModified
+                && m_sessionCacheSize == previous.m_sessionCacheSize) {
+            m_sslContext = previous.m_sslContext;
+            return;
+        }
+
+        if (System.getProperty(SESSION_TICKETS_PROPERTY) == null)
+            System.setProperty(SESSION_TICKETS_PROPERTY, "true");
+        char[] password = m_keyStorePassword.toCharArray();
+        try {
+            KeyStore keyStore = KeyStore.getInstance(file, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                    KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            context.getServerSessionContext()
+                   .setSessionCacheSize(m_sessionCacheSize);
+            m_sslContext = context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't use keystore \"" + m_keyStoreFile
+                    + "\": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Opens the access log, as configured by parseArgs(), and
+     * starts its writer thread.  Without this, sessions log
+     * nothing.
+     */
+    public void createAccessLog() throws IOException {
+        createAccessLog(null);
+        registerMetrics();
+    }
+
+    /**
+     * Opens the access log for a reloaded configuration, taking
+     * over the previous configuration's if its settings are the
+     * same.
+     *
+     * @param previous the configuration being replaced, or null
+     */
+    public void createAccessLog(HTTPServer previous) throws IOException {
+        if (m_accessLogFile == null)
+            return;
+        if (previous != null && previous.m_accessLog != null
+                && m_accessLogFile.equals(previous.m_accessLogFile)
+                && previous.m_accessLogCombined == m_accessLogCombined
+                && previous.m_accessLogEntries == m_accessLogEntries
+                && previous.m_accessLogBlock == m_accessLogBlock
+                && previous.m_accessLogRotateSize == m_accessLogRotateSize) {
+            m_accessLog = previous.m_accessLog;
+        } else {
+            m_accessLog = new HTTPAccessLog(m_accessLogFile,
+                    m_accessLogCombined, m_accessLogEntries,
+                    m_accessLogBlock, m_accessLogRotateSize);
+        }
+    }
+
+    /**
+     * Points the caches' and access log's figures in the metrics
+     * report at this configuration's, and drops those of anything
+     * it has turned off.
+     */
+    private void registerMetrics() {
+        m_metrics.addMetric("http_file_cache_hits_total", "counter",
+                "File lookups answered from the cache.",
+                m_fileCache::getHits);
+        m_metrics.addMetric("http_file_cache_misses_total", "counter",
+                "File lookups that went to the filesystem.",
+                m_fileCache::getMisses);
+        m_metrics.addMetric("http_file_cache_bytes", "gauge",
+                "Bytes held by the file cache.", m_fileCache::getBytes);
+        m_metrics.addMetric("http_compression_cache_bytes", "gauge",
+                "Bytes held by the compression cache.",
+                m_compressionCache::getBytes);
+        m_metrics.addMetric("http_buffer_pool_borrowed_total", "counter",
+                "I/O buffers lent out by the buffer pool.",
+                m_bufferPool::getBorrowed);
+        m_metrics.addMetric("http_buffer_pool_allocated_total", "counter",
+                "I/O buffers the pool had to allocate.",
+                m_bufferPool::getAllocated);
+        m_metrics.addMetric("http_buffer_pool_direct_bytes_total", "counter",
+                "Bytes of direct I/O buffers allocated.",
+                m_bufferPool::getAllocatedDirectBytes);
+        m_metrics.addMetric("http_buffer_pool_retained_bytes", "gauge",
+                "Bytes of idle I/O buffers kept for reuse.",
+                m_bufferPool::getRetainedBytes);
+        if (m_bufferPoolDebug) {
+            m_metrics.addMetric("http_buffer_pool_leaks_total", "counter",
+                    "I/O buffers never given back to the pool.",
+                    m_bufferPool::getLeaks);
+        }
+
+        if (m_directoryIndex != null) {
+            m_metrics.addMetric("http_directory_index_hits_total", "counter",
+                    "Directory listings sent from the cache.",
+                    m_directoryIndex::getHits);
+            m_metrics.addMetric("http_directory_index_misses_total",
+                    "counter", "Directory listings rendered.",
+                    m_directoryIndex::getMisses);
+        } else {
+            m_metrics.removeMetric("http_directory_index_hits_total");
+            m_metrics.removeMetric("http_directory_index_misses_total");
+        }
+
+        if (m_mappedFiles != null) {
+            m_metrics.addMetric("http_mapped_file_hits_total", "counter",
+                    "File responses sent from an existing mapping.",
+                    m_mappedFiles::getHits);
+            m_metrics.addMetric("http_mapped_file_misses_total", "counter",
+                    "File responses that had to map the file.",
+                    m_mappedFiles::getMisses);
+            m_metrics.addMetric("http_mapped_files", "gauge",
+                    "Files currently memory-mapped.",
+                    m_mappedFiles::getMappingCount);
+            m_metrics.addMetric("http_mapped_bytes", "gauge",
+                    "Bytes of files currently memory-mapped.",
+                    m_mappedFiles::getMappedBytes);
+        } else {
+            m_metrics.removeMetric("http_mapped_file_hits_total");
+            m_metrics.removeMetric("http_mapped_file_misses_total");
+            m_metrics.removeMetric("http_mapped_files");
+            m_metrics.removeMetric("http_mapped_bytes");
+        }
+
+        if (m_accessLog != null) {
+            m_metrics.addMetric("http_access_log_dropped_total", "counter",
+                    "Access log entries dropped because the buffer was full.",
+                    m_accessLog::getDropped);
+            m_metrics.addMetric("http_access_log_pending", "gauge",
+                    "Access log entries waiting to be written.",
+                    m_accessLog::getPending);
+        } else {
+            m_metrics.removeMetric("http_access_log_dropped_total");
+            m_metrics.removeMetric("http_access_log_pending");
+        }
+    }
+
+    /**
+     * Re-reads the options (the command line and -f FILE) and
+     * swaps the new configuration in; sessions answer their next
+     * request with it, without dropping any connection.  Caches
+     * whose settings are unchanged are kept warm, and a new port
+     * is bound before the old one is closed.
+     *
+     * If anything is wrong with the new options, the running
+     * configuration stays as it was.
+     *
+     * @throws IllegalArgumentException if an option is invalid
+     * @throws IllegalStateException if the server is shutting down
+     * @throws IOException if the options file, document root or
+     *                     port can't be used
+     */
+    public synchronized void reload() throws IOException {
+        if (m_stopping)
+            throw new IllegalStateException("The server is shutting down");
+
+        HTTPServer current = m_current;
+        HTTPServer next = new HTTPServer();
+        next.loadArgs(m_args);
+        try {
+            if ((next.m_securePort == 0) != (m_securePort == 0))
+                throw new IllegalArgumentException(
+                        "HTTPS can only be turned on or off on restart");
+            next.createCaches(current);
+            next.createAccessLog(current);
+            next.createSSLContext(current);
+            if (next.m_port != current.m_port && m_listener != null)
+                m_listener.rebind(next);
+            if (next.m_securePort != current.m_securePort
+                    && m_secureListener != null)
+                m_secureListener.rebind(next);
+        } catch (IOException | RuntimeException e) {
+            retire(next, current);
+            throw e;
+        }
+
+        m_current = next;
+        next.registerMetrics();
+        retire(current, next);
+
+        if (!next.m_engine.equals(m_engine)
+                || next.m_eventLoops != m_eventLoops
+                || next.m_maxThreads != m_maxThreads
+                || next.m_queueSize != m_queueSize
+                || next.m_virtualThreads != m_virtualThreads
+                || next.m_bufferPoolSize != m_bufferPoolSize
+                || next.m_bufferPoolDebug != m_bufferPoolDebug
+                || next.m_acceptors != m_acceptors
+                || next.m_backlog != m_backlog
+                || next.m_acceptBatch != m_acceptBatch)
+            System.out.println("Reload: engine, listener and buffer pool"
+                    + " settings take effect on restart");
+        System.out.println("Reloaded configuration (port " + next.m_port
+                + ", document root \"" + next.m_docPath + "\")");
+    }
+
+    /**
+     * Stops what a configuration started that its replacement
+     * doesn't share.  Requests still being answered with the old
+     * configuration finish, though their access log entries may be
+     * lost if the log was replaced.
+     */
+    private static void retire(HTTPServer old, HTTPServer next) {
+        if (old.m_mappedFiles != null
+                && old.m_mappedFiles != next.m_mappedFiles)
+            old.m_mappedFiles.close();
+        if (old.m_directoryIndex != null
+                && old.m_directoryIndex != next.m_directoryIndex)
+            old.m_directoryIndex.close();
+        if (old.m_accessLog != null && old.m_accessLog != next.m_accessLog)
+            old.m_accessLog.close(1000);
+    }
+
+    /**
+     * Starts a graceful shutdown from a request (the admin
+     * endpoint).  The JVM is told to exit on another thread; its
+     * shutdown hook then drains the connections with stop(),
+     * the caller's included.
+     */
+    public void shutdown() {
+        new Thread(() -> System.exit(0), "HTTPServer-shutdown").start();
+    }
+
+    /**
+     * Stops the server gracefully: the listening sockets are closed,
+     * connections waiting for a request are closed, and in-flight
+     * requests are answered (with "Connection: close") before
+     * their connections close.  Connections still busy after
+     * 'drainMillis' are cut off.  Called once, from the shutdown
+     * hook; later calls do nothing.
+     *
+     * @param drainMillis how long in-flight requests get
+     */
+    public synchronized void stop(long drainMillis) {
+        if (m_stopping)
+            return;
+        m_stopping = true;
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+
+        if (m_listener != null)
+            m_listener.close();
+        if (m_secureListener != null)
+            m_secureListener.close();
+
+        int cut = 0;
+        if (m_selectorEngine != null)
+            cut = m_selectorEngine.stop(deadline);
+        else if (m_executor != null)
+            cut = drainSessions(deadline);
+        if (m_timerWheel != null)
+            m_timerWheel.stop();
+        if (cut > 0)
+            System.out.println("Shutdown: cut off " + cut
+                    + " connections still busy after the grace period");
+    }
+
+    /**
+     * Waits for the blocking engine's sessions to finish, closing
+     * idle ones as it goes, until the deadline.
+     *
+     * @return number of sessions cut off at the deadline
+     */
+    private int drainSessions(long deadline) {
+        m_executor.shutdown();
+        try {
+            do {
+                if (System.nanoTime() - deadline > 0) {
+                    int cut = m_sessions.size();
+                    for (HTTPServerSession session : m_sessions)
+                        session.abort();
+                    m_executor.shutdownNow();
+                    m_executor.awaitTermination(1, TimeUnit.SECONDS);
+                    return cut;
+                }
+
+                // Sessions waiting for their next request won't get
+                // one; busy ones close after their current response.
+                for (HTTPServerSession session : m_sessions)
+                    session.closeIfIdle();
+            } while (!m_executor.awaitTermination(50, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    /**
+     * Hands newly accepted connections to the blocking engine (for
+     * an HTTPListener.Handler).
+     *
+     * @param batch the connections
+     * @param secure true if they came in on the HTTPS port
+     */
+    private void execute(List<SocketChannel> batch, boolean secure) {
+        for (SocketChannel channel : batch) {
+            HTTPServerSession session =
+                    new HTTPServerSession(this, channel, secure);
+            try {
+                m_executor.execute(() -> serve(session));
+            } catch (RejectedExecutionException e) {
+                // All workers busy and the queue is full, or the
+                // server is stopping.
+                session.rejectSession();
+            }
+        }
+    }
+
+    /**
+     * Runs a session on the blocking engine, keeping track of it
+     * so stop() can drain it.
+     */
+    private void serve(HTTPServerSession session) {
+        m_sessions.add(session);
+        try {
+            session.run();
+        } finally {
+            m_sessions.remove(session);
+        }
+    }
+
+    /**
+     * Reloads the options whenever the process gets SIGHUP.
+     * sun.misc.Signal is looked up reflectively, since it isn't
+     * part of the standard API; without it, the admin endpoint
+     * still reloads.
+     */
+    private void handleReloadSignal() {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object handler = java.lang.reflect.Proxy.newProxyInstance(
+                    handlerClass.getClassLoader(),
+                    new Class<?>[] { handlerClass },
+                    (proxy, method, methodArgs) -> {
+                        switch (method.getName()) {
+                            case "handle":
+                                try {
+                                    reload();
+                                } catch (IOException | RuntimeException e) {
+                                    System.err.println("Reload failed: "
+                                            + e.getMessage());
+                                }
+                                return null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == methodArgs[0];
+                            default:
+                                return "SIGHUP handler";
+                        }
+                    });
+            signalClass.getMethod("handle", signalClass, handlerClass)
+                    .invoke(null, signalClass.getConstructor(String.class)
+                            .newInstance("HUP"), handler);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("SIGHUP won't reload: " + e);
+        }
+    }
+
+    /**
+     * Listens for HTTP requests until the server is stopped.
      *
      * @param args The program arguments that were passed to
      *             main()
      */
      public void startServer(String  args[]) throws IOException {
          // Parse arguments, possibly overriding defaults.
-         parseArgs(args);
+         m_args = args;
+         try {
+             loadArgs(args);
+         } catch (IllegalArgumentException e) {
+             System.err.println(e.getMessage());
+             showUsage();
+             System.exit(-1);
+         }
 
          // Show server info.
          System.out.println("Server:\t\t\t" + InetAddress.getLocalHost());
          System.out.println("TCP Port:\t\t" + m_port);
          System.out.println("Document root:\t\t\"" + m_docPath + '\"');
+         System.out.println("Keep-alive:\t\t" + m_keepAliveTimeout
+                 + " seconds, " + m_maxRequests + " requests");
+         System.out.println("Deadlines:\t\t" + m_requestTimeout
+                 + " seconds per request header, " + (m_minSendRate > 0
+                     ? "responses at " + m_minSendRate + " bytes/s"
+                     : "no minimum send rate"));
+         System.out.println("File cache:\t\t" + m_cacheSize
+                 + " bytes, files up to " + m_cacheFileSize + " bytes");
+
+         System.out.println("Access log:\t\t" + (m_accessLogFile == null
+                 ? "off" : m_accessLogFile.equals("-")
+                 ? "console" : m_accessLogFile));
+         if (m_adminPath != null)
+             System.out.println("Admin:\t\t\t" + m_adminPath
+                     + " (local clients only)");
+
+         // On the way out, let in-flight requests finish, then
+         // report cache statistics (to help size the caches) after
+         // writing out what's left of the access log.
+         createCaches();
+         createAccessLog();
+         createSSLContext(null);
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+             @Override public void run() {
+                 HTTPServer.this.stop(m_drainMillis);
+                 HTTPServer config = m_current;
+                 if (config.m_accessLog != null)
+                     config.m_accessLog.close(1000);
+                 System.out.println("\nFile cache: " + config.m_fileCache);
+                 System.out.println("Compression cache: "
+                         + config.m_compressionCache);
+                 if (config.m_mappedFiles != null)
+                     System.out.println("Mapped files: "
+                             + config.m_mappedFiles);
+                 System.out.println("Buffer pool: " + m_bufferPool);
+             }
+         });
+         if (m_engine.equals("nio"))
+             System.out.println("Workers:\t\t" + m_eventLoops
+                     + " NIO event loops");
+         else if (m_virtualThreads)
+             System.out.println("Workers:\t\tvirtual thread per connection");
+         else
+             System.out.println("Workers:\t\t" + m_maxThreads
+                     + " threads, " + m_queueSize + " queued connections");
 
          //
-         // Accept connections forever.
-         // Terminate by sending "exit", "null", or simply "" to
-         // the server.
+         // Accept connections until stop() closes the listening
+         // sockets.
          //
-         ServerSocket listenSocket = new ServerSocket(this.m_port);
-         Socket sessionSocket;
+         m_listener = new HTTPListener(this, false, m_acceptors, m_backlog,
+                 m_acceptBatch);
+         if (m_securePort != 0) {
+             m_secureListener = new HTTPListener(this, true, m_acceptors,
+                     m_backlog, m_acceptBatch);
+             System.out.println("HTTPS port:\t\t" + m_securePort
+                     + " (keystore \"" + m_keyStoreFile + "\")");
+         }
+         System.out.println("Acceptors:\t\t" + m_acceptors
+                 + (m_listener.isReusePort() ? " (SO_REUSEPORT)" : "")
+                 + ", backlog " + m_backlog + ", batches of "
+                 + m_acceptBatch);
+         handleReloadSignal();
          System.out.println("\nWaiting for connections...");
 
-         for (;;) {
-             sessionSocket = listenSocket.accept();
-             new HTTPServerSession(
-                     m_showClientHeader,
-                     sessionSocket,
-                     m_docPath
-             ).start();
+         if (m_engine.equals("nio")) {
+             m_selectorEngine = new HTTPSelectorEngine(this, m_eventLoops);
+             m_selectorEngine.start();
+             if (m_secureListener != null)
+                 m_secureListener.start(
+                         batch -> m_selectorEngine.register(batch, true));
+             m_listener.run(batch -> m_selectorEngine.register(batch, false));
+         } else {
+             m_executor = createExecutor();
+             m_timerWheel = new HTTPTimerWheel();
+             m_timerWheel.start("HTTPTimerWheel");
+             if (m_secureListener != null)
+                 m_secureListener.start(batch -> execute(batch, true));
+             m_listener.run(batch -> execute(batch, false));
          }
     }
 
@@ -1,5 +1,5 @@
 /*
- * HTTPServerSession.java - handles an HTTP request in a Thread.
+ * HTTPServerSession.java - handles the HTTP requests on a connection.
  * 
  * Randy Sorensen <sorensra@msudenver.edu>
  * Homework 3 (CS3700 - Computer Networks)
@@ -8,88 +8,650 @@
  * 
  * Notes:
  *   After a connection to a client is established, this class is
- *   initialized with the socket returned by
- *   ServerSocket.accept().
+ *   initialized with the channel returned by
+ *   ServerSocketChannel.accept().
  * 
- *   This class is a Thread descendant; the request is read from
- *   the client and handled when the thread is started with
- *   Thread.start().
+ *   Connections are persistent (HTTP/1.1 keep-alive): requests
+ *   are read and answered in order until the client sends
+ *   "Connection: close", the connection sits idle for longer than
+ *   the server's keep-alive timeout, or the per-connection request
+ *   limit is reached.  Pipelined requests are answered in the
+ *   order they were received; responses are only flushed to the
+ *   socket once no further request is waiting in the input
+ *   buffer, so a pipelined burst is answered with few writes.
  * 
- *   If the session receives a request containing "exit", "null"
- *   or simply "", System.exit(0) is called, killing the entire
- *   server (all sibling threads included).
+ *   The protocol handling is independent of how the connection
+ *   is driven: received bytes are passed to processInput(), which
+ *   feeds them to an HTTPRequestParser and answers every request
+ *   it completes by appending to the session's HTTPOutputQueue.
+ *   A request may arrive in any number of pieces; requests with
+ *   an oversized or malformed header are answered with 414, 431
+ *   or 400 and the connection is closed.  Two engines use this:
+ * 
+ *   - The blocking engine runs the session as a Runnable task on
+ *     HTTPServer's executor, either on a pooled worker thread or
+ *     in a virtual thread; completeSession() reads and writes the
+ *     socket itself.  If the executor refuses the task,
+ *     rejectSession() answers the client with "503 Service
+ *     Unavailable" instead.
+ * 
+ *   - HTTPSelectorEngine keeps the channel in non-blocking mode
+ *     and calls processInput() from one of its event loops
+ *     whenever bytes arrive, draining the output queue as the
+ *     socket becomes writable.
+ * 
+ *   File responses carry "ETag" and "Last-Modified" validators
+ *   (and a "Cache-Control" field if a rule matches), and
+ *   conditional requests using "If-None-Match" or
+ *   "If-Modified-Since" are answered with "304 Not Modified" and
+ *   no body when the client's copy is still current.
+ * 
+ *   "Range" requests are answered with "206 Partial Content":
+ *   a single range as a plain body with "Content-Range", several
+ *   ranges as "multipart/byteranges".  Each range is sent straight
+ *   from its position in the file (or the cached body), never by
+ *   reading the whole file.  Ranges that can't be satisfied get
+ *   "416 Range Not Satisfiable".
+ * 
+ *   Files too large for the file cache's memory but within the
+ *   server's mapping band are sent from shared memory mappings
+ *   (see HTTPMappedFiles) instead of being opened per response.
+ * 
+ *   Compressible files are sent gzip- or deflate-encoded to
+ *   clients that accept it: from a precompressed "NAME.gz" next
+ *   to the file if there is one, otherwise compressed on the fly
+ *   (once per file version; see HTTPCompressionCache).  Such
+ *   responses carry "Vary: Accept-Encoding".  Range requests are
+ *   always answered from the unencoded file.
+ * 
+ *   With -a, a directory without an "index.html" is answered with
+ *   a listing (see HTTPDirectoryIndex): HTML, or JSON if asked for
+ *   with "?format=json" or "Accept: application/json".  A listing
+ *   not already cached is rendered as it is sent, chunked for
+ *   HTTP/1.1 clients.
+ * 
+ *   Every response is counted in the server's HTTPMetrics, along
+ *   with the bytes received and sent and the time from each
+ *   request to its response being written; a GET for the metrics
+ *   path (normally "/__metrics") is answered with the report
+ *   instead of a file.
+ * 
+ *   Each request is logged, once answered, to the server's
+ *   HTTPAccessLog (with its header fields if -s was given); the
+ *   entry is only queued here, so a slow console or disk doesn't
+ *   hold up the session.
+ * 
+ *   Settings and caches come from the server's current
+ *   configuration, which is looked up again before each batch of
+ *   requests, so a reload applies to open connections from their
+ *   next request on.  Once the server is stopping, no connection
+ *   is kept alive.
+ * 
+ *   POST requests for the admin path, if -A sets one (e.g.
+ *   "/__admin/reload" and "/__admin/shutdown"), reload the
+ *   configuration or shut the server down gracefully; they are
+ *   only accepted from the loopback interface.  Behind a reverse
+ *   proxy on the same machine every client seems to come from
+ *   there, so the path is off unless asked for.
+ * 
+ *   A connection that starts with the HTTP/2 client preface, or
+ *   whose request asks for "Upgrade: h2c", switches to HTTP/2 (see
+ *   HTTP2Connection).  Each of its streams is answered here like
+ *   any request, with the response body queued for the stream
+ *   rather than the connection and the header passed on to be
+ *   compressed; writeOutput() has the bodies framed as the socket
+ *   takes them.
+ * 
+ *   Connections accepted on the HTTPS port carry an HTTPTLSChannel.
+ *   The engines read the socket into its buffer rather than the
+ *   request buffer, processInput() decrypts before parsing, and
+ *   the output queue is written through it.  Over TLS, HTTP/2 is
+ *   chosen with ALPN, never with "Upgrade: h2c".
+ * 
+ *   Every connection has one deadline, on the engine's
+ *   HTTPTimerWheel, which moves as writeOutput() sees the session
+ *   change state: waiting for a request (-k, keep-alive), partway
+ *   through reading one (-r, from its first bytes, and not pushed
+ *   back by further bytes, so trickling a header in doesn't help),
+ *   or sending (-y, a minimum average rate after SEND_GRACE).  A
+ *   request header that misses its deadline is answered with "408
+ *   Request Timeout"; otherwise the connection is closed.  The
+ *   blocking engine's timer fires on the wheel's thread, which
+ *   can't write to the socket: it shuts down the socket's input,
+ *   and the session's own thread, reading EOF, sends the 408.
  */
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
-import java.text.*;
 import java.util.*;
 
 
 /**
- * A single HTTP session in a discrete thread.
+ * A single HTTP session: the requests on one client connection.
  * 
- * The session's socket is supplied to the constructor along with
- * the server's document root path.
+ * The session's channel is supplied to the constructor along with
+ * the server that accepted it.
  * 
  * @author Randy Sorensen
  */
-public class HTTPServerSession extends Thread {
+public class HTTPServerSession implements Runnable {
 
     // Member variables.
-    private boolean m_showClientHeader;     // On console
-    private Socket m_socket;                // Session socket.
-    private String m_docPath;               // Document root path.
-    private OutputStream m_outStream;       // For .write(byte[]).
-    private PrintWriter m_outWriter;        // For .println(String).
+    private HTTPServer m_server;            // Lifecycle, configuration.
+    private HTTPServer m_config;            // Settings in use.
+    private boolean m_showClientHeader;     // In the access log.
+    private SocketChannel m_channel;        // Session connection.
+    private Socket m_socket;                // m_channel's socket.
+    private HTTPFileCache m_fileCache;      // Resolved resources.
+    private HTTPCacheControl m_cacheControl;    // max-age rules.
+    private HTTPCompressionCache m_compressionCache;    // Encoded files.
+    private HTTPMappedFiles m_mappedFiles;  // Mid-sized files, or null.
+    private HTTPDirectoryIndex m_directoryIndex;    // Listings, or null.
+    private HTTPRequest m_request;          // Request being answered.
+    private HTTPRequestParser m_parser;     // Fills in m_request.
+    private int m_keepAliveTimeout;         // Idle seconds allowed.
+    private int m_maxRequests;              // Requests per connection.
+    private HTTPBufferPool m_bufferPool;    // Lends m_inBuffer.
+    private ByteBuffer m_inBuffer;          // Unparsed bytes, or null.
+    private HTTPOutputQueue m_output;       // Unsent response bytes.
+    private HTTPHeaderWriter m_headerWriter;    // Reused per response.
+    private int m_requestCount;             // Requests answered.
+    private boolean m_keepAlive;            // Reuse connection after reply.
+    private boolean m_closing;              // Close once output is sent.
+    private boolean m_closed;               // close() has run.
+    private HTTPMetrics m_metrics;          // Server-wide statistics.
+    private String m_metricsPath;           // Serves the report, or null.
+    private String m_adminPath;             // Admin requests, or null.
+    private int m_carried;                  // Input kept from last call.
+    private int m_unsent;                   // Answered, not yet sent.
+    private long m_unsentSince;             // When the first was read.
+    private HTTPAccessLog m_accessLog;      // null if not logging.
+    private String m_remoteHost;            // Client address, for the log.
+    private int m_status;                   // Last response's status code.
+    private long m_bodyBytes;               // ...its body length, or -1.
+    private boolean m_busy;                 // Blocking engine: answering.
+    private volatile boolean m_aborted;     // Closed by the server.
+    private boolean m_prefaceChecked;       // Not HTTP/2 from the start.
+    private HTTP2Connection m_http2;        // Once upgraded, else null.
+    private HTTPTLSChannel m_tls;           // HTTPS only, else null.
+    private int m_requestTimeout;           // Seconds to read a header.
+    private long m_minSendRate;             // Bytes/s, or 0.
+    private HTTPTimerWheel m_wheel;         // Holds m_timer.
+    private HTTPTimerWheel.Timer m_timer;   // The deadline, or null.
+    private int m_phase;                    // IDLE, READING or SENDING.
+    private long m_sendStart;               // When SENDING began.
+    private HTTPOutputQueue m_sendQueue;    // m_output, while SENDING.
+    private long m_sendBase;                // Bytes written by then.
+    private volatile boolean m_timedOut;    // Blocking: answer 408.
+
+    /** Answers of expire(): nothing to do yet, answer 408, close. */
+    public static final int TIMEOUT_NONE = 0;
+    public static final int TIMEOUT_REQUEST = 1;
+    public static final int TIMEOUT_CLOSE = 2;
+
+    // What the connection's deadline is for.
+    private static final int IDLE = 0;      // Waiting for a request.
+    private static final int READING = 1;   // Partway through one.
+    private static final int SENDING = 2;   // Output waiting.
+
+    // Time a response may take before -y's minimum rate applies.
+    private static final long SEND_GRACE = 10L * 1000000000;
+
+    // Bytes read from the socket at a time.
+    public static final int INPUT_BUFFER_SIZE = 8192;
+
+    // Separates the parts of multipart/byteranges responses.
+    private static final String BYTERANGES_BOUNDARY =
+            "HTTPServer-" + Long.toHexString(new Random().nextLong());
+
+    // Answer to an "Upgrade: h2c" request.
+    private static final byte[] SWITCHING_PROTOCOLS = (
+            "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+    ).getBytes(StandardCharsets.ISO_8859_1);
+
+    // Codings files are compressed with on the fly, best first.
+    private static final String[] COMPRESSED_ENCODINGS = { "gzip", "deflate" };
+
+    // HTML bodies for error responses, by status.
+    private static final Map<String, byte[]> s_statusBodies =
+            new java.util.concurrent.ConcurrentHashMap<>();
 
      
     /**
-     * Constructs a new HTTP session using a m_socket that's
+     * Constructs a new HTTP session using a channel that's
      * connected to a client.
      *
-     * @param showClientHeader if 'true', show all client
-     *                         request headers on the console
-     * @param socket the m_socket instance, returned by
-     *               ServerSocket.accept()
-     * @param docPath the path of the folder to use as the HTTP
-     *                server root
+     * @param server the server that accepted the connection;
+     *               supplies the document root path and other
+     *               settings
+     * @param channel the connection, returned by
+     *                ServerSocketChannel.accept()
      */
 
-    public HTTPServerSession(boolean showClientHeader, Socket socket,
-                             String docPath)
-            throws IOException
+    public HTTPServerSession(HTTPServer server, SocketChannel channel) {
+        this(server, channel, false);
+    }
+
+    /**
+     * Constructs a new HTTP or HTTPS session.  An HTTPS session
+     * uses the current configuration's certificate; the channel
+     * must already be in the mode (blocking or not) it will be
+     * served in.
+     *
+     * @param server the server that accepted the connection
+     * @param channel the connection
+     * @param secure true if the connection came in on the HTTPS
+     *               port
+     */
+    public HTTPServerSession(HTTPServer server, SocketChannel channel,
+                             boolean secure)
     {
-        m_showClientHeader = showClientHeader;
-        m_socket = socket;
-        m_docPath = docPath;
+        m_server = server;
+        m_channel = channel;
+        m_socket = channel.socket();
+        m_request = new HTTPRequest();
+        m_parser = new HTTPRequestParser(m_request);
+        m_bufferPool = server.getBufferPool();
+        m_inBuffer = null;
+        m_output = new HTTPOutputQueue(m_bufferPool);
+        m_headerWriter = new HTTPHeaderWriter();
+        m_requestCount = 0;
+        m_keepAlive = false;
+        m_closing = false;
+        m_closed = false;
+        m_metrics = server.getMetrics();
+        m_carried = 0;
+        m_unsent = 0;
+        m_unsentSince = 0;
+        m_remoteHost = null;
+        m_status = 0;
+        m_bodyBytes = -1;
+        m_busy = false;
+        m_aborted = false;
+        m_prefaceChecked = false;
+        m_http2 = null;
+        m_wheel = null;
+        m_timer = null;
+        m_phase = -1;
+        m_timedOut = false;
+        m_tls = secure ? new HTTPTLSChannel(channel,
+                server.getCurrent().getSSLContext(), m_bufferPool) : null;
+        configure(server.getCurrent());
+        m_metrics.connectionOpened();
+    }
+
+    /**
+     * Takes the settings and caches of a configuration.
+     *
+     * @param config the server's current configuration
+     */
+    private void configure(HTTPServer config) {
+        m_config = config;
+        m_showClientHeader = config.getShowClientHeader();
+        m_fileCache = config.getFileCache();
+        m_cacheControl = config.getCacheControl();
+        m_compressionCache = config.getCompressionCache();
+        m_mappedFiles = config.getMappedFiles();
+        m_directoryIndex = config.getDirectoryIndex();
+        m_keepAliveTimeout = config.getKeepAliveTimeout();
+        m_requestTimeout = config.getRequestTimeout();
+        m_minSendRate = config.getMinSendRate();
+        m_maxRequests = config.getMaxRequests();
+        m_metricsPath = config.getMetricsPath();
+        m_adminPath = config.getAdminPath();
+        m_accessLog = config.getAccessLog();
+    }
 
-        m_outStream = socket.getOutputStream();
-        m_outWriter = new PrintWriter(this.m_outStream, true);
+    /**
+     * @return the connection this session serves
+     */
+    public SocketChannel getChannel() {
+        return m_channel;
     }
 
     /**
-     * Sends a proper "HTTP/1.0 ..." header string to the client.
+     * Returns the buffer that received request bytes are read
+     * into before calling processInput().  The buffer is borrowed
+     * from the server's pool when needed and given back by
+     * processInput() once it holds nothing, so it must be fetched
+     * again for every read.  On an HTTPS connection this is the
+     * TLS channel's buffer for encrypted bytes.
      *
-     * Pass 0 in 'contentLength' to omit that field from the
-     * header.
+     * @return a direct buffer, for reading from the channel
+     */
+    public ByteBuffer getInputBuffer() {
+        if (m_tls != null)
+            return m_tls.getNetInput();
+        if (m_inBuffer == null)
+            m_inBuffer = m_bufferPool.acquire(INPUT_BUFFER_SIZE);
+        return m_inBuffer;
+    }
+
+    /**
+     * @return the responses waiting to be written
+     */
+    public HTTPOutputQueue getOutput() {
+        return m_output;
+    }
+
+    /**
+     * @return true if the connection should be closed once the
+     *         output queue has been drained
+     */
+    public boolean isClosing() {
+        return m_closing;
+    }
+
+    /**
+     * @return true if nothing is in flight: no partial request
+     *         read and no response waiting to be sent
+     */
+    public boolean isIdle() {
+        return m_inBuffer == null && m_unsent == 0 && m_output.isEmpty()
+                && (m_tls == null || !m_tls.hasInput());
+    }
+
+    /**
+     * Closes the connection if the session is waiting for a
+     * request (blocking engine); called from another thread while
+     * the server drains.
+     */
+    public synchronized void closeIfIdle() {
+        if (!m_busy)
+            abort();
+    }
+
+    /**
+     * Cuts the connection off, whatever the session is doing;
+     * called from another thread.  The session's own thread
+     * notices and cleans up.
+     */
+    public void abort() {
+        m_aborted = true;
+        try {
+            m_channel.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Starts enforcing the connection's deadlines; until then (and
+     * once it is closed) it has none.
+     *
+     * @param wheel keeps the deadline; its advance() runs
+     *              'onExpiry'
+     * @param onExpiry called when the deadline passes; it should
+     *                 call expire() (the blocking engine's
+     *                 completeSession() passes its own)
+     */
+    public synchronized void startTimer(HTTPTimerWheel wheel,
+                                        Runnable onExpiry)
+    {
+        m_wheel = wheel;
+        m_timer = wheel.newTimer(onExpiry);
+        m_phase = -1;
+        setPhase(IDLE);
+    }
+
+    /**
+     * Handles the connection's deadline having passed: a send
+     * that has kept up with the minimum rate gets a later
+     * deadline, anything else has timed out.
+     *
+     * @return TIMEOUT_NONE if the deadline has moved,
+     *         TIMEOUT_REQUEST if a request header is late and
+     *         should be answered with answerTimeout(), or
+     *         TIMEOUT_CLOSE if the connection should be closed
+     */
+    public synchronized int expire() {
+        if (m_timer == null)
+            return TIMEOUT_NONE;        // Closed meanwhile.
+        long now = System.nanoTime();
+        switch (m_phase) {
+            case SENDING:
+                long sent = m_sendQueue.getBytesWritten() - m_sendBase;
+                long due = m_sendStart + SEND_GRACE
+                        + (long) (sent * 1e9 / m_minSendRate);
+                if (due - now > 0) {
+                    m_wheel.schedule(m_timer, due);
+                    return TIMEOUT_NONE;
+                }
+                m_metrics.countTimeout("send");
+                try {
+                    // Reset rather than leave the kernel trying to
+                    // deliver what the client won't take.
+                    m_socket.setSoLinger(true, 0);
+                } catch (IOException e) {
+                    // Closing anyway.
+                }
+                return TIMEOUT_CLOSE;
+
+            case READING:
+                // Over TLS, the request buffer only has bytes once
+                // the handshake is done; HTTP/2 has no 408.
+                m_metrics.countTimeout("request");
+                return (m_http2 == null
+                        && (m_parser.isStarted() || m_inBuffer != null))
+                        ? TIMEOUT_REQUEST : TIMEOUT_CLOSE;
+
+            default:
+                m_metrics.countTimeout("idle");
+                return TIMEOUT_CLOSE;
+        }
+    }
+
+    /**
+     * Answers a request whose header didn't arrive in time with
+     * "408 Request Timeout", and closes the connection once that
+     * has been sent (with its own, send deadline).
+     */
+    public void answerTimeout() throws IOException {
+        m_keepAlive = false;
+        sendResponse("408 Request Timeout");
+        logRequest(false);
+        m_closing = true;
+        m_bufferPool.release(m_inBuffer);
+        m_inBuffer = null;
+        setPhase(SENDING);
+    }
+
+    /**
+     * Moves the deadline for the phase the connection has entered;
+     * staying in a phase leaves it where it is.
+     */
+    private synchronized void setPhase(int phase) {
+        if (m_timer == null || phase == m_phase)
+            return;
+        m_phase = phase;
+        long now = System.nanoTime();
+        switch (phase) {
+            case SENDING:
+                m_sendStart = now;
+                m_sendQueue = m_output;
+                m_sendBase = m_output.getBytesWritten();
+                if (m_minSendRate > 0)
+                    m_wheel.schedule(m_timer, now + SEND_GRACE);
+                else
+                    m_wheel.cancel(m_timer);
+                break;
+            case READING:
+                m_wheel.schedule(m_timer, now + (m_http2 == null
+                        ? m_requestTimeout : m_keepAliveTimeout)
+                        * 1000000000L);
+                break;
+            default:
+                m_wheel.schedule(m_timer,
+                        now + m_keepAliveTimeout * 1000000000L);
+                break;
+        }
+    }
+
+    /**
+     * The blocking engine's expiry: runs on the wheel's thread.
+     */
+    private synchronized void expireBlocking() {
+        if (m_busy && m_phase != SENDING) {
+            // The request just arrived; its answer sets the next
+            // deadline.  Look again shortly in case it doesn't.
+            m_wheel.schedule(m_timer, System.nanoTime()
+                    + HTTPTimerWheel.TICK_MILLIS * 1000000L);
+            return;
+        }
+        switch (expire()) {
+            case TIMEOUT_REQUEST:
+                // Wake the session's read with EOF; it answers.
+                m_timedOut = true;
+                try {
+                    m_socket.shutdownInput();
+                } catch (IOException e) {
+                    abort();
+                }
+                break;
+            case TIMEOUT_CLOSE:
+                if (m_phase == SENDING) {
+                    // Closing the channel doesn't wake a thread
+                    // blocked in transferTo() (sendfile); shutting
+                    // the socket down does.
+                    try {
+                        m_channel.shutdownOutput();
+                    } catch (IOException e) {
+                        // Closing anyway.
+                    }
+                }
+                abort();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Sends a proper "HTTP/1.1 ..." header string to the client.
+     *
+     * The header is appended to the output queue; nothing is
+     * written to the socket here.
+     *
+     * Pass a negative 'contentLength' to omit that field from
+     * the header; the connection is then closed after the reply,
+     * since the client can only find the end of the body that
+     * way.
      *
      * @param status HTTP response status, e.g. "200 OK"
      * @param contentLength value of the "Content-Length: "
-     *                      field, or 0 to skip sending the field
+     *                      field, or -1 to skip sending the field
      *                      altogether
      */
     public void sendHeader(String status, long contentLength) {
-        m_outWriter.println("HTTP/1.0 " + status);
-        m_outWriter.println("Date: " + DateFormat
-                .getDateTimeInstance()
-                .format(new Date()));
-        m_outWriter.println("Server: http://"
-                + m_socket.getLocalAddress() + ":"
-                + m_socket.getLocalPort() + "/");
-        if (contentLength > 0)
-            m_outWriter.println("Content-Length: " + contentLength);
-        m_outWriter.println("");   // (newline)
+        beginHeader(status);
+        endHeader(contentLength);
+    }
+
+    /**
+     * Starts a response header that needs fields beyond those
+     * sendHeader() writes; add them with addHeaderField() and
+     * finish with endHeader().
+     *
+     * @param status HTTP response status, e.g. "200 OK"
+     */
+    public void beginHeader(String status) {
+        m_metrics.countStatus(status);
+        if (m_http2 != null)
+            m_http2.beginHeader(status);
+        else
+            m_headerWriter.start(status);
+        try {
+            m_status = Integer.parseInt(status.substring(0, 3));
+        } catch (RuntimeException e) {
+            m_status = 0;
+        }
+    }
+
+    /**
+     * Adds a field to a header started with beginHeader().
+     *
+     * @param name the field name, e.g. "ETag"
+     * @param value the field value
+     */
+    public void addHeaderField(String name, String value) {
+        if (m_http2 != null)
+            m_http2.addHeaderField(name, value);
+        else
+            m_headerWriter.addField(name, value);
+    }
+
+    /**
+     * Finishes a header started with beginHeader() and queues it.
+     *
+     * @param contentLength value of the "Content-Length: "
+     *                      field, or -1 to skip sending the field
+     *                      (see sendHeader())
+     */
+    public void endHeader(long contentLength) {
+        if (m_http2 != null) {
+            // The stream ends the body; the connection stays.
+            m_bodyBytes = contentLength;
+            if (contentLength >= 0)
+                m_http2.addHeaderField("content-length",
+                        Long.toString(contentLength));
+            return;
+        }
+        if (contentLength < 0)
+            m_keepAlive = false;
+        m_bodyBytes = contentLength;
+
+        if (contentLength >= 0)
+            m_headerWriter.addContentLength(contentLength);
+        m_headerWriter.addConnection(m_keepAlive);
+        m_output.add(m_headerWriter.finish());
+
+        if (!m_keepAlive)
+            m_closing = true;
+    }
+
+    /**
+     * Finishes a header started with beginHeader() and queues a
+     * body of unknown length, produced while it is being sent.
+     *
+     * This is the streaming counterpart of endHeader() followed by
+     * queueing a byte array: nothing needs to be materialized up
+     * front.  The source is asked for another buffer-full only when
+     * the previous one has been written to the socket, so a slow
+     * client holds the producer back and memory use stays flat.
+     * HTTP/1.1 clients get "Transfer-Encoding: chunked" and the
+     * connection can stay open; older clients find the end of the
+     * body by the connection closing.
+     *
+     * @param body produces the body; null for a response that has
+     *             none (e.g. "304 Not Modified")
+     */
+    public void endStreamHeader(HTTPOutputQueue.Source body) {
+        if (m_http2 != null) {
+            // DATA frames need no chunks.
+            m_bodyBytes = -1;
+            if (body != null)
+                m_output.addStream(body, false);
+            return;
+        }
+        if (!"HTTP/1.1".equals(m_request.getVersion())) {
+            endHeader(-1);
+            if (body != null)
+                m_output.addStream(body, false);
+            return;
+        }
+
+        m_headerWriter.addField("Transfer-Encoding", "chunked");
+        m_headerWriter.addConnection(m_keepAlive);
+        m_output.add(m_headerWriter.finish());
+        m_bodyBytes = -1;
+        if (!m_keepAlive)
+            m_closing = true;
+        if (body != null)
+            m_output.addStream(body, true);
     }
 
     /**
@@ -115,18 +677,362 @@ public class HTTPServerSession extends Thread {
         // "404 Not Found") inside a small HTML block as the
         // message content so that the error will be shown in
         // a web browser client.
+        // These bodies are built once per status and shared.
         if (content == null) {
             // assert(!responseStatus.equals("200 OK"));
-            content = (
-                    "<html><head><title>" + status + "</title></head>"
-                        + "<body><h1>" + status + "</h1></body></html>"
-            ).getBytes();
+            content = s_statusBodies.get(status);
+            if (content == null) {
+                content = (
+                        "<html><head><title>" + status + "</title></head>"
+                            + "<body><h1>" + status + "</h1></body></html>"
+                ).getBytes(StandardCharsets.ISO_8859_1);
+                s_statusBodies.put(status, content);
+            }
         }
           
         // Full HTTP request reply: send the header followed by
         // the full response body.
         sendHeader(status, content.length);
-        m_outStream.write(content);
+        m_output.add(content);
+    }
+
+    /**
+     * Sends the server's metrics report (see HTTPMetrics), for
+     * a Prometheus server or anyone else to scrape.
+     */
+    public void sendMetrics() throws IOException {
+        byte[] report = m_metrics.render().getBytes(StandardCharsets.UTF_8);
+        beginHeader("200 OK");
+        addHeaderField("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        addHeaderField("Cache-Control", "no-store");
+        endHeader(report.length);
+        m_output.add(report);
+    }
+
+    /**
+     * Sends a resolved file resource with its validators.
+     *
+     * Content-Length is taken from the file's size.  The body
+     * comes from memory if the cache holds it, or from a shared
+     * mapping of the file if it is in the mapping band; otherwise
+     * it is queued as a file region and later sent with
+     * FileChannel.transferTo(), so the file is never read into
+     * memory.  A streamed variant (size -1) is compressed while it
+     * is sent.  With 'bodyless' set, only the header is sent (for
+     * "304 Not Modified").
+     *
+     * @param status HTTP response status, e.g. "200 OK"
+     * @param urlPath the path the client asked for
+     * @param entry the resolved resource
+     * @param bodyless true to leave out the body
+     */
+    public void sendFile(String status, String urlPath,
+                         HTTPFileCache.Entry entry, boolean bodyless)
+            throws IOException
+    {
+        // Open the file before committing to a header, in case it
+        // has gone missing since it was resolved.
+        HTTPMappedFiles.Mapping mapping = null;
+        FileChannel file = null;
+        if (!bodyless && entry.getBody() == null) {
+            mapping = acquireMapping(entry);
+            if (mapping == null)
+                file = FileChannel.open(entry.getFile(),
+                        StandardOpenOption.READ);
+        }
+
+        beginHeader(status);
+        addHeaderField("Content-Type", entry.getContentType());
+        addHeaderField("Last-Modified", entry.getLastModifiedText());
+        addHeaderField("ETag", entry.getETag());
+        addCacheControl(urlPath, entry);
+        if (entry.getContentEncoding() != null)
+            addHeaderField("Content-Encoding", entry.getContentEncoding());
+        else
+            addHeaderField("Accept-Ranges", "bytes");
+        if (entry.isCompressible())
+            addHeaderField("Vary", "Accept-Encoding");
+        if (entry.getSize() < 0) {
+            endStreamHeader(bodyless ? null : new HTTPCompressedStream(file,
+                    entry.getContentEncoding()));
+            return;
+        }
+        endHeader(entry.getSize());
+
+        if (bodyless) {
+            m_bodyBytes = -1;
+            return;
+        }
+        if (mapping != null)
+            m_output.addMapped(mapping, 0, entry.getSize());
+        else if (file == null)
+            m_output.add(entry.getBody());
+        else
+            m_output.addFile(file, 0, entry.getSize());
+    }
+
+    /**
+     * @return a reference to a mapping of the file, or null if it
+     *         isn't to be sent from one
+     */
+    private HTTPMappedFiles.Mapping acquireMapping(HTTPFileCache.Entry entry) {
+        return (m_mappedFiles == null) ? null : m_mappedFiles.acquire(entry);
+    }
+
+    /**
+     * Sends a listing of a directory that has no "index.html".
+     *
+     * A URL path without the trailing "/" is first redirected to
+     * one with it, so that the listing's relative links work.
+     *
+     * @param urlPath the path the client asked for
+     * @param directory the directory it names
+     */
+    public void sendDirectoryIndex(String urlPath, Path directory)
+            throws IOException
+    {
+        if (!urlPath.endsWith("/")) {
+            // Redirect using the path as the client wrote it.
+            String target = m_request.getTarget();
+            int end = target.indexOf('?');
+            target = (end < 0) ? target : target.substring(0, end);
+            if (!target.startsWith("/")) {
+                int start = target.indexOf('/', target.indexOf("//") + 2);
+                target = (start < 0) ? "/" : target.substring(start);
+            }
+            beginHeader("301 Moved Permanently");
+            addHeaderField("Location", target + "/");
+            endHeader(0);
+            return;
+        }
+
+        String accept = m_request.getHeader("Accept");
+        boolean json = "format=json".equals(m_request.getQuery())
+                || (accept != null && accept.contains("application/json"));
+        byte[] listing = m_directoryIndex.getCached(directory, json);
+        HTTPOutputQueue.Source source = null;
+        if (listing == null) {
+            try {
+                source = m_directoryIndex.render(directory, urlPath, json);
+            } catch (IOException e) {
+                sendResponse("403 Forbidden");
+                return;
+            }
+        }
+
+        beginHeader("200 OK");
+        addHeaderField("Content-Type", json
+                ? "application/json; charset=utf-8"
+                : "text/html; charset=utf-8");
+        addHeaderField("Cache-Control", "no-cache");
+        addHeaderField("Vary", "Accept");
+        if (listing != null) {
+            endHeader(listing.length);
+            m_output.add(listing);
+        } else {
+            endStreamHeader(source);
+        }
+    }
+
+    /**
+     * Adds the "Cache-Control" field, if a rule matches.
+     *
+     * @param urlPath the path the client asked for
+     * @param entry the resolved resource
+     */
+    private void addCacheControl(String urlPath, HTTPFileCache.Entry entry) {
+        String cacheControl = m_cacheControl.lookup(urlPath,
+                entry.getName());
+        if (cacheControl != null)
+            addHeaderField("Cache-Control", cacheControl);
+    }
+
+    /**
+     * Sends parts of a resolved file resource.
+     *
+     * One range is sent as the body of a plain "206 Partial
+     * Content" response; several are sent as a
+     * "multipart/byteranges" body whose length is worked out
+     * before anything is queued.
+     *
+     * @param urlPath the path the client asked for
+     * @param entry the resolved resource
+     * @param ranges the satisfiable ranges, as returned by
+     *               HTTPByteRanges.parse(); must not be empty
+     */
+    public void sendRanges(String urlPath, HTTPFileCache.Entry entry,
+                           List<long[]> ranges)
+            throws IOException
+    {
+        long size = entry.getSize();
+        HTTPMappedFiles.Mapping mapping = null;
+        FileChannel file = null;
+        if (entry.getBody() == null) {
+            mapping = acquireMapping(entry);
+            if (mapping == null)
+                file = FileChannel.open(entry.getFile(),
+                        StandardOpenOption.READ);
+        }
+
+        beginHeader("206 Partial Content");
+        addHeaderField("Last-Modified", entry.getLastModifiedText());
+        addHeaderField("ETag", entry.getETag());
+        addCacheControl(urlPath, entry);
+        if (entry.isCompressible())
+            addHeaderField("Vary", "Accept-Encoding");
+
+        if (ranges.size() == 1) {
+            long first = ranges.get(0)[0];
+            long last = ranges.get(0)[1];
+            addHeaderField("Content-Type", entry.getContentType());
+            addHeaderField("Content-Range",
+                    HTTPByteRanges.contentRange(first, last, size));
+            endHeader(last - first + 1);
+            queueRange(entry, mapping, file, first, last, true);
+            return;
+        }
+
+        // Each part has its own small header; build them all first
+        // so the total length is known.
+        byte[][] partHeaders = new byte[ranges.size()][];
+        byte[] closing = ("\r\n--" + BYTERANGES_BOUNDARY + "--\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        long contentLength = closing.length;
+        for (int i = 0; i < ranges.size(); i++) {
+            long first = ranges.get(i)[0];
+            long last = ranges.get(i)[1];
+            partHeaders[i] = ("\r\n--" + BYTERANGES_BOUNDARY + "\r\n"
+                    + "Content-Type: " + entry.getContentType() + "\r\n"
+                    + "Content-Range: "
+                    + HTTPByteRanges.contentRange(first, last, size)
+                    + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += partHeaders[i].length + (last - first + 1);
+        }
+
+        addHeaderField("Content-Type",
+                "multipart/byteranges; boundary=" + BYTERANGES_BOUNDARY);
+        endHeader(contentLength);
+        for (int i = 0; i < ranges.size(); i++) {
+            m_output.add(partHeaders[i]);
+            queueRange(entry, mapping, file, ranges.get(i)[0],
+                    ranges.get(i)[1], i == ranges.size() - 1);
+        }
+        m_output.add(closing);
+    }
+
+    /**
+     * Queues bytes first..last (inclusive) of a resource, from the
+     * mapping, the cached body or the open file.  The reference to
+     * the mapping is handed over with the last range.
+     */
+    private void queueRange(HTTPFileCache.Entry entry,
+                            HTTPMappedFiles.Mapping mapping, FileChannel file,
+                            long first, long last, boolean lastRange)
+            throws IOException
+    {
+        if (mapping != null) {
+            if (!lastRange)
+                mapping.retain();
+            m_output.addMapped(mapping, first, last - first + 1);
+        } else if (file == null) {
+            m_output.add(entry.getBody(), (int) first,
+                    (int) (last - first + 1));
+        } else {
+            m_output.addFile(file, first, last - first + 1, lastRange);
+        }
+    }
+
+    /**
+     * Picks the representation of a file to send, based on the
+     * client's "Accept-Encoding".
+     *
+     * A precompressed "NAME.gz" sibling is preferred; failing
+     * that, a compressed copy is made (or reused) by the
+     * compression cache.  Range requests, incompressible types and
+     * clients that accept no compression get the file itself.
+     *
+     * @param entry the resolved file
+     * @return 'entry' or an encoded variant of it
+     */
+    public HTTPFileCache.Entry selectEncoding(HTTPFileCache.Entry entry)
+            throws IOException
+    {
+        if (!entry.isCompressible() || m_request.getHeader("Range") != null)
+            return entry;
+
+        if (m_request.acceptsEncoding("gzip")) {
+            HTTPFileCache.Entry sibling =
+                    m_fileCache.lookup(entry.getGzipSibling());
+            if (sibling.getStatus().equals("200 OK"))
+                return entry.gzipVariant(sibling);
+        }
+
+        for (String encoding : COMPRESSED_ENCODINGS) {
+            if (m_request.acceptsEncoding(encoding)) {
+                HTTPFileCache.Entry variant =
+                        m_compressionCache.lookup(entry, encoding);
+                return (variant == null) ? entry : variant;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Decides whether a "Range" field applies to the current
+     * version of a resource.
+     *
+     * A range request is only honored if the client either sent
+     * no "If-Range" field or its validator (an ETag or a date)
+     * still matches; otherwise the client's partial copy is stale
+     * and it gets the whole file.
+     *
+     * @param entry the resolved resource
+     * @return true if the "Range" field should be honored
+     */
+    public boolean isRangeCurrent(HTTPFileCache.Entry entry) {
+        String ifRange = m_request.getHeader("If-Range");
+        if (ifRange == null)
+            return true;
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(entry.getETag());  // Strong only.
+
+        long date = HTTPDate.parse(ifRange);
+        return date >= 0
+                && entry.getLastModified().toMillis() / 1000 * 1000 == date;
+    }
+
+    /**
+     * Checks the conditional request fields against a resource.
+     *
+     * "If-None-Match" takes precedence: if it is present,
+     * "If-Modified-Since" is ignored (RFC 7232, section 6).
+     *
+     * @param entry the resolved resource
+     * @return true if the client's copy is current, meaning
+     *         "304 Not Modified" should be sent
+     */
+    public boolean isNotModified(HTTPFileCache.Entry entry) {
+        String ifNoneMatch = m_request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // Weak comparison: "W/" prefixes don't matter for GET.
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(entry.getETag()))
+                    return true;
+            }
+            return false;
+        }
+
+        String ifModifiedSince = m_request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            // HTTP dates have whole seconds; so must the mtime.
+            long since = HTTPDate.parse(ifModifiedSince);
+            long modified = entry.getLastModified().toMillis() / 1000 * 1000;
+            return since >= 0 && modified <= since;
+        }
+        return false;
     }
 
     /**
@@ -157,80 +1063,86 @@ public class HTTPServerSession extends Thread {
             return;
         }
           
-        // Get a 'Path' interface; prepend server's document root path.
-        Path docRoot = Paths.get(m_docPath).toAbsolutePath().normalize();
-        Path resource = Paths.get(m_docPath + urlPath).toAbsolutePath()
-                                                            .normalize();
-
-        // Don't allow client to read outside of document root.
-        if (!resource.toString().contains(docRoot.toString())) {
-            sendResponse("403 Forbidden");
+        // The cache knows what the path resolves to (including
+        // the "index.html" fallback for directories, and paths
+        // that lead outside the document root), usually without
+        // asking the filesystem.
+        HTTPFileCache.Entry entry = m_fileCache.lookup(urlPath);
+        if (entry.getFile() == null) {
+            if (entry.getDirectory() != null && m_directoryIndex != null)
+                sendDirectoryIndex(urlPath, entry.getDirectory());
+            else
+                sendResponse(entry.getStatus());
             return;
         }
 
-        // If it's a directory, append the default "index.html"
-        // filename to it.
-        if (Files.isDirectory(resource))
-            resource = resource.resolve("index.html");
+        // Compress if the client can take it.
+        entry = selectEncoding(entry);
 
-        // See if the resource is "Not Found".
-        if (!Files.exists(resource) || Files.isHidden(resource)) {
-            sendResponse("404 Not Found");
+        // The client may already have this version.
+        if (isNotModified(entry)) {
+            sendFile("304 Not Modified", urlPath, entry, true);
             return;
         }
-          
-        // See if the resource is "Forbidden".
-        if (!Files.isReadable(resource) || !Files.isRegularFile(resource)) {
-            sendResponse("403 Forbidden");
-            return;
+
+        // Send only the parts the client asked for, if it still
+        // has the same version of the rest.
+        String range = m_request.getHeader("Range");
+        if (range != null && isRangeCurrent(entry)) {
+            List<long[]> ranges = HTTPByteRanges.parse(range,
+                    entry.getSize());
+            if (ranges != null && ranges.isEmpty()) {
+                beginHeader("416 Range Not Satisfiable");
+                addHeaderField("Content-Range",
+                        "bytes */" + entry.getSize());
+                endHeader(0);
+                return;
+            }
+            if (ranges != null) {
+                sendRanges(urlPath, entry, ranges);
+                return;
+            }
         }
-          
+
         // Send OK header and the resource.
-        sendResponse("200 OK", Files.readAllBytes(resource));
-    }
-
-    /**
-     * Process the client request string passed in 'reqStr'.
-     *
-     * Valid requests: GET, and also exit / null / empty string
-     *
-     * @param reqStr the request string received from the
-     *               client
-     */
-    public void parseRequest(String reqStr) throws IOException {
-        //
-        // Tokenize the request string using '?', '&' and ' ' as
-        // delimiters:
-        //
-        //   GET /index.html?country=us&system=linux HTTP/1.1
-        //
-        // will be tokenized as:
-        //
-        //   GET
-        //   /index.html
-        //   country=us
-        //   system=linux
-        //   HTTP/1.1
-        //
-        StringTokenizer tokenizer = new StringTokenizer(reqStr, " ?&");
-        String token = "";
-        if (tokenizer.hasMoreTokens())
-            token = tokenizer.nextToken();
-          
-        // First token is request keyword (e.g. GET, POST, etc.).
-        switch (token) {
-            case "GET":
-                // Second token is resource path (e.g. "/index.html", etc.)
-                handleGETRequest(tokenizer.nextToken());
-                break;
+        sendFile(entry.getStatus(), urlPath, entry, false);
+    }
 
-            case "exit":
-            //case "null":
-            //case "":
-                // Acknowledge and exit.
-                sendResponse("200 OK");
-                System.out.println("\nExiting at client's request.");
-                System.exit(0);
+    /**
+     * Process the client request passed in 'request'.
+     *
+     * Valid requests: GET, and POST for the admin path
+     *
+     * @param request the request line and header fields
+     *                received from the client
+     */
+    public void parseRequest(HTTPRequest request) throws IOException {
+        m_request = request;
+
+        String path = request.getPath();
+        if (m_adminPath != null && path != null
+                && (path.equals(m_adminPath)
+                    || path.startsWith(m_adminPath + "/"))) {
+            handleAdminRequest(request.getMethod(),
+                    path.substring(m_adminPath.length()));
+            return;
+        }
+
+        // The request keyword (e.g. GET, POST, etc.) selects the
+        // handler; the parser has already decoded the path and
+        // split off any query string.
+        switch (request.getMethod()) {
+            case "GET":
+                if (request.getPath() == null) {
+                    m_keepAlive = false;
+                    sendResponse("400 Bad Request");
+                    break;
+                }
+                if (request.getPath().equals(m_metricsPath)) {
+                    sendMetrics();
+                    break;
+                }
+                handleGETRequest(request.getPath());
                 break;
 
             case "DELETE":
@@ -241,51 +1153,475 @@ public class HTTPServerSession extends Thread {
                 break;
 
             default:
-                // Unrecognized request keyword.
+                // Unrecognized request keyword; we can't trust
+                // anything else on this connection.
+                m_keepAlive = false;
                 sendHeader("400 Bad Request ", 0);
                 break;
         }
     }
 
     /**
-     * Reads an HTTP request from the session socket and
-     * executes it.
+     * Handles a request for the admin path: "POST .../reload"
+     * reloads the server's configuration, "POST .../shutdown"
+     * starts a graceful shutdown.  Only clients on the loopback
+     * interface are obeyed.
+     *
+     * Request bodies aren't read, so the connection is closed
+     * after the response.
+     *
+     * @param method the request method
+     * @param action the path after the admin path, e.g. "/reload"
      */
-    public void completeSession() throws IOException {
-        BufferedReader inReader = new BufferedReader(
-                new InputStreamReader(this.m_socket.getInputStream()));
-          
-        // Read request line from client.
-        String reqStr = inReader.readLine();
+    private void handleAdminRequest(String method, String action)
+            throws IOException
+    {
+        m_keepAlive = false;
+        InetAddress address = m_socket.getInetAddress();
+        if (address == null || !address.isLoopbackAddress()) {
+            sendResponse("403 Forbidden");
+            return;
+        }
+        if (!action.equals("/reload") && !action.equals("/shutdown")) {
+            sendResponse("404 Not Found");
+            return;
+        }
+        if (!method.equals("POST")) {
+            byte[] body = s_statusBodies.computeIfAbsent(
+                    "405 Method Not Allowed", status -> (
+                        "<html><head><title>" + status + "</title></head>"
+                            + "<body><h1>" + status + "</h1></body></html>"
+                    ).getBytes(StandardCharsets.ISO_8859_1));
+            beginHeader("405 Method Not Allowed");
+            addHeaderField("Allow", "POST");
+            endHeader(body.length);
+            m_output.add(body);
+            return;
+        }
 
-        // Log the request on the server's console.
-        System.out.println(
-                m_socket.getRemoteSocketAddress().toString() + " -- " +
-                        '\"' + reqStr + '\"');
-          
-        // Read rest of request header.
-        String headerField;
-        while ((headerField = inReader.readLine()) != null) {
-            if (m_showClientHeader)
-                System.out.println(headerField);
-            if (headerField.equals(""))
+        String status = "200 OK";
+        String message;
+        if (action.equals("/shutdown")) {
+            m_server.shutdown();
+            status = "202 Accepted";
+            message = "Shutting down";
+        } else {
+            try {
+                m_server.reload();
+                message = "Configuration reloaded";
+            } catch (IOException | RuntimeException e) {
+                status = "500 Internal Server Error";
+                message = "Reload failed: " + e.getMessage();
+            }
+        }
+
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        beginHeader(status);
+        addHeaderField("Content-Type", "text/plain; charset=utf-8");
+        addHeaderField("Cache-Control", "no-store");
+        endHeader(body.length);
+        m_output.add(body);
+    }
+
+    /**
+     * Answers every complete request in the input buffer.
+     *
+     * The caller has just read bytes into getInputBuffer(); they
+     * are fed to the request parser, and each request it
+     * completes is logged and executed in order, with the
+     * responses appended to the output queue.  A request split
+     * across reads is completed by a later call.  Once a response
+     * asks for the connection to be closed, isClosing() returns
+     * true and any further input is discarded.
+     */
+    public void processInput() throws IOException {
+        if (m_tls == null) {
+            answerInput();
+            return;
+        }
+
+        // Decrypt what was read.  One read may bring more than the
+        // request buffer holds, so answer and decrypt again until
+        // it has all been taken.
+        do {
+            if (m_inBuffer == null)
+                m_inBuffer = m_bufferPool.acquire(INPUT_BUFFER_SIZE);
+            int before = m_inBuffer.position();
+            m_tls.unwrap(m_inBuffer);
+            if (m_inBuffer.position() == before) {
+                if (before == 0) {
+                    m_bufferPool.release(m_inBuffer);
+                    m_inBuffer = null;
+                }
+                break;
+            }
+            answerInput();
+        } while (!m_closing && m_tls.hasInput());
+        if (m_tls.isInputClosed())
+            m_closing = true;
+    }
+
+    /**
+     * Answers the complete requests in m_inBuffer; see
+     * processInput().
+     */
+    private void answerInput() throws IOException {
+        long now = System.nanoTime();
+        HTTPServer config = m_server.getCurrent();
+        if (config != m_config)
+            configure(config);
+        m_metrics.addBytesIn(m_inBuffer.position() - m_carried);
+        m_inBuffer.flip();
+
+        // The HTTP/2 preface can only come first; until enough of
+        // it has arrived to tell, nothing is parsed.
+        if (!m_prefaceChecked) {
+            int matched = HTTP2Connection.matchPreface(m_inBuffer);
+            if (matched >= 0 && matched < HTTP2Connection.PREFACE.length) {
+                m_inBuffer.compact();
+                m_carried = m_inBuffer.position();
+                return;
+            }
+            m_prefaceChecked = true;
+            if (matched > 0)
+                m_http2 = new HTTP2Connection(this, m_output, m_bufferPool);
+        }
+
+        while (m_http2 == null && !m_closing && m_inBuffer.hasRemaining()) {
+            int result = m_parser.parse(m_inBuffer);
+            if (result == HTTPRequestParser.INCOMPLETE)
+                break;
+
+            if (result == HTTPRequestParser.ERROR) {
+                // Too large or malformed; the rest of the input
+                // can't be trusted.
+                m_keepAlive = false;
+                sendResponse(m_parser.getError());
+                logRequest(false);
                 break;
+            }
+            if (upgradeToHTTP2()) {
+                m_parser.reset();
+                break;
+            }
+
+            // Decide before answering, so the response can tell
+            // the client whether the connection stays open.
+            m_requestCount++;
+            m_keepAlive = m_request.isPersistent()
+                    && m_requestCount < m_maxRequests
+                    && !m_server.isStopping();
+
+            // This executes the request.
+            if (m_unsent++ == 0)
+                m_unsentSince = now;
+            parseRequest(m_request);
+            logRequest(true);
+            m_parser.reset();
+        }
+
+        if (m_http2 != null) {
+            if (m_server.isStopping() || m_requestCount >= m_maxRequests)
+                m_http2.goAway();
+            m_http2.receive(m_inBuffer);
+            m_closing = m_http2.isClosing();
+        }
+
+        if (m_closing || !m_inBuffer.hasRemaining()) {
+            // Nothing carried over; an idle connection holds no
+            // buffer.
+            m_bufferPool.release(m_inBuffer);
+            m_inBuffer = null;
+            m_carried = 0;
+        } else {
+            m_inBuffer.compact();
+            m_carried = m_inBuffer.position();
+        }
+    }
+
+    /**
+     * Switches to HTTP/2 if the request just read asks for it with
+     * "Upgrade: h2c" and valid "HTTP2-Settings"; the request is
+     * then answered as stream 1.  Requests with a body are answered
+     * over HTTP/1.1, as the body would have to be read first.
+     *
+     * @return true if the connection now speaks HTTP/2
+     */
+    private boolean upgradeToHTTP2() throws IOException {
+        String encoded = m_request.getHeader("HTTP2-Settings");
+        String contentLength = m_request.getHeader("Content-Length");
+        if (m_tls != null || encoded == null
+                || !m_request.requestsUpgrade("h2c")
+                || !m_request.getVersion().equals("HTTP/1.1")
+                || m_request.getHeader("Transfer-Encoding") != null
+                || (contentLength != null && !contentLength.equals("0")))
+            return false;
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(encoded.trim());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        m_output.add(SWITCHING_PROTOCOLS);
+        m_http2 = new HTTP2Connection(this, m_output, m_bufferPool);
+        m_http2.upgrade(m_request, settings);
+        return true;
+    }
+
+    /**
+     * Answers the request on an HTTP/2 stream.  The response body
+     * goes to the stream's own queue, the header fields to the
+     * HTTP2Connection, which sends them when this returns.
+     *
+     * @param request the request
+     * @param error status to answer with instead (a request over
+     *              the parser's limits), or null
+     * @param body receives the response body
+     */
+    public void answerStream(HTTPRequest request, String error,
+                             HTTPOutputQueue body)
+            throws IOException
+    {
+        HTTPOutputQueue output = m_output;
+        m_output = body;
+        m_request = request;
+        m_requestCount++;
+        if (m_unsent++ == 0)
+            m_unsentSince = System.nanoTime();
+        try {
+            if (error != null) {
+                sendResponse(error);
+                logRequest(false);
+            } else {
+                parseRequest(request);
+                logRequest(true);
+            }
+        } finally {
+            m_output = output;
+        }
+    }
+
+    /**
+     * Queues the access log entry for the request just answered.
+     *
+     * @param parsed false if the request couldn't be parsed; its
+     *               request line and fields are then left out
+     */
+    private void logRequest(boolean parsed) {
+        if (m_accessLog == null)
+            return;
+        if (m_remoteHost == null) {
+            InetAddress address = m_socket.getInetAddress();
+            m_remoteHost = (address == null) ? "-" : address.getHostAddress();
+        }
+
+        String headers = null;
+        if (parsed && m_showClientHeader) {
+            StringBuilder fields = new StringBuilder(512);
+            for (int i = 0; i < m_request.getHeaderCount(); i++) {
+                fields.append(m_request.getHeaderName(i)).append(": ")
+                      .append(m_request.getHeaderValue(i)).append('\n');
+            }
+            headers = fields.toString();
+        }
+
+        if (parsed) {
+            m_accessLog.log(m_remoteHost, m_request.getRequestLine(),
+                    m_status, m_bodyBytes, m_request.getHeader("Referer"),
+                    m_request.getHeader("User-Agent"), headers);
+        } else {
+            m_accessLog.log(m_remoteHost, "", m_status, m_bodyBytes,
+                    null, null, null);
+        }
+    }
+
+    /**
+     * Writes as much queued output as the channel takes.
+     *
+     * Once the queue has been drained, the requests it answered
+     * count as completed in the server's latency figures.
+     *
+     * @return true if all output has been written
+     */
+    public boolean writeOutput() throws IOException {
+        if (!m_output.isEmpty() || (m_http2 != null && m_http2.isSending()))
+            setPhase(SENDING);
+        long written = m_output.getBytesWritten();
+        WritableByteChannel channel = (m_tls != null) ? m_tls : m_channel;
+        boolean drained;
+        try {
+            drained = m_output.writeTo(channel);
+
+            // HTTP/2: frame more of the streams' bodies whenever
+            // the socket has taken the last batch.
+            while (drained && m_http2 != null && m_http2.produce())
+                drained = m_output.writeTo(channel);
+
+            // TLS: records (or handshake messages) may still be
+            // waiting for the socket.
+            if (drained && m_tls != null)
+                drained = m_tls.flush();
+        } finally {
+            m_metrics.addBytesOut(m_output.getBytesWritten() - written);
+        }
+
+        if (m_http2 != null)
+            m_closing = m_http2.isClosing();
+        if (drained && m_unsent > 0
+                && (m_http2 == null || !m_http2.isSending())) {
+            m_metrics.recordLatency(System.nanoTime() - m_unsentSince,
+                    m_unsent);
+            m_unsent = 0;
+        }
+
+        if (!drained || (m_http2 != null && m_http2.isSending()))
+            setPhase(SENDING);
+        else if (m_inBuffer != null || m_parser.isStarted()
+                || (m_tls != null && m_tls.hasInput()))
+            setPhase(READING);
+        else
+            setPhase(IDLE);
+        return drained;
+    }
+
+    /**
+     * Reads HTTP requests from the session socket and executes
+     * them, for as long as the connection stays persistent.
+     *
+     * Used by the blocking engine; the channel must be in
+     * blocking mode.
+     */
+    public void completeSession() throws IOException {
+        // The deadlines are kept on the server's timer wheel, whose
+        // thread ends a read that has waited too long (SO_TIMEOUT
+        // would only bound each read, not the whole request).
+        InputStream inStream = m_socket.getInputStream();
+        startTimer(m_server.getTimerWheel(), this::expireBlocking);
+
+        try {
+            while (!m_closing) {
+                // The stream wants an array, so this engine reads
+                // into a heap buffer.
+                ByteBuffer in;
+                if (m_tls != null) {
+                    in = m_tls.getNetInput();
+                } else {
+                    if (m_inBuffer == null)
+                        m_inBuffer = m_bufferPool.acquireHeap(
+                                INPUT_BUFFER_SIZE);
+                    in = m_inBuffer;
+                }
+                int count = inStream.read(in.array(), in.position(),
+                        in.remaining());
+                if (count < 0 && m_timedOut && beginWork()) {
+                    try {
+                        answerTimeout();
+                        writeOutput();
+                    } finally {
+                        endWork();
+                    }
+                    break;
+                }
+                if (count < 0 || !beginWork())
+                    break;
+                in.position(in.position() + count);
+
+                // Answer everything received so far, then send
+                // all of the answers at once.  A blocking channel
+                // only comes up short if a file was truncated
+                // under us.
+                try {
+                    processInput();
+                    if (!writeOutput())
+                        break;
+                } finally {
+                    endWork();
+                }
+            }
+        } catch (IOException e) {
+            // Being cut off by a stopping server is no error.
+            if (!m_aborted)
+                throw e;
+        } finally {
+            // Done; close the socket.
+            close();
         }
+    }
+
+    /**
+     * Marks the session busy with a request, so closeIfIdle()
+     * leaves it alone.
+     *
+     * @return false if the server has already closed the
+     *         connection
+     */
+    private synchronized boolean beginWork() {
+        if (m_aborted)
+            return false;
+        m_busy = true;
+        return true;
+    }
 
-        // This parses and executes the request.
-        if (reqStr != null)
-            parseRequest(reqStr);
+    private synchronized void endWork() {
+        m_busy = false;
+    }
 
-        // Done; close streams and socket as per the assignment.
-        m_outWriter.close();
-        m_outStream.close();
-        m_socket.close();
+    /**
+     * Closes the connection and discards any unsent output,
+     * releasing the files and buffers it refers to.
+     */
+    public synchronized void close() {
+        if (!m_closed) {
+            m_closed = true;
+            m_metrics.connectionClosed();
+        }
+        if (m_timer != null) {
+            m_wheel.cancel(m_timer);
+            m_timer = null;
+        }
+        if (m_http2 != null)
+            m_http2.close();
+        if (m_tls != null)
+            m_tls.close();
+        m_output.clear();
+        m_bufferPool.release(m_inBuffer);
+        m_inBuffer = null;
+        try {
+            m_channel.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Turns the client away because the server is overloaded.
+     *
+     * Called by the accepting thread when the executor has no
+     * worker or queue slot left for this session; the request
+     * is not read.
+     */
+    public void rejectSession() {
+        if (m_tls != null) {
+            // No handshake yet to answer through.
+            close();
+            return;
+        }
+        try {
+            sendResponse("503 Service Unavailable");
+            logRequest(false);
+            writeOutput();
+        } catch (IOException e) {
+            // Nothing more we can do for this client.
+        } finally {
+            close();
+        }
     }
 
     /**
-     * Handles one client's HTTP request in its own thread.
+     * Handles one client's HTTP request.
      *
-     * Overrides Thread.run().
+     * Implements Runnable.run(); called by the server's executor.
      */
     @Override public void run() {
         try {
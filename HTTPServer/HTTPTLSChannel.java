@@ -0,0 +1,401 @@
+/*
+ * HTTPTLSChannel.java - TLS on a client connection, with an
+ * SSLEngine.
+ *
+ * Notes:
+ *   SSLSocket only works with blocking I/O, so HTTPS connections
+ *   use an SSLEngine, which just turns bytes into other bytes and
+ *   leaves the I/O to us; that works the same for both engines.
+ *   The session still reads from the socket itself, into
+ *   getNetInput() instead of its request buffer, and unwrap()
+ *   decrypts what it read into the request buffer.  Responses go
+ *   out through write(), so HTTPOutputQueue writes to this channel
+ *   just as it would to the socket.
+ *
+ *   The handshake runs along with the reads: whatever the engine
+ *   wants to send (the server's handshake flight, TLS 1.3 session
+ *   tickets, alerts) is wrapped into the outgoing buffer as soon as
+ *   it asks, and leaves with the next flush().  The engine's
+ *   delegated tasks (signing, key checks) are run in place, on the
+ *   connection's thread.
+ *
+ *   Every buffer is borrowed from the server's HTTPBufferPool and
+ *   given back once it is empty, so an idle connection holds none.
+ *   Records are encrypted straight out of the queued buffers
+ *   (cached bodies, mapped files), and file regions, which can't
+ *   be sent with sendfile(2) once they have to be encrypted, are
+ *   read into one pooled buffer and encrypted from there.  The
+ *   outgoing buffer takes several records, so one socket write
+ *   carries several.
+ *
+ *   ALPN offers "h2" and "http/1.1"; a client that picks "h2"
+ *   starts with the HTTP/2 preface, which HTTPServerSession
+ *   recognizes either way.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import javax.net.ssl.*;
+
+
+/**
+ * One HTTPS connection's TLS state and buffers.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPTLSChannel implements WritableByteChannel {
+
+    // Application protocols offered, most preferred first.
+    private static final List<String> APPLICATION_PROTOCOLS =
+            Arrays.asList("h2", "http/1.1");
+
+    // File bytes read at a time; one record's worth.
+    private static final int FILE_CHUNK = 16 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // Member variables.
+    private SocketChannel m_channel;        // The connection.
+    private SSLEngine m_engine;
+    private HTTPBufferPool m_bufferPool;    // Lends all buffers below.
+    private boolean m_heapInput;            // Read through a stream.
+    private ByteBuffer m_netIn;             // Read, not yet decrypted.
+    private ByteBuffer m_appIn;             // Decrypted, not yet taken.
+    private ByteBuffer m_netOut;            // Encrypted, not yet sent.
+    private int m_packetSize;               // Largest record.
+    private boolean m_inputClosed;          // close_notify received.
+    private boolean m_open;
+
+
+    /**
+     * Starts a server-side TLS session on a connection.
+     *
+     * @param channel the connection, just accepted
+     * @param context supplies the certificate and session cache
+     * @param bufferPool lends the channel's buffers
+     */
+    public HTTPTLSChannel(SocketChannel channel, SSLContext context,
+                          HTTPBufferPool bufferPool)
+    {
+        m_channel = channel;
+        m_engine = context.createSSLEngine();
+        m_engine.setUseClientMode(false);
+        m_engine.setHandshakeApplicationProtocolSelector(
+                (engine, offered) -> {
+                    for (String protocol : APPLICATION_PROTOCOLS) {
+                        if (offered.contains(protocol))
+                            return protocol;
+                    }
+                    return "";      // Go on without ALPN.
+                });
+        m_bufferPool = bufferPool;
+        m_heapInput = channel.isBlocking();
+        m_netIn = null;
+        m_appIn = null;
+        m_netOut = null;
+        m_packetSize = m_engine.getSession().getPacketBufferSize();
+        m_inputClosed = false;
+        m_open = true;
+    }
+
+    /**
+     * Returns the buffer encrypted bytes are read into before
+     * calling unwrap().  Like the session's own request buffer,
+     * it is given back once empty, so fetch it for every read.
+     *
+     * @return a buffer with room for at least one record; a heap
+     *         buffer on a blocking connection (which is read
+     *         through its InputStream)
+     */
+    public ByteBuffer getNetInput() {
+        if (m_netIn == null) {
+            m_netIn = m_heapInput ? m_bufferPool.acquireHeap(m_packetSize)
+                                  : m_bufferPool.acquire(m_packetSize);
+        }
+        return m_netIn;
+    }
+
+    /**
+     * Decrypts what has been read into getNetInput(), as far as
+     * 'dst' has room, and answers the handshake as it goes.
+     *
+     * @param dst receives the request bytes
+     * @throws SSLException if the client's data isn't valid TLS
+     *                      or the handshake fails
+     */
+    public void unwrap(ByteBuffer dst) throws IOException {
+        for (;;) {
+            if (m_appIn != null) {
+                m_appIn.flip();
+                int count = Math.min(m_appIn.remaining(), dst.remaining());
+                ByteBuffer slice = m_appIn.duplicate();
+                slice.limit(slice.position() + count);
+                dst.put(slice);
+                m_appIn.position(m_appIn.position() + count);
+                m_appIn.compact();
+                if (m_appIn.position() == 0) {
+                    m_bufferPool.release(m_appIn);
+                    m_appIn = null;
+                }
+                if (!dst.hasRemaining())
+                    return;
+            }
+
+            SSLEngineResult.HandshakeStatus status =
+                    m_engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+                continue;
+            }
+            if (m_netIn == null || m_netIn.position() == 0 || m_inputClosed) {
+                releaseNetInput();
+                return;
+            }
+
+            if (m_appIn == null)
+                m_appIn = m_bufferPool.acquire(
+                        m_engine.getSession().getApplicationBufferSize());
+            m_netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = m_engine.unwrap(m_netIn, m_appIn);
+            } finally {
+                m_netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // Part of a record; the rest is still to come.
+                    // A record larger than we expected needs a
+                    // larger buffer.
+                    growNetInput();
+                    return;
+                case BUFFER_OVERFLOW:
+                    // The session's records got larger than the
+                    // buffer (which is empty here, see above).
+                    growAppInput();
+                    break;
+                case CLOSED:
+                    m_inputClosed = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return true if decrypted bytes are waiting for room in the
+     *         request buffer, or whole records for decrypting
+     */
+    public boolean hasInput() {
+        return m_appIn != null
+                || (m_netIn != null && m_netIn.position() > 0
+                    && !m_inputClosed);
+    }
+
+    /**
+     * @return true once the client has closed its side of the TLS
+     *         session (close_notify)
+     */
+    public boolean isInputClosed() {
+        return m_inputClosed;
+    }
+
+    /**
+     * @return the protocol ALPN chose, "" if none, or null while
+     *         the handshake is still going
+     */
+    public String getApplicationProtocol() {
+        return m_engine.getApplicationProtocol();
+    }
+
+    /**
+     * Encrypts and sends bytes.  On a blocking connection all of
+     * them are sent; on a non-blocking one, nothing is taken
+     * while encrypted bytes from before are still waiting for the
+     * socket, and the records taken may be left waiting in turn.
+     *
+     * @param src the bytes to send
+     * @return number of bytes taken from 'src'
+     */
+    @Override public int write(ByteBuffer src) throws IOException {
+        int taken = 0;
+        while (src.hasRemaining() && flush()) {
+            // Fill the outgoing buffer with as many records as it
+            // takes, so they leave in one write.
+            do {
+                int before = src.remaining();
+                if (wrap(src) == SSLEngineResult.Status.CLOSED)
+                    throw new ClosedChannelException();
+                taken += before - src.remaining();
+            } while (src.hasRemaining()
+                    && m_netOut.remaining() >= m_packetSize);
+        }
+        return taken;
+    }
+
+    /**
+     * Encrypts and sends part of a file, a record's worth at a
+     * time; the counterpart of FileChannel.transferTo() for this
+     * channel.
+     *
+     * @param file the file to send from
+     * @param position offset of the first byte to send
+     * @param count most bytes to send
+     * @return number of file bytes sent (or left waiting for the
+     *         socket); 0 if the socket is still busy or the file
+     *         ends at 'position'
+     */
+    public long transferFrom(FileChannel file, long position, long count)
+            throws IOException
+    {
+        long sent = 0;
+        ByteBuffer chunk = null;
+        try {
+            while (sent < count && flush()) {
+                if (chunk == null)
+                    chunk = m_bufferPool.acquire(FILE_CHUNK);
+                chunk.clear();
+                if (count - sent < chunk.remaining())
+                    chunk.limit((int) (count - sent));
+                int read = file.read(chunk, position + sent);
+                if (read <= 0)
+                    break;
+                chunk.flip();
+                sent += write(chunk);
+            }
+        } finally {
+            m_bufferPool.release(chunk);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends encrypted bytes still waiting for the socket.
+     *
+     * @return true if none are left
+     */
+    public boolean flush() throws IOException {
+        if (m_netOut == null)
+            return true;
+        m_netOut.flip();
+        try {
+            while (m_netOut.hasRemaining()) {
+                if (m_channel.write(m_netOut) == 0)
+                    return false;
+            }
+        } finally {
+            m_netOut.compact();
+        }
+        m_bufferPool.release(m_netOut);
+        m_netOut = null;
+        return true;
+    }
+
+    /**
+     * @return true if the connection is in blocking mode
+     */
+    public boolean isBlocking() {
+        return m_heapInput;
+    }
+
+    /**
+     * @return true until close() is called
+     */
+    @Override public boolean isOpen() {
+        return m_open;
+    }
+
+    /**
+     * Ends the TLS session, sending close_notify if the socket
+     * takes it right away, and gives back the buffers.  The
+     * socket itself is left to the caller.
+     */
+    @Override public void close() {
+        if (!m_open)
+            return;
+        m_open = false;
+        try {
+            if (m_channel.isOpen()) {
+                m_engine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // The client is gone; nothing to tell it.
+        }
+        m_bufferPool.release(m_netIn);
+        m_bufferPool.release(m_appIn);
+        m_bufferPool.release(m_netOut);
+        m_netIn = null;
+        m_appIn = null;
+        m_netOut = null;
+    }
+
+    /**
+     * Encrypts bytes (or handshake messages, with nothing to
+     * encrypt) into the outgoing buffer, growing it if the engine
+     * has more to say than fits.
+     *
+     * @return the engine's status; CLOSED once the session has
+     *         been closed, by either side
+     */
+    private SSLEngineResult.Status wrap(ByteBuffer src) throws IOException {
+        for (;;) {
+            if (m_netOut == null)
+                m_netOut = m_bufferPool.acquire(m_packetSize);
+            SSLEngineResult result = m_engine.wrap(src, m_netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                ByteBuffer larger = m_bufferPool.acquire(
+                        m_netOut.capacity() + m_packetSize);
+                m_netOut.flip();
+                larger.put(m_netOut);
+                m_bufferPool.release(m_netOut);
+                m_netOut = larger;
+                continue;
+            }
+            if (result.getHandshakeStatus()
+                    == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runTasks();
+            return result.getStatus();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = m_engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    private void releaseNetInput() {
+        if (m_netIn != null && m_netIn.position() == 0) {
+            m_bufferPool.release(m_netIn);
+            m_netIn = null;
+        }
+    }
+
+    private void growNetInput() {
+        int size = m_engine.getSession().getPacketBufferSize();
+        if (m_netIn.hasRemaining() || m_netIn.capacity() >= size)
+            return;
+        m_packetSize = size;
+        ByteBuffer larger = m_heapInput ? m_bufferPool.acquireHeap(size)
+                                        : m_bufferPool.acquire(size);
+        m_netIn.flip();
+        larger.put(m_netIn);
+        m_bufferPool.release(m_netIn);
+        m_netIn = larger;
+    }
+
+    private void growAppInput() {
+        int size = Math.max(m_engine.getSession().getApplicationBufferSize(),
+                m_appIn.capacity() + 1);
+        m_bufferPool.release(m_appIn);
+        m_appIn = m_bufferPool.acquire(size);
+    }
+};
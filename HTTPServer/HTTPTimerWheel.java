@@ -0,0 +1,221 @@
+/*
+ * HTTPTimerWheel.java - deadlines for many connections, kept in
+ * a hashed timing wheel.
+ *
+ * Notes:
+ *   Every connection has a deadline that moves whenever it
+ *   changes state (waiting for a request, reading one, sending a
+ *   response), several times per request.  A timer per
+ *   connection (or a ScheduledExecutorService task, or a
+ *   PriorityQueue) costs O(log n) to move and a cancelled task
+ *   left behind each time; SO_TIMEOUT only bounds each read, so a
+ *   client that sends a byte now and then never trips it, and it
+ *   doesn't apply to writes at all.
+ *
+ *   The wheel is an array of slots, each a tick (TICK_MILLIS)
+ *   wide, holding a doubly linked list of the timers due in it;
+ *   a timer due further out than one turn of the wheel simply
+ *   stays in its slot for another turn.  Scheduling, moving and
+ *   cancelling a timer are O(1): unlink it, link it into another
+ *   slot.  advance() visits only the slots whose ticks have
+ *   passed, and runs the tasks of the timers due, outside the
+ *   wheel's lock so they may schedule timers themselves.
+ *   Deadlines are rounded up to the next tick, so a timer fires
+ *   up to one tick late, never early.
+ *
+ *   The NIO engine gives each event loop a wheel of its own,
+ *   advanced from the loop between selects, so the tasks run on
+ *   the thread that owns the connections.  The blocking engine
+ *   shares one, advanced by a thread of its own (see start()).
+ */
+import java.util.*;
+
+
+/**
+ * A hashed timing wheel of deadlines.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPTimerWheel {
+
+    /**
+     * A task and its deadline; reused every time the deadline
+     * moves.
+     */
+    public static class Timer {
+        private final Runnable m_task;
+        private long m_deadline;            // System.nanoTime().
+        private int m_slot;                 // -1 if not scheduled.
+        private Timer m_previous;           // Within the slot.
+        private Timer m_next;
+
+        private Timer(Runnable task) {
+            m_task = task;
+            m_slot = -1;
+        }
+    }
+
+    // Width of a slot, and the number of slots (one turn of the
+    // wheel is about 51 seconds).
+    public static final long TICK_MILLIS = 100;
+    private static final int SLOT_COUNT = 512;
+
+    private static final long TICK_NANOS = TICK_MILLIS * 1000000L;
+
+    // Member variables.
+    private Timer[] m_slots;                // First timer of each slot.
+    private long m_tick;                    // Last tick advanced to.
+    private int m_size;                     // Timers scheduled.
+    private Thread m_thread;                // start()'s, or null.
+    private volatile boolean m_stopped;
+
+
+    /**
+     * Creates an empty wheel.
+     */
+    public HTTPTimerWheel() {
+        m_slots = new Timer[SLOT_COUNT];
+        m_tick = Math.floorDiv(System.nanoTime(), TICK_NANOS);
+        m_size = 0;
+        m_thread = null;
+        m_stopped = false;
+    }
+
+    /**
+     * Creates a timer; it does nothing until scheduled.
+     *
+     * @param task run when the timer's deadline passes, on the
+     *             thread calling advance()
+     * @return the timer
+     */
+    public Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    /**
+     * Sets a timer's deadline, replacing any it had.
+     *
+     * @param timer a timer from this wheel
+     * @param deadline System.nanoTime() at which to run its task
+     */
+    public synchronized void schedule(Timer timer, long deadline) {
+        unlink(timer);
+        long tick = -Math.floorDiv(-deadline, TICK_NANOS);     // Round up.
+        if (tick <= m_tick)
+            tick = m_tick + 1;
+        int slot = (int) Math.floorMod(tick, (long) SLOT_COUNT);
+        timer.m_deadline = deadline;
+        timer.m_slot = slot;
+        timer.m_previous = null;
+        timer.m_next = m_slots[slot];
+        if (timer.m_next != null)
+            timer.m_next.m_previous = timer;
+        m_slots[slot] = timer;
+        m_size++;
+    }
+
+    /**
+     * Stops a timer from firing; does nothing if it isn't
+     * scheduled.
+     *
+     * @param timer a timer from this wheel
+     */
+    public synchronized void cancel(Timer timer) {
+        unlink(timer);
+    }
+
+    /**
+     * @return number of timers scheduled
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * Runs the tasks of the timers whose deadlines have passed.
+     *
+     * @param now System.nanoTime()
+     */
+    public void advance(long now) {
+        List<Timer> due = null;
+        synchronized (this) {
+            long tick = Math.floorDiv(now, TICK_NANOS);
+            if (tick <= m_tick)
+                return;
+
+            // After a long pause, one turn visits every slot.
+            long last = Math.min(tick, m_tick + SLOT_COUNT);
+            for (long t = m_tick + 1; t <= last; t++) {
+                int slot = (int) Math.floorMod(t, (long) SLOT_COUNT);
+                Timer timer = m_slots[slot];
+                while (timer != null) {
+                    Timer next = timer.m_next;
+                    if (timer.m_deadline - now <= 0) {
+                        unlink(timer);
+                        if (due == null)
+                            due = new ArrayList<>();
+                        due.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+            m_tick = tick;
+        }
+
+        if (due == null)
+            return;
+        for (Timer timer : due) {
+            try {
+                timer.m_task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Starts a thread that advances the wheel every tick, for
+     * timers scheduled from many threads.
+     *
+     * @param name the thread's name
+     */
+    public void start(String name) {
+        m_thread = new Thread(() -> {
+            while (!m_stopped) {
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                advance(System.nanoTime());
+            }
+        }, name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Stops the thread start() started; timers still scheduled
+     * don't fire.
+     */
+    public void stop() {
+        m_stopped = true;
+        if (m_thread != null)
+            m_thread.interrupt();
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.m_slot < 0)
+            return;
+        if (timer.m_previous != null)
+            timer.m_previous.m_next = timer.m_next;
+        else
+            m_slots[timer.m_slot] = timer.m_next;
+        if (timer.m_next != null)
+            timer.m_next.m_previous = timer.m_previous;
+        timer.m_previous = null;
+        timer.m_next = null;
+        timer.m_slot = -1;
+        m_size--;
+    }
+};
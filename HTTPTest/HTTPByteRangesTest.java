@@ -0,0 +1,66 @@
+/*
+ * HTTPByteRangesTest.java - checks of HTTPByteRanges.parse().
+ *
+ * Notes:
+ *   parse() has three answers that the server treats very
+ *   differently: ranges to send (206), an empty list (416), and
+ *   null (ignore the field, 200 with the whole file).  Each case
+ *   below is checked against the one it must give.
+ */
+import java.util.*;
+
+
+/**
+ * Checks of "Range" field parsing.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPByteRangesTest {
+
+    public static void run() {
+        checkRanges("bytes=0-499", 1000, "0-499");
+        checkRanges("bytes=500-", 1000, "500-999");
+        checkRanges("bytes=-100", 1000, "900-999");
+        checkRanges("bytes=900-2000", 1000, "900-999");
+        checkRanges("bytes=0-0,-1", 1000, "0-0,999-999");
+
+        // Satisfiable by no byte of the file: 416.
+        checkRanges("bytes=1000-", 1000, "");
+        checkRanges("bytes=999999999-", 1000, "");
+        checkRanges("bytes=0-", 0, "");
+        checkRanges("bytes=1000-1999", 1000, "");
+        checkRanges("bytes=-0", 1000, "");
+        checkRanges("bytes=2000-,5000-", 1000, "");
+
+        // Only the satisfiable ranges are kept.
+        checkRanges("bytes=2000-,0-9", 1000, "0-9");
+
+        // Malformed: ignored.
+        checkRanges("bytes=500-100", 1000, null);
+        checkRanges("bytes=abc-", 1000, null);
+        checkRanges("bytes=100", 1000, null);
+        checkRanges("items=0-1", 1000, null);
+    }
+
+    /**
+     * @param expected the ranges as "FIRST-LAST,...", "" for none
+     *                 (416), or null for a field that is ignored
+     */
+    private static void checkRanges(String range, long size,
+                                    String expected)
+    {
+        List<long[]> ranges = HTTPByteRanges.parse(range, size);
+        String actual = null;
+        if (ranges != null) {
+            StringBuilder text = new StringBuilder();
+            for (long[] r : ranges) {
+                if (text.length() > 0)
+                    text.append(',');
+                text.append(r[0]).append('-').append(r[1]);
+            }
+            actual = text.toString();
+        }
+        HTTPTest.checkEquals("\"" + range + "\" on " + size + " bytes",
+                expected, actual);
+    }
+};
@@ -0,0 +1,61 @@
+/*
+ * HTTPDateTest.java - checks of HTTPDate.parse().
+ *
+ * Notes:
+ *   All three forms RFC 7231 makes servers accept must give the
+ *   same instant.  RFC 850's two-digit year is the tricky one: it
+ *   must be read as the year within 50 years of now, not as 20yy.
+ */
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+
+/**
+ * Checks of client date parsing.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPDateTest {
+
+    // Sun, 06 Nov 1994 08:49:37 GMT, the RFCs' example.
+    private static final long EXAMPLE = 784111777000L;
+
+
+    public static void run() {
+        checkDate("Sun, 06 Nov 1994 08:49:37 GMT", EXAMPLE);
+        checkDate("Sunday, 06-Nov-94 08:49:37 GMT", EXAMPLE);
+        checkDate("Sun Nov  6 08:49:37 1994", EXAMPLE);
+        checkDate("  Sun, 06 Nov 1994 08:49:37 GMT  ", EXAMPLE);
+        checkDate("not a date", -1);
+
+        // A two-digit year up to 49 years ahead is this century's,
+        // one further ahead the previous century's.
+        int year = LocalDate.now(ZoneOffset.UTC).getYear();
+        checkYear(year + 10);
+        checkYear(year - 10);
+        checkYear(year + 60 - 100);
+
+        HTTPTest.checkEquals("format()", "Sun, 06 Nov 1994 08:49:37 GMT",
+                HTTPDate.format(EXAMPLE));
+    }
+
+    private static void checkDate(String text, long expected) {
+        HTTPTest.checkEquals("\"" + text + "\"", expected,
+                HTTPDate.parse(text));
+    }
+
+    /**
+     * Checks that 1 January of 'year', in the RFC 850 form, is
+     * read as that year.
+     */
+    private static void checkYear(int year) {
+        LocalDate date = LocalDate.of(year, 1, 1);
+        String text = String.format("%s, 01-Jan-%02d 00:00:00 GMT",
+                date.getDayOfWeek().getDisplayName(TextStyle.FULL,
+                        Locale.US),
+                year % 100);
+        checkDate(text, date.atStartOfDay(ZoneOffset.UTC)
+                .toInstant().toEpochMilli());
+    }
+};
@@ -0,0 +1,71 @@
+/*
+ * HTTPFileCacheTest.java - checks of HTTPFileCache's URL index.
+ *
+ * Notes:
+ *   Several URL paths can name the same file, and each one is
+ *   indexed.  An entry evicted from the cache must be gone from
+ *   the index under all of them, or the index keeps its body in
+ *   memory outside the cache's budget.
+ */
+import java.io.*;
+import java.nio.file.*;
+
+
+/**
+ * Checks of the file cache's index.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPFileCacheTest {
+
+    public static void run() {
+        Path docRoot = null;
+        try {
+            docRoot = Files.createTempDirectory("HTTPFileCacheTest")
+                    .toRealPath();
+            Files.createDirectory(docRoot.resolve("sub"));
+            Files.write(docRoot.resolve("a.bin"), new byte[1000]);
+            Files.write(docRoot.resolve("b.bin"), new byte[1000]);
+
+            // Room for one of the files, not both.
+            HTTPFileCache cache = new HTTPFileCache(docRoot, 2000, 1000,
+                    60000);
+            String[] aliases = { "/a.bin", "/./a.bin", "/sub/../a.bin" };
+            HTTPFileCache.Entry entry = null;
+            for (String alias : aliases) {
+                HTTPFileCache.Entry found = cache.lookup(alias);
+                HTTPTest.check(alias + " finds the cached entry",
+                        entry == null || found == entry);
+                entry = found;
+                HTTPTest.check(alias + " is indexed", cache.isIndexed(alias));
+            }
+            HTTPTest.checkEquals("entries before eviction", 1,
+                    cache.getEntryCount());
+
+            cache.lookup("/b.bin");
+            HTTPTest.checkEquals("evictions", 1L, cache.getEvictions());
+            for (String alias : aliases) {
+                HTTPTest.check(alias + " is not indexed after eviction",
+                        !cache.isIndexed(alias));
+            }
+            HTTPTest.check("/b.bin is indexed", cache.isIndexed("/b.bin"));
+        } catch (IOException e) {
+            HTTPTest.check("file cache checks: " + e, false);
+        } finally {
+            deleteTree(docRoot);
+        }
+    }
+
+    private static void deleteTree(Path directory) {
+        if (directory == null)
+            return;
+        try {
+            Files.deleteIfExists(directory.resolve("a.bin"));
+            Files.deleteIfExists(directory.resolve("b.bin"));
+            Files.deleteIfExists(directory.resolve("sub"));
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            // Leave it to the temp directory's cleanup.
+        }
+    }
+};
@@ -0,0 +1,70 @@
+/*
+ * HTTPTest.java - checks of server components whose answers are
+ * easy to get subtly wrong.
+ *
+ *
+ * Usage:
+ *   java HTTPTest
+ *
+ *
+ * Notes:
+ *   Each test class has a static run() that makes its checks with
+ *   check() and checkEquals(); a failed check is reported with its
+ *   description and the rest still run.  The exit status is 1 if
+ *   any check failed.  No test framework is needed, so the checks
+ *   build and run like the benchmarks (see test.sh).
+ */
+import java.util.*;
+
+
+/**
+ * Runs the component checks and reports the failures.
+ *
+ * @author Randy Sorensen
+ */
+public class HTTPTest {
+
+    // Checks made and failed so far.
+    private static int s_checks = 0;
+    private static int s_failures = 0;
+
+
+    /**
+     * Records a check.
+     *
+     * @param description what was expected, shown if it failed
+     * @param passed the outcome
+     */
+    public static void check(String description, boolean passed) {
+        s_checks++;
+        if (!passed) {
+            s_failures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+    /**
+     * Records a check that a value is what was expected.
+     *
+     * @param description what was checked, shown if it failed
+     * @param expected the right value
+     * @param actual the value found
+     */
+    public static void checkEquals(String description, Object expected,
+                                   Object actual)
+    {
+        boolean passed = Objects.equals(expected, actual);
+        check(description + ": expected " + expected + ", got " + actual,
+                passed);
+    }
+
+    public static void main(String args[]) {
+        HTTPByteRangesTest.run();
+        HTTPDateTest.run();
+        HTTPFileCacheTest.run();
+
+        System.out.println(s_checks + " checks, " + s_failures + " failed");
+        if (s_failures > 0)
+            System.exit(1);
+    }
+};
@@ -0,0 +1,4 @@
+#!/bin/sh
+mkdir -p build/benchmark
+javac -d build/benchmark HTTPServer/*.java HTTPBenchmark/*.java && \
+java -cp build/benchmark HTTPBenchmark "$@"
@@ -0,0 +1,4 @@
+#!/bin/sh
+mkdir -p build/test
+javac -d build/test HTTPServer/*.java HTTPTest/*.java && \
+java -cp build/test HTTPTest "$@"